@@ -25,10 +25,36 @@ public class TosaSuite extends Suite {
 
   public static Class[] getAllTestClasses() {
     return classesFor(
+      "tosa.CachedDBObjectTest",
+      "tosa.DBConnectionReplicaTest",
+      "tosa.DBConnectionRequestScopeTest",
+      "tosa.DBConnectionTransactionContextTest",
+      "tosa.db.execution.AsyncQueryExecutorTest",
+      "tosa.db.execution.DBExecutionKernelImplTest",
+      "tosa.db.execution.PreparedStatementCacheTest",
+      "tosa.db.pool.AffinityConnectionPoolTest",
+      "tosa.db.pool.ConnectionPoolConfigTest",
+      "tosa.db.pool.DbcpConnectionPoolTest",
+      "tosa.db.pool.ReplicaSelectionPolicyTest",
+      "tosa.impl.ArrayPrefetcherTest",
+      "tosa.impl.ColumnIndexMappingTest",
+      "tosa.impl.EntityCacheTest",
+      "tosa.impl.FkPrefetcherTest",
+      "tosa.impl.IdentityMapTest",
       "tosa.impl.JoinArrayEntityCollectionImplTest",
+      "tosa.impl.LatencyHistogramTest",
+      "tosa.impl.LongIntHashMapTest",
+      "tosa.impl.QueryLatencyRecorderTest",
+      "tosa.impl.QueryMetricsRegistryTest",
       "tosa.impl.ReverseFkEntityCollectionImplTest",
+      "tosa.impl.SqlTemplateTest",
+      "tosa.impl.StripedCounterTest",
+      "tosa.impl.UnitOfWorkImplTest",
+      "tosa.impl.WindowedEntityCollectionTest",
+      "tosa.impl.query.TemplateQueryPlanTest",
       "tosa.loader.DBTypeInfoTest",
       "tosa.loader.SQLTypeInfoTest",
+      "tosa.loader.parser.DDLDBDataSourceTest",
       "tosa.loader.parser.SelectParsingBootstrapTest",
       "tosa.loader.parser.TokenizerTest",
       "tosa.loader.parser.mysql.MySQL51SQLParserTest"
@@ -0,0 +1,82 @@
+package tosa;
+
+import gw.lang.reflect.TypeSystem;
+import test.TestEnv;
+import tosa.api.IDBColumn;
+import tosa.api.IDBObject;
+import tosa.api.IPreparedStatementParameter;
+import tosa.dbmd.DatabaseImpl;
+import tosa.loader.DBTypeLoader;
+import tosa.loader.IDBType;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how many bytes are allocated per row when hydrating CachedDBObjects, both for the whole select
+ * path and for object construction on its own.  This isn't part of the test suite; run it directly with the
+ * test classpath:
+ *
+ * <pre>
+ *   java -cp ... tosa.CachedDBObjectAllocationBenchmark [rows]
+ * </pre>
+ *
+ * Allocation is measured with com.sun.management.ThreadMXBean, so this needs a HotSpot-derived JVM.
+ *
+ * ${License}
+ */
+public class CachedDBObjectAllocationBenchmark {
+
+  private static final int DEFAULT_ROWS = 50000;
+  private static final int WARMUP_ITERATIONS = 5;
+
+  public static void main(String[] args) throws Exception {
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROWS;
+    TestEnv.maybeInit();
+    DatabaseImpl db = TypeSystem.getTypeLoader(DBTypeLoader.class).getTypeDataForNamespace("test.testdb");
+    db.getDBUpgrader().recreateTables();
+    IDBType barType = (IDBType) TypeSystem.getByFullName("test.testdb.Bar");
+
+    IDBColumn miscColumn = db.getTable("Bar").getColumn("Misc");
+    List<IPreparedStatementParameter[]> parameterSets = new ArrayList<IPreparedStatementParameter[]>();
+    for (int i = 0; i < rows; i++) {
+      parameterSets.add(new IPreparedStatementParameter[]{miscColumn.wrapParameterValue("bar" + i)});
+    }
+    db.getDBExecutionKernel().executeInsertBatch("INSERT INTO \"Bar\" (\"Misc\") VALUES (?)", parameterSets);
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      select(barType);
+      construct(barType, rows);
+    }
+
+    long before = allocatedBytes();
+    List<IDBObject> results = select(barType);
+    long selectBytes = allocatedBytes() - before;
+
+    before = allocatedBytes();
+    construct(barType, rows);
+    long constructBytes = allocatedBytes() - before;
+
+    System.out.println("Rows:                          " + results.size());
+    System.out.println("Bytes per row (select):        " + (selectBytes / rows));
+    System.out.println("Bytes per row (construction):  " + (constructBytes / rows));
+  }
+
+  private static List<IDBObject> select(IDBType type) {
+    return type.getQueryExecutor().selectEntity("CachedDBObjectAllocationBenchmark.select()", type, "SELECT * FROM \"Bar\"");
+  }
+
+  private static Object construct(IDBType type, int rows) {
+    Object last = null;
+    for (int i = 0; i < rows; i++) {
+      last = new CachedDBObject(type, false);
+    }
+    return last;
+  }
+
+  private static long allocatedBytes() {
+    com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
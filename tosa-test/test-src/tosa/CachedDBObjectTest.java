@@ -0,0 +1,115 @@
+package tosa;
+
+import gw.lang.reflect.TypeSystem;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.TestEnv;
+import tosa.api.IDBObject;
+import tosa.dbmd.DatabaseImpl;
+import tosa.impl.QueryExecutorImpl;
+import tosa.impl.WriteStatement;
+import tosa.loader.DBTypeLoader;
+import tosa.loader.IDBType;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CachedDBObjectTest {
+
+  @BeforeClass
+  static public void initDB() {
+    TestEnv.maybeInit();
+  }
+
+  @Before
+  public void resetDB() {
+    getDB().getDBUpgrader().recreateTables();
+  }
+
+  private static DatabaseImpl getDB() {
+    DBTypeLoader dbTypeLoader = TypeSystem.getTypeLoader(DBTypeLoader.class);
+    return dbTypeLoader.getTypeDataForNamespace("test.testdb");
+  }
+
+  private IDBType getBarType() {
+    return (IDBType) TypeSystem.getByFullName("test.testdb.Bar");
+  }
+
+  private CachedDBObject createAndCommitBar(String misc) throws SQLException {
+    CachedDBObject bar = new CachedDBObject(getBarType(), true);
+    bar.setColumnValue("Misc", misc);
+    bar.update();
+    return bar;
+  }
+
+  private CachedDBObject loadBar(Object id) {
+    List<IDBObject> results = new QueryExecutorImpl(getDB()).selectEntity("CachedDBObjectTest.loadBar()", getBarType(),
+        "SELECT * FROM \"Bar\" WHERE \"id\" = ?", getDB().getTable("Bar").getColumn("id").wrapParameterValue(id));
+    assertEquals(1, results.size());
+    return (CachedDBObject) results.get(0);
+  }
+
+  @Test
+  public void testLoadedObjectIsNotDirty() throws SQLException {
+    CachedDBObject bar = loadBar(createAndCommitBar("misc").getId());
+    assertFalse(bar.isDirty());
+    assertNull(bar.buildUpdateStatement());
+  }
+
+  @Test
+  public void testUpdateStatementOnlyIncludesChangedColumns() throws SQLException {
+    CachedDBObject bar = loadBar(createAndCommitBar("misc").getId());
+    bar.setColumnValue("Misc", "changed");
+    assertTrue(bar.isDirty());
+    WriteStatement update = bar.buildUpdateStatement();
+    assertEquals(2, update.getParameters().length);
+    assertTrue(update.getSql().contains("\"Misc\""));
+    assertFalse(update.getSql().contains("\"Date\""));
+  }
+
+  @Test
+  public void testSettingAColumnBackToItsOriginalValueIsNotAChange() throws SQLException {
+    CachedDBObject bar = loadBar(createAndCommitBar("misc").getId());
+    bar.setColumnValue("Misc", "changed");
+    bar.setColumnValue("Misc", "misc");
+    assertFalse(bar.isDirty());
+  }
+
+  @Test
+  public void testObjectIsCleanAfterInsertAndUpdate() throws SQLException {
+    CachedDBObject bar = createAndCommitBar("misc");
+    assertFalse(bar.isDirty());
+    bar.setColumnValue("Misc", "changed");
+    bar.update();
+    assertFalse(bar.isDirty());
+    assertEquals("changed", loadBar(bar.getId()).getColumnValue("Misc"));
+  }
+
+  @Test
+  public void testSettingAnUnknownColumnThrows() {
+    CachedDBObject bar = new CachedDBObject(getBarType(), true);
+    try {
+      bar.setColumnValue("NoSuchColumn", "value");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    assertNull(bar.getColumnValue("NoSuchColumn"));
+  }
+
+  @Test
+  public void testUnsetAndNullColumnsAreEqualAndHashTheSame() {
+    CachedDBObject bar1 = new CachedDBObject(getBarType(), true);
+    bar1.setColumnValue("Misc", "misc");
+    CachedDBObject bar2 = new CachedDBObject(getBarType(), true);
+    bar2.setColumnValue("Misc", "misc");
+    bar2.setColumnValue("Date", null);
+    assertEquals(bar1, bar2);
+    assertEquals(bar1.hashCode(), bar2.hashCode());
+    assertFalse(bar1.getColumns().containsKey("Date"));
+    assertTrue(bar2.getColumns().containsKey("Date"));
+  }
+}
@@ -0,0 +1,151 @@
+package tosa;
+
+import gw.lang.reflect.TypeSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.TestEnv;
+import tosa.api.ReplicaConfig;
+import tosa.loader.DBTypeLoader;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class DBConnectionReplicaTest {
+
+  private static final String PRIMARY_URL = "jdbc:h2:mem:replicatest_primary;DB_CLOSE_DELAY=-1";
+  private static final String REPLICA_URL = "jdbc:h2:mem:replicatest_replica;DB_CLOSE_DELAY=-1";
+
+  private DBConnection _connection;
+
+  @BeforeClass
+  static public void initDB() {
+    TestEnv.maybeInit();
+  }
+
+  @Before
+  public void createDatabases() throws SQLException {
+    Properties properties = new Properties();
+    properties.setProperty(ReplicaConfig.URL_PROPERTY_PREFIX + "1", REPLICA_URL);
+    properties.setProperty(ReplicaConfig.READ_YOUR_WRITES_MILLIS_PROPERTY, "60000");
+    _connection = new DBConnection(PRIMARY_URL, properties, TypeSystem.getTypeLoader(DBTypeLoader.class));
+    createMarker(_connection.connect(), "primary");
+    createMarker(_connection.getReplicaConnectionPools()[0].getConnection(), "replica");
+  }
+
+  @After
+  public void closePools() throws SQLException {
+    _connection.getConnectionPool().close();
+    _connection.getReplicaConnectionPools()[0].close();
+  }
+
+  private static void createMarker(Connection connection, String name) throws SQLException {
+    try {
+      Statement statement = connection.createStatement();
+      statement.execute("DROP TABLE IF EXISTS Marker");
+      statement.execute("CREATE TABLE Marker (name VARCHAR(20))");
+      statement.execute("INSERT INTO Marker VALUES ('" + name + "')");
+      statement.close();
+    } finally {
+      connection.close();
+    }
+  }
+
+  private static String readMarker(Connection connection) throws SQLException {
+    try {
+      Statement statement = connection.createStatement();
+      ResultSet resultSet = statement.executeQuery("SELECT name FROM Marker");
+      resultSet.next();
+      String name = resultSet.getString(1);
+      statement.close();
+      return name;
+    } finally {
+      connection.close();
+    }
+  }
+
+  @Test
+  public void testReadsGoToTheReplica() throws SQLException {
+    assertEquals("replica", readMarker(_connection.connectForRead()));
+    assertEquals("primary", readMarker(_connection.connect()));
+  }
+
+  @Test
+  public void testReadsGoToThePrimaryAfterAWrite() throws SQLException {
+    _connection.recordWrite();
+    assertEquals("primary", readMarker(_connection.connectForRead()));
+  }
+
+  @Test
+  public void testTheLastWriteCanBeHandedToAnotherThread() throws Exception {
+    _connection.recordWrite();
+    final long lastWrite = _connection.getLastWrite();
+    final String[] markers = new String[2];
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          markers[0] = readMarker(_connection.connectForRead());
+          long previous = _connection.setLastWrite(lastWrite);
+          markers[1] = readMarker(_connection.connectForRead());
+          _connection.setLastWrite(previous);
+        } catch (SQLException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    thread.start();
+    thread.join();
+    assertEquals("replica", markers[0]);
+    assertEquals("primary", markers[1]);
+  }
+
+  @Test
+  public void testReadsGoToThePrimaryBetweenBeginAndEndPrimaryReads() throws SQLException {
+    _connection.beginPrimaryReads();
+    _connection.beginPrimaryReads();
+    _connection.endPrimaryReads();
+    assertEquals("primary", readMarker(_connection.connectForRead()));
+    _connection.endPrimaryReads();
+    assertEquals("replica", readMarker(_connection.connectForRead()));
+  }
+
+  @Test
+  public void testReplicasAreOrderedByNumber() {
+    Properties properties = new Properties();
+    for (int i = 1; i <= 11; i++) {
+      properties.setProperty(ReplicaConfig.URL_PROPERTY_PREFIX + i, "url" + i);
+    }
+    assertEquals(Arrays.asList("url1", "url2", "url3", "url4", "url5", "url6", "url7", "url8", "url9", "url10", "url11"),
+        new ReplicaConfig(properties).getUrls());
+  }
+
+  @Test
+  public void testUnnumberedReplicasAreRejected() {
+    Properties properties = new Properties();
+    properties.setProperty(ReplicaConfig.URL_PROPERTY_PREFIX + "east", "url");
+    try {
+      new ReplicaConfig(properties);
+      fail("Expected an unnumbered replica URL to be rejected");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains(ReplicaConfig.URL_PROPERTY_PREFIX + "east"));
+    }
+  }
+
+  @Test
+  public void testReadsInATransactionGoToThePrimary() throws SQLException {
+    _connection.startTransaction();
+    try {
+      assertEquals("primary", readMarker(_connection.connectForRead()));
+    } finally {
+      _connection.endTransaction();
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package tosa;
+
+import gw.lang.reflect.TypeSystem;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.TestEnv;
+import tosa.api.IRequestScope;
+import tosa.dbmd.DatabaseImpl;
+import tosa.impl.UnitOfWorkImpl;
+import tosa.loader.DBTypeLoader;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
+
+public class DBConnectionRequestScopeTest {
+
+  @BeforeClass
+  static public void initDB() {
+    TestEnv.maybeInit();
+  }
+
+  private static DatabaseImpl getDB() {
+    DBTypeLoader dbTypeLoader = TypeSystem.getTypeLoader(DBTypeLoader.class);
+    return dbTypeLoader.getTypeDataForNamespace("test.testdb");
+  }
+
+  private static DBConnection getConnection() {
+    return (DBConnection) getDB().getConnection();
+  }
+
+  private static Connection physical(Connection connection) throws SQLException {
+    return connection.unwrap(StatementCachingConnection.class);
+  }
+
+  @Test
+  public void testStatementsInAScopeShareOnePooledConnection() throws SQLException {
+    DBConnection dbConnection = getConnection();
+    int activeBefore = dbConnection.getConnectionPool().getActiveCount();
+    long pinnedBefore = dbConnection.getPinnedTime().getCount();
+    IRequestScope scope = dbConnection.openRequestScope();
+    try {
+      Connection first = dbConnection.connect();
+      first.close();
+      Connection second = dbConnection.connectForRead();
+      second.close();
+      assertSame(physical(first), physical(second));
+      assertTrue(second.getAutoCommit());
+      assertEquals(activeBefore + 1, dbConnection.getConnectionPool().getActiveCount());
+    } finally {
+      scope.close();
+    }
+    assertEquals(activeBefore, dbConnection.getConnectionPool().getActiveCount());
+    assertEquals(pinnedBefore + 1, dbConnection.getPinnedTime().getCount());
+  }
+
+  @Test
+  public void testNestedScopesReleaseTheConnectionWhenTheOutermostScopeCloses() throws SQLException {
+    DBConnection dbConnection = getConnection();
+    int activeBefore = dbConnection.getConnectionPool().getActiveCount();
+    IRequestScope outer = dbConnection.openRequestScope();
+    try {
+      IRequestScope inner = dbConnection.openRequestScope();
+      dbConnection.connect().close();
+      inner.close();
+      inner.close();
+      assertEquals(activeBefore + 1, dbConnection.getConnectionPool().getActiveCount());
+    } finally {
+      outer.close();
+    }
+    assertEquals(activeBefore, dbConnection.getConnectionPool().getActiveCount());
+  }
+
+  @Test
+  public void testStatementsNestedInAStreamingSelectBorrowAnotherConnection() throws SQLException {
+    DBConnection dbConnection = getConnection();
+    int activeBefore = dbConnection.getConnectionPool().getActiveCount();
+    IRequestScope scope = dbConnection.openRequestScope();
+    try {
+      Connection pinned = dbConnection.connectForRead();
+      assertTrue(dbConnection.startStreaming(pinned));
+      try {
+        Connection nested = dbConnection.connect();
+        assertNotSame(physical(pinned), physical(nested));
+        assertEquals(activeBefore + 2, dbConnection.getConnectionPool().getActiveCount());
+        nested.close();
+        assertEquals(activeBefore + 1, dbConnection.getConnectionPool().getActiveCount());
+      } finally {
+        dbConnection.finishStreaming(pinned);
+        pinned.close();
+      }
+      assertSame(physical(pinned), physical(dbConnection.connect()));
+    } finally {
+      scope.close();
+    }
+    assertEquals(activeBefore, dbConnection.getConnectionPool().getActiveCount());
+  }
+
+  @Test
+  public void testTransactionsInAScopeUseThePinnedConnection() throws SQLException {
+    DBConnection dbConnection = getConnection();
+    IRequestScope scope = dbConnection.openRequestScope();
+    try {
+      Connection pinned = dbConnection.connect();
+      dbConnection.startTransaction();
+      try {
+        assertSame(physical(pinned), physical(dbConnection.connect()));
+      } finally {
+        dbConnection.endTransaction();
+      }
+      assertTrue(dbConnection.connect().getAutoCommit());
+    } finally {
+      scope.close();
+    }
+  }
+
+  @Test
+  public void testUnitsOfWorkPinAConnection() throws SQLException {
+    DBConnection dbConnection = getConnection();
+    int activeBefore = dbConnection.getConnectionPool().getActiveCount();
+    UnitOfWorkImpl unitOfWork = getDB().startUnitOfWork();
+    try {
+      assertSame(physical(dbConnection.connect()), physical(dbConnection.connect()));
+    } finally {
+      unitOfWork.close();
+    }
+    assertEquals(activeBefore, dbConnection.getConnectionPool().getActiveCount());
+  }
+}
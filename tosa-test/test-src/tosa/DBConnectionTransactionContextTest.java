@@ -0,0 +1,255 @@
+package tosa;
+
+import gw.lang.reflect.TypeSystem;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.TestEnv;
+import tosa.api.IDBColumn;
+import tosa.api.IQueryResultProcessor;
+import tosa.api.ITransactionContext;
+import tosa.dbmd.DatabaseImpl;
+import tosa.impl.IdentityMap;
+import tosa.loader.DBTypeLoader;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class DBConnectionTransactionContextTest {
+
+  @BeforeClass
+  static public void initDB() {
+    TestEnv.maybeInit();
+  }
+
+  @Before
+  public void resetDB() {
+    getDB().getDBUpgrader().recreateTables();
+  }
+
+  private static DatabaseImpl getDB() {
+    DBTypeLoader dbTypeLoader = TypeSystem.getTypeLoader(DBTypeLoader.class);
+    return dbTypeLoader.getTypeDataForNamespace("test.testdb");
+  }
+
+  private static DBConnection getConnection() {
+    return (DBConnection) getDB().getConnection();
+  }
+
+  private static void insertBar() {
+    IDBColumn miscColumn = getDB().getTable("Bar").getColumn("Misc");
+    getDB().getDBExecutionKernel().executeInsert("INSERT INTO \"Bar\" (\"Misc\") VALUES (?)", miscColumn.wrapParameterValue("bar"));
+  }
+
+  private static int countBars() {
+    return getDB().getDBExecutionKernel().executeSelect("SELECT count(*) as count FROM \"Bar\"", new IQueryResultProcessor<Integer>() {
+      @Override
+      public Integer processResult(ResultSet result) throws SQLException {
+        return result.getInt("count");
+      }
+    }).get(0);
+  }
+
+  private static Callable<Integer> countBarsWork() {
+    return new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return countBars();
+      }
+    };
+  }
+
+  @Test
+  public void testBeginTransactionDoesNotBindTheCallingThread() throws SQLException {
+    final DBConnection dbConnection = getConnection();
+    final ITransactionContext transaction = dbConnection.beginTransaction();
+    try {
+      assertFalse(dbConnection.isInTransaction());
+      assertNull(dbConnection.getCurrentTransaction());
+      transaction.run(new Callable<Void>() {
+        @Override
+        public Void call() {
+          assertTrue(dbConnection.isInTransaction());
+          assertSame(transaction, dbConnection.getCurrentTransaction());
+          assertNotNull(dbConnection.getTransactionIdentityMap());
+          return null;
+        }
+      });
+      assertFalse(dbConnection.isInTransaction());
+    } finally {
+      transaction.close();
+    }
+  }
+
+  @Test
+  public void testOtherThreadsBoundToATransactionSeeItsUncommittedWrites() throws Exception {
+    final ITransactionContext transaction = getConnection().beginTransaction();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      transaction.run(new Callable<Void>() {
+        @Override
+        public Void call() {
+          insertBar();
+          return null;
+        }
+      });
+      Future<Integer> inside = executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          return transaction.run(countBarsWork());
+        }
+      });
+      assertEquals(1, inside.get().intValue());
+      assertEquals(0, executor.submit(countBarsWork()).get().intValue());
+    } finally {
+      transaction.close();
+      executor.shutdown();
+    }
+    assertEquals(0, countBars());
+  }
+
+  @Test
+  public void testCommittingFromAnyThreadCommitsTheTransaction() throws Exception {
+    final ITransactionContext transaction = getConnection().beginTransaction();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      transaction.run(new Callable<Void>() {
+        @Override
+        public Void call() {
+          insertBar();
+          return null;
+        }
+      });
+      executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws SQLException {
+          transaction.commit();
+          return null;
+        }
+      }).get();
+    } finally {
+      transaction.close();
+      executor.shutdown();
+    }
+    assertEquals(1, countBars());
+  }
+
+  @Test
+  public void testThreadsSharingATransactionTakeTurnsOnItsConnection() throws Exception {
+    final DBConnection dbConnection = getConnection();
+    final ITransactionContext transaction = dbConnection.beginTransaction();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Connection connection = transaction.run(new Callable<Connection>() {
+        @Override
+        public Connection call() throws SQLException {
+          return dbConnection.connect();
+        }
+      });
+      Future<Integer> other = executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          return transaction.run(countBarsWork());
+        }
+      });
+      // The other thread can't run its query until this thread closes the connection it's borrowed
+      Thread.sleep(100);
+      assertFalse(other.isDone());
+      connection.close();
+      assertEquals(0, other.get().intValue());
+    } finally {
+      transaction.close();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testEachThreadBoundToATransactionGetsItsOwnIdentityMap() throws Exception {
+    final DBConnection dbConnection = getConnection();
+    dbConnection.startTransaction();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final ITransactionContext transaction = dbConnection.getCurrentTransaction();
+      IdentityMap identityMap = dbConnection.getTransactionIdentityMap();
+      assertSame(identityMap, dbConnection.getTransactionIdentityMap());
+      IdentityMap otherIdentityMap = executor.submit(new Callable<IdentityMap>() {
+        @Override
+        public IdentityMap call() {
+          return transaction.run(new Callable<IdentityMap>() {
+            @Override
+            public IdentityMap call() {
+              return dbConnection.getTransactionIdentityMap();
+            }
+          });
+        }
+      }).get();
+      assertNotNull(otherIdentityMap);
+      assertNotSame(identityMap, otherIdentityMap);
+    } finally {
+      dbConnection.endTransaction();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testWorkSubmittedWhileHoldingTheTransactionConnectionRunsOnTheCallingThread() throws Exception {
+    DBConnection dbConnection = getConnection();
+    dbConnection.startTransaction();
+    try {
+      Connection connection = dbConnection.connect();
+      try {
+        assertTrue(dbConnection.isHoldingTransactionConnection());
+        Future<Thread> result = getDB().getDBExecutionKernel().submit(new Callable<Thread>() {
+          @Override
+          public Thread call() {
+            return Thread.currentThread();
+          }
+        });
+        assertTrue(result.isDone());
+        assertSame(Thread.currentThread(), result.get());
+      } finally {
+        connection.close();
+      }
+      assertFalse(dbConnection.isHoldingTransactionConnection());
+    } finally {
+      dbConnection.endTransaction();
+    }
+  }
+
+  @Test
+  public void testStartTransactionBindsATransactionThatCanBeShared() throws Exception {
+    DBConnection dbConnection = getConnection();
+    dbConnection.startTransaction();
+    try {
+      insertBar();
+      ITransactionContext transaction = dbConnection.getCurrentTransaction();
+      assertTrue(transaction.isOpen());
+      transaction.commit();
+    } finally {
+      dbConnection.endTransaction();
+    }
+    assertNull(dbConnection.getCurrentTransaction());
+    assertEquals(1, countBars());
+  }
+
+  @Test
+  public void testAClosedTransactionCannotBeUsed() throws SQLException {
+    ITransactionContext transaction = getConnection().beginTransaction();
+    transaction.close();
+    transaction.close();
+    assertFalse(transaction.isOpen());
+    try {
+      transaction.run(countBarsWork());
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+  }
+}
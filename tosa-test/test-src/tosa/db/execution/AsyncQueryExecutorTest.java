@@ -0,0 +1,60 @@
+package tosa.db.execution;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AsyncQueryExecutorTest {
+
+  @Test
+  public void testNoMoreThanMaxConcurrencyTasksRunAtOnce() throws Exception {
+    // The executor has plenty of threads, so only the concurrency limit can hold the tasks back
+    AsyncQueryExecutor executor = new AsyncQueryExecutor(Executors.newFixedThreadPool(8), 2);
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+    for (int i = 0; i < 20; i++) {
+      final int value = i;
+      futures.add(executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws InterruptedException {
+          int now = running.incrementAndGet();
+          while (true) {
+            int max = maxRunning.get();
+            if (now <= max || maxRunning.compareAndSet(max, now)) {
+              break;
+            }
+          }
+          Thread.sleep(5);
+          running.decrementAndGet();
+          return value;
+        }
+      }));
+    }
+    for (int i = 0; i < futures.size(); i++) {
+      assertEquals(i, futures.get(i).get().intValue());
+    }
+    assertTrue(maxRunning.get() <= 2);
+    executor.shutdown();
+  }
+
+  @Test
+  public void testTheDefaultExecutorRunsTasksOnDaemonThreads() throws Exception {
+    AsyncQueryExecutor executor = new AsyncQueryExecutor(2);
+    Future<Boolean> daemon = executor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return Thread.currentThread().isDaemon();
+      }
+    });
+    assertTrue(daemon.get());
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,232 @@
+package tosa.db.execution;
+
+import gw.lang.reflect.TypeSystem;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.TestEnv;
+import tosa.api.BatchResult;
+import tosa.api.IDBColumn;
+import tosa.api.IDBExecutionKernel;
+import tosa.api.IDBTable;
+import tosa.api.IPreparedStatementParameter;
+import tosa.api.IQueryResultProcessor;
+import tosa.api.IQueryResultVisitor;
+import tosa.dbmd.DatabaseImpl;
+import tosa.loader.DBTypeLoader;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class DBExecutionKernelImplTest {
+
+  @BeforeClass
+  static public void initDB() {
+    TestEnv.maybeInit();
+  }
+
+  @Before
+  public void resetDB() {
+    getDB().getDBUpgrader().recreateTables();
+  }
+
+  private static DatabaseImpl getDB() {
+    DBTypeLoader dbTypeLoader = TypeSystem.getTypeLoader(DBTypeLoader.class);
+    return dbTypeLoader.getTypeDataForNamespace("test.testdb");
+  }
+
+  private IDBExecutionKernel getKernel() {
+    return getDB().getDBExecutionKernel();
+  }
+
+  private IDBTable getBarTable() {
+    return getDB().getTable("Bar");
+  }
+
+  private void insertBars(int count) {
+    IDBColumn miscColumn = getBarTable().getColumn("Misc");
+    for (int i = 0; i < count; i++) {
+      getKernel().executeInsert("INSERT INTO \"Bar\" (\"Misc\") VALUES (?)", miscColumn.wrapParameterValue("bar" + i));
+    }
+  }
+
+  @Test
+  public void testExecuteSelectReturnsAllRowsInOrder() {
+    insertBars(3);
+    List<String> results = getKernel().executeSelect("SELECT * FROM \"Bar\" ORDER BY \"id\"", new MiscResultProcessor());
+    assertEquals(3, results.size());
+    assertEquals("bar0", results.get(0));
+    assertEquals("bar2", results.get(2));
+  }
+
+  @Test
+  public void testExecuteSelectReturnsEmptyListIfThereAreNoRows() {
+    List<String> results = getKernel().executeSelect("SELECT * FROM \"Bar\"", new MiscResultProcessor());
+    assertTrue(results.isEmpty());
+  }
+
+  @Test
+  public void testStreamingExecuteSelectVisitsEveryRowInOrder() {
+    insertBars(5);
+    final List<String> visited = new ArrayList<String>();
+    getKernel().executeSelect("SELECT * FROM \"Bar\" ORDER BY \"id\"", new MiscResultProcessor(), new IQueryResultVisitor<String>() {
+      @Override
+      public boolean visit(String row) {
+        visited.add(row);
+        return true;
+      }
+    }, 2);
+    assertEquals(5, visited.size());
+    assertEquals("bar0", visited.get(0));
+    assertEquals("bar4", visited.get(4));
+  }
+
+  @Test
+  public void testStreamingExecuteSelectStopsWhenVisitorReturnsFalse() {
+    insertBars(5);
+    final List<String> visited = new ArrayList<String>();
+    getKernel().executeSelect("SELECT * FROM \"Bar\" ORDER BY \"id\"", new MiscResultProcessor(), new IQueryResultVisitor<String>() {
+      @Override
+      public boolean visit(String row) {
+        visited.add(row);
+        return visited.size() < 2;
+      }
+    }, 0);
+    assertEquals(2, visited.size());
+  }
+
+  @Test
+  public void testStreamingExecuteSelectPropagatesVisitorExceptionsAndLeavesKernelUsable() {
+    insertBars(2);
+    try {
+      getKernel().executeSelect("SELECT * FROM \"Bar\" ORDER BY \"id\"", new MiscResultProcessor(), new IQueryResultVisitor<String>() {
+        @Override
+        public boolean visit(String row) {
+          throw new IllegalStateException("Expected");
+        }
+      }, 0);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    assertEquals(2, getKernel().executeSelect("SELECT * FROM \"Bar\" ORDER BY \"id\"", new MiscResultProcessor()).size());
+  }
+
+  @Test
+  public void testExecuteInsertBatchInsertsEveryRowAndReturnsUpdateCounts() {
+    IDBColumn miscColumn = getBarTable().getColumn("Misc");
+    List<IPreparedStatementParameter[]> rows = new ArrayList<IPreparedStatementParameter[]>();
+    for (int i = 0; i < 7; i++) {
+      rows.add(new IPreparedStatementParameter[]{miscColumn.wrapParameterValue("bar" + i)});
+    }
+    BatchResult result = getKernel().executeInsertBatch("INSERT INTO \"Bar\" (\"Misc\") VALUES (?)", rows);
+    assertEquals(7, result.getUpdateCounts().length);
+    for (int count : result.getUpdateCounts()) {
+      assertEquals(1, count);
+    }
+    assertFalse(result.getGeneratedKeys().isEmpty());
+    List<String> results = getKernel().executeSelect("SELECT * FROM \"Bar\" ORDER BY \"id\"", new MiscResultProcessor());
+    assertEquals(7, results.size());
+    assertEquals("bar6", results.get(6));
+  }
+
+  @Test
+  public void testExecuteInsertBatchSplitsRowsIntoChunks() {
+    DBExecutionKernelImpl kernel = (DBExecutionKernelImpl) getKernel();
+    int originalBatchSize = kernel.getBatchSize();
+    kernel.setBatchSize(2);
+    try {
+      IDBColumn miscColumn = getBarTable().getColumn("Misc");
+      List<IPreparedStatementParameter[]> rows = new ArrayList<IPreparedStatementParameter[]>();
+      for (int i = 0; i < 5; i++) {
+        rows.add(new IPreparedStatementParameter[]{miscColumn.wrapParameterValue("bar" + i)});
+      }
+      BatchResult result = kernel.executeInsertBatch("INSERT INTO \"Bar\" (\"Misc\") VALUES (?)", rows);
+      assertEquals(5, result.getUpdateCounts().length);
+      assertEquals(1, result.getUpdateCounts()[4]);
+      assertEquals(5, kernel.executeSelect("SELECT * FROM \"Bar\"", new MiscResultProcessor()).size());
+    } finally {
+      kernel.setBatchSize(originalBatchSize);
+    }
+  }
+
+  @Test
+  public void testExecuteUpdateBatchReturnsPerRowUpdateCounts() {
+    insertBars(3);
+    IDBColumn miscColumn = getBarTable().getColumn("Misc");
+    List<IPreparedStatementParameter[]> rows = new ArrayList<IPreparedStatementParameter[]>();
+    rows.add(new IPreparedStatementParameter[]{miscColumn.wrapParameterValue("changed0"), miscColumn.wrapParameterValue("bar0")});
+    rows.add(new IPreparedStatementParameter[]{miscColumn.wrapParameterValue("changed1"), miscColumn.wrapParameterValue("nosuchbar")});
+    int[] counts = getKernel().executeUpdateBatch("UPDATE \"Bar\" SET \"Misc\" = ? WHERE \"Misc\" = ?", rows);
+    assertEquals(1, counts[0]);
+    assertEquals(0, counts[1]);
+  }
+
+  @Test
+  public void testExecuteDeleteBatchDeletesEveryMatchingRow() {
+    insertBars(4);
+    IDBColumn miscColumn = getBarTable().getColumn("Misc");
+    List<IPreparedStatementParameter[]> rows = new ArrayList<IPreparedStatementParameter[]>();
+    rows.add(new IPreparedStatementParameter[]{miscColumn.wrapParameterValue("bar1")});
+    rows.add(new IPreparedStatementParameter[]{miscColumn.wrapParameterValue("bar3")});
+    getKernel().executeDeleteBatch("DELETE FROM \"Bar\" WHERE \"Misc\" = ?", rows);
+    List<String> results = getKernel().executeSelect("SELECT * FROM \"Bar\" ORDER BY \"id\"", new MiscResultProcessor());
+    assertEquals(2, results.size());
+    assertEquals("bar0", results.get(0));
+    assertEquals("bar2", results.get(1));
+  }
+
+  @Test
+  public void testBatchMethodsAcceptEmptyArgumentLists() {
+    List<IPreparedStatementParameter[]> rows = new ArrayList<IPreparedStatementParameter[]>();
+    assertEquals(0, getKernel().executeInsertBatch("INSERT INTO \"Bar\" (\"Misc\") VALUES (?)", rows).getUpdateCounts().length);
+    assertEquals(0, getKernel().executeUpdateBatch("UPDATE \"Bar\" SET \"Misc\" = ?", rows).length);
+  }
+
+  @Test
+  public void testAsyncMethodsRunTheStatements() throws Exception {
+    IDBColumn miscColumn = getBarTable().getColumn("Misc");
+    Future<Object> id = getKernel().executeInsertAsync("INSERT INTO \"Bar\" (\"Misc\") VALUES (?)", miscColumn.wrapParameterValue("bar0"));
+    assertNotNull(id.get());
+    getKernel().executeUpdateAsync("UPDATE \"Bar\" SET \"Misc\" = ?", miscColumn.wrapParameterValue("changed")).get();
+    Future<List<String>> results = getKernel().executeSelectAsync("SELECT * FROM \"Bar\"", new MiscResultProcessor());
+    assertEquals(1, results.get().size());
+    assertEquals("changed", results.get().get(0));
+  }
+
+  @Test
+  public void testAsyncFailuresAreReportedThroughTheFuture() throws InterruptedException {
+    Future<List<String>> results = getKernel().executeSelectAsync("SELECT * FROM \"NoSuchTable\"", new MiscResultProcessor());
+    try {
+      results.get();
+      fail("Expected the query to fail");
+    } catch (ExecutionException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testAsyncWorkInsideATransactionSeesItsUncommittedWrites() throws Exception {
+    getDB().getConnection().startTransaction();
+    try {
+      insertBars(1);
+      Future<List<String>> results = getKernel().executeSelectAsync("SELECT * FROM \"Bar\"", new MiscResultProcessor());
+      assertEquals(1, results.get().size());
+    } finally {
+      getDB().getConnection().endTransaction();
+    }
+  }
+
+  private static class MiscResultProcessor implements IQueryResultProcessor<String> {
+    @Override
+    public String processResult(ResultSet result) throws SQLException {
+      return result.getString("Misc");
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package tosa.db.execution;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
+
+public class PreparedStatementCacheTest {
+
+  private Connection _connection;
+  private PreparedStatementCacheStats _stats;
+
+  @Before
+  public void openConnection() throws Exception {
+    Class.forName("org.h2.Driver");
+    _connection = DriverManager.getConnection("jdbc:h2:mem:statementcachetest");
+    _stats = new PreparedStatementCacheStats();
+  }
+
+  @After
+  public void closeConnection() throws SQLException {
+    _connection.close();
+  }
+
+  @Test
+  public void testCheckOutAfterCheckInReturnsSameStatement() throws SQLException {
+    PreparedStatementCache cache = new PreparedStatementCache(_connection, 10, _stats);
+    PreparedStatement first = cache.checkOut("SELECT 1", false);
+    cache.checkIn("SELECT 1", false, first);
+    PreparedStatement second = cache.checkOut("SELECT 1", false);
+    assertSame(first, second);
+    assertEquals(1, _stats.getHits());
+    assertEquals(1, _stats.getMisses());
+  }
+
+  @Test
+  public void testGeneratedKeysStatementsAreCachedSeparately() throws SQLException {
+    PreparedStatementCache cache = new PreparedStatementCache(_connection, 10, _stats);
+    PreparedStatement plain = cache.checkOut("SELECT 1", false);
+    cache.checkIn("SELECT 1", false, plain);
+    PreparedStatement withKeys = cache.checkOut("SELECT 1", true);
+    assertNotSame(plain, withKeys);
+    assertEquals(0, _stats.getHits());
+    assertEquals(2, _stats.getMisses());
+  }
+
+  @Test
+  public void testCheckedOutStatementIsNotHandedOutTwice() throws SQLException {
+    PreparedStatementCache cache = new PreparedStatementCache(_connection, 10, _stats);
+    PreparedStatement first = cache.checkOut("SELECT 1", false);
+    PreparedStatement second = cache.checkOut("SELECT 1", false);
+    assertNotSame(first, second);
+    cache.checkIn("SELECT 1", false, first);
+    cache.checkIn("SELECT 1", false, second);
+    assertEquals(1, cache.size());
+    assertTrue(second.isClosed());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedStatementIsEvictedAndClosed() throws SQLException {
+    PreparedStatementCache cache = new PreparedStatementCache(_connection, 2, _stats);
+    PreparedStatement one = cache.checkOut("SELECT 1", false);
+    cache.checkIn("SELECT 1", false, one);
+    PreparedStatement two = cache.checkOut("SELECT 2", false);
+    cache.checkIn("SELECT 2", false, two);
+    PreparedStatement three = cache.checkOut("SELECT 3", false);
+    cache.checkIn("SELECT 3", false, three);
+    assertEquals(2, cache.size());
+    assertEquals(1, _stats.getEvictions());
+    assertTrue(one.isClosed());
+    assertFalse(two.isClosed());
+  }
+
+  @Test
+  public void testCloseAllClosesCachedStatements() throws SQLException {
+    PreparedStatementCache cache = new PreparedStatementCache(_connection, 10, _stats);
+    PreparedStatement statement = cache.checkOut("SELECT 1", false);
+    cache.checkIn("SELECT 1", false, statement);
+    cache.closeAll();
+    assertEquals(0, cache.size());
+    assertTrue(statement.isClosed());
+  }
+}
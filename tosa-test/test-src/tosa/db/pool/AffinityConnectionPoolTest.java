@@ -0,0 +1,174 @@
+package tosa.db.pool;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.DriverManagerConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tosa.api.ConnectionPoolConfig;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AffinityConnectionPoolTest {
+
+  private AtomicInteger _opened;
+  private ConnectionFactory _connectionFactory;
+  private AffinityConnectionPool _pool;
+
+  @Before
+  public void createConnectionFactory() throws Exception {
+    Class.forName("org.h2.Driver");
+    _opened = new AtomicInteger();
+    final ConnectionFactory driverConnectionFactory = new DriverManagerConnectionFactory("jdbc:h2:mem:connectionpooltest", null);
+    _connectionFactory = new ConnectionFactory() {
+      @Override
+      public Connection createConnection() throws SQLException {
+        _opened.incrementAndGet();
+        return driverConnectionFactory.createConnection();
+      }
+    };
+  }
+
+  @After
+  public void closePool() {
+    if (_pool != null) {
+      _pool.close();
+    }
+  }
+
+  private AffinityConnectionPool createPool(String... settings) {
+    Properties properties = new Properties();
+    for (int i = 0; i < settings.length; i += 2) {
+      properties.setProperty(settings[i], settings[i + 1]);
+    }
+    _pool = new AffinityConnectionPool(_connectionFactory, new ConnectionPoolConfig(properties));
+    return _pool;
+  }
+
+  @Test
+  public void testReturnedConnectionsAreReused() throws SQLException {
+    AffinityConnectionPool pool = createPool();
+    for (int i = 0; i < 5; i++) {
+      Connection connection = pool.getConnection();
+      assertEquals(1, pool.getActiveCount());
+      connection.close();
+      assertTrue(connection.isClosed());
+    }
+    assertEquals(1, _opened.get());
+    assertEquals(0, pool.getActiveCount());
+    assertEquals(1, pool.getIdleCount());
+    assertEquals(5, pool.getBorrowLatency().getCount());
+  }
+
+  @Test
+  public void testClosingAConnectionTwiceOnlyReturnsItOnce() throws SQLException {
+    AffinityConnectionPool pool = createPool(ConnectionPoolConfig.MAX_ACTIVE_PROPERTY, "2");
+    Connection connection = pool.getConnection();
+    connection.close();
+    connection.close();
+    Connection first = pool.getConnection();
+    Connection second = pool.getConnection();
+    assertEquals(2, pool.getActiveCount());
+    first.close();
+    second.close();
+  }
+
+  @Test
+  public void testBorrowingTimesOutOnceMaxActiveConnectionsAreBorrowed() throws SQLException {
+    AffinityConnectionPool pool = createPool(ConnectionPoolConfig.MAX_ACTIVE_PROPERTY, "2", ConnectionPoolConfig.MAX_WAIT_MILLIS_PROPERTY, "50");
+    List<Connection> connections = new ArrayList<Connection>();
+    connections.add(pool.getConnection());
+    connections.add(pool.getConnection());
+    try {
+      pool.getConnection();
+      fail("Expected the pool to be exhausted");
+    } catch (SQLException e) {
+      // Expected
+    }
+    assertEquals(0, pool.getWaiterCount());
+    connections.remove(0).close();
+    connections.add(pool.getConnection());
+    assertEquals(2, _opened.get());
+    for (Connection connection : connections) {
+      connection.close();
+    }
+  }
+
+  @Test
+  public void testAMaxWaitOfZeroFailsStraightAwayOnceThePoolIsExhausted() throws SQLException {
+    AffinityConnectionPool pool = createPool(ConnectionPoolConfig.MAX_ACTIVE_PROPERTY, "1", ConnectionPoolConfig.MAX_WAIT_MILLIS_PROPERTY, "0");
+    Connection connection = pool.getConnection();
+    long start = System.currentTimeMillis();
+    try {
+      pool.getConnection();
+      fail("Expected the pool to be exhausted");
+    } catch (SQLException e) {
+      // Expected
+    }
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    connection.close();
+  }
+
+  @Test
+  public void testOpenTransactionsAreRolledBackWhenConnectionsAreReturned() throws SQLException {
+    AffinityConnectionPool pool = createPool();
+    Connection connection = pool.getConnection();
+    connection.setAutoCommit(false);
+    connection.close();
+    connection = pool.getConnection();
+    assertTrue(connection.getAutoCommit());
+    connection.close();
+  }
+
+  @Test
+  public void testMinIdleConnectionsAreOpenedUpFront() throws SQLException {
+    AffinityConnectionPool pool = createPool(ConnectionPoolConfig.MIN_IDLE_PROPERTY, "3");
+    assertEquals(3, _opened.get());
+    assertEquals(3, pool.getIdleCount());
+    pool.getConnection().close();
+    assertEquals(3, _opened.get());
+  }
+
+  @Test
+  public void testEvictionOnlyCountsIdleConnectionsTowardsMinIdle() throws Exception {
+    AffinityConnectionPool pool = createPool(ConnectionPoolConfig.MIN_IDLE_PROPERTY, "2",
+        ConnectionPoolConfig.IDLE_TIMEOUT_MILLIS_PROPERTY, "1", ConnectionPoolConfig.EVICTION_INTERVAL_MILLIS_PROPERTY, "10");
+    Connection first = pool.getConnection();
+    Connection second = pool.getConnection();
+    Connection third = pool.getConnection();
+    second.close();
+    third.close();
+    Thread.sleep(100);
+    assertEquals(2, pool.getIdleCount());
+    assertEquals(1, pool.getActiveCount());
+    first.close();
+  }
+
+  @Test
+  public void testEvictionTopsThePoolBackUpToMinIdle() throws Exception {
+    AffinityConnectionPool pool = createPool(ConnectionPoolConfig.MIN_IDLE_PROPERTY, "2", ConnectionPoolConfig.EVICTION_INTERVAL_MILLIS_PROPERTY, "10");
+    Connection first = pool.getConnection();
+    Connection second = pool.getConnection();
+    assertEquals(0, pool.getIdleCount());
+    Thread.sleep(100);
+    assertEquals(2, pool.getIdleCount());
+    assertEquals(4, _opened.get());
+    first.close();
+    second.close();
+  }
+
+  @Test
+  public void testConnectionsFailingValidationAreReplaced() throws SQLException {
+    AffinityConnectionPool pool = createPool(ConnectionPoolConfig.MIN_IDLE_PROPERTY, "0", ConnectionPoolConfig.VALIDATION_QUERY_PROPERTY, "SELECT 1 FROM NoSuchTable");
+    pool.getConnection().close();
+    pool.getConnection().close();
+    assertEquals(2, _opened.get());
+  }
+}
@@ -0,0 +1,90 @@
+package tosa.db.pool;
+
+import org.junit.Test;
+import tosa.api.ConnectionPoolConfig;
+
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolConfigTest {
+
+  private static ConnectionPoolConfig config(String... settings) {
+    Properties properties = new Properties();
+    for (int i = 0; i < settings.length; i += 2) {
+      properties.setProperty(settings[i], settings[i + 1]);
+    }
+    return new ConnectionPoolConfig(properties);
+  }
+
+  @Test
+  public void testDefaults() {
+    ConnectionPoolConfig config = new ConnectionPoolConfig();
+    assertEquals(ConnectionPoolConfig.DBCP_IMPLEMENTATION, config.getImplementation());
+    assertEquals(10, config.getMaxActive());
+    assertEquals(1, config.getMinIdle());
+    assertEquals(30000, config.getMaxWaitMillis());
+    assertNull(config.getValidationQuery());
+    assertEquals(0, config.getIdleTimeoutMillis());
+    assertEquals(0, config.getEvictionIntervalMillis());
+    assertEquals(5, config.getAsyncMaxConcurrency());
+  }
+
+  @Test
+  public void testTheAsyncConcurrencyDefaultsToHalfThePool() {
+    assertEquals(10, config(ConnectionPoolConfig.MAX_ACTIVE_PROPERTY, "20").getAsyncMaxConcurrency());
+    assertEquals(1, config(ConnectionPoolConfig.MAX_ACTIVE_PROPERTY, "1").getAsyncMaxConcurrency());
+    assertEquals(3, config(ConnectionPoolConfig.ASYNC_MAX_CONCURRENCY_PROPERTY, "3").getAsyncMaxConcurrency());
+  }
+
+  @Test
+  public void testSettingsAreTrimmed() {
+    ConnectionPoolConfig config = config(ConnectionPoolConfig.IMPLEMENTATION_PROPERTY, " affinity ",
+        ConnectionPoolConfig.MAX_ACTIVE_PROPERTY, " 20 ",
+        ConnectionPoolConfig.MAX_WAIT_MILLIS_PROPERTY, "-1",
+        ConnectionPoolConfig.VALIDATION_QUERY_PROPERTY, " SELECT 1 ");
+    assertEquals(ConnectionPoolConfig.AFFINITY_IMPLEMENTATION, config.getImplementation());
+    assertEquals(20, config.getMaxActive());
+    assertEquals(-1, config.getMaxWaitMillis());
+    assertEquals("SELECT 1", config.getValidationQuery());
+  }
+
+  @Test
+  public void testAMaxWaitOfZeroIsAllowed() {
+    assertEquals(0, config(ConnectionPoolConfig.MAX_WAIT_MILLIS_PROPERTY, "0").getMaxWaitMillis());
+  }
+
+  @Test
+  public void testABlankValidationQueryMeansNoValidation() {
+    assertNull(config(ConnectionPoolConfig.VALIDATION_QUERY_PROPERTY, "  ").getValidationQuery());
+  }
+
+  @Test
+  public void testNonNumericSettingsAreRejected() {
+    try {
+      config(ConnectionPoolConfig.MAX_ACTIVE_PROPERTY, "lots");
+      fail("Expected a non-numeric maxActive to be rejected");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains(ConnectionPoolConfig.MAX_ACTIVE_PROPERTY));
+    }
+  }
+
+  @Test
+  public void testSettingsBelowTheirMinimumAreRejected() {
+    assertRejected(ConnectionPoolConfig.MAX_ACTIVE_PROPERTY, "0");
+    assertRejected(ConnectionPoolConfig.MIN_IDLE_PROPERTY, "-1");
+    assertRejected(ConnectionPoolConfig.MAX_WAIT_MILLIS_PROPERTY, "-2");
+    assertRejected(ConnectionPoolConfig.IDLE_TIMEOUT_MILLIS_PROPERTY, "-1");
+    assertRejected(ConnectionPoolConfig.EVICTION_INTERVAL_MILLIS_PROPERTY, "-1");
+    assertRejected(ConnectionPoolConfig.ASYNC_MAX_CONCURRENCY_PROPERTY, "0");
+  }
+
+  private static void assertRejected(String name, String value) {
+    try {
+      config(name, value);
+      fail("Expected " + name + "=" + value + " to be rejected");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains(name));
+    }
+  }
+}
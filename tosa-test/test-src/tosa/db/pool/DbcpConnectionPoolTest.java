@@ -0,0 +1,116 @@
+package tosa.db.pool;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.DriverManagerConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tosa.api.ConnectionPoolConfig;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DbcpConnectionPoolTest {
+
+  private AtomicInteger _opened;
+  private ConnectionFactory _connectionFactory;
+  private DbcpConnectionPool _pool;
+
+  @Before
+  public void createConnectionFactory() throws Exception {
+    Class.forName("org.h2.Driver");
+    _opened = new AtomicInteger();
+    final ConnectionFactory driverConnectionFactory = new DriverManagerConnectionFactory("jdbc:h2:mem:dbcpconnectionpooltest", null);
+    _connectionFactory = new ConnectionFactory() {
+      @Override
+      public Connection createConnection() throws SQLException {
+        _opened.incrementAndGet();
+        return driverConnectionFactory.createConnection();
+      }
+    };
+  }
+
+  @After
+  public void closePool() throws SQLException {
+    if (_pool != null) {
+      _pool.close();
+    }
+  }
+
+  private DbcpConnectionPool createPool(String... settings) {
+    Properties properties = new Properties();
+    for (int i = 0; i < settings.length; i += 2) {
+      properties.setProperty(settings[i], settings[i + 1]);
+    }
+    _pool = new DbcpConnectionPool(_connectionFactory, new ConnectionPoolConfig(properties));
+    return _pool;
+  }
+
+  @Test
+  public void testReturnedConnectionsAreReused() throws SQLException {
+    DbcpConnectionPool pool = createPool();
+    for (int i = 0; i < 5; i++) {
+      Connection connection = pool.getConnection();
+      assertEquals(1, pool.getActiveCount());
+      connection.close();
+    }
+    assertEquals(1, _opened.get());
+    assertEquals(0, pool.getActiveCount());
+    assertEquals(1, pool.getIdleCount());
+    assertEquals(0, pool.getWaiterCount());
+    assertEquals(5, pool.getBorrowLatency().getCount());
+  }
+
+  @Test
+  public void testMinIdleConnectionsAreOpenedUpFront() {
+    DbcpConnectionPool pool = createPool(ConnectionPoolConfig.MIN_IDLE_PROPERTY, "3");
+    assertEquals(3, _opened.get());
+    assertEquals(3, pool.getIdleCount());
+  }
+
+  @Test
+  public void testBorrowingTimesOutOnceMaxActiveConnectionsAreBorrowed() throws SQLException {
+    DbcpConnectionPool pool = createPool(ConnectionPoolConfig.MAX_ACTIVE_PROPERTY, "1", ConnectionPoolConfig.MAX_WAIT_MILLIS_PROPERTY, "50");
+    Connection connection = pool.getConnection();
+    try {
+      pool.getConnection();
+      fail("Expected the pool to be exhausted");
+    } catch (SQLException e) {
+      // Expected
+    }
+    assertEquals(0, pool.getWaiterCount());
+    connection.close();
+    pool.getConnection().close();
+  }
+
+  @Test
+  public void testAMaxWaitOfZeroFailsStraightAwayOnceThePoolIsExhausted() throws SQLException {
+    DbcpConnectionPool pool = createPool(ConnectionPoolConfig.MAX_ACTIVE_PROPERTY, "1", ConnectionPoolConfig.MAX_WAIT_MILLIS_PROPERTY, "0");
+    Connection connection = pool.getConnection();
+    long start = System.currentTimeMillis();
+    try {
+      pool.getConnection();
+      fail("Expected the pool to be exhausted");
+    } catch (SQLException e) {
+      // Expected
+    }
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    connection.close();
+  }
+
+  @Test
+  public void testBorrowingFromAClosedPoolFails() throws SQLException {
+    DbcpConnectionPool pool = createPool();
+    pool.close();
+    try {
+      pool.getConnection();
+      fail("Expected the closed pool to refuse to hand out connections");
+    } catch (Exception e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package tosa.db.pool;
+
+import org.junit.Test;
+import tosa.api.IConnectionPool;
+import tosa.impl.LatencyHistogram;
+
+import java.sql.Connection;
+
+import static org.junit.Assert.*;
+
+public class ReplicaSelectionPolicyTest {
+
+  private static IConnectionPool poolWithActiveCount(final int activeCount) {
+    return new IConnectionPool() {
+      @Override
+      public Connection getConnection() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public int getActiveCount() {
+        return activeCount;
+      }
+
+      @Override
+      public int getIdleCount() {
+        return 0;
+      }
+
+      @Override
+      public int getWaiterCount() {
+        return 0;
+      }
+
+      @Override
+      public LatencyHistogram getBorrowLatency() {
+        return null;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  @Test
+  public void testRoundRobinVisitsEachReplicaInTurn() {
+    IConnectionPool[] replicas = {poolWithActiveCount(0), poolWithActiveCount(0), poolWithActiveCount(0)};
+    RoundRobinReplicaPolicy policy = new RoundRobinReplicaPolicy();
+    for (int i = 0; i < 7; i++) {
+      assertEquals(i % 3, policy.selectReplica(replicas));
+    }
+  }
+
+  @Test
+  public void testLeastOutstandingPicksTheLeastBusyReplica() {
+    IConnectionPool[] replicas = {poolWithActiveCount(4), poolWithActiveCount(1), poolWithActiveCount(3)};
+    LeastOutstandingReplicaPolicy policy = new LeastOutstandingReplicaPolicy();
+    for (int i = 0; i < 5; i++) {
+      assertEquals(1, policy.selectReplica(replicas));
+    }
+  }
+
+  @Test
+  public void testLeastOutstandingSharesTiesBetweenReplicas() {
+    IConnectionPool[] replicas = {poolWithActiveCount(0), poolWithActiveCount(0)};
+    LeastOutstandingReplicaPolicy policy = new LeastOutstandingReplicaPolicy();
+    assertEquals(0, policy.selectReplica(replicas));
+    assertEquals(1, policy.selectReplica(replicas));
+  }
+}
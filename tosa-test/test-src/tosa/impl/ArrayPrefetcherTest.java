@@ -0,0 +1,126 @@
+package tosa.impl;
+
+import gw.lang.reflect.TypeSystem;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.TestEnv;
+import tosa.CachedDBObject;
+import tosa.api.EntityCollection;
+import tosa.api.IDBObject;
+import tosa.dbmd.DatabaseImpl;
+import tosa.loader.DBTypeLoader;
+import tosa.loader.IDBType;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ArrayPrefetcherTest {
+
+  @BeforeClass
+  static public void initDB() {
+    TestEnv.maybeInit();
+  }
+
+  @Before
+  public void resetDB() {
+    getDB().getDBUpgrader().recreateTables();
+  }
+
+  private static DatabaseImpl getDB() {
+    DBTypeLoader dbTypeLoader = TypeSystem.getTypeLoader(DBTypeLoader.class);
+    return dbTypeLoader.getTypeDataForNamespace("test.testdb");
+  }
+
+  private IDBType getType(String name) {
+    return (IDBType) TypeSystem.getByFullName("test.testdb." + name);
+  }
+
+  private IDBObject create(String typeName) throws SQLException {
+    IDBObject obj = new CachedDBObject(getType(typeName), true);
+    obj.update();
+    return obj;
+  }
+
+  private IDBObject createFoo(IDBObject bar) throws SQLException {
+    IDBObject foo = new CachedDBObject(getType("Foo"), true);
+    foo.setColumnValue("Bar_id", bar.getId());
+    foo.update();
+    return foo;
+  }
+
+  private void join(IDBObject foo, IDBObject baz) throws SQLException {
+    IDBObject join = new CachedDBObject(getType("join_Foo_Baz"), true);
+    join.setColumnValue("Foo_id", foo.getId());
+    join.setColumnValue("Baz_id", baz.getId());
+    join.update();
+  }
+
+  private List<Long> ids(EntityCollection<?> collection) {
+    List<Long> ids = new ArrayList<Long>();
+    for (IDBObject obj : collection) {
+      ids.add(obj.getId());
+    }
+    return ids;
+  }
+
+  @Test
+  public void testReverseFkArraysAreSplitBetweenTheirOwners() throws SQLException {
+    IDBObject bar1 = create("Bar");
+    IDBObject bar2 = create("Bar");
+    IDBObject bar3 = create("Bar");
+    IDBObject foo1 = createFoo(bar1);
+    IDBObject foo2 = createFoo(bar2);
+    IDBObject foo3 = createFoo(bar1);
+
+    List<IDBObject> bars = Arrays.asList(bar1, bar2, bar3);
+    ArrayPrefetcher.prefetch(bars, "Foos");
+    getDB().getDBExecutionKernel().executeDelete("DELETE FROM \"Foo\"");
+
+    for (IDBObject bar : bars) {
+      assertTrue(((EntityCollectionImplBase) bar.getArray("Foos")).isLoaded());
+    }
+    assertEquals(Arrays.asList(foo1.getId(), foo3.getId()), ids(bar1.getArray("Foos")));
+    assertEquals(Arrays.asList(foo2.getId()), ids(bar2.getArray("Foos")));
+    assertEquals(0, bar3.getArray("Foos").size());
+  }
+
+  @Test
+  public void testJoinArraysAreSplitBetweenTheirOwners() throws SQLException {
+    IDBObject foo1 = create("Foo");
+    IDBObject foo2 = create("Foo");
+    IDBObject baz1 = create("Baz");
+    IDBObject baz2 = create("Baz");
+    join(foo1, baz1);
+    join(foo1, baz2);
+    join(foo2, baz2);
+
+    ArrayPrefetcher.prefetch(Arrays.asList(foo1, foo2), "Bazs");
+    getDB().getDBExecutionKernel().executeDelete("DELETE FROM \"join_Foo_Baz\"");
+
+    assertEquals(2, foo1.getArray("Bazs").size());
+    assertTrue(ids(foo1.getArray("Bazs")).containsAll(Arrays.asList(baz1.getId(), baz2.getId())));
+    assertEquals(Arrays.asList(baz2.getId()), ids(foo2.getArray("Bazs")));
+  }
+
+  @Test
+  public void testArraysThatAreAlreadyLoadedAreLeftAlone() throws SQLException {
+    IDBObject bar = create("Bar");
+    createFoo(bar);
+    EntityCollection foos = bar.getArray("Foos");
+    foos.load();
+    IDBObject loaded = foos.get(0);
+
+    ArrayPrefetcher.prefetch(Arrays.asList(bar), "Foos");
+    assertSame(loaded, bar.getArray("Foos").get(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPrefetchingSomethingThatIsNotAnArrayFails() throws SQLException {
+    ArrayPrefetcher.prefetch(Arrays.asList(create("Bar")), "Misc");
+  }
+}
@@ -0,0 +1,78 @@
+package tosa.impl;
+
+import gw.lang.reflect.TypeSystem;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.TestEnv;
+import tosa.CachedDBObject;
+import tosa.api.IDBObject;
+import tosa.dbmd.DBTableImpl;
+import tosa.dbmd.DatabaseImpl;
+import tosa.loader.DBTypeLoader;
+import tosa.loader.IDBType;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ColumnIndexMappingTest {
+
+  @BeforeClass
+  static public void initDB() {
+    TestEnv.maybeInit();
+  }
+
+  @Before
+  public void resetDB() {
+    getDB().getDBUpgrader().recreateTables();
+  }
+
+  private static DatabaseImpl getDB() {
+    DBTypeLoader dbTypeLoader = TypeSystem.getTypeLoader(DBTypeLoader.class);
+    return dbTypeLoader.getTypeDataForNamespace("test.testdb");
+  }
+
+  private IDBType getType(String name) {
+    return (IDBType) TypeSystem.getByFullName("test.testdb." + name);
+  }
+
+  private IDBObject createAndCommit(String typeName, String column, Object value) throws SQLException {
+    IDBObject obj = new CachedDBObject(getType(typeName), true);
+    if (column != null) {
+      obj.setColumnValue(column, value);
+    }
+    obj.update();
+    return obj;
+  }
+
+  @Test
+  public void testSelectEntityHydratesEveryColumnAndCachesTheMapping() throws SQLException {
+    IDBObject bar = createAndCommit("Bar", "Misc", "misc");
+    String sql = "SELECT * FROM \"Bar\"";
+    List<IDBObject> results = new QueryExecutorImpl(getDB()).selectEntity("ColumnIndexMappingTest", getType("Bar"), sql);
+    assertEquals(1, results.size());
+    assertEquals(bar.getId(), results.get(0).getId());
+    assertEquals("misc", results.get(0).getColumnValue("Misc"));
+    assertNull(results.get(0).getColumnValue("Date"));
+    assertNotNull(((DBTableImpl) getDB().getTable("Bar")).getCachedColumnIndexMapping(sql));
+  }
+
+  @Test
+  public void testColumnsAreMatchedToTheRightTableInAJoin() throws SQLException {
+    // Create a few Foos first so that the Foo and Baz ids differ
+    createAndCommit("Foo", null, null);
+    createAndCommit("Foo", null, null);
+    IDBObject foo = createAndCommit("Foo", null, null);
+    IDBObject baz = createAndCommit("Baz", "Text", "text");
+    new QueryExecutorImpl(getDB()).insert("ColumnIndexMappingTest", "INSERT INTO \"join_Foo_Baz\" (\"Foo_id\", \"Baz_id\") VALUES (?, ?)",
+        getDB().getTable("join_Foo_Baz").getColumn("Foo_id").wrapParameterValue(foo.getId()),
+        getDB().getTable("join_Foo_Baz").getColumn("Baz_id").wrapParameterValue(baz.getId()));
+
+    List<IDBObject> results = new QueryExecutorImpl(getDB()).selectEntity("ColumnIndexMappingTest", getType("Foo"),
+        "SELECT * FROM \"Baz\" INNER JOIN \"join_Foo_Baz\" as j ON j.\"Baz_id\" = \"Baz\".\"id\" INNER JOIN \"Foo\" ON j.\"Foo_id\" = \"Foo\".\"id\"");
+    assertEquals(1, results.size());
+    assertEquals(foo.getId(), results.get(0).getId());
+  }
+}
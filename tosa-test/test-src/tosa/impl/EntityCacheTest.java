@@ -0,0 +1,135 @@
+package tosa.impl;
+
+import gw.lang.reflect.TypeSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.TestEnv;
+import tosa.CachedDBObject;
+import tosa.api.IDBObject;
+import tosa.dbmd.DatabaseImpl;
+import tosa.impl.query.CoreFinderImpl;
+import tosa.loader.DBTypeLoader;
+import tosa.loader.IDBType;
+
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
+
+public class EntityCacheTest {
+
+  @BeforeClass
+  static public void initDB() {
+    TestEnv.maybeInit();
+  }
+
+  @Before
+  public void resetDB() {
+    getDB().getDBUpgrader().recreateTables();
+    getDB().enableEntityCache("Bar", 2, 0);
+  }
+
+  @After
+  public void disableCache() {
+    getDB().disableEntityCache("Bar");
+  }
+
+  private static DatabaseImpl getDB() {
+    DBTypeLoader dbTypeLoader = TypeSystem.getTypeLoader(DBTypeLoader.class);
+    return dbTypeLoader.getTypeDataForNamespace("test.testdb");
+  }
+
+  private IDBType getBarType() {
+    return (IDBType) TypeSystem.getByFullName("test.testdb.Bar");
+  }
+
+  private EntityCache getCache() {
+    return getDB().getEntityCache(getDB().getTable("Bar"));
+  }
+
+  private IDBObject createAndCommitBar(String misc) throws SQLException {
+    IDBObject bar = new CachedDBObject(getBarType(), true);
+    bar.setColumnValue("Misc", misc);
+    bar.update();
+    return bar;
+  }
+
+  @Test
+  public void testLoadsByIdAreServedFromTheCache() throws SQLException {
+    IDBObject bar = createAndCommitBar("misc");
+    CoreFinderImpl finder = new CoreFinderImpl(getBarType());
+    IDBObject first = finder.fromId(bar.getId());
+    assertEquals(1, getCache().size());
+
+    IDBObject second = finder.fromId(bar.getId());
+    assertNotSame(first, second);
+    assertEquals("misc", second.getColumnValue("Misc"));
+    assertEquals(1, getCache().getStats().getHits());
+  }
+
+  @Test
+  public void testChangesToACachedCopyDoNotAffectTheCache() throws SQLException {
+    IDBObject bar = createAndCommitBar("misc");
+    CoreFinderImpl finder = new CoreFinderImpl(getBarType());
+    finder.fromId(bar.getId()).setColumnValue("Misc", "changed");
+    assertEquals("misc", finder.fromId(bar.getId()).getColumnValue("Misc"));
+  }
+
+  @Test
+  public void testUpdatesAndDeletesInvalidateTheCachedRow() throws SQLException {
+    IDBObject bar = createAndCommitBar("misc");
+    CoreFinderImpl finder = new CoreFinderImpl(getBarType());
+    IDBObject loaded = finder.fromId(bar.getId());
+    loaded.setColumnValue("Misc", "changed");
+    loaded.update();
+    assertEquals(0, getCache().size());
+    assertEquals("changed", finder.fromId(bar.getId()).getColumnValue("Misc"));
+
+    loaded.delete();
+    assertEquals(0, getCache().size());
+    assertNull(finder.fromId(bar.getId()));
+  }
+
+  @Test
+  public void testRowsReadBeforeAnInvalidationAreNotStored() throws SQLException {
+    IDBObject bar = createAndCommitBar("misc");
+    // Another thread changes the row between this thread's read and its store
+    long generation = EntityCache.getGeneration(getDB().getTable("Bar"));
+    getCache().invalidate(bar.getId());
+    getCache().put((CachedDBObject) bar, generation);
+    assertEquals(0, getCache().size());
+
+    getCache().put((CachedDBObject) bar, getCache().getGeneration());
+    assertEquals(1, getCache().size());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedRowsAreEvicted() throws SQLException {
+    CoreFinderImpl finder = new CoreFinderImpl(getBarType());
+    IDBObject bar1 = createAndCommitBar("one");
+    IDBObject bar2 = createAndCommitBar("two");
+    IDBObject bar3 = createAndCommitBar("three");
+    finder.fromId(bar1.getId());
+    finder.fromId(bar2.getId());
+    finder.fromId(bar1.getId());
+    finder.fromId(bar3.getId());
+
+    assertEquals(2, getCache().size());
+    assertEquals(1, getCache().getStats().getEvictions());
+    assertNull(getCache().get(getBarType(), bar2.getId()));
+    assertNotNull(getCache().get(getBarType(), bar1.getId()));
+  }
+
+  @Test
+  public void testRowsLoadedInsideATransactionAreNotCached() throws SQLException {
+    IDBObject bar = createAndCommitBar("misc");
+    getDB().getConnection().startTransaction();
+    try {
+      new CoreFinderImpl(getBarType()).fromId(bar.getId());
+    } finally {
+      getDB().getConnection().endTransaction();
+    }
+    assertEquals(0, getCache().size());
+  }
+}
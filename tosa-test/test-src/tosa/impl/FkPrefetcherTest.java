@@ -0,0 +1,129 @@
+package tosa.impl;
+
+import gw.lang.reflect.TypeSystem;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.TestEnv;
+import tosa.CachedDBObject;
+import tosa.api.IDBObject;
+import tosa.dbmd.DatabaseImpl;
+import tosa.loader.DBTypeLoader;
+import tosa.loader.IDBType;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FkPrefetcherTest {
+
+  @BeforeClass
+  static public void initDB() {
+    TestEnv.maybeInit();
+  }
+
+  @Before
+  public void resetDB() {
+    getDB().getDBUpgrader().recreateTables();
+  }
+
+  private static DatabaseImpl getDB() {
+    DBTypeLoader dbTypeLoader = TypeSystem.getTypeLoader(DBTypeLoader.class);
+    return dbTypeLoader.getTypeDataForNamespace("test.testdb");
+  }
+
+  private IDBType getType(String name) {
+    return (IDBType) TypeSystem.getByFullName("test.testdb." + name);
+  }
+
+  private IDBObject createBar() throws SQLException {
+    IDBObject bar = new CachedDBObject(getType("Bar"), true);
+    bar.update();
+    return bar;
+  }
+
+  private IDBObject createFoo(IDBObject bar) throws SQLException {
+    IDBObject foo = new CachedDBObject(getType("Foo"), true);
+    foo.setColumnValue("Bar_id", bar == null ? null : bar.getId());
+    foo.update();
+    return foo;
+  }
+
+  private List<IDBObject> loadFoos() {
+    return getType("Foo").getQueryExecutor().selectEntity("FkPrefetcherTest", getType("Foo"), "SELECT * FROM \"Foo\" ORDER BY \"id\"");
+  }
+
+  private void deleteAllBars() {
+    // Bypasses Tosa, so that any later load of a Bar would come back empty
+    getDB().getDBExecutionKernel().executeDelete("DELETE FROM \"Bar\"");
+  }
+
+  @Test
+  public void testPrefetchedFksAreNotLoadedAgain() throws SQLException {
+    IDBObject bar1 = createBar();
+    IDBObject bar2 = createBar();
+    createFoo(bar1);
+    createFoo(bar2);
+    createFoo(bar1);
+    createFoo(null);
+
+    List<IDBObject> foos = loadFoos();
+    FkPrefetcher.prefetch(foos, "Bar");
+    deleteAllBars();
+
+    assertEquals(bar1.getId(), foos.get(0).getFkValue("Bar_id").getId());
+    assertEquals(bar2.getId(), foos.get(1).getFkValue("Bar_id").getId());
+    assertEquals(bar1.getId(), foos.get(2).getFkValue("Bar_id").getId());
+    assertNull(foos.get(3).getFkValue("Bar_id"));
+  }
+
+  @Test
+  public void testIdsAreLoadedInChunks() throws SQLException {
+    List<IDBObject> bars = new ArrayList<IDBObject>();
+    for (int i = 0; i < FkPrefetcher.IN_CHUNK_SIZE + 5; i++) {
+      IDBObject bar = createBar();
+      bars.add(bar);
+      createFoo(bar);
+    }
+
+    List<IDBObject> foos = loadFoos();
+    FkPrefetcher.prefetch(foos, "Bar_id");
+    deleteAllBars();
+
+    for (int i = 0; i < bars.size(); i++) {
+      assertEquals(bars.get(i).getId(), foos.get(i).getFkValue("Bar_id").getId());
+    }
+  }
+
+  @Test
+  public void testChangingTheFkColumnDiscardsThePrefetchedObject() throws SQLException {
+    IDBObject bar1 = createBar();
+    IDBObject bar2 = createBar();
+    createFoo(bar1);
+
+    List<IDBObject> foos = loadFoos();
+    FkPrefetcher.prefetch(foos, "Bar");
+    foos.get(0).setColumnValue("Bar_id", bar2.getId());
+    assertEquals(bar2.getId(), foos.get(0).getFkValue("Bar_id").getId());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPrefetchingAColumnThatIsNotAnFkFails() throws SQLException {
+    createFoo(createBar());
+    FkPrefetcher.prefetch(loadFoos(), "FirstName");
+  }
+
+  @Test
+  public void testInListsArePaddedToAFewFixedLengthsWithTheLastId() {
+    assertEquals(Arrays.asList(7L), FkPrefetcher.padInList(Arrays.asList(7L)));
+    List<Long> padded = FkPrefetcher.padInList(Arrays.asList(1L, 2L, 3L));
+    assertEquals(8, padded.size());
+    assertEquals(Arrays.asList(1L, 2L, 3L, 3L, 3L, 3L, 3L, 3L), padded);
+    assertEquals(32, FkPrefetcher.padInList(new ArrayList<Long>(Collections.nCopies(9, 1L))).size());
+    assertEquals(FkPrefetcher.IN_CHUNK_SIZE, FkPrefetcher.padInList(new ArrayList<Long>(Collections.nCopies(129, 1L))).size());
+  }
+}
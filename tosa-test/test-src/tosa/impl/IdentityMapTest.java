@@ -0,0 +1,103 @@
+package tosa.impl;
+
+import gw.lang.reflect.TypeSystem;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.TestEnv;
+import tosa.CachedDBObject;
+import tosa.DBConnection;
+import tosa.api.IDBObject;
+import tosa.dbmd.DatabaseImpl;
+import tosa.impl.query.CoreFinderImpl;
+import tosa.loader.DBTypeLoader;
+import tosa.loader.IDBType;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IdentityMapTest {
+
+  @BeforeClass
+  static public void initDB() {
+    TestEnv.maybeInit();
+  }
+
+  @Before
+  public void resetDB() {
+    getDB().getDBUpgrader().recreateTables();
+  }
+
+  private static DatabaseImpl getDB() {
+    DBTypeLoader dbTypeLoader = TypeSystem.getTypeLoader(DBTypeLoader.class);
+    return dbTypeLoader.getTypeDataForNamespace("test.testdb");
+  }
+
+  private IDBType getType(String name) {
+    return (IDBType) TypeSystem.getByFullName("test.testdb." + name);
+  }
+
+  private IDBObject createAndCommitBar() throws SQLException {
+    IDBObject bar = new CachedDBObject(getType("Bar"), true);
+    bar.update();
+    return bar;
+  }
+
+  @Test
+  public void testThereIsNoIdentityMapOutsideOfATransaction() throws SQLException {
+    IDBObject bar = createAndCommitBar();
+    assertNull(IdentityMap.getCurrent(getDB()));
+    CoreFinderImpl finder = new CoreFinderImpl(getType("Bar"));
+    assertNotSame(finder.fromId(bar.getId()), finder.fromId(bar.getId()));
+  }
+
+  @Test
+  public void testRowsAreOnlyMaterializedOncePerTransaction() throws SQLException {
+    IDBObject bar = createAndCommitBar();
+    getDB().getConnection().startTransaction();
+    try {
+      CoreFinderImpl finder = new CoreFinderImpl(getType("Bar"));
+      IDBObject first = finder.fromId(bar.getId());
+      assertSame(first, finder.fromId(bar.getId()));
+      List<IDBObject> found = finder.findWithSql("SELECT * FROM \"Bar\"");
+      assertEquals(1, found.size());
+      assertSame(first, found.get(0));
+    } finally {
+      getDB().getConnection().endTransaction();
+    }
+    assertNull(((DBConnection) getDB().getConnection()).getTransactionIdentityMap());
+  }
+
+  @Test
+  public void testFkResolutionUsesTheIdentityMap() throws SQLException {
+    IDBObject bar = createAndCommitBar();
+    IDBObject foo = new CachedDBObject(getType("Foo"), true);
+    foo.setColumnValue("Bar_id", bar.getId());
+    foo.update();
+
+    getDB().getConnection().startTransaction();
+    try {
+      IDBObject loadedBar = new CoreFinderImpl(getType("Bar")).fromId(bar.getId());
+      IDBObject loadedFoo = new CoreFinderImpl(getType("Foo")).fromId(foo.getId());
+      assertSame(loadedBar, loadedFoo.getFkValue("Bar_id"));
+    } finally {
+      getDB().getConnection().endTransaction();
+    }
+  }
+
+  @Test
+  public void testInsertedEntitiesAreRegisteredAndDeletedOnesRemoved() throws SQLException {
+    getDB().getConnection().startTransaction();
+    try {
+      IDBObject bar = createAndCommitBar();
+      CoreFinderImpl finder = new CoreFinderImpl(getType("Bar"));
+      assertSame(bar, finder.fromId(bar.getId()));
+      bar.delete();
+      assertNull(finder.fromId(bar.getId()));
+    } finally {
+      getDB().getConnection().endTransaction();
+    }
+  }
+}
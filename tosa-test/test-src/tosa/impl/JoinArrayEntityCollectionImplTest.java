@@ -13,6 +13,7 @@ import tosa.loader.DBTypeLoader;
 import tosa.loader.IDBType;
 
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -523,6 +524,114 @@ public class JoinArrayEntityCollectionImplTest {
 //    assertNull(foo.getFkValue("Bar_id"));
 //  }
 
+  @Test
+  public void testAddAllChecksMembershipWithOneQueryAndSkipsExistingMembers() {
+    IDBObject foo = createAndCommitFoo();
+    IDBObject baz1 = createAndCommitBaz(foo);
+    IDBObject baz2 = createBaz();
+    update(baz2);
+    IDBObject baz3 = createBaz();
+    QueryExecutorSpy spy = new QueryExecutorSpy(getDB());
+    JoinArrayEntityCollectionImpl<IDBObject> list = createList(foo, spy);
+
+    list.addAll(Arrays.asList(baz1, baz2, baz3));
+    assertFalse(spy.countCalled());
+    assertTrue(spy.selectCalled());
+    assertTrue(spy.insertCalled());
+    assertEquals(1, countMatchesInDB(foo, baz1));
+    assertEquals(1, countMatchesInDB(foo, baz2));
+    assertEquals(1, countMatchesInDB(foo, baz3));
+    assertEquals(3, list.size());
+  }
+
+  @Test
+  public void testAddAllUsesTheCachedResultsIfTheyHaveBeenLoaded() {
+    IDBObject foo = createAndCommitFoo();
+    IDBObject baz1 = createAndCommitBaz(foo);
+    IDBObject baz2 = createBaz();
+    update(baz2);
+    QueryExecutorSpy spy = new QueryExecutorSpy(getDB());
+    JoinArrayEntityCollectionImpl<IDBObject> list = createList(foo, spy);
+    list.load();
+    spy.reset();
+
+    list.addAll(Arrays.asList(baz1, baz2));
+    assertFalse(spy.selectCalled());
+    assertEquals(2, list.size());
+    assertSame(baz1, list.get(0));
+    assertSame(baz2, list.get(1));
+  }
+
+  @Test
+  public void testRemoveAllDeletesAllJoinRows() {
+    IDBObject foo = createAndCommitFoo();
+    IDBObject baz1 = createAndCommitBaz(foo);
+    IDBObject baz2 = createAndCommitBaz(foo);
+    IDBObject baz3 = createAndCommitBaz(foo);
+    JoinArrayEntityCollectionImpl<IDBObject> list = createList(foo);
+    list.load();
+    list.removeAll(Arrays.asList(baz1, baz3));
+    assertEquals(0, countMatchesInDB(foo, baz1));
+    assertEquals(1, countMatchesInDB(foo, baz2));
+    assertEquals(0, countMatchesInDB(foo, baz3));
+    assertEquals(1, list.size());
+    assertEquals(baz2.getId(), list.get(0).getId());
+  }
+
+  @Test
+  public void testRemoveAllRemovesNothingIfAnyElementIsNotInTheArray() {
+    IDBObject foo = createAndCommitFoo();
+    IDBObject baz1 = createAndCommitBaz(foo);
+    IDBObject baz2 = createBaz();
+    update(baz2);
+    JoinArrayEntityCollectionImpl<IDBObject> list = createList(foo);
+    try {
+      list.removeAll(Arrays.asList(baz1, baz2));
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    assertEquals(1, countMatchesInDB(foo, baz1));
+  }
+
+  @Test
+  public void testContainsQueriesTheDatabaseOnlyIfTheResultsHaveNotBeenLoaded() {
+    IDBObject foo = createAndCommitFoo();
+    IDBObject baz1 = createAndCommitBaz(foo);
+    IDBObject baz2 = createBaz();
+    update(baz2);
+    QueryExecutorSpy spy = new QueryExecutorSpy(getDB());
+    JoinArrayEntityCollectionImpl<IDBObject> list = createList(foo, spy);
+    assertTrue(list.contains(baz1));
+    assertFalse(list.containsId(baz2.getId()));
+    assertTrue(spy.countCalled());
+
+    list.load();
+    spy.reset();
+    assertTrue(list.contains(baz1));
+    assertTrue(list.containsId(baz1.getId()));
+    assertFalse(list.contains(baz2));
+    assertFalse(spy.anyCalled());
+  }
+
+  @Test
+  public void testContainsReflectsRemovalsFromLoadedResults() {
+    IDBObject foo = createAndCommitFoo();
+    IDBObject baz1 = createAndCommitBaz(foo);
+    IDBObject baz2 = createAndCommitBaz(foo);
+    IDBObject baz3 = createAndCommitBaz(foo);
+    JoinArrayEntityCollectionImpl<IDBObject> list = createList(foo);
+    list.load();
+    list.remove(baz1);
+    assertFalse(list.containsId(baz1.getId()));
+    assertTrue(list.containsId(baz2.getId()));
+    assertTrue(list.containsId(baz3.getId()));
+    list.remove(baz3);
+    assertEquals(1, list.size());
+    assertSame(list.get(0), list.get(0));
+    assertTrue(list.contains(baz2));
+  }
+
   // ----------------------------- Helper Methods/Classes
 
   private int countMatchesInDB(IDBObject foo, IDBObject baz) {
@@ -0,0 +1,95 @@
+package tosa.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testEmptyHistogramReportsZero() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getValueAtPercentile(99), 0);
+    assertEquals(0, histogram.getMeanNanos(), 0);
+  }
+
+  @Test
+  public void testSmallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 50; i++) {
+      histogram.record(i);
+    }
+    assertEquals(50, histogram.getCount());
+    assertEquals(25, histogram.getValueAtPercentile(50));
+    assertEquals(50, histogram.getValueAtPercentile(100));
+    assertEquals(50, histogram.getMaxNanos());
+    assertEquals(25.5, histogram.getMeanNanos(), 0.0001);
+  }
+
+  @Test
+  public void testBucketsCoverEveryValueWithinThreePercent() {
+    Random random = new Random(12345);
+    for (int i = 0; i < 100000; i++) {
+      long value = random.nextLong() >>> (1 + random.nextInt(63));
+      int bucket = LatencyHistogram.bucketFor(value);
+      long highest = LatencyHistogram.highestValueInBucket(bucket);
+      assertTrue(highest >= value);
+      assertTrue(bucket == 0 || LatencyHistogram.highestValueInBucket(bucket - 1) < value);
+      assertTrue((double) (highest - value) / Math.max(1, value) <= 1.0 / 32);
+    }
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueInBucket(LatencyHistogram.bucketFor(Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void testPercentilesOfLargeValues() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000000L);
+    }
+    assertEquals(500000000L, histogram.getValueAtPercentile(50), 500000000L / 32);
+    assertEquals(990000000L, histogram.getValueAtPercentile(99), 990000000L / 32);
+    assertEquals(1000000000L, histogram.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void testConcurrentRecordsAreAllCounted() throws InterruptedException {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            histogram.record(5);
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(80000, histogram.getCount());
+    assertEquals(400000, histogram.getTotalNanos());
+    assertEquals(5, histogram.getValueAtPercentile(100));
+    histogram.reset();
+    assertEquals(0, histogram.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void testReset() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(1000);
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMaxNanos());
+    assertEquals(0, histogram.getValueAtPercentile(50));
+  }
+}
@@ -0,0 +1,68 @@
+package tosa.impl;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongIntHashMapTest {
+
+  @Test
+  public void testGetReturnsNoValueForMissingKeys() {
+    LongIntHashMap map = new LongIntHashMap();
+    assertEquals(LongIntHashMap.NO_VALUE, map.get(1));
+    map.put(1, 5);
+    assertEquals(LongIntHashMap.NO_VALUE, map.get(2));
+  }
+
+  @Test
+  public void testPutReplacesExistingValues() {
+    LongIntHashMap map = new LongIntHashMap();
+    map.put(42, 1);
+    map.put(42, 2);
+    assertEquals(2, map.get(42));
+    assertEquals(1, map.size());
+  }
+
+  @Test
+  public void testRemoveReturnsTheOldValue() {
+    LongIntHashMap map = new LongIntHashMap();
+    map.put(7, 3);
+    assertEquals(3, map.remove(7));
+    assertEquals(LongIntHashMap.NO_VALUE, map.get(7));
+    assertEquals(LongIntHashMap.NO_VALUE, map.remove(7));
+    assertEquals(0, map.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNoValueCannotBeStored() {
+    new LongIntHashMap().put(1, LongIntHashMap.NO_VALUE);
+  }
+
+  @Test
+  public void testMatchesHashMapUnderRandomOperations() {
+    // Removals shift entries back within their probe runs, so exercise lots of collisions and growth
+    LongIntHashMap map = new LongIntHashMap();
+    Map<Long, Integer> expected = new HashMap<Long, Integer>();
+    Random random = new Random(12345);
+    for (int i = 0; i < 100000; i++) {
+      long key = random.nextInt(2000) - 1000;
+      if (random.nextInt(3) == 0) {
+        Integer old = expected.remove(key);
+        assertEquals(old == null ? LongIntHashMap.NO_VALUE : old.intValue(), map.remove(key));
+      } else {
+        int value = random.nextInt(Integer.MAX_VALUE);
+        expected.put(key, value);
+        map.put(key, value);
+      }
+    }
+    assertEquals(expected.size(), map.size());
+    for (long key = -1000; key < 1000; key++) {
+      Integer value = expected.get(key);
+      assertEquals(value == null ? LongIntHashMap.NO_VALUE : value.intValue(), map.get(key));
+    }
+  }
+}
@@ -1,8 +1,10 @@
 package tosa.impl;
 
+import tosa.api.BatchResult;
 import tosa.api.IDBObject;
 import tosa.api.IDatabase;
 import tosa.api.IPreparedStatementParameter;
+import tosa.api.IQueryResultProcessor;
 import tosa.loader.IDBType;
 
 import java.util.List;
@@ -39,6 +41,12 @@ class QueryExecutorSpy implements QueryExecutor {
     return _delegate.selectEntity(profilerTag, targetType, sqlStatement, parameters);
   }
 
+  @Override
+  public <T> List<T> select(String profilerTag, String sqlStatement, IQueryResultProcessor<T> resultProcessor, IPreparedStatementParameter... parameters) {
+    _select = sqlStatement;
+    return _delegate.select(profilerTag, sqlStatement, resultProcessor, parameters);
+  }
+
   @Override
   public void update(String profilerTag, String sqlStatement, IPreparedStatementParameter... parameters) {
     _update = sqlStatement;
@@ -57,6 +65,24 @@ class QueryExecutorSpy implements QueryExecutor {
     _delegate.delete(profilerTag, sqlStatement, parameters);
   }
 
+  @Override
+  public BatchResult insertBatch(String profilerTag, String sqlStatement, List<IPreparedStatementParameter[]> parameterSets) {
+    _insert = sqlStatement;
+    return _delegate.insertBatch(profilerTag, sqlStatement, parameterSets);
+  }
+
+  @Override
+  public int[] updateBatch(String profilerTag, String sqlStatement, List<IPreparedStatementParameter[]> parameterSets) {
+    _update = sqlStatement;
+    return _delegate.updateBatch(profilerTag, sqlStatement, parameterSets);
+  }
+
+  @Override
+  public int[] deleteBatch(String profilerTag, String sqlStatement, List<IPreparedStatementParameter[]> parameterSets) {
+    _delete = sqlStatement;
+    return _delegate.deleteBatch(profilerTag, sqlStatement, parameterSets);
+  }
+
   public boolean countCalled() {
     return _count != null;
   }
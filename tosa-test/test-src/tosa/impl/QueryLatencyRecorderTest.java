@@ -0,0 +1,59 @@
+package tosa.impl;
+
+import gw.lang.reflect.TypeSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.TestEnv;
+import tosa.dbmd.DatabaseImpl;
+import tosa.loader.DBTypeLoader;
+
+import static org.junit.Assert.*;
+
+public class QueryLatencyRecorderTest {
+
+  @BeforeClass
+  static public void initDB() {
+    TestEnv.maybeInit();
+  }
+
+  @Before
+  public void resetDB() {
+    getDB().getDBUpgrader().recreateTables();
+  }
+
+  @After
+  public void removeInstrumentation() {
+    getDB().setQueryInstrumentation(null);
+  }
+
+  private static DatabaseImpl getDB() {
+    DBTypeLoader dbTypeLoader = TypeSystem.getTypeLoader(DBTypeLoader.class);
+    return dbTypeLoader.getTypeDataForNamespace("test.testdb");
+  }
+
+  @Test
+  public void testQueriesAreRecordedByProfilerTag() {
+    QueryLatencyRecorder recorder = new QueryLatencyRecorder(1);
+    getDB().setQueryInstrumentation(recorder);
+    QueryExecutorImpl queryExecutor = new QueryExecutorImpl(getDB());
+    queryExecutor.count("Test.countBars()", "SELECT count(*) as count FROM \"Bar\"");
+    queryExecutor.count("Test.countBars()", "SELECT count(*) as count FROM \"Bar\"");
+    queryExecutor.count("Test.countFoos()", "SELECT count(*) as count FROM \"Foo\"");
+
+    assertEquals(2, recorder.getHistogram("Test.countBars()").getCount());
+    assertEquals(1, recorder.getHistogram("Test.countFoos()").getCount());
+    assertTrue(recorder.getHistogram("Test.countBars()").getMaxNanos() > 0);
+    assertEquals(2, recorder.getHistograms().size());
+  }
+
+  @Test
+  public void testNothingIsRecordedOnceTheInstrumentationIsRemoved() {
+    QueryLatencyRecorder recorder = new QueryLatencyRecorder();
+    getDB().setQueryInstrumentation(recorder);
+    getDB().setQueryInstrumentation(null);
+    new QueryExecutorImpl(getDB()).count("Test.countBars()", "SELECT count(*) as count FROM \"Bar\"");
+    assertNull(recorder.getHistogram("Test.countBars()"));
+  }
+}
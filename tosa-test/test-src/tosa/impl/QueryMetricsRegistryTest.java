@@ -0,0 +1,108 @@
+package tosa.impl;
+
+import gw.lang.reflect.TypeSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.TestEnv;
+import tosa.api.IQueryInstrumentation;
+import tosa.api.QueryExecution;
+import tosa.dbmd.DatabaseImpl;
+import tosa.loader.DBTypeLoader;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class QueryMetricsRegistryTest {
+
+  @BeforeClass
+  static public void initDB() {
+    TestEnv.maybeInit();
+  }
+
+  @Before
+  public void resetDB() {
+    getDB().getDBUpgrader().recreateTables();
+  }
+
+  @After
+  public void disableMetrics() {
+    getDB().disableQueryMetrics();
+    getDB().setQueryInstrumentation(null);
+  }
+
+  private static DatabaseImpl getDB() {
+    DBTypeLoader dbTypeLoader = TypeSystem.getTypeLoader(DBTypeLoader.class);
+    return dbTypeLoader.getTypeDataForNamespace("test.testdb");
+  }
+
+  @Test
+  public void testNormalizeCollapsesLiteralsParameterListsAndWhitespace() {
+    assertEquals("SELECT * FROM \"Foo2\" WHERE \"id\" IN (?, ...) AND \"Name\" = ? LIMIT ?",
+        QueryMetricsRegistry.normalize("SELECT *  FROM \"Foo2\"\n WHERE \"id\" IN (?, ?,?) AND \"Name\" = 'it''s' LIMIT 10"));
+    assertEquals(QueryMetricsRegistry.normalize("SELECT * FROM \"Foo\" WHERE \"id\" IN (1, 2)"),
+        QueryMetricsRegistry.normalize("SELECT * FROM \"Foo\" WHERE \"id\" IN (?, ?, ?, ?)"));
+  }
+
+  @Test
+  public void testStatementsAreRecordedByTagAndShape() {
+    QueryMetricsRegistry registry = getDB().enableQueryMetrics();
+    QueryExecutorImpl queryExecutor = new QueryExecutorImpl(getDB());
+    queryExecutor.count("Test.countBars()", "SELECT count(*) as count FROM \"Bar\" WHERE \"id\" > 1");
+    queryExecutor.count("Test.countBars()", "SELECT count(*) as count FROM \"Bar\" WHERE \"id\" > 2");
+    queryExecutor.count("Test.countFoos()", "SELECT count(*) as count FROM \"Foo\"");
+
+    StatementMetrics metrics = registry.getStatementMetrics("Test.countBars()", "SELECT count(*) as count FROM \"Bar\" WHERE \"id\" > ?");
+    assertEquals(2, metrics.getCallCount());
+    assertEquals(0, metrics.getErrorCount());
+    assertEquals(2, metrics.getRowsReturned());
+    assertEquals(2, metrics.getLatency().getCount());
+    assertEquals(2, registry.getStatementShapeCount());
+    assertEquals(3, registry.getTotalCalls());
+    assertTrue(registry.dump().contains("Test.countFoos()"));
+  }
+
+  @Test
+  public void testFailedStatementsAreCountedAsErrors() {
+    QueryMetricsRegistry registry = getDB().enableQueryMetrics();
+    try {
+      new QueryExecutorImpl(getDB()).count("Test.broken()", "SELECT count(*) as count FROM \"NoSuchTable\"");
+      fail("Expected the query to fail");
+    } catch (Exception e) {
+      // Expected
+    }
+    assertEquals(1, registry.getTotalErrors());
+  }
+
+  @Test
+  public void testTheRegistryIsRegisteredWithJMXWhileEnabled() {
+    QueryMetricsRegistry registry = getDB().enableQueryMetrics();
+    assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(registry.getObjectName()));
+    getDB().disableQueryMetrics();
+    assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(registry.getObjectName()));
+    assertNull(getDB().getQueryMetrics());
+  }
+
+  @Test
+  public void testInstalledInstrumentationKeepsBeingCalledWhileMetricsAreEnabled() {
+    final List<String> tags = new ArrayList<String>();
+    IQueryInstrumentation instrumentation = new IQueryInstrumentation() {
+      @Override
+      public void queryExecuted(QueryExecution execution) {
+        tags.add(execution.getProfilerTag());
+      }
+    };
+    getDB().setQueryInstrumentation(instrumentation);
+    QueryMetricsRegistry registry = getDB().enableQueryMetrics();
+    new QueryExecutorImpl(getDB()).count("Test.countBars()", "SELECT count(*) as count FROM \"Bar\"");
+    assertEquals(1, registry.getTotalCalls());
+    assertEquals(1, tags.size());
+
+    getDB().disableQueryMetrics();
+    assertSame(instrumentation, getDB().getQueryInstrumentation());
+  }
+}
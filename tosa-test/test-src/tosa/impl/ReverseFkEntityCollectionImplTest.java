@@ -8,12 +8,17 @@ import test.TestEnv;
 import tosa.CachedDBObject;
 import tosa.api.IDBObject;
 import tosa.api.IPreparedStatementParameter;
+import tosa.api.IQueryInstrumentation;
+import tosa.api.IUnitOfWork;
+import tosa.api.QueryExecution;
 import tosa.dbmd.DatabaseImpl;
 import tosa.loader.DBTypeInfo;
 import tosa.loader.DBTypeLoader;
 import tosa.loader.IDBType;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -351,6 +356,18 @@ public class ReverseFkEntityCollectionImplTest {
     assertEquals(1, countMatchesInDB(foo, bar));
   }
 
+  @Test
+  public void testAddDoesNotLeaveTheFkToBeWrittenAgainByALaterUpdate() {
+    IDBObject bar = createAndCommitBar();
+    IDBObject foo = createFoo();
+    update(foo);
+    createList(bar).add(foo);
+    String updateSql = updateSqlAfterChangingFirstName(foo);
+    assertTrue(updateSql.contains("FirstName"));
+    assertFalse(updateSql.contains("Bar_id"));
+    assertEquals(1, countMatchesInDB(foo, bar));
+  }
+
   @Test
   public void testAddShowsElementInResultsImmediatelyIfResultsWereNotPreviouslyLoaded() {
     IDBObject bar = createAndCommitBar();
@@ -470,6 +487,16 @@ public class ReverseFkEntityCollectionImplTest {
     assertFalse(list.iterator().hasNext());
   }
 
+  @Test
+  public void testRemoveDoesNotLeaveTheFkToBeWrittenAgainByALaterUpdate() {
+    IDBObject bar = createAndCommitBar();
+    IDBObject foo = createAndCommitFoo(bar);
+    createList(bar).remove(foo);
+    String updateSql = updateSqlAfterChangingFirstName(foo);
+    assertTrue(updateSql.contains("FirstName"));
+    assertFalse(updateSql.contains("Bar_id"));
+  }
+
   @Test
   public void testRemoveWillNullOutFkColumnOnElement() {
     IDBObject bar = createAndCommitBar();
@@ -490,8 +517,116 @@ public class ReverseFkEntityCollectionImplTest {
     assertNull(foo.getFkValue("Bar_id"));
   }
 
+  @Test
+  public void testAddAllAttachesNewAndPersistedElementsWithOneUpdate() {
+    IDBObject bar = createAndCommitBar();
+    IDBObject foo1 = createFoo();
+    update(foo1);
+    IDBObject foo2 = createFoo();
+    update(foo2);
+    IDBObject foo3 = createFoo();
+    QueryExecutorSpy spy = new QueryExecutorSpy(getDB());
+    ReverseFkEntityCollectionImpl<IDBObject> list = createList(bar, spy);
+    list.load();
+    spy.reset();
+
+    list.addAll(Arrays.asList(foo1, foo2, foo3));
+    assertTrue(spy.updateCalled());
+    assertFalse(spy.selectCalled());
+    assertEquals(3, list.size());
+    assertEquals(1, countMatchesInDB(foo1, bar));
+    assertEquals(1, countMatchesInDB(foo2, bar));
+    assertEquals(1, countMatchesInDB(foo3, bar));
+    assertEquals(3, createList(bar).size());
+    for (IDBObject foo : Arrays.asList(foo1, foo2, foo3)) {
+      assertFalse(updateSqlAfterChangingFirstName(foo).contains("Bar_id"));
+    }
+  }
+
+  @Test
+  public void testAddAllChangesNothingIfAnyElementBelongsToAnotherOwner() {
+    IDBObject bar = createAndCommitBar();
+    IDBObject otherBar = createAndCommitBar();
+    IDBObject foo1 = createFoo();
+    update(foo1);
+    IDBObject foo2 = createAndCommitFoo(otherBar);
+    ReverseFkEntityCollectionImpl<IDBObject> list = createList(bar);
+    try {
+      list.addAll(Arrays.asList(foo1, foo2));
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    assertEquals(0, countMatchesInDB(foo1, bar));
+    assertEquals(0, list.size());
+  }
+
+  @Test
+  public void testRemoveAllDetachesAllElements() {
+    IDBObject bar = createAndCommitBar();
+    IDBObject foo1 = createAndCommitFoo(bar);
+    IDBObject foo2 = createAndCommitFoo(bar);
+    IDBObject foo3 = createAndCommitFoo(bar);
+    ReverseFkEntityCollectionImpl<IDBObject> list = createList(bar);
+    list.load();
+    list.removeAll(Arrays.asList(foo1, foo3));
+    assertNull(foo1.getColumnValue("Bar_id"));
+    assertEquals(1, list.size());
+    assertEquals(foo2.getId(), list.get(0).getId());
+    assertEquals(1, createList(bar).size());
+    assertFalse(updateSqlAfterChangingFirstName(foo1).contains("Bar_id"));
+    assertFalse(updateSqlAfterChangingFirstName(foo3).contains("Bar_id"));
+  }
+
+  @Test
+  public void testElementsAddedInAUnitOfWorkAreIndexedOnceTheyHaveIds() {
+    IDBObject bar = createAndCommitBar();
+    IDBObject foo1 = createAndCommitFoo(bar);
+    ReverseFkEntityCollectionImpl<IDBObject> list = createList(bar);
+    list.load();
+    IUnitOfWork unitOfWork = getDB().startUnitOfWork();
+    try {
+      IDBObject foo2 = createFoo();
+      IDBObject foo3 = createFoo();
+      list.add(foo2);
+      list.add(foo3);
+      assertTrue(list.contains(foo2));
+      assertTrue(list.contains(foo3));
+      // Moves the elements that haven't got ids yet up by one
+      list.remove(foo1);
+      unitOfWork.flush();
+      assertTrue(list.containsId(foo2.getId()));
+      assertTrue(list.containsId(foo3.getId()));
+      assertFalse(list.containsId(foo1.getId()));
+      assertSame(foo2, list.get(0));
+      assertSame(foo3, list.get(1));
+    } finally {
+      unitOfWork.close();
+    }
+  }
+
   // ----------------------------- Helper Methods/Classes
 
+  private String updateSqlAfterChangingFirstName(IDBObject foo) {
+    final List<String> updates = new ArrayList<String>();
+    getDB().setQueryInstrumentation(new IQueryInstrumentation() {
+      @Override
+      public void queryExecuted(QueryExecution execution) {
+        if (execution.getProfilerTag().endsWith(".update()")) {
+          updates.add(execution.getSql());
+        }
+      }
+    });
+    try {
+      foo.setColumnValue("FirstName", "changed");
+      update(foo);
+    } finally {
+      getDB().setQueryInstrumentation(null);
+    }
+    assertEquals(1, updates.size());
+    return updates.get(0);
+  }
+
   private int countMatchesInDB(IDBObject foo, IDBObject bar) {
     String sql = SimpleSqlBuilder.substitute("SELECT count(*) as count FROM ${fooTable} WHERE ${idColumn} = ${fooId} AND ${barColumn} = ${barId}",
         "fooTable", foo.getDBTable(),
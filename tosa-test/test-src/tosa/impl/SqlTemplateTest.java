@@ -0,0 +1,38 @@
+package tosa.impl;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SqlTemplateTest {
+
+  @Test
+  public void testRenderMatchesSubstitute() {
+    String sql = "SELECT * FROM ${table} WHERE ${column} IN (${ids}) ORDER BY ${column}";
+    assertEquals(SimpleSqlBuilder.substitute(sql, "table", "Foo", "column", "id", "ids", Arrays.asList("?", "?")),
+        SimpleSqlBuilder.compile(sql).render("Foo", "id", Arrays.asList("?", "?")));
+  }
+
+  @Test
+  public void testRepeatedTokensTakeASingleArgument() {
+    SqlTemplate template = SimpleSqlBuilder.compile("${a}.${b} = ${a}.${c}");
+    assertEquals("x.y = x.z", template.render("x", "y", "z"));
+  }
+
+  @Test
+  public void testTemplatesWithoutTokensRenderAsIs() {
+    assertEquals("SELECT 1", SimpleSqlBuilder.compile("SELECT 1").render());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRenderingWithTheWrongNumberOfValuesFails() {
+    SimpleSqlBuilder.compile("${a} = ${b}").render("x");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnterminatedTokensAreRejected() {
+    SimpleSqlBuilder.compile("SELECT * FROM ${table");
+  }
+}
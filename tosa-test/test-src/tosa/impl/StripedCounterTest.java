@@ -0,0 +1,44 @@
+package tosa.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StripedCounterTest {
+
+  @Test
+  public void testSumAddsUpEveryThreadsIncrements() throws InterruptedException {
+    final StripedCounter counter = new StripedCounter();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            counter.increment();
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(80000, counter.sum());
+  }
+
+  @Test
+  public void testResetClearsTheCount() {
+    StripedCounter counter = new StripedCounter();
+    counter.add(5);
+    counter.add(-2);
+    assertEquals(3, counter.sum());
+    counter.reset();
+    assertEquals(0, counter.sum());
+  }
+}
@@ -0,0 +1,214 @@
+package tosa.impl;
+
+import gw.lang.reflect.TypeSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.TestEnv;
+import tosa.CachedDBObject;
+import tosa.api.IDBColumn;
+import tosa.api.IDBObject;
+import tosa.api.IUnitOfWork;
+import tosa.dbmd.DatabaseImpl;
+import tosa.loader.DBTypeLoader;
+import tosa.loader.IDBType;
+
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
+
+public class UnitOfWorkImplTest {
+
+  private IUnitOfWork _unitOfWork;
+
+  @BeforeClass
+  static public void initDB() {
+    TestEnv.maybeInit();
+  }
+
+  @Before
+  public void resetDB() {
+    getDB().getDBUpgrader().recreateTables();
+    _unitOfWork = getDB().startUnitOfWork();
+  }
+
+  @After
+  public void closeUnitOfWork() {
+    _unitOfWork.close();
+  }
+
+  private static DatabaseImpl getDB() {
+    DBTypeLoader dbTypeLoader = TypeSystem.getTypeLoader(DBTypeLoader.class);
+    return dbTypeLoader.getTypeDataForNamespace("test.testdb");
+  }
+
+  private IDBObject create(String typeName) {
+    return new CachedDBObject((IDBType) TypeSystem.getByFullName("test.testdb." + typeName), true);
+  }
+
+  private void update(IDBObject obj) {
+    try {
+      obj.update();
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void delete(IDBObject obj) {
+    try {
+      obj.delete();
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private int count(String table) {
+    return new QueryExecutorImpl(getDB()).count("UnitOfWorkImplTest.count()", "SELECT count(*) as count FROM \"" + table + "\"");
+  }
+
+  @Test
+  public void testUpdateIsNotWrittenUntilFlush() {
+    IDBObject bar = create("Bar");
+    update(bar);
+    assertTrue(bar.isNew());
+    assertTrue(_unitOfWork.hasPendingChanges());
+    assertEquals(0, count("Bar"));
+
+    _unitOfWork.flush();
+    assertFalse(bar.isNew());
+    assertNotNull(bar.getId());
+    assertFalse(_unitOfWork.hasPendingChanges());
+    assertEquals(1, count("Bar"));
+  }
+
+  @Test
+  public void testFlushInsertsReferencedEntitiesFirstAndFillsInFkColumns() {
+    IDBObject bar = create("Bar");
+    IDBObject foo = create("Foo");
+    foo.setFkValue("Bar_id", bar);
+    // Register the child before the parent to make sure the flush reorders them
+    update(foo);
+    update(bar);
+
+    _unitOfWork.flush();
+    assertNotNull(bar.getId());
+    assertEquals(bar.getId(), foo.getColumnValue("Bar_id"));
+  }
+
+  @Test
+  public void testDeletingAnUnflushedEntityDropsItsInsert() {
+    IDBObject bar = create("Bar");
+    update(bar);
+    delete(bar);
+    assertFalse(_unitOfWork.hasPendingChanges());
+    _unitOfWork.flush();
+    assertEquals(0, count("Bar"));
+  }
+
+  @Test
+  public void testFlushWritesUpdatesAndDeletesOfExistingEntities() {
+    IDBObject bar1 = create("Bar");
+    IDBObject bar2 = create("Bar");
+    update(bar1);
+    update(bar2);
+    _unitOfWork.flush();
+
+    bar1.setColumnValue("Misc", "changed");
+    update(bar1);
+    delete(bar2);
+    _unitOfWork.flush();
+
+    assertEquals(1, count("Bar"));
+    assertEquals(1, new QueryExecutorImpl(getDB()).count("UnitOfWorkImplTest.count()", "SELECT count(*) as count FROM \"Bar\" WHERE \"Misc\" = 'changed'"));
+  }
+
+  @Test
+  public void testFailedFlushInsideATransactionOnlyUndoesItsOwnStatements() throws SQLException {
+    IDBObject existing = create("Bar");
+    update(existing);
+    _unitOfWork.flush();
+
+    getDB().getConnection().startTransaction();
+    try {
+      IDBObject added = create("Bar");
+      update(added);
+      // Misc only holds 50 characters, so the update fails after the insert has already run
+      existing.setColumnValue("Misc", "This value is far too long to fit into the Misc column of Bar");
+      update(existing);
+      try {
+        _unitOfWork.flush();
+        fail("Expected the flush to fail");
+      } catch (RuntimeException e) {
+        // Expected
+      }
+      assertEquals(1, count("Bar"));
+      assertTrue(added.isNew());
+      assertTrue(_unitOfWork.hasPendingChanges());
+
+      existing.setColumnValue("Misc", "short");
+      _unitOfWork.flush();
+      assertEquals(2, count("Bar"));
+      getDB().getConnection().commitTransaction();
+    } finally {
+      getDB().getConnection().endTransaction();
+    }
+    assertEquals(2, count("Bar"));
+  }
+
+  @Test
+  public void testJoinArrayAddOfUnsavedEntitiesIsWrittenOnFlush() {
+    IDBObject foo = create("Foo");
+    IDBObject baz = create("Baz");
+    update(foo);
+    IDBType bazType = (IDBType) TypeSystem.getByFullName("test.testdb.Baz");
+    IDBColumn srcColumn = getDB().getTable("join_Foo_Baz").getColumn("Foo_id");
+    IDBColumn targetColumn = getDB().getTable("join_Foo_Baz").getColumn("Baz_id");
+    JoinArrayEntityCollectionImpl<IDBObject> bazs = new JoinArrayEntityCollectionImpl<IDBObject>(foo, bazType, srcColumn, targetColumn, new QueryExecutorImpl(getDB()));
+    bazs.add(baz);
+    // A second add of the same element is a no-op
+    bazs.add(baz);
+    assertEquals(0, count("join_Foo_Baz"));
+
+    _unitOfWork.flush();
+    assertEquals(1, count("Baz"));
+    assertEquals(1, count("join_Foo_Baz"));
+  }
+
+  @Test
+  public void testJoinArrayAddFollowedByRemoveCancelsOut() {
+    IDBObject foo = create("Foo");
+    IDBObject baz = create("Baz");
+    update(foo);
+    update(baz);
+    _unitOfWork.flush();
+
+    IDBType bazType = (IDBType) TypeSystem.getByFullName("test.testdb.Baz");
+    IDBColumn srcColumn = getDB().getTable("join_Foo_Baz").getColumn("Foo_id");
+    IDBColumn targetColumn = getDB().getTable("join_Foo_Baz").getColumn("Baz_id");
+    JoinArrayEntityCollectionImpl<IDBObject> bazs = new JoinArrayEntityCollectionImpl<IDBObject>(foo, bazType, srcColumn, targetColumn, new QueryExecutorImpl(getDB()));
+    bazs.add(baz);
+    bazs.remove(baz);
+    assertFalse(_unitOfWork.hasPendingChanges());
+  }
+
+  @Test
+  public void testOnlyOneUnitOfWorkCanBeOpenPerThread() {
+    try {
+      getDB().startUnitOfWork();
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testCloseEndsTheUnitOfWork() {
+    _unitOfWork.close();
+    assertNull(getDB().getCurrentUnitOfWork());
+    IDBObject bar = create("Bar");
+    update(bar);
+    assertFalse(bar.isNew());
+    _unitOfWork = getDB().startUnitOfWork();
+  }
+}
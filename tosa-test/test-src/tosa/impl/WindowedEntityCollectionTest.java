@@ -0,0 +1,106 @@
+package tosa.impl;
+
+import gw.lang.reflect.TypeSystem;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.TestEnv;
+import tosa.CachedDBObject;
+import tosa.api.IDBObject;
+import tosa.dbmd.DatabaseImpl;
+import tosa.loader.DBTypeLoader;
+import tosa.loader.IDBType;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WindowedEntityCollectionTest {
+
+  private IDBObject _bar;
+  private List<Long> _fooIds;
+
+  @BeforeClass
+  static public void initDB() {
+    TestEnv.maybeInit();
+  }
+
+  @Before
+  public void resetDB() throws SQLException {
+    getDB().getDBUpgrader().recreateTables();
+    _bar = new CachedDBObject(getType("Bar"), true);
+    _bar.update();
+    _fooIds = new ArrayList<Long>();
+    for (int i = 0; i < 10; i++) {
+      IDBObject foo = new CachedDBObject(getType("Foo"), true);
+      foo.setColumnValue("Bar_id", _bar.getId());
+      foo.update();
+      _fooIds.add(foo.getId());
+    }
+  }
+
+  private static DatabaseImpl getDB() {
+    DBTypeLoader dbTypeLoader = TypeSystem.getTypeLoader(DBTypeLoader.class);
+    return dbTypeLoader.getTypeDataForNamespace("test.testdb");
+  }
+
+  private IDBType getType(String name) {
+    return (IDBType) TypeSystem.getByFullName("test.testdb." + name);
+  }
+
+  private WindowedEntityCollection<IDBObject> createWindowedList(QueryExecutor queryExecutor) {
+    IDBType fooType = getType("Foo");
+    ReverseFkEntityCollectionImpl<IDBObject> foos = new ReverseFkEntityCollectionImpl<IDBObject>(_bar, fooType, fooType.getTable().getColumn("Bar_id"), queryExecutor);
+    return (WindowedEntityCollection<IDBObject>) foos.windowed(3, 2);
+  }
+
+  @Test
+  public void testIterationReturnsEveryElementInIdOrderWithBoundedPages() {
+    WindowedEntityCollection<IDBObject> list = createWindowedList(new QueryExecutorImpl(getDB()));
+    List<Long> ids = new ArrayList<Long>();
+    for (IDBObject foo : list) {
+      ids.add(foo.getId());
+      assertTrue(list.getResidentPageCount() <= 2);
+    }
+    assertEquals(_fooIds, ids);
+  }
+
+  @Test
+  public void testGetFetchesPagesOnDemand() {
+    QueryExecutorSpy spy = new QueryExecutorSpy(getDB());
+    WindowedEntityCollection<IDBObject> list = createWindowedList(spy);
+    assertEquals(10, list.size());
+    assertTrue(spy.countCalled());
+    assertFalse(spy.selectCalled());
+
+    assertEquals(_fooIds.get(9), list.get(9).getId());
+    assertEquals(_fooIds.get(0), list.get(0).getId());
+    assertEquals(_fooIds.get(4), list.get(4).getId());
+    assertEquals(2, list.getResidentPageCount());
+
+    // Both the size and the resident pages are cached
+    spy.reset();
+    assertEquals(10, list.size());
+    assertEquals(_fooIds.get(5), list.get(5).getId());
+    assertFalse(spy.anyCalled());
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testGetThrowsIndexOutOfBoundsExceptionIfArgumentIsEqualToSize() {
+    createWindowedList(new QueryExecutorImpl(getDB())).get(10);
+  }
+
+  @Test
+  public void testChangesDiscardTheCachedPagesAndSize() throws SQLException {
+    WindowedEntityCollection<IDBObject> list = createWindowedList(new QueryExecutorImpl(getDB()));
+    assertEquals(10, list.size());
+    list.load();
+    IDBObject foo = new CachedDBObject(getType("Foo"), true);
+    list.add(foo);
+    assertEquals(0, list.getResidentPageCount());
+    assertEquals(11, list.size());
+    assertEquals(foo.getId(), list.get(10).getId());
+  }
+}
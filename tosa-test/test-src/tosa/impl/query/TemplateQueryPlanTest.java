@@ -0,0 +1,79 @@
+package tosa.impl.query;
+
+import gw.lang.reflect.TypeSystem;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import test.TestEnv;
+import tosa.CachedDBObject;
+import tosa.api.IDBObject;
+import tosa.api.IDBTable;
+import tosa.api.PageToken;
+import tosa.loader.IDBType;
+
+import static org.junit.Assert.*;
+
+public class TemplateQueryPlanTest {
+
+  @BeforeClass
+  static public void initDB() {
+    TestEnv.maybeInit();
+  }
+
+  private IDBType getType(String name) {
+    return (IDBType) TypeSystem.getByFullName("test.testdb." + name);
+  }
+
+  private IDBObject fooTemplate(String firstName, String lastName) {
+    IDBObject template = new CachedDBObject(getType("Foo"), true);
+    template.setColumnValue("FirstName", firstName);
+    template.setColumnValue("LastName", lastName);
+    return template;
+  }
+
+  @Test
+  public void testTemplatesWithTheSameNonNullColumnsShareAPlan() {
+    IDBTable table = getType("Foo").getTable();
+    TemplateQueryPlan plan = TemplateQueryPlan.forSelect(table, fooTemplate("Alice", null), null, true, false);
+    assertSame(plan, TemplateQueryPlan.forSelect(table, fooTemplate("Bob", null), null, true, false));
+    assertNotSame(plan, TemplateQueryPlan.forSelect(table, fooTemplate(null, "Smith"), null, true, false));
+    assertNotSame(plan, TemplateQueryPlan.forSelect(table, fooTemplate("Bob", null), null, true, true));
+    assertNotSame(plan, TemplateQueryPlan.forCount(table, fooTemplate("Bob", null)));
+  }
+
+  @Test
+  public void testPlansOnlyBindTheNonNullColumns() {
+    IDBTable table = getType("Foo").getTable();
+    IDBObject template = fooTemplate("Alice", "Smith");
+    TemplateQueryPlan plan = TemplateQueryPlan.forSelect(table, template, table.getColumn("LastName"), false, false);
+    assertEquals("SELECT * FROM \"Foo\" WHERE \"FirstName\" = ? AND \"LastName\" = ? ORDER BY \"LastName\" DESC, \"id\" ASC", plan.getSql());
+    assertEquals(2, plan.bind(template).length);
+  }
+
+  @Test
+  public void testPagedPlansBindThePageSizeAndOffsetLast() {
+    IDBTable table = getType("Foo").getTable();
+    TemplateQueryPlan plan = TemplateQueryPlan.forSelect(table, null, null, true, true);
+    assertEquals("SELECT * FROM \"Foo\" WHERE true ORDER BY \"id\" ASC LIMIT ? OFFSET ?", plan.getSql());
+    assertEquals(2, plan.bind(null, 10, 20).length);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testPagedPlansCannotBeBoundWithoutPaging() {
+    TemplateQueryPlan.forSelect(getType("Foo").getTable(), null, null, true, true).bind(null);
+  }
+
+  @Test
+  public void testKeysetPlansAreSharedByEveryPageWithTheSameSeekShape() {
+    IDBTable table = getType("Foo").getTable();
+    PageToken first = new PageToken("LastName", true, "Jones", 3);
+    PageToken second = new PageToken("LastName", true, "Smith", 8);
+    TemplateQueryPlan plan = TemplateQueryPlan.forKeysetPage(table, fooTemplate("Alice", null), table.getColumn("LastName"), true, first);
+    assertSame(plan, TemplateQueryPlan.forKeysetPage(table, fooTemplate("Bob", null), table.getColumn("LastName"), true, second));
+    assertEquals("SELECT * FROM \"Foo\" WHERE \"FirstName\" = ? AND (\"LastName\" > ? OR (\"LastName\" = ? AND \"id\" > ?)) ORDER BY \"LastName\" ASC, \"id\" ASC LIMIT ?", plan.getSql());
+    assertEquals(5, plan.bind(fooTemplate("Bob", null), second, 11).length);
+
+    PageToken afterNull = new PageToken("LastName", true, null, 8);
+    assertNotSame(plan, TemplateQueryPlan.forKeysetPage(table, fooTemplate("Bob", null), table.getColumn("LastName"), true, afterNull));
+    assertNotSame(plan, TemplateQueryPlan.forKeysetPage(table, fooTemplate("Bob", null), table.getColumn("LastName"), true, null));
+  }
+}
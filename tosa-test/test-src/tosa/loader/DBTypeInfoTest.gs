@@ -14,6 +14,8 @@ uses test.testdb.Foo
 uses test.testdb.Baz
 uses gw.lang.reflect.TypeSystem
 uses tosa.api.EntityCollection
+uses tosa.api.PageToken
+uses tosa.api.ResultPage
 
 class DBTypeInfoTest {
 
@@ -224,6 +226,16 @@ class DBTypeInfoTest {
       Assert.assertTrue(findSortedPagedMethod.Static)
       Assert.assertEquals(List<test.testdb.Foo>, findSortedPagedMethod.ReturnType)
 
+      var findPagedAfterMethod = typeinfo.getMethod("findPagedAfter", {test.testdb.Foo, int, PageToken})
+      Assert.assertNotNull(findPagedAfterMethod)
+      Assert.assertTrue(findPagedAfterMethod.Static)
+      Assert.assertEquals(ResultPage<test.testdb.Foo>, findPagedAfterMethod.ReturnType)
+
+      var findSortedPagedAfterMethod = typeinfo.getMethod("findSortedPagedAfter", {test.testdb.Foo, PropertyReference, boolean, int, PageToken})
+      Assert.assertNotNull(findSortedPagedAfterMethod)
+      Assert.assertTrue(findSortedPagedAfterMethod.Static)
+      Assert.assertEquals(ResultPage<test.testdb.Foo>, findSortedPagedAfterMethod.ReturnType)
+
   }
 
   @Test
@@ -307,6 +319,34 @@ class DBTypeInfoTest {
       })
   }
 
+  @Test
+  function testFindPagedAfter() {
+      var ids = new java.util.ArrayList<Long>()
+      var page = test.testdb.SortPage.findPagedAfter(null, 7, null)
+      ids.addAll(page.Results.map(\s -> s.id))
+      while (page.hasNextPage()) {
+        Assert.assertEquals(7, page.Results.Count)
+        page = test.testdb.SortPage.findPagedAfter(null, 7, page.NextPageToken)
+        ids.addAll(page.Results.map(\s -> s.id))
+      }
+      Assert.assertEquals(6, page.Results.Count)
+      Assert.assertEquals(test.testdb.SortPage.findSorted(null, test.testdb.SortPage#id, true).map(\s -> s.id), ids)
+  }
+
+  @Test
+  function testFindSortedPagedAfter() {
+      for (ascending in {true, false}) {
+        var all = new java.util.ArrayList<SortPage>()
+        var page = test.testdb.SortPage.findSortedPagedAfter(null, test.testdb.SortPage#Number, ascending, 3, null)
+        all.addAll(page.Results)
+        while (page.hasNextPage()) {
+          page = test.testdb.SortPage.findSortedPagedAfter(null, test.testdb.SortPage#Number, ascending, 3, page.NextPageToken)
+          all.addAll(page.Results)
+        }
+        Assert.assertEquals(test.testdb.SortPage.findSorted(null, test.testdb.SortPage#Number, ascending).map(\s -> s.id), all.map(\s -> s.id))
+      }
+  }
+
   @Test
   function testCount() {
       Assert.assertEquals(20, test.testdb.SortPage.count(null))
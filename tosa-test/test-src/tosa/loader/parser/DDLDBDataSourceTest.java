@@ -0,0 +1,38 @@
+package tosa.loader.parser;
+
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class DDLDBDataSourceTest {
+
+  @Test
+  public void testAFileWithOnlyAUrl() {
+    Properties properties = new Properties();
+    assertEquals("jdbc:h2:mem:test", DDLDBDataSource.parseConnectionFile("  jdbc:h2:mem:test  \n", properties));
+    assertTrue(properties.isEmpty());
+  }
+
+  @Test
+  public void testAFileWithoutATrailingNewline() {
+    Properties properties = new Properties();
+    assertEquals("jdbc:h2:mem:test", DDLDBDataSource.parseConnectionFile("jdbc:h2:mem:test", properties));
+    assertTrue(properties.isEmpty());
+  }
+
+  @Test
+  public void testSettingsFollowingTheUrlAreLoaded() {
+    Properties properties = new Properties();
+    String url = DDLDBDataSource.parseConnectionFile(
+        "jdbc:mysql://localhost:3306/app?user=app\r\n" +
+        "# Pool settings\r\n" +
+        "pool.maxActive=20\r\n" +
+        "pool.validationQuery=SELECT 1\r\n", properties);
+    assertEquals("jdbc:mysql://localhost:3306/app?user=app", url);
+    assertEquals(2, properties.size());
+    assertEquals("20", properties.getProperty("pool.maxActive"));
+    assertEquals("SELECT 1", properties.getProperty("pool.validationQuery"));
+  }
+}
@@ -2,17 +2,17 @@ package tosa;
 
 import com.sun.org.apache.xerces.internal.impl.xs.identity.ValueStore;
 import gw.lang.reflect.TypeSystem;
-import org.slf4j.profiler.Profiler;
 import tosa.api.*;
 import tosa.impl.*;
 import tosa.loader.DBTypeInfo;
 import tosa.loader.IDBType;
-import tosa.loader.Util;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -24,22 +24,33 @@ import java.util.Map;
  * To change this template use File | Settings | File Templates.
  */
 public class CachedDBObject implements IDBObject {
-  private Map<String, Object> _columns;
+  private static final SqlTemplate INSERT_SQL = SimpleSqlBuilder.compile("INSERT INTO ${table} (${columns}) VALUES (${values})");
+  private static final SqlTemplate UPDATE_SQL = SimpleSqlBuilder.compile("UPDATE ${table} SET ${values} WHERE ${idColumn} = ?");
+  private static final SqlTemplate DELETE_SQL = SimpleSqlBuilder.compile("DELETE FROM ${table} WHERE ${idColumn} = ?");
+  private static final SqlTemplate SELECT_BY_ID_SQL = SimpleSqlBuilder.compile("SELECT * FROM ${table} WHERE ${idColumn} = ?");
+
+  // Column values are stored by column ordinal (see IDBTable.getColumnOrdinal()) rather than in a map.  A column
+  // that has never been set is distinct from one that's been set to null, which is what the presence bits track.
+  private Object[] _values;
+  private long[] _present;
+  private Object[] _originalValues;
+  private long[] _originalPresent;
   private Map<String, IDBObject> _cachedFks;
+  private Map<String, IDBObject> _prefetchedFks;
   private Map<String, EntityCollection> _cachedArrays;
   private IDBType _type;
   private boolean _new;
   private QueryExecutor _queryExecutor;
 
   public CachedDBObject(IDBType type, boolean isNew) {
-    // TODO - AHK
-    _type = (IDBType) TypeSystem.getOrCreateTypeReference(type);
+    // This is called for every row that's loaded, so everything that can be shared across all objects of the
+    // type is resolved once by the type itself, and the fk and array caches aren't created until they're needed
+    _type = type.getTypeReference();
     _new = isNew;
-    _columns = new HashMap<String, Object>();
-    _cachedFks = new HashMap<String, IDBObject>();
-    _cachedArrays = new HashMap<String, EntityCollection>();
-    _queryExecutor = new QueryExecutorImpl(_type.getTable().getDatabase());
-    // TODO - AHK - There's room for perf improvements here
+    int columnCount = _type.getTable().getColumns().size();
+    _values = new Object[columnCount];
+    _present = new long[(columnCount + 63) / 64];
+    _queryExecutor = _type.getQueryExecutor();
   }
 
   @Override
@@ -63,31 +74,62 @@ public class CachedDBObject implements IDBObject {
 
   @Override
   public Object getColumnValue(String columnName) {
-    // TODO - AHK - Validate that the column name is actually a legal column
-    return _columns.get(columnName);
+    int ordinal = getDBTable().getColumnOrdinal(columnName);
+    return ordinal == -1 ? null : _values[ordinal];
   }
 
   @Override
   public void setColumnValue(String columnName, Object value) {
-    // TODO - AHK - Validate that the column name is legal and that the value is legal
+    // TODO - AHK - Validate that the value is legal
     // TODO - AHK - Invalidate any fk back-pointers associated with that column if the value has changed
-    _columns.put(columnName, value);
+    setColumnValue(getAndValidateColumnOrdinal(columnName), value);
+  }
+
+  public Object getColumnValue(int ordinal) {
+    return _values[ordinal];
+  }
+
+  public void setColumnValue(int ordinal, Object value) {
+    _values[ordinal] = value;
+    _present[ordinal >> 6] |= 1L << ordinal;
+  }
+
+  private boolean isColumnPresent(int ordinal) {
+    return isPresent(_present, ordinal);
+  }
+
+  private static boolean isPresent(long[] present, int ordinal) {
+    return (present[ordinal >> 6] & (1L << ordinal)) != 0;
+  }
+
+  private int getAndValidateColumnOrdinal(String columnName) {
+    int ordinal = getDBTable().getColumnOrdinal(columnName);
+    if (ordinal == -1) {
+      throw new IllegalArgumentException("Column name " + columnName + " is not a valid column on the " + getTableName() + " table");
+    }
+    return ordinal;
   }
 
   @Override
   public IDBObject getFkValue(String columnName) {
     IDBColumn column = getAndValidateFkColumn(columnName);
 
-    IDBObject fkObject = _cachedFks.get(columnName);
+    IDBObject fkObject = _cachedFks == null ? null : _cachedFks.get(columnName);
     if (fkObject != null) {
       return fkObject;
     }
 
-    Long fkID = (Long) _columns.get(columnName);
+    Long fkID = (Long) getColumnValue(columnName);
     if (fkID == null) {
       return null;
     }
 
+    // A prefetched object is only good as long as the fk column hasn't been changed since
+    fkObject = _prefetchedFks == null ? null : _prefetchedFks.get(columnName);
+    if (fkObject != null && fkID.equals(fkObject.getId())) {
+      return fkObject;
+    }
+
     fkObject = loadEntity(column.getFKTarget(), fkID);
     if (fkObject == null) {
       throw new IllegalStateException("Column " + columnName + " on table " + _type.getTable().getName() + " has a value of " + fkID + ", but no corresponding row was found in the database");
@@ -100,15 +142,30 @@ public class CachedDBObject implements IDBObject {
   public void setFkValue(String columnName, IDBObject value) {
     IDBColumn column = getAndValidateFkColumn(columnName);
     // TODO - AHK - Validate that the value is of the correct type
+    if (_cachedFks == null) {
+      _cachedFks = new HashMap<String, IDBObject>();
+    }
     if (value == null) {
-      _columns.put(columnName, null);
+      setColumnValue(columnName, null);
       _cachedFks.put(columnName, null);
     } else {
-      _columns.put(columnName, value.getId());
+      setColumnValue(columnName, value.getId());
       _cachedFks.put(columnName, value);
     }
   }
 
+  /**
+   * Supplies the object referenced by the given fk column, which has been loaded ahead of time along with the
+   * objects referenced by this object's siblings (see FkPrefetcher), so that getFkValue() doesn't need to query
+   * for it.  Unlike setFkValue(), this doesn't change the column's value.
+   */
+  public void setPrefetchedFkValue(String columnName, IDBObject value) {
+    if (_prefetchedFks == null) {
+      _prefetchedFks = new HashMap<String, IDBObject>();
+    }
+    _prefetchedFks.put(columnName, value);
+  }
+
   private IDBColumn getAndValidateFkColumn(String columnName) {
     IDBColumn column = _type.getTable().getColumn(columnName);
     if (column == null) {
@@ -127,16 +184,19 @@ public class CachedDBObject implements IDBObject {
 
   @Override
   public EntityCollection getArray(IDBArray dbArray) {
+    if (_cachedArrays == null) {
+      _cachedArrays = new HashMap<String, EntityCollection>();
+    }
     EntityCollection result = _cachedArrays.get(dbArray.getPropertyName());
     if (result == null) {
       if (dbArray instanceof IDBFkArray) {
         IDBColumn fkColumn = ((IDBFkArray) dbArray).getFkColumn();
         IDBType fkType = (IDBType) TypeSystem.getByFullName(fkColumn.getTable().getDatabase().getNamespace() + "." + fkColumn.getTable().getName());
-        result = new ReverseFkEntityCollectionImpl(this, fkType, fkColumn, new QueryExecutorImpl(fkColumn.getTable().getDatabase()));
+        result = new ReverseFkEntityCollectionImpl(this, fkType, fkColumn, fkType.getQueryExecutor());
       } else if (dbArray instanceof IDBJoinArray) {
         IDBJoinArray joinArray = (IDBJoinArray) dbArray;
         IDBType targetType = (IDBType) TypeSystem.getByFullName(getDBTable().getDatabase().getNamespace() + "." + joinArray.getTargetTable().getName());
-        result = new JoinArrayEntityCollectionImpl(this, targetType, joinArray.getSrcColumn(), joinArray.getTargetColumn(), new QueryExecutorImpl(getDBTable().getDatabase()));
+        result = new JoinArrayEntityCollectionImpl(this, targetType, joinArray.getSrcColumn(), joinArray.getTargetColumn(), targetType.getQueryExecutor());
       }
       _cachedArrays.put(dbArray.getPropertyName(), result);
     }
@@ -149,68 +209,246 @@ public class CachedDBObject implements IDBObject {
   }
 
   // TODO - AHK - Kill this
+  /**
+   * Returns a snapshot of the columns that have been set on this object, keyed by column name in ordinal order.
+   * Changes to the returned map are not reflected in the object.
+   */
   public Map<String, Object> getColumns() {
-    return _columns;
+    Map<String, Object> columns = new LinkedHashMap<String, Object>();
+    int ordinal = 0;
+    for (IDBColumn column : getDBTable().getColumns()) {
+      if (isColumnPresent(ordinal)) {
+        columns.put(column.getName(), _values[ordinal]);
+      }
+      ordinal++;
+    }
+    return columns;
   }
 
   @Override
   public void update() throws SQLException {
-    List<ColumnValuePair> columnValues = gatherChangedValues();
+    UnitOfWorkImpl unitOfWork = UnitOfWorkImpl.getCurrent(getDBTable().getDatabase());
+    if (unitOfWork != null) {
+      unitOfWork.registerSave(this);
+      return;
+    }
+
     if (_new) {
-      List<IDBColumn> columns = new ArrayList<IDBColumn>();
-      List<String> values = new ArrayList<String>();
-      IPreparedStatementParameter[] parameters = new IPreparedStatementParameter[columnValues.size()];
-      for (int i = 0; i < columnValues.size(); i++) {
-        columns.add(columnValues.get(i)._column);
-        values.add("?");
-        parameters[i] = columnValues.get(i)._parameter;
-      }
-      String query = SimpleSqlBuilder.substitute(
-          "INSERT INTO ${table} (${columns}) VALUES (${values})",
-          "table", getDBTable(),
-          "columns", columns,
-          "values", values);
-      Object id = _queryExecutor.insert(_type.getName() + ".update()", query, parameters);
+      WriteStatement insert = buildInsertStatement();
+      Object id = _queryExecutor.insert(_type.getName() + ".update()", insert.getSql(), insert.getParameters());
       if (id != null) {
-        _columns.put(DBTypeInfo.ID_COLUMN, id);
-        _new = false;
+        assignGeneratedId(id);
       }
     } else {
-      StringBuilder values = new StringBuilder();
-      List<IPreparedStatementParameter> params = new ArrayList<IPreparedStatementParameter>();
-      for (int i = 0; i < columnValues.size(); i++) {
-        if (i > 0) {
-          values.append(", ");
-        }
-        values.append(SimpleSqlBuilder.substitute("${column} = ?", "column", columnValues.get(i)._column));
-        params.add(columnValues.get(i)._parameter);
+      WriteStatement update = buildUpdateStatement();
+      if (update != null) {
+        _queryExecutor.update(_type.getName() + ".update()", update.getSql(), update.getParameters());
+        markClean();
+        EntityCache.invalidate(this);
+      }
+    }
+  }
+
+  /**
+   * Records the current column values as the values stored in the database, so that subsequent updates only
+   * write the columns that have been changed since.  This is called when the object is loaded from the database,
+   * and again each time it's successfully written back.
+   */
+  public void markClean() {
+    _originalValues = _values.clone();
+    _originalPresent = _present.clone();
+  }
+
+  /**
+   * Records the current value of a single column as the value stored in the database, for when that column has been
+   * written directly with a statement of its own rather than through update().  Objects without a snapshot have
+   * nothing to record it in, so they're left alone.
+   *
+   * @param column the column that has just been written
+   */
+  public void markColumnClean(IDBColumn column) {
+    if (_new || _originalValues == null) {
+      return;
+    }
+    int ordinal = getAndValidateColumnOrdinal(column.getName());
+    _originalValues[ordinal] = _values[ordinal];
+    if (isColumnPresent(ordinal)) {
+      _originalPresent[ordinal >> 6] |= 1L << ordinal;
+    } else {
+      _originalPresent[ordinal >> 6] &= ~(1L << ordinal);
+    }
+  }
+
+  /**
+   * Indicates whether any column has been changed since the object was loaded or last written.  New objects are
+   * always dirty.
+   *
+   * @return true if an update() would write anything
+   */
+  public boolean isDirty() {
+    return _new || !gatherChangedValues().isEmpty();
+  }
+
+  /**
+   * Builds the INSERT statement that would persist this object in its current state.  Objects with the same set of
+   * non-missing columns produce the same SQL text, so the resulting statements can be batched together.
+   *
+   * @return the INSERT statement for this object
+   */
+  public WriteStatement buildInsertStatement() {
+    List<ColumnValuePair> columnValues = gatherChangedValues();
+    List<IDBColumn> columns = new ArrayList<IDBColumn>(columnValues.size());
+    IPreparedStatementParameter[] parameters = new IPreparedStatementParameter[columnValues.size()];
+    for (int i = 0; i < columnValues.size(); i++) {
+      columns.add(columnValues.get(i)._column);
+      parameters[i] = columnValues.get(i)._parameter;
+    }
+    String query = INSERT_SQL.render(getDBTable(), columns, Collections.nCopies(columns.size(), "?"));
+    return new WriteStatement(query, parameters);
+  }
+
+  /**
+   * Builds the UPDATE statement that would write this object's changed columns back to its existing row.
+   *
+   * @return the UPDATE statement for this object, or null if no columns have changed
+   */
+  public WriteStatement buildUpdateStatement() {
+    List<ColumnValuePair> columnValues = gatherChangedValues();
+    if (columnValues.isEmpty()) {
+      return null;
+    }
+    StringBuilder values = new StringBuilder();
+    List<IPreparedStatementParameter> params = new ArrayList<IPreparedStatementParameter>();
+    for (int i = 0; i < columnValues.size(); i++) {
+      if (i > 0) {
+        values.append(", ");
       }
-      IDBColumn idColumn = getDBTable().getColumn(DBTypeInfo.ID_COLUMN);
-      params.add(idColumn.wrapParameterValue(getId()));
-      String query = SimpleSqlBuilder.substitute(
-          "UPDATE ${table} SET ${values} WHERE ${idColumn} = ?",
-          "table", getDBTable(),
-          "values", values.toString(),
-          "idColumn", idColumn
-      );
-      _queryExecutor.update(_type.getName() + ".update()", query, params.toArray(new IPreparedStatementParameter[params.size()]));
+      values.append(columnValues.get(i)._column.getQuotedName()).append(" = ?");
+      params.add(columnValues.get(i)._parameter);
+    }
+    IDBColumn idColumn = getDBTable().getColumn(DBTypeInfo.ID_COLUMN);
+    params.add(idColumn.wrapParameterValue(getId()));
+    String query = UPDATE_SQL.render(getDBTable(), values.toString(), idColumn);
+    return new WriteStatement(query, params.toArray(new IPreparedStatementParameter[params.size()]));
+  }
+
+  /**
+   * Builds the DELETE statement that removes this object's row.
+   *
+   * @return the DELETE statement for this object
+   */
+  public WriteStatement buildDeleteStatement() {
+    // TODO - AHK - Determine if we need to quote the table name or column names or not
+    // TODO - AHK - What do we do if the table doesn't have an id?
+    IDBColumn idColumn = getDBTable().getColumn(DBTypeInfo.ID_COLUMN);
+    String query = DELETE_SQL.render(getDBTable(), idColumn);
+    return new WriteStatement(query, idColumn.wrapParameterValue(getId()));
+  }
+
+  /**
+   * Records the id the database generated when this object was inserted, and marks the object as no longer new.
+   *
+   * @param id the generated id
+   */
+  public void assignGeneratedId(Object id) {
+    setColumnValue(DBTypeInfo.ID_COLUMN, id);
+    _new = false;
+    markClean();
+    IdentityMap identityMap = IdentityMap.getCurrent(getDBTable().getDatabase());
+    if (identityMap != null) {
+      identityMap.intern(this);
     }
   }
 
+  /**
+   * Undoes assignGeneratedId(), for use when the transaction the insert happened in has been rolled back.
+   */
+  public void revertToNew() {
+    IdentityMap identityMap = IdentityMap.getCurrent(getDBTable().getDatabase());
+    if (identityMap != null && identityMap.get(getDBTable(), getId()) == this) {
+      identityMap.remove(this);
+    }
+    int ordinal = getDBTable().getColumnOrdinal(DBTypeInfo.ID_COLUMN);
+    if (ordinal != -1) {
+      _values[ordinal] = null;
+      _present[ordinal >> 6] &= ~(1L << ordinal);
+    }
+    _new = true;
+    _originalValues = null;
+    _originalPresent = null;
+  }
+
+  /**
+   * Returns the objects set via setFkValue() that have not yet been inserted into the database.  This object
+   * can't be inserted with the right fk values until all of them have been.
+   *
+   * @return the unsaved objects this object has fk references to
+   */
+  public List<IDBObject> getUnsavedFkReferences() {
+    List<IDBObject> unsaved = new ArrayList<IDBObject>();
+    if (_cachedFks == null) {
+      return unsaved;
+    }
+    for (IDBObject fkObject : _cachedFks.values()) {
+      if (fkObject != null && fkObject.isNew()) {
+        unsaved.add(fkObject);
+      }
+    }
+    return unsaved;
+  }
+
+  /**
+   * Copies ids into fk columns that are still null because the referenced object was set via setFkValue() before
+   * it had been inserted.
+   *
+   * @return the names of the columns that were filled in
+   */
+  public List<String> resolveFkIds() {
+    List<String> resolved = new ArrayList<String>();
+    if (_cachedFks == null) {
+      return resolved;
+    }
+    for (Map.Entry<String, IDBObject> entry : _cachedFks.entrySet()) {
+      IDBObject fkObject = entry.getValue();
+      if (fkObject != null && getColumnValue(entry.getKey()) == null && fkObject.getId() != null) {
+        setColumnValue(entry.getKey(), fkObject.getId());
+        resolved.add(entry.getKey());
+      }
+    }
+    return resolved;
+  }
+
   private List<ColumnValuePair> gatherChangedValues() {
-    // TODO - AHK - Actually compare to some stored-off map of the original values
     List<ColumnValuePair> columnValues = new ArrayList<ColumnValuePair>();
     // Note:  We iterate over the columns, in order, so that the query is always the same for a given set
     // of columns.  Iterating over the map keys might be more efficient, but could lead to different
     // orderings within the query, which would be less optimal on the database side
+    int ordinal = 0;
     for (IDBColumn column : getDBTable().getColumns()) {
-      if (_columns.containsKey(column.getName())) {
-        columnValues.add(new ColumnValuePair(column, column.wrapParameterValue(_columns.get(column.getName()))));
+      if (isColumnPresent(ordinal) && isChanged(ordinal)) {
+        columnValues.add(new ColumnValuePair(column, column.wrapParameterValue(_values[ordinal])));
       }
+      ordinal++;
     }
     return columnValues;
   }
 
+  private boolean isChanged(int ordinal) {
+    // Without a snapshot (i.e. for new objects, or ones that were never loaded from the database) every column counts
+    if (_new || _originalValues == null || !isPresent(_originalPresent, ordinal)) {
+      return true;
+    }
+    Object original = _originalValues[ordinal];
+    Object current = _values[ordinal];
+    if (original == null || current == null) {
+      return original != current;
+    } else if (original instanceof byte[] && current instanceof byte[]) {
+      return !Arrays.equals((byte[]) original, (byte[]) current);
+    } else {
+      return !original.equals(current);
+    }
+  }
+
   private static class ColumnValuePair {
     private IDBColumn _column;
     private IPreparedStatementParameter _parameter;
@@ -223,31 +461,33 @@ public class CachedDBObject implements IDBObject {
 
   @Override
   public void delete() throws SQLException {
-    // TODO - AHK - Determine if we need to quote the table name or column names or not
-    // TODO - AHK - What do we do if the table doesn't have an id?
-    IDBColumn idColumn = getDBTable().getColumn(DBTypeInfo.ID_COLUMN);
-    String query = SimpleSqlBuilder.substitute(
-        "DELETE FROM ${table} WHERE ${idColumn} = ?",
-        "table", getDBTable(),
-        "idColumn", idColumn);
-    _queryExecutor.delete(_type.getName() + ".delete()", query, idColumn.wrapParameterValue(getId()));
+    UnitOfWorkImpl unitOfWork = UnitOfWorkImpl.getCurrent(getDBTable().getDatabase());
+    if (unitOfWork != null) {
+      unitOfWork.registerDelete(this);
+      return;
+    }
+
+    WriteStatement delete = buildDeleteStatement();
+    _queryExecutor.delete(_type.getName() + ".delete()", delete.getSql(), delete.getParameters());
+    EntityCache.invalidate(this);
+    IdentityMap identityMap = IdentityMap.getCurrent(getDBTable().getDatabase());
+    if (identityMap != null) {
+      identityMap.remove(this);
+    }
   }
 
   @Override
   public String toString() {
-    return _columns.toString();
+    return getColumns().toString();
   }
 
   @Override
   public int hashCode() {
+    // Unset columns and columns set to null are treated the same way by equals(), so they have to hash the same way too
     int hashCode = _type.hashCode();
-    List<String> keys = new ArrayList<String>(_columns.keySet());
-    Collections.sort(keys);
-    for (String columnName : keys) {
-      if (_columns.get(columnName) != null) {
-        hashCode = hashCode * 17 + _columns.get(columnName).hashCode();
-      } else {
-        hashCode *= 17;
+    for (Object value : _values) {
+      if (value != null) {
+        hashCode = hashCode * 17 + value.hashCode();
       }
     }
     return hashCode;
@@ -257,19 +497,10 @@ public class CachedDBObject implements IDBObject {
   public boolean equals(Object obj) {
     if (obj instanceof CachedDBObject) {
       CachedDBObject other = (CachedDBObject) obj;
-      if (_type.equals(other._type)) {
-        for (String columnName : _columns.keySet()) {
-          if (_columns.get(columnName) != null) {
-            if (!_columns.get(columnName).equals(other._columns.get(columnName))) {
-              return false;
-            }
-          }
-        }
-        for (String columnName : other._columns.keySet()) {
-          if (other._columns.get(columnName) != null) {
-            if (!other._columns.get(columnName).equals(_columns.get(columnName))) {
-              return false;
-            }
+      if (_type.equals(other._type) && _values.length == other._values.length) {
+        for (int i = 0; i < _values.length; i++) {
+          if (_values[i] == null ? other._values[i] != null : !_values[i].equals(other._values[i])) {
+            return false;
           }
         }
         return true;
@@ -279,18 +510,33 @@ public class CachedDBObject implements IDBObject {
   }
 
   private IDBObject loadEntity(IDBTable table, Long id) {
-    IDBColumn idColumn = table.getColumn(DBTypeInfo.ID_COLUMN);
+    IdentityMap identityMap = IdentityMap.getCurrent(table.getDatabase());
+    IDBObject existing = identityMap == null ? null : identityMap.get(table, id);
+    if (existing != null) {
+      return existing;
+    }
     // TODO - AHK - Need some better way to convert between the two
     IDBType resultType = (IDBType) TypeSystem.getByFullName(table.getDatabase().getNamespace() + "." + table.getName());
-    String sql = SimpleSqlBuilder.substitute("SELECT * FROM ${table} WHERE ${idColumn} = ?",
-        "table", table,
-        "idColumn", idColumn);
+    long cacheGeneration = EntityCache.getGeneration(table);
+    IDBObject cached = EntityCache.find(resultType, id);
+    if (cached != null) {
+      return identityMap != null ? identityMap.intern(cached) : cached;
+    }
+
+    IDBColumn idColumn = table.getColumn(DBTypeInfo.ID_COLUMN);
+    String sql = SELECT_BY_ID_SQL.render(table, idColumn);
     IPreparedStatementParameter param = idColumn.wrapParameterValue(id);
-    // TODO - AHK - Fetch this from somewhere?
-    List<IDBObject> results = new QueryExecutorImpl(table.getDatabase()).selectEntity("CachedDBObject.loadEntity()", resultType, sql, param);
+    List<IDBObject> results;
+    boolean primaryReads = EntityCache.beginPrimaryReads(table);
+    try {
+      results = resultType.getQueryExecutor().selectEntity("CachedDBObject.loadEntity()", resultType, sql, param);
+    } finally {
+      EntityCache.endPrimaryReads(table, primaryReads);
+    }
     if (results.isEmpty()) {
       return null;
     } else if (results.size() == 1) {
+      EntityCache.store(results.get(0), cacheGeneration);
       return results.get(0);
     } else {
       throw new IllegalStateException("Expected to get one result back from query " + sql + " (" + param + ") but got " + results.size() );
@@ -40,14 +40,21 @@ public class ConnectionWrapper implements Connection {
     }
   }
 
+  protected Connection getWrappedConnection() {
+    return _conn;
+  }
+
   @Override
   public <T> T unwrap(Class<T> iface) throws SQLException {
+    if (iface.isInstance(this)) {
+      return iface.cast(this);
+    }
     return _conn.unwrap(iface);
   }
 
   @Override
   public boolean isWrapperFor(Class<?> iface) throws SQLException {
-    return _conn.isWrapperFor(iface);
+    return iface.isInstance(this) || _conn.isWrapperFor(iface);
   }
 
   @Override
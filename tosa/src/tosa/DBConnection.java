@@ -6,23 +6,36 @@ import gw.lang.reflect.module.IModule;
 import gw.util.GosuExceptionUtil;
 import org.apache.commons.dbcp.ConnectionFactory;
 import org.apache.commons.dbcp.DriverManagerConnectionFactory;
-import org.apache.commons.dbcp.PoolableConnectionFactory;
-import org.apache.commons.dbcp.PoolingDataSource;
-import org.apache.commons.pool.ObjectPool;
-import org.apache.commons.pool.impl.GenericObjectPool;
+import tosa.api.ConnectionPoolConfig;
+import tosa.api.IConnectionPool;
+import tosa.api.IConnectionPoolFactory;
 import tosa.api.IDBConnection;
+import tosa.api.IRequestScope;
+import tosa.api.IReplicaSelectionPolicy;
+import tosa.api.ITransactionContext;
+import tosa.api.ReplicaConfig;
+import tosa.db.execution.PreparedStatementCacheStats;
+import tosa.db.pool.AffinityConnectionPool;
+import tosa.db.pool.DbcpConnectionPool;
+import tosa.db.pool.LeastOutstandingReplicaPolicy;
+import tosa.db.pool.RoundRobinReplicaPolicy;
+import tosa.impl.IdentityMap;
+import tosa.impl.LatencyHistogram;
 import tosa.loader.DBTypeLoader;
 
-import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by IntelliJ IDEA.
@@ -32,40 +45,226 @@ import java.util.Set;
  * To change this template use File | Settings | File Templates.
  */
 public class DBConnection implements IDBConnection {
+  public static final String STATEMENT_CACHE_SIZE_PROPERTY = "db.statementCache.size";
+  public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
   private String _connectURL;
-  private ThreadLocal<Connection> _transaction;
+  // The transaction each thread is bound to, if any; the transaction itself can be shared between threads
+  private ThreadLocal<TransactionContext> _transaction;
 
   private DBTypeLoader _typeLoader;
-  private DataSource _dataSource;
+  private ConnectionPoolConfig _connectionPoolConfig;
+  private IConnectionPool _connectionPool;
+  private IConnectionPool[] _replicaPools;
+  private IReplicaSelectionPolicy _replicaPolicy;
+  private long _readYourWritesNanos;
+  // The System.nanoTime() of each thread's last write, in a holder so that recording a write doesn't allocate
+  private ThreadLocal<long[]> _lastWrite;
+  private ThreadLocal<int[]> _primaryReadDepth;
+  private ThreadLocal<RequestScope> _requestScope;
+  private LatencyHistogram _pinnedTime;
+  private PreparedStatementCacheStats _statementCacheStats;
 
 
   public DBConnection(String connUrl, DBTypeLoader typeLoader) {
+    this(connUrl, new Properties(), typeLoader);
+  }
+
+  public DBConnection(String connUrl, Properties connectionProperties, DBTypeLoader typeLoader) {
     _connectURL = connUrl;
-    _transaction = new ThreadLocal<Connection>();
+    _transaction = new ThreadLocal<TransactionContext>();
     _typeLoader = typeLoader;
-    _dataSource = setupDataSource(connUrl);
+    _statementCacheStats = new PreparedStatementCacheStats();
+    _connectionPoolConfig = new ConnectionPoolConfig(connectionProperties);
+    _connectionPool = setupConnectionPool(connUrl, _connectionPoolConfig);
+
+    ReplicaConfig replicaConfig = new ReplicaConfig(connectionProperties);
+    _replicaPools = new IConnectionPool[replicaConfig.getUrls().size()];
+    for (int i = 0; i < _replicaPools.length; i++) {
+      _replicaPools[i] = setupConnectionPool(replicaConfig.getUrls().get(i), _connectionPoolConfig);
+    }
+    _replicaPolicy = createReplicaPolicy(replicaConfig.getPolicy());
+    _readYourWritesNanos = replicaConfig.getReadYourWritesMillis() * 1000000L;
+    _lastWrite = new ThreadLocal<long[]>() {
+      @Override
+      protected long[] initialValue() {
+        return new long[1];
+      }
+    };
+    _primaryReadDepth = new ThreadLocal<int[]>() {
+      @Override
+      protected int[] initialValue() {
+        return new int[1];
+      }
+    };
+    _requestScope = new ThreadLocal<RequestScope>();
+    _pinnedTime = new LatencyHistogram();
   }
 
   @Override
   public Connection connect() throws SQLException {
-    Connection trans = _transaction.get();
-    if (trans == null) {
-      return _dataSource.getConnection();
+    TransactionContext trans = _transaction.get();
+    if (trans != null) {
+      return trans.borrowConnection();
+    }
+    return connectOutsideTransaction();
+  }
+
+  private Connection connectOutsideTransaction() throws SQLException {
+    RequestScope scope = _requestScope.get();
+    if (scope != null) {
+      return scope.getPrimaryConnection();
+    }
+    return _connectionPool.getConnection();
+  }
+
+  @Override
+  public Connection connectForRead() throws SQLException {
+    TransactionContext trans = _transaction.get();
+    if (trans != null) {
+      return trans.borrowConnection();
+    }
+    RequestScope scope = _requestScope.get();
+    if (_replicaPools.length == 0 || isWithinReadYourWritesWindow() || _primaryReadDepth.get()[0] > 0) {
+      return scope != null ? scope.getPrimaryConnection() : _connectionPool.getConnection();
+    }
+    return scope != null ? scope.getReadConnection() : borrowFromReplica();
+  }
+
+  private Connection borrowFromReplica() throws SQLException {
+    IConnectionPool replica = _replicaPools[_replicaPolicy.selectReplica(_replicaPools)];
+    try {
+      return replica.getConnection();
+    } catch (SQLException e) {
+      // A replica that's down or exhausted shouldn't fail reads that the primary can serve
+      return _connectionPool.getConnection();
+    }
+  }
+
+  /**
+   * Records that the current thread has just written to the primary, so that its reads go to the primary until the
+   * read-your-writes window has passed.  Writes made in a transaction are recorded when it commits.
+   */
+  public void recordWrite() {
+    if (_replicaPools.length > 0) {
+      _lastWrite.get()[0] = System.nanoTime();
+    }
+  }
+
+  /**
+   * Sends the current thread's reads to the primary, even outside the read-your-writes window, until the matching
+   * call to endPrimaryReads().  Calls can be nested.
+   */
+  public void beginPrimaryReads() {
+    if (_replicaPools.length > 0) {
+      _primaryReadDepth.get()[0]++;
+    }
+  }
+
+  public void endPrimaryReads() {
+    if (_replicaPools.length > 0) {
+      _primaryReadDepth.get()[0]--;
+    }
+  }
+
+  /**
+   * Records that a streaming select is about to read its results from the given connection, which was returned by
+   * connect() or connectForRead().  If it's a connection pinned by a request scope, statements run in the scope
+   * borrow a separate connection from the pool until finishStreaming() is called, since not every driver can run a
+   * statement on a connection that's still streaming a result.
+   *
+   * @return true if the connection was pinned, in which case finishStreaming() has to be called
+   */
+  public boolean startStreaming(Connection connection) {
+    if (connection instanceof PinnedConnection) {
+      ((PinnedConnection) connection)._openStreams++;
+      return true;
     } else {
-      return trans;
+      return false;
     }
   }
 
+  public void finishStreaming(Connection connection) {
+    ((PinnedConnection) connection)._openStreams--;
+  }
+
+  /**
+   * Returns when the current thread last wrote to the primary, as a System.nanoTime() value, or 0 if it hasn't.
+   */
+  public long getLastWrite() {
+    return _lastWrite.get()[0];
+  }
+
+  /**
+   * Replaces the time the current thread last wrote to the primary, so that work handed to another thread can
+   * follow the read-your-writes rule of the thread that handed it over.
+   *
+   * @return the time that was replaced, which should be restored once the work is done
+   */
+  public long setLastWrite(long lastWrite) {
+    long[] holder = _lastWrite.get();
+    long previous = holder[0];
+    holder[0] = lastWrite;
+    return previous;
+  }
+
+  @Override
+  public IRequestScope openRequestScope() {
+    final RequestScope scope = _requestScope.get();
+    if (scope == null) {
+      RequestScope newScope = new RequestScope();
+      _requestScope.set(newScope);
+      return newScope;
+    }
+
+    scope._depth++;
+    return new IRequestScope() {
+      private boolean _closed;
+
+      @Override
+      public void close() {
+        if (!_closed) {
+          _closed = true;
+          scope.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns how long each request scope kept its connections pinned, from the first statement run in the scope to
+   * the end of the scope.  Scopes that never ran a statement aren't recorded.
+   *
+   * @return the pinned time histogram
+   */
+  public LatencyHistogram getPinnedTime() {
+    return _pinnedTime;
+  }
+
+  private boolean isWithinReadYourWritesWindow() {
+    long lastWrite = _lastWrite.get()[0];
+    return lastWrite != 0 && System.nanoTime() - lastWrite < _readYourWritesNanos;
+  }
+
+  @Override
+  public ITransactionContext beginTransaction() throws SQLException {
+    // The transaction may be used from other threads, so it can't share the connection pinned by this thread's
+    // request scope
+    return new TransactionContext(_connectionPool.getConnection());
+  }
+
+  @Override
+  public ITransactionContext getCurrentTransaction() {
+    return _transaction.get();
+  }
+
   @Override
   public void startTransaction() throws SQLException {
     if (_transaction.get() != null) {
       throw new IllegalStateException("An existing thread-local transaction has already been opened");
     }
 
-    Connection conn = connect();
-    conn.setAutoCommit(false);
-    ConnectionWrapper wrapper = new ConnectionWrapper(conn);
-    _transaction.set(wrapper);
+    _transaction.set(new TransactionContext(connectOutsideTransaction()));
   }
 
   @Override
@@ -77,18 +276,56 @@ public class DBConnection implements IDBConnection {
     _transaction.get().commit();
   }
 
+  /**
+   * Registers an action to run after the thread-local transaction is next committed.  The action is discarded if the
+   * transaction ends without being committed.
+   *
+   * @param action the action to run
+   */
+  public void runAfterCommit(Runnable action) {
+    if (_transaction.get() == null) {
+      throw new IllegalStateException("No thread-local transaction has been opened");
+    }
+    _transaction.get().runAfterCommit(action);
+  }
+
   @Override
   public void endTransaction() throws SQLException {
-    if (_transaction.get() == null) {
+    TransactionContext trans = _transaction.get();
+    if (trans == null) {
       throw new IllegalStateException("No thread-local transaction has been opened");
     }
 
-    // TODO - AHK - This code is suspicious:  I don't believe that the connection will actually get closed here
-    Connection conn = _transaction.get();
-    conn.rollback();
-    conn.close();
-    _transaction.set(null);
-    conn.setAutoCommit(true);
+    _transaction.remove();
+    trans._identityMaps.remove();
+    trans.close();
+  }
+
+  @Override
+  public boolean isInTransaction() {
+    return _transaction.get() != null;
+  }
+
+  /**
+   * Indicates whether the current thread is bound to a transaction and still has a connection obtained from
+   * connect() open on it, so that no other thread can use the transaction until that connection is closed.
+   *
+   * @return true if the current thread is holding its transaction's connection
+   */
+  public boolean isHoldingTransactionConnection() {
+    TransactionContext trans = _transaction.get();
+    return trans != null && trans._lock.isHeldByCurrentThread();
+  }
+
+  /**
+   * Returns the identity map for the transaction the current thread is bound to, or null if the thread isn't bound to
+   * a transaction.
+   *
+   * @return the current transaction's identity map
+   */
+  public IdentityMap getTransactionIdentityMap() {
+    TransactionContext trans = _transaction.get();
+    return trans == null ? null : trans._identityMaps.get();
   }
 
   @Override
@@ -96,6 +333,39 @@ public class DBConnection implements IDBConnection {
     return _connectURL;
   }
 
+  /**
+   * Returns the pool that this connection borrows its physical connections from, whose gauges show how busy the
+   * pool is.
+   *
+   * @return the connection pool
+   */
+  public IConnectionPool getConnectionPool() {
+    return _connectionPool;
+  }
+
+  public ConnectionPoolConfig getConnectionPoolConfig() {
+    return _connectionPoolConfig;
+  }
+
+  /**
+   * Returns the pools of the read replicas declared in the .dbc file, in the order they're declared.
+   *
+   * @return the replica connection pools, which is empty if there are no replicas
+   */
+  public IConnectionPool[] getReplicaConnectionPools() {
+    return _replicaPools.clone();
+  }
+
+  /**
+   * Returns the hit, miss and eviction counters for the prepared statement caches attached to the pooled
+   * connections of this database.
+   *
+   * @return the statement cache statistics for this connection
+   */
+  public PreparedStatementCacheStats getStatementCacheStats() {
+    return _statementCacheStats;
+  }
+
   private static String getDriverName(String url) {
     String dbType = url.split(":")[1];
     if ("h2".equals(dbType)) {
@@ -107,7 +377,32 @@ public class DBConnection implements IDBConnection {
     return System.getProperty("db.driver." + dbType);
   }
 
-  private DataSource setupDataSource(String connectURI) {
+  /**
+   * Indicates whether the JDBC driver for the given URL reports one generated key per row when an insert is
+   * executed as a batch.  Some drivers, such as H2's, only report the last key.
+   *
+   * @param url the connection URL
+   * @return true if batched inserts can be relied on to return every generated key
+   */
+  public static boolean reportsGeneratedKeysForBatches(String url) {
+    String dbType = url.split(":")[1];
+    return "mysql".equals(dbType);
+  }
+
+  /**
+   * Indicates whether the JDBC driver for the given URL only streams a result set row by row when the statement's
+   * fetch size is Integer.MIN_VALUE.  MySQL's Connector/J treats any other fetch size as a hint it ignores, and reads
+   * the whole result into memory before returning the first row.
+   *
+   * @param url the connection URL
+   * @return true if streaming selects have to use a fetch size of Integer.MIN_VALUE
+   */
+  public static boolean streamsOnlyWithMinimumFetchSize(String url) {
+    String dbType = url.split(":")[1];
+    return "mysql".equals(dbType);
+  }
+
+  private IConnectionPool setupConnectionPool(String connectURI, ConnectionPoolConfig config) {
     // Ensure the JDBC driver class is loaded
 
     final IModule module = _typeLoader.getModule();
@@ -120,13 +415,273 @@ public class DBConnection implements IDBConnection {
 //      throw GosuExceptionUtil.forceThrow(e);
 //    }
 
-    GenericObjectPool connectionPool = new GenericObjectPool(null);
-    connectionPool.setMinIdle( 1 );
-    connectionPool.setMaxActive( 10 );
+    // Each physical connection gets its own prepared statement cache, which is closed along with the connection
+    // when the pool destroys it
+    final ConnectionFactory driverConnectionFactory = new DriverManagerConnectionFactory(connectURI,null);
+    final int statementCacheSize = Integer.getInteger(STATEMENT_CACHE_SIZE_PROPERTY, DEFAULT_STATEMENT_CACHE_SIZE);
+    ConnectionFactory connectionFactory = new ConnectionFactory() {
+      @Override
+      public Connection createConnection() throws SQLException {
+        Connection conn = driverConnectionFactory.createConnection();
+        if (statementCacheSize > 0) {
+          return new StatementCachingConnection(conn, statementCacheSize, _statementCacheStats);
+        } else {
+          return conn;
+        }
+      }
+    };
+    return createConnectionPool(connectionFactory, config);
+  }
+
+  private class RequestScope implements IRequestScope {
+    private int _depth = 1;
+    private PinnedConnection _primary;
+    private PinnedConnection _replica;
+    private long _pinnedSince;
+
+    private Connection getPrimaryConnection() throws SQLException {
+      if (_primary == null) {
+        _primary = new PinnedConnection(_connectionPool.getConnection());
+        startPinning();
+      } else if (_primary._openStreams > 0) {
+        return _connectionPool.getConnection();
+      }
+      return _primary;
+    }
+
+    private Connection getReadConnection() throws SQLException {
+      if (_replica == null) {
+        _replica = new PinnedConnection(borrowFromReplica());
+        startPinning();
+      } else if (_replica._openStreams > 0) {
+        return borrowFromReplica();
+      }
+      return _replica;
+    }
+
+    private void startPinning() {
+      if (_pinnedSince == 0) {
+        _pinnedSince = System.nanoTime();
+      }
+    }
+
+    @Override
+    public void close() {
+      if (_depth == 0 || --_depth > 0) {
+        return;
+      }
+      if (_primary != null && _transaction.get() != null) {
+        _depth++;
+        throw new IllegalStateException("A request scope can't be closed while a transaction is still open within it");
+      }
+
+      _requestScope.remove();
+      if (_pinnedSince != 0) {
+        _pinnedTime.record(System.nanoTime() - _pinnedSince);
+      }
+      try {
+        try {
+          if (_primary != null) {
+            _primary.release();
+          }
+        } finally {
+          if (_replica != null) {
+            _replica.release();
+          }
+        }
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private class TransactionContext implements ITransactionContext {
+    private final Connection _connection;
+    // Entities aren't thread-safe, so every thread bound to the transaction loads its own copies
+    private final ThreadLocal<IdentityMap> _identityMaps = new ThreadLocal<IdentityMap>() {
+      @Override
+      protected IdentityMap initialValue() {
+        return new IdentityMap();
+      }
+    };
+    private final List<Runnable> _afterCommitActions = new ArrayList<Runnable>();
+    // Held by whichever thread is currently using the connection, so that threads sharing the transaction take turns
+    private final ReentrantLock _lock = new ReentrantLock();
+    private volatile boolean _open = true;
+
+    private TransactionContext(Connection conn) throws SQLException {
+      conn.setAutoCommit(false);
+      _connection = new ConnectionWrapper(conn);
+    }
+
+    private Connection borrowConnection() {
+      _lock.lock();
+      if (!_open) {
+        _lock.unlock();
+        throw new IllegalStateException("The transaction has already been closed");
+      }
+      return new BorrowedConnection(_connection, _lock);
+    }
+
+    private void runAfterCommit(Runnable action) {
+      synchronized (_afterCommitActions) {
+        _afterCommitActions.add(action);
+      }
+    }
+
+    @Override
+    public <T> T run(Callable<T> work) {
+      TransactionContext previous = _transaction.get();
+      if (previous != null && previous != this) {
+        throw new IllegalStateException("The current thread is already bound to another transaction");
+      }
+      if (!_open) {
+        throw new IllegalStateException("The transaction has already been closed");
+      }
+
+      _transaction.set(this);
+      try {
+        return work.call();
+      } catch (Exception e) {
+        throw GosuExceptionUtil.forceThrow(e);
+      } finally {
+        if (previous == null) {
+          _transaction.remove();
+          _identityMaps.remove();
+        }
+      }
+    }
 
-    ConnectionFactory connectionFactory = new DriverManagerConnectionFactory(connectURI,null);
-    PoolableConnectionFactory poolableConnectionFactory = new PoolableConnectionFactory(connectionFactory,connectionPool,null,null,false,true);
+    @Override
+    public void commit() throws SQLException {
+      List<Runnable> afterCommitActions;
+      _lock.lock();
+      try {
+        if (!_open) {
+          throw new IllegalStateException("The transaction has already been closed");
+        }
+        _connection.commit();
+        synchronized (_afterCommitActions) {
+          afterCommitActions = new ArrayList<Runnable>(_afterCommitActions);
+          _afterCommitActions.clear();
+        }
+      } finally {
+        _lock.unlock();
+      }
 
-    return new PoolingDataSource(connectionPool);
+      recordWrite();
+      for (Runnable action : afterCommitActions) {
+        action.run();
+      }
+    }
+
+    @Override
+    public void close() throws SQLException {
+      _lock.lock();
+      try {
+        if (!_open) {
+          return;
+        }
+        _open = false;
+        synchronized (_afterCommitActions) {
+          _afterCommitActions.clear();
+        }
+        // The ConnectionWrapper only passes close() through once auto-commit is back on, so that's what actually
+        // returns the connection to the pool
+        try {
+          _connection.rollback();
+          _connection.setAutoCommit(true);
+        } finally {
+          _connection.close();
+        }
+      } finally {
+        _lock.unlock();
+      }
+    }
+
+    @Override
+    public boolean isOpen() {
+      return _open;
+    }
+  }
+
+  /**
+   * A transaction's connection as handed out to one caller, which holds the transaction's lock until it's closed.
+   */
+  private static class BorrowedConnection extends ConnectionWrapper {
+    private ReentrantLock _lock;
+
+    private BorrowedConnection(Connection conn, ReentrantLock lock) {
+      super(conn);
+      _lock = lock;
+    }
+
+    @Override
+    public void close() {
+      if (_lock != null) {
+        _lock.unlock();
+        _lock = null;
+      }
+    }
+  }
+
+  /**
+   * A connection pinned by a request scope, which ignores close() calls until the scope releases it.
+   */
+  private static class PinnedConnection extends ConnectionWrapper {
+    private int _openStreams;
+
+    private PinnedConnection(Connection conn) {
+      super(conn);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void release() throws SQLException {
+      getWrappedConnection().close();
+    }
+  }
+
+  private static IReplicaSelectionPolicy createReplicaPolicy(String policy) {
+    if (ReplicaConfig.ROUND_ROBIN_POLICY.equals(policy)) {
+      return new RoundRobinReplicaPolicy();
+    }
+    if (ReplicaConfig.LEAST_OUTSTANDING_POLICY.equals(policy)) {
+      return new LeastOutstandingReplicaPolicy();
+    }
+
+    Object policyObject;
+    try {
+      policyObject = Class.forName(policy).newInstance();
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Couldn't create the replica selection policy " + policy, e);
+    }
+    if (!(policyObject instanceof IReplicaSelectionPolicy)) {
+      throw new IllegalArgumentException("The replica policy " + policy + " should be round-robin, least-outstanding or the name of an IReplicaSelectionPolicy class");
+    }
+    return (IReplicaSelectionPolicy) policyObject;
+  }
+
+  private static IConnectionPool createConnectionPool(ConnectionFactory connectionFactory, ConnectionPoolConfig config) {
+    String implementation = config.getImplementation();
+    if (ConnectionPoolConfig.DBCP_IMPLEMENTATION.equals(implementation)) {
+      return new DbcpConnectionPool(connectionFactory, config);
+    }
+    if (ConnectionPoolConfig.AFFINITY_IMPLEMENTATION.equals(implementation)) {
+      return new AffinityConnectionPool(connectionFactory, config);
+    }
+
+    Object factory;
+    try {
+      factory = Class.forName(implementation).newInstance();
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Couldn't create the connection pool factory " + implementation, e);
+    }
+    if (!(factory instanceof IConnectionPoolFactory)) {
+      throw new IllegalArgumentException("The connection pool implementation " + implementation + " should be dbcp, affinity or the name of an IConnectionPoolFactory class");
+    }
+    return ((IConnectionPoolFactory) factory).createPool(connectionFactory, config);
   }
 }
@@ -0,0 +1,34 @@
+package tosa;
+
+import tosa.db.execution.PreparedStatementCache;
+import tosa.db.execution.PreparedStatementCacheStats;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Wraps a physical connection created by the pool so that a PreparedStatementCache can be attached to it.  The
+ * pool only calls close() on this object when the physical connection is actually being destroyed, so the cached
+ * statements live exactly as long as the pooled connection does.
+ *
+ * ${License}
+ */
+public class StatementCachingConnection extends ConnectionWrapper {
+
+  private final PreparedStatementCache _statementCache;
+
+  public StatementCachingConnection(Connection conn, int maxCachedStatements, PreparedStatementCacheStats stats) {
+    super(conn);
+    _statementCache = new PreparedStatementCache(conn, maxCachedStatements, stats);
+  }
+
+  public PreparedStatementCache getStatementCache() {
+    return _statementCache;
+  }
+
+  @Override
+  public void close() throws SQLException {
+    _statementCache.closeAll();
+    getWrappedConnection().close();
+  }
+}
@@ -0,0 +1,37 @@
+package tosa.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of executing a statement as a JDBC batch:  the update count for each row in the batch, plus any
+ * keys generated by the database.
+ *
+ * Update counts are exactly as reported by the driver, so they may be Statement.SUCCESS_NO_INFO.  Generated keys
+ * are in the order the driver returned them.  Not every driver reports a key for every row of a batch, so callers
+ * that need one key per row should check hasGeneratedKeyPerRow() before relying on them.
+ *
+ * ${License}
+ */
+public class BatchResult {
+
+  private final int[] _updateCounts;
+  private final List<Object> _generatedKeys;
+
+  public BatchResult(int[] updateCounts, List<Object> generatedKeys) {
+    _updateCounts = updateCounts;
+    _generatedKeys = Collections.unmodifiableList(generatedKeys);
+  }
+
+  public int[] getUpdateCounts() {
+    return _updateCounts;
+  }
+
+  public List<Object> getGeneratedKeys() {
+    return _generatedKeys;
+  }
+
+  public boolean hasGeneratedKeyPerRow() {
+    return _generatedKeys.size() == _updateCounts.length;
+  }
+}
@@ -0,0 +1,141 @@
+package tosa.api;
+
+import java.util.Properties;
+
+/**
+ * The connection pool settings for a database, read from the pool.* properties that can follow the connection URL
+ * in its .dbc file, for example:
+ *
+ * <pre>
+ * jdbc:mysql://localhost:3306/app?user=app
+ * pool.implementation=affinity
+ * pool.maxActive=20
+ * pool.maxWaitMillis=5000
+ * pool.validationQuery=SELECT 1
+ * pool.asyncMaxConcurrency=8
+ * </pre>
+ *
+ * Any setting that isn't given takes its default value.
+ *
+ * ${License}
+ */
+public class ConnectionPoolConfig {
+
+  public static final String IMPLEMENTATION_PROPERTY = "pool.implementation";
+  public static final String MAX_ACTIVE_PROPERTY = "pool.maxActive";
+  public static final String MIN_IDLE_PROPERTY = "pool.minIdle";
+  public static final String MAX_WAIT_MILLIS_PROPERTY = "pool.maxWaitMillis";
+  public static final String VALIDATION_QUERY_PROPERTY = "pool.validationQuery";
+  public static final String IDLE_TIMEOUT_MILLIS_PROPERTY = "pool.idleTimeoutMillis";
+  public static final String EVICTION_INTERVAL_MILLIS_PROPERTY = "pool.evictionIntervalMillis";
+  public static final String ASYNC_MAX_CONCURRENCY_PROPERTY = "pool.asyncMaxConcurrency";
+
+  public static final String DBCP_IMPLEMENTATION = "dbcp";
+  public static final String AFFINITY_IMPLEMENTATION = "affinity";
+
+  private final String _implementation;
+  private final int _maxActive;
+  private final int _minIdle;
+  private final long _maxWaitMillis;
+  private final String _validationQuery;
+  private final long _idleTimeoutMillis;
+  private final long _evictionIntervalMillis;
+  private final int _asyncMaxConcurrency;
+
+  /**
+   * Creates a config with every setting at its default value.
+   */
+  public ConnectionPoolConfig() {
+    this(new Properties());
+  }
+
+  public ConnectionPoolConfig(Properties properties) {
+    _implementation = properties.getProperty(IMPLEMENTATION_PROPERTY, DBCP_IMPLEMENTATION).trim();
+    _maxActive = (int) getLong(properties, MAX_ACTIVE_PROPERTY, 10, 1);
+    _minIdle = (int) getLong(properties, MIN_IDLE_PROPERTY, 1, 0);
+    _maxWaitMillis = getLong(properties, MAX_WAIT_MILLIS_PROPERTY, 30000, -1);
+    String validationQuery = properties.getProperty(VALIDATION_QUERY_PROPERTY);
+    _validationQuery = validationQuery == null || validationQuery.trim().length() == 0 ? null : validationQuery.trim();
+    _idleTimeoutMillis = getLong(properties, IDLE_TIMEOUT_MILLIS_PROPERTY, 0, 0);
+    _evictionIntervalMillis = getLong(properties, EVICTION_INTERVAL_MILLIS_PROPERTY, 0, 0);
+    _asyncMaxConcurrency = (int) getLong(properties, ASYNC_MAX_CONCURRENCY_PROPERTY, Math.max(1, _maxActive / 2), 1);
+  }
+
+  /**
+   * Returns "dbcp", "affinity" or the name of an IConnectionPoolFactory class.  The default is "dbcp".
+   */
+  public String getImplementation() {
+    return _implementation;
+  }
+
+  /**
+   * Returns the most connections that can be borrowed at once.  The default is 10.
+   */
+  public int getMaxActive() {
+    return _maxActive;
+  }
+
+  /**
+   * Returns the number of idle connections the pool opens up front and that idle eviction leaves open.  The default
+   * is 1.
+   */
+  public int getMinIdle() {
+    return _minIdle;
+  }
+
+  /**
+   * Returns how long to wait for a connection when the pool is exhausted:  -1 to wait indefinitely, or 0 to fail
+   * straight away without waiting.  The default is 30 seconds.
+   */
+  public long getMaxWaitMillis() {
+    return _maxWaitMillis;
+  }
+
+  /**
+   * Returns the query used to check idle connections before they're handed out, or null to hand them out
+   * unchecked.  There's no validation query by default.
+   */
+  public String getValidationQuery() {
+    return _validationQuery;
+  }
+
+  /**
+   * Returns how long a connection may sit idle before it's closed, or 0 to never close idle connections.  The
+   * default is 0.
+   */
+  public long getIdleTimeoutMillis() {
+    return _idleTimeoutMillis;
+  }
+
+  /**
+   * Returns how often to look for idle connections to close, or 0 to never look.  The default is 0.
+   */
+  public long getEvictionIntervalMillis() {
+    return _evictionIntervalMillis;
+  }
+
+  /**
+   * Returns the most async queries that may run at once.  The default is half of maxActive, so that async fan-outs
+   * leave connections free for synchronous callers.
+   */
+  public int getAsyncMaxConcurrency() {
+    return _asyncMaxConcurrency;
+  }
+
+  private static long getLong(Properties properties, String name, long defaultValue, long minValue) {
+    String value = properties.getProperty(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    long result;
+    try {
+      result = Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("The value of " + name + " must be a number, but was " + value);
+    }
+    if (result < minValue) {
+      throw new IllegalArgumentException("The value of " + name + " must be at least " + minValue + ", but was " + value);
+    }
+    return result;
+  }
+}
@@ -2,6 +2,7 @@ package tosa.api;
 
 import gw.lang.reflect.features.PropertyReference;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -22,7 +23,38 @@ public interface EntityCollection<T extends IDBObject> extends Iterable<T> {
 
   void remove(T element);
 
+  /**
+   * Determines whether the given element is in the collection.  This never queries the database once the
+   * collection has been loaded.
+   */
+  boolean contains(T element);
+
+  /**
+   * Determines whether the element with the given id is in the collection.  This never queries the database once
+   * the collection has been loaded.
+   */
+  boolean containsId(long id);
+
+  /**
+   * Adds all of the given elements, with far fewer queries than adding them one at a time.  Elements that are
+   * already in the collection are skipped, just as add() would.
+   */
+  void addAll(Collection<? extends T> elements);
+
+  /**
+   * Removes all of the given elements, with far fewer queries than removing them one at a time.  All of the elements
+   * must be in the collection; if any isn't, nothing is removed.
+   */
+  void removeAll(Collection<? extends T> elements);
+
   void load();
 
+  /**
+   * Returns a view of this collection for arrays that are too large to load into memory all at once.  The view
+   * fetches the elements in id order, pageSize elements at a time, and keeps at most maxResidentPages pages in
+   * memory; its size comes from a single count query.
+   */
+  EntityCollection<T> windowed(int pageSize, int maxResidentPages);
+
   void unload();
 }
@@ -0,0 +1,53 @@
+package tosa.api;
+
+import tosa.impl.LatencyHistogram;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A pool of physical connections to a database.  The pool used by a DBConnection is chosen with the
+ * pool.implementation setting in the .dbc file:  either one of the built-in pools, "dbcp" or "affinity", or the
+ * name of a class implementing IConnectionPoolFactory.
+ *
+ * Implementations are called from every thread that runs queries, so they must be thread-safe.
+ *
+ * ${License}
+ */
+public interface IConnectionPool {
+
+  /**
+   * Borrows a connection from the pool, waiting for one to be returned if the pool is exhausted.  Closing the
+   * returned connection returns it to the pool.
+   *
+   * @return a pooled connection
+   * @throws SQLException if a connection couldn't be opened, or none was returned within the configured wait
+   */
+  Connection getConnection() throws SQLException;
+
+  /**
+   * Returns the number of connections that are currently borrowed.
+   */
+  int getActiveCount();
+
+  /**
+   * Returns the number of open connections that are waiting in the pool to be borrowed.
+   */
+  int getIdleCount();
+
+  /**
+   * Returns the number of threads that are currently waiting to borrow a connection.
+   */
+  int getWaiterCount();
+
+  /**
+   * Returns the time taken by every call to getConnection(), including any time spent waiting.
+   */
+  LatencyHistogram getBorrowLatency();
+
+  /**
+   * Closes all of the idle connections and stops handing out new ones.  Borrowed connections are closed as they're
+   * returned.
+   */
+  void close() throws SQLException;
+}
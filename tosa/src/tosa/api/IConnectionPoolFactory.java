@@ -0,0 +1,20 @@
+package tosa.api;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+
+/**
+ * Creates custom connection pools.  Implementations need a public no-argument constructor, and are selected by
+ * setting pool.implementation in the .dbc file to the implementing class's name.
+ *
+ * ${License}
+ */
+public interface IConnectionPoolFactory {
+
+  /**
+   * @param connectionFactory opens the physical connections for the pool; the pool must close them when it
+   * discards them
+   * @param config the pool settings from the .dbc file
+   * @return the new pool
+   */
+  IConnectionPool createPool(ConnectionFactory connectionFactory, ConnectionPoolConfig config);
+}
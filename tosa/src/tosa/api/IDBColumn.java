@@ -22,6 +22,13 @@ public interface IDBColumn {
    */
   String getName();
 
+  /**
+   * Returns the name of this column quoted for use as an identifier in SQL statements.
+   *
+   * @return the quoted name of this column
+   */
+  String getQuotedName();
+
   /**
    * Indicates whether or not this column represents a foreign key to another table.
    *
@@ -22,6 +22,7 @@ public interface IDBColumnType {
   IType getGosuType();
   int getJdbcType();
   Object readFromResultSet(ResultSet resultSet, String name) throws SQLException;
+  Object readFromResultSet(ResultSet resultSet, int index) throws SQLException;
   void setParameter(PreparedStatement statement, int index, Object value) throws SQLException;
   // TODO - AHK - Validation
   // TODO - AHK - Constraints (length, scale, precision, fk constraints, unique indexes, etc.)
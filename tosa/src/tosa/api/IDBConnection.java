@@ -13,15 +13,53 @@ import java.sql.SQLException;
 public interface IDBConnection {
 
   /**
-   * Opens a connection to the database, or returns the existing thread-local transaction created by a previous
-   * call to startTransaction().  The Connection object will be pooled.  Currently DBCP is used for connection
-   * pooling, but the pooling mechanism and parameters will likely be more configurable in the future.
+   * Opens a connection to the database, or returns the connection of the transaction the current thread is bound to,
+   * either by a previous call to startTransaction() or by ITransactionContext.run().  A transaction's connection
+   * must still be closed when the caller is done with it, so that other threads bound to the transaction can use
+   * it, but closing it doesn't end the transaction.  The Connection object will be pooled, by the IConnectionPool configured with the
+   * pool.* settings in the .dbc file.
    *
    * @return a Connection to the database
    * @throws SQLException any SQLException thrown in the course of opening the connection
    */
   Connection connect() throws SQLException;
 
+  /**
+   * Opens a connection for running a query that doesn't write anything.  Inside a thread-local transaction this is
+   * the transaction's connection, just as for connect().  Otherwise, if the .dbc file declares read replicas, the
+   * connection comes from one of them, unless this thread has written to the database within the last
+   * replica.readYourWritesMillis; with no replicas it's the same as connect().
+   *
+   * @return a Connection to the database or one of its replicas
+   * @throws SQLException any SQLException thrown in the course of opening the connection
+   */
+  Connection connectForRead() throws SQLException;
+
+  /**
+   * Opens a request scope on the current thread, which makes all of the statements run until it's closed share a
+   * single pooled connection.
+   *
+   * @return the scope, which must be closed in a finally block
+   */
+  IRequestScope openRequestScope();
+
+  /**
+   * Begins a new transaction that isn't bound to any thread, on a connection of its own.  Work is done in the
+   * transaction by running it with ITransactionContext.run(), on as many threads as needed.
+   *
+   * @return the transaction, which must be closed in a finally block
+   * @throws SQLException any SQLException thrown in the course of opening the connection
+   */
+  ITransactionContext beginTransaction() throws SQLException;
+
+  /**
+   * Returns the transaction the current thread is bound to, whether it was started with startTransaction() or bound
+   * with ITransactionContext.run(), so that it can be passed on to other threads.
+   *
+   * @return the current transaction, or null if the thread isn't bound to one
+   */
+  ITransactionContext getCurrentTransaction();
+
   // TODO - AHK - Should these methods throw, or should they force-throw and not declare exceptions?
   /**
    * Sets up a new thread-local connection, which will be returned by the connect() method
@@ -29,7 +67,9 @@ public interface IDBConnection {
    * endTransaction() is called, regardless of calls to Connection.close().  This method should *always* be
    * used in a try/finally block that calls endTransaction().
    *
-   * This method will throw an IllegalStateException if a thread-local transaction has already been created.
+   * This method will throw an IllegalStateException if a thread-local transaction has already been created.  The
+   * transaction is an ITransactionContext bound to the current thread, so it can be shared with other threads with
+   * getCurrentTransaction().
    *
    * @throws SQLException any SQLException thrown by the underlying connection
    */
@@ -51,6 +91,14 @@ public interface IDBConnection {
    */
   void endTransaction() throws SQLException;
 
+  /**
+   * Indicates whether the current thread has a transaction open, i.e. whether startTransaction() has been called
+   * without a matching call to endTransaction(), or the thread is running work bound to an ITransactionContext.
+   *
+   * @return true if a thread-local transaction is open
+   */
+  boolean isInTransaction();
+
   // TODO - AHK - This should maybe be URI instead of URL
   String getConnectionURL();
 }
@@ -1,6 +1,8 @@
 package tosa.api;
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /**
  * Created by IntelliJ IDEA.
@@ -20,8 +22,86 @@ public interface IDBExecutionKernel {
 
   <T> List<T> executeSelect(String sql, IQueryResultProcessor<T> resultProcessor, IPreparedStatementParameter... arguments);
 
+  /**
+   * Runs executeSelect() in the background; see submit() for where it runs.
+   */
+  <T> Future<List<T>> executeSelectAsync(String sql, IQueryResultProcessor<T> resultProcessor, IPreparedStatementParameter... arguments);
+
+  /**
+   * Runs executeInsert() in the background; see submit() for where it runs.
+   */
+  Future<Object> executeInsertAsync(String sql, IPreparedStatementParameter... arguments);
+
+  /**
+   * Runs executeUpdate() in the background; see submit() for where it runs.
+   */
+  Future<Void> executeUpdateAsync(String sql, IPreparedStatementParameter... arguments);
+
+  /**
+   * Runs some database work in the background, on the kernel's async executor, which bounds how many pieces of work
+   * run at once by the pool.asyncMaxConcurrency setting.  The work runs on another thread, so it doesn't see the
+   * calling thread's request scope or unit of work, but it does read from the primary for as long as the calling
+   * thread would, so it sees the calling thread's recent writes even when there are read replicas.
+   *
+   * If the calling thread is bound to a transaction, the work is bound to the same transaction while it runs, so it
+   * reads the transaction's snapshot and its writes are part of the transaction; the statements of all of the
+   * threads bound to a transaction are serialized on its connection.  If the calling thread still has the
+   * transaction's connection open, the work runs on the calling thread before this method returns, since no other
+   * thread could use the transaction until the caller lets go of it.
+   *
+   * @param work the work to run
+   * @return a Future for the result of the work
+   */
+  <T> Future<T> submit(Callable<T> work);
+
+  /**
+   * Executes the given select using a forward-only, read-only ResultSet and hands each row to the visitor as soon
+   * as it has been read, rather than collecting the rows into a list.  The fetch size is passed through to the
+   * JDBC driver as a hint for how many rows to pull from the server at a time.  MySQL's driver ignores that hint and
+   * buffers the whole result unless the fetch size is Integer.MIN_VALUE, so for MySQL connection URLs the fetch size
+   * given here is replaced with Integer.MIN_VALUE and rows are always streamed one at a time.  The
+   * statement and connection are released before this method returns, whether it completes normally, the visitor
+   * stops early, or an exception is thrown.
+   *
+   * @param sql the select statement to execute
+   * @param resultProcessor the processor used to turn each row into an object
+   * @param visitor the visitor that will receive each row object in turn
+   * @param fetchSize the fetch size hint to give the driver, or 0 to use the driver's default
+   * @param arguments the statement parameters
+   */
+  <T> void executeSelect(String sql, IQueryResultProcessor<T> resultProcessor, IQueryResultVisitor<? super T> visitor, int fetchSize, IPreparedStatementParameter... arguments);
+
   void executeUpdate(String sql, IPreparedStatementParameter... arguments);
 
   void executeDelete(String sql, IPreparedStatementParameter... arguments);
 
+  /**
+   * Executes the same insert statement once for each set of arguments, using JDBC batching.  The rows are sent
+   * in chunks whose size is determined by the kernel's configured batch size, all on a single connection.  Unless
+   * a transaction is open, each chunk is committed as it's executed.
+   *
+   * @param sql the insert statement
+   * @param argumentSets one array of statement parameters per row to insert
+   * @return the per-row update counts, along with whatever generated keys the driver reported
+   */
+  BatchResult executeInsertBatch(String sql, List<IPreparedStatementParameter[]> argumentSets);
+
+  /**
+   * Executes the same update statement once for each set of arguments, using JDBC batching.
+   *
+   * @param sql the update statement
+   * @param argumentSets one array of statement parameters per execution
+   * @return the update count for each execution, in order
+   */
+  int[] executeUpdateBatch(String sql, List<IPreparedStatementParameter[]> argumentSets);
+
+  /**
+   * Executes the same delete statement once for each set of arguments, using JDBC batching.
+   *
+   * @param sql the delete statement
+   * @param argumentSets one array of statement parameters per execution
+   * @return the update count for each execution, in order
+   */
+  int[] executeDeleteBatch(String sql, List<IPreparedStatementParameter[]> argumentSets);
+
 }
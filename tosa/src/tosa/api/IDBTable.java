@@ -26,6 +26,13 @@ public interface IDBTable {
    */
   String getName();
 
+  /**
+   * Returns the name of this table quoted for use as an identifier in SQL statements.
+   *
+   * @return the quoted name of this table
+   */
+  String getQuotedName();
+
   /**
    * Returns the IDBColumn with the given case-sensitive name, if any such column exists on this table.
    * The name is considered to be case-sensitive.
@@ -36,12 +43,23 @@ public interface IDBTable {
   IDBColumn getColumn(String name);
 
   /**
-   * Returns a Collection containing all of the columns on this table.  The returned collection is unmodifiable.
+   * Returns a Collection containing all of the columns on this table.  The returned collection is unmodifiable,
+   * and iterates over the columns in ordinal order.
    *
    * @return a Collection of all IDBColumns on this table
    */
   Collection<? extends IDBColumn> getColumns();
 
+  /**
+   * Returns the ordinal of the column with the given case-sensitive name.  Ordinals are fixed for the lifetime of
+   * the table and run from 0 to the number of columns minus one, in the order the columns are returned from
+   * getColumns(), so they can be used to index per-row storage.
+   *
+   * @param name the name of the column
+   * @return the ordinal of the column, or -1 if there is no such column
+   */
+  int getColumnOrdinal(String name);
+
   // TODO - AHK - Do we really need this?
   Collection<? extends IDBColumn> getIncomingFKs();
 
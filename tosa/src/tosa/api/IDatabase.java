@@ -65,6 +65,37 @@ public interface IDatabase {
    */
   IDBUpgrader getDBUpgrader();
 
+  /**
+   * Starts a new unit of work for this database on the current thread.  This method will throw an
+   * IllegalStateException if the thread already has an open unit of work for this database.
+   *
+   * @return the new unit of work
+   */
+  IUnitOfWork startUnitOfWork();
+
+  /**
+   * Returns the unit of work currently open for this database on the current thread, if any.
+   *
+   * @return the current unit of work, or null if there isn't one
+   */
+  IUnitOfWork getCurrentUnitOfWork();
+
+  /**
+   * Installs the given instrumentation, which will be told about every query run against this database from then
+   * on.  Passing null removes any instrumentation that's installed, after which queries carry no instrumentation
+   * overhead beyond checking for it.
+   *
+   * @param instrumentation the instrumentation, or null for none
+   */
+  void setQueryInstrumentation(IQueryInstrumentation instrumentation);
+
+  /**
+   * Returns the instrumentation installed on this database, if any.
+   *
+   * @return the installed instrumentation, or null if there isn't any
+   */
+  IQueryInstrumentation getQueryInstrumentation();
+
   // TODO - AHK - Remove this from IDatabase and move it to IDBColumn or IDBColumnType
   IPreparedStatementParameter wrapParameter(Object value, IDBColumn column);
 
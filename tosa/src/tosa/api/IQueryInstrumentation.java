@@ -0,0 +1,22 @@
+package tosa.api;
+
+/**
+ * Callback interface for observing the queries run against a database, installed with
+ * IDatabase.setQueryInstrumentation().  When no instrumentation is installed, queries pay nothing more than a
+ * single volatile read, so implementations should be equally careful to do as little as possible on every call:
+ * in particular the SQL and parameters are passed as-is, and should only be formatted (with
+ * QueryExecution.describe()) if they're actually kept.
+ *
+ * Implementations are called from every thread that runs queries, so they must be thread-safe.
+ *
+ * ${License}
+ */
+public interface IQueryInstrumentation {
+
+  /**
+   * Called after a statement or batch has run, whether or not it succeeded.
+   *
+   * @param execution the details of the statement
+   */
+  void queryExecuted(QueryExecution execution);
+}
@@ -0,0 +1,20 @@
+package tosa.api;
+
+/**
+ * Callback interface for consuming query results one row at a time, as they're read off of a forward-only
+ * ResultSet.  Used with the streaming variant of IDBExecutionKernel.executeSelect() so that large result sets
+ * never have to be held in memory all at once.
+ *
+ * @param <T> the type of object produced for each row by the associated IQueryResultProcessor
+ */
+public interface IQueryResultVisitor<T> {
+
+  /**
+   * Called once for each row in the result set, in order.  The row object should not be assumed to remain
+   * valid beyond what the IQueryResultProcessor that built it guarantees.
+   *
+   * @param row the object constructed from the current row
+   * @return true to continue on to the next row, false to stop reading results and release the underlying statement
+   */
+  boolean visit(T row);
+}
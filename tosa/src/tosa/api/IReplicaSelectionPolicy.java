@@ -0,0 +1,20 @@
+package tosa.api;
+
+/**
+ * Chooses which read replica serves each read that's routed away from the primary.  The policy is chosen with the
+ * replica.policy setting in the .dbc file:  either one of the built-in policies, "round-robin" or
+ * "least-outstanding", or the name of a class implementing this interface with a public no-argument constructor.
+ *
+ * Implementations are called from every thread that runs queries, so they must be thread-safe.
+ *
+ * ${License}
+ */
+public interface IReplicaSelectionPolicy {
+
+  /**
+   * @param replicas the connection pools of the replicas, in the order they're declared in the .dbc file; there's
+   * always at least one
+   * @return the index of the replica to read from
+   */
+  int selectReplica(IConnectionPool[] replicas);
+}
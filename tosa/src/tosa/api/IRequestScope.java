@@ -0,0 +1,38 @@
+package tosa.api;
+
+/**
+ * A request scope pins pooled connections to the current thread, so that every statement run through the
+ * IDBConnection outside a transaction uses the same physical connection, instead of borrowing one from the pool and
+ * returning it for each statement.  The connection is only borrowed when the first statement runs, and it's
+ * returned to the pool when the scope is closed.  Statements still run in auto-commit mode, exactly as they do
+ * outside a scope.  If the database has read replicas, reads are pinned to a single replica connection in the same
+ * way.
+ *
+ * While a streaming select is still reading its results from a pinned connection, statements nested inside it,
+ * such as the loads made by the visitor, borrow a separate connection from the pool instead, since drivers such as
+ * MySQL's can't run another statement on a connection until a streamed result has been read to the end.
+ *
+ * Opening a scope while one is already open on the thread joins the existing scope, which stays open until the
+ * outermost one is closed.  A scope should always be closed in a finally block, after any transaction opened
+ * within it has ended:
+ *
+ * <pre>
+ *   IRequestScope scope = database.getConnection().openRequestScope();
+ *   try {
+ *     ...
+ *   } finally {
+ *     scope.close();
+ *   }
+ * </pre>
+ *
+ * Units of work open a request scope for as long as they're open.
+ *
+ * ${License}
+ */
+public interface IRequestScope {
+
+  /**
+   * Ends this scope, returning the pinned connections to their pools if this is the outermost scope on the thread.
+   */
+  void close();
+}
@@ -0,0 +1,68 @@
+package tosa.api;
+
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+
+/**
+ * A transaction context is an open database transaction that isn't tied to any particular thread:  it owns the
+ * transaction's connection, and it can be handed to other threads, which bind to it with run() for as long as
+ * they're doing work in the transaction.  While a thread is bound, everything it does through the
+ * database, such as finders, update() and delete() on entities and loading collections, happens within the
+ * transaction, exactly as it would on a thread that called IDBConnection.startTransaction().
+ *
+ * Several threads can be bound to the same context at once, so that work handed to other threads sees the same
+ * snapshot and commits or rolls back with the rest of the transaction.  This doesn't make anything faster:  the
+ * threads share the transaction's single connection, so their statements are serialized on it, one at a time, and
+ * every connection obtained from IDBConnection.connect() while bound has to be closed before another thread can use
+ * the transaction.
+ *
+ * Entities aren't thread-safe, so each thread gets an identity map of its own, which lasts until the thread is
+ * unbound again; two threads that load the same row get different objects, and entities shouldn't be passed from
+ * one bound thread to another.
+ *
+ * <pre>
+ *   ITransactionContext transaction = database.getConnection().beginTransaction();
+ *   try {
+ *     ...
+ *     transaction.commit();
+ *   } finally {
+ *     transaction.close();
+ *   }
+ * </pre>
+ *
+ * ${License}
+ */
+public interface ITransactionContext {
+
+  /**
+   * Runs the given work on the calling thread, bound to this transaction.  The thread is unbound again when the work
+   * finishes.  Running work bound to the transaction the thread is already bound to just runs it; a thread can't be
+   * bound to two different transactions at once.
+   *
+   * @param work the work to run
+   * @return the result of the work
+   */
+  <T> T run(Callable<T> work);
+
+  /**
+   * Commits the transaction, which stays open for further work.
+   *
+   * @throws SQLException any SQLException thrown by the underlying connection
+   */
+  void commit() throws SQLException;
+
+  /**
+   * Rolls back anything that hasn't been committed and releases the transaction's connection.  Closing a transaction
+   * that has already been closed does nothing.
+   *
+   * @throws SQLException any SQLException thrown by the underlying connection
+   */
+  void close() throws SQLException;
+
+  /**
+   * Indicates whether the transaction is still open, i.e. whether close() hasn't been called yet.
+   *
+   * @return true if the transaction is open
+   */
+  boolean isOpen();
+}
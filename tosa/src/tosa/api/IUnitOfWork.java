@@ -0,0 +1,52 @@
+package tosa.api;
+
+/**
+ * A unit of work collects the writes made to entities of a single database on the current thread, rather than
+ * sending each one to the database as it happens.  While a unit of work is open, IDBObject.update() and
+ * IDBObject.delete(), as well as the add and remove methods of EntityCollection, only record the change.  Calling
+ * flush() then writes all of the recorded changes in a single transaction, grouping statements of the same shape
+ * into JDBC batches and ordering them so that rows are inserted before anything that references them, and deleted
+ * after anything that references them.
+ *
+ * A unit of work also holds an IRequestScope open, so every statement run on the thread while it's open, including
+ * the flush, shares a single pooled connection.
+ *
+ * Queries issued while a unit of work is open do not see unflushed changes, so flush() should be called before
+ * querying for anything that depends on them.  A unit of work should always be closed in a finally block:
+ *
+ * <pre>
+ *   IUnitOfWork unitOfWork = database.startUnitOfWork();
+ *   try {
+ *     ...
+ *     unitOfWork.flush();
+ *   } finally {
+ *     unitOfWork.close();
+ *   }
+ * </pre>
+ *
+ * ${License}
+ */
+public interface IUnitOfWork {
+
+  /**
+   * Writes all recorded changes to the database.  If the thread already has a transaction open on the database's
+   * IDBConnection, the changes are written as part of that transaction and it's up to the caller to commit it;
+   * otherwise a transaction is opened and committed for the duration of the flush.  If the flush fails, everything
+   * it wrote is rolled back, either with the transaction it opened or to a savepoint set at the start of the flush
+   * when it joined the caller's transaction, and the recorded changes are retained so that the flush can be retried.
+   */
+  void flush();
+
+  /**
+   * Indicates whether any changes have been recorded since the unit of work was started or last flushed.
+   *
+   * @return true if there are unflushed changes
+   */
+  boolean hasPendingChanges();
+
+  /**
+   * Ends this unit of work, discarding any changes that have not been flushed.  The in-memory state of the entities
+   * involved is left as-is.
+   */
+  void close();
+}
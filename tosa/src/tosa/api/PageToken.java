@@ -0,0 +1,51 @@
+package tosa.api;
+
+import java.io.Serializable;
+
+/**
+ * Marks where a page of keyset-paginated results ended, so that the next page can be found with a
+ * "comes after (last sort value, last id)" predicate instead of an OFFSET, which makes every page equally cheap to
+ * fetch no matter how deep it is.  Tokens are returned by ResultPage.getNextPageToken() and should be treated as
+ * opaque; a token can only be passed back to a query with the same sort column and direction as the one that
+ * produced it.
+ *
+ * ${License}
+ */
+public final class PageToken implements Serializable {
+
+  private final String _sortColumnName;
+  private final boolean _ascending;
+  private final Object _lastSortValue;
+  private final long _lastId;
+
+  public PageToken(String sortColumnName, boolean ascending, Object lastSortValue, long lastId) {
+    _sortColumnName = sortColumnName;
+    _ascending = ascending;
+    _lastSortValue = lastSortValue;
+    _lastId = lastId;
+  }
+
+  /**
+   * @return the name of the column the results are sorted by, or null if they're only sorted by id
+   */
+  public String getSortColumnName() {
+    return _sortColumnName;
+  }
+
+  public boolean isAscending() {
+    return _ascending;
+  }
+
+  public Object getLastSortValue() {
+    return _lastSortValue;
+  }
+
+  public long getLastId() {
+    return _lastId;
+  }
+
+  @Override
+  public String toString() {
+    return "PageToken{" + (_sortColumnName == null ? "" : _sortColumnName + (_ascending ? " ASC" : " DESC") + " after " + _lastSortValue + ", ") + "id after " + _lastId + "}";
+  }
+}
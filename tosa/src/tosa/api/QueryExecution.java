@@ -0,0 +1,167 @@
+package tosa.api;
+
+import java.util.Arrays;
+
+/**
+ * Describes a single statement, or batch of statements, run against a database, as reported to the database's
+ * IQueryInstrumentation.  Executions are only created while some instrumentation is installed.
+ *
+ * The execution for the statement that's currently running is visible to the execution kernel through current(), so
+ * that details such as the time spent waiting for a connection can be attributed to the statement.  The setters
+ * are for the query executors and the kernel; instrumentation should treat executions as read-only.
+ *
+ * ${License}
+ */
+public class QueryExecution {
+
+  private static final ThreadLocal<QueryExecution> CURRENT = new ThreadLocal<QueryExecution>();
+
+  private final IQueryInstrumentation _instrumentation;
+  private final String _profilerTag;
+  private final String _sql;
+  private final IPreparedStatementParameter[] _parameters;
+  private final int _batchSize;
+  private final long _startNanos;
+  private QueryExecution _enclosing;
+  private int _rowCount = -1;
+  private int _rowsHydrated;
+  private long _connectionWaitNanos;
+  private long _elapsedNanos;
+  private boolean _succeeded;
+
+  private QueryExecution(IQueryInstrumentation instrumentation, String profilerTag, String sql, IPreparedStatementParameter[] parameters, int batchSize) {
+    _instrumentation = instrumentation;
+    _profilerTag = profilerTag;
+    _sql = sql;
+    _parameters = parameters;
+    _batchSize = batchSize;
+    _startNanos = System.nanoTime();
+  }
+
+  /**
+   * Starts timing a single statement, if the database has any instrumentation installed.  Every non-null execution
+   * returned from here must be passed to finish(), normally in a finally block.
+   *
+   * @return the new execution, or null if there's no instrumentation to report it to
+   */
+  public static QueryExecution start(IDatabase db, String profilerTag, String sql, IPreparedStatementParameter[] parameters) {
+    IQueryInstrumentation instrumentation = db.getQueryInstrumentation();
+    return instrumentation == null ? null : push(new QueryExecution(instrumentation, profilerTag, sql, parameters, 0));
+  }
+
+  /**
+   * Starts timing a batch of statements, if the database has any instrumentation installed.
+   *
+   * @return the new execution, or null if there's no instrumentation to report it to
+   */
+  public static QueryExecution startBatch(IDatabase db, String profilerTag, String sql, int batchSize) {
+    IQueryInstrumentation instrumentation = db.getQueryInstrumentation();
+    return instrumentation == null ? null : push(new QueryExecution(instrumentation, profilerTag, sql, null, batchSize));
+  }
+
+  /**
+   * Stops timing the given execution and reports it to the instrumentation.  Does nothing if the execution is null.
+   */
+  public static void finish(QueryExecution execution) {
+    if (execution != null) {
+      execution._elapsedNanos = System.nanoTime() - execution._startNanos;
+      if (execution._enclosing != null) {
+        CURRENT.set(execution._enclosing);
+      } else {
+        CURRENT.remove();
+      }
+      execution._instrumentation.queryExecuted(execution);
+    }
+  }
+
+  /**
+   * Returns the execution for the statement currently running on this thread, or null if it isn't being
+   * instrumented.  To keep uninstrumented queries free of thread-local lookups, callers should first check that
+   * the database has instrumentation installed.
+   */
+  public static QueryExecution current() {
+    return CURRENT.get();
+  }
+
+  private static QueryExecution push(QueryExecution execution) {
+    execution._enclosing = CURRENT.get();
+    CURRENT.set(execution);
+    return execution;
+  }
+
+  public String getProfilerTag() {
+    return _profilerTag;
+  }
+
+  public String getSql() {
+    return _sql;
+  }
+
+  /**
+   * Returns the parameters of a single statement, or null for a batch.
+   */
+  public IPreparedStatementParameter[] getParameters() {
+    return _parameters;
+  }
+
+  public boolean isBatch() {
+    return _parameters == null;
+  }
+
+  /**
+   * Returns the number of parameter sets in a batch, or 0 for a single statement.
+   */
+  public int getBatchSize() {
+    return _batchSize;
+  }
+
+  /**
+   * Returns the number of rows a query returned, or -1 if the statement wasn't a query or didn't complete.
+   */
+  public int getRowCount() {
+    return _rowCount;
+  }
+
+  public void setRowCount(int rowCount) {
+    _rowCount = rowCount;
+  }
+
+  /**
+   * Returns the number of entities that were built from the rows returned, which can be fewer than the rows
+   * themselves when some of them were already loaded in the current unit of work.
+   */
+  public int getRowsHydrated() {
+    return _rowsHydrated;
+  }
+
+  public void setRowsHydrated(int rowsHydrated) {
+    _rowsHydrated = rowsHydrated;
+  }
+
+  public long getConnectionWaitNanos() {
+    return _connectionWaitNanos;
+  }
+
+  public void addConnectionWaitNanos(long nanos) {
+    _connectionWaitNanos += nanos;
+  }
+
+  public long getElapsedNanos() {
+    return _elapsedNanos;
+  }
+
+  public boolean isSucceeded() {
+    return _succeeded;
+  }
+
+  public void markSucceeded() {
+    _succeeded = true;
+  }
+
+  /**
+   * Formats the statement and its parameters, or the size of the batch, for logging.
+   */
+  public String describe() {
+    return _sql + (isBatch() ? " (" + _batchSize + " rows)" : " (" + Arrays.asList(_parameters) + ")");
+  }
+}
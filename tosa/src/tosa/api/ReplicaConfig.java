@@ -0,0 +1,112 @@
+package tosa.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The read replicas for a database, read from the replica.* properties that can follow the connection URL in its
+ * .dbc file, for example:
+ *
+ * <pre>
+ * jdbc:mysql://primary:3306/app?user=app
+ * replica.url.1=jdbc:mysql://replica1:3306/app?user=app
+ * replica.url.2=jdbc:mysql://replica2:3306/app?user=app
+ * replica.policy=least-outstanding
+ * replica.readYourWritesMillis=2000
+ * </pre>
+ *
+ * Replicas are ordered by the number at the end of their property names, and each one gets its own connection pool with the
+ * same pool.* settings as the primary.
+ *
+ * ${License}
+ */
+public class ReplicaConfig {
+
+  public static final String URL_PROPERTY_PREFIX = "replica.url.";
+  public static final String POLICY_PROPERTY = "replica.policy";
+  public static final String READ_YOUR_WRITES_MILLIS_PROPERTY = "replica.readYourWritesMillis";
+
+  public static final String ROUND_ROBIN_POLICY = "round-robin";
+  public static final String LEAST_OUTSTANDING_POLICY = "least-outstanding";
+
+  private final List<String> _urls;
+  private final String _policy;
+  private final long _readYourWritesMillis;
+
+  /**
+   * Creates a config with no replicas.
+   */
+  public ReplicaConfig() {
+    this(new Properties());
+  }
+
+  public ReplicaConfig(Properties properties) {
+    List<String> names = new ArrayList<String>();
+    for (String name : properties.stringPropertyNames()) {
+      if (name.startsWith(URL_PROPERTY_PREFIX)) {
+        replicaNumber(name);
+        names.add(name);
+      }
+    }
+    // Sort by number rather than by name, so that replica.url.10 comes after replica.url.9
+    Collections.sort(names, new Comparator<String>() {
+      @Override
+      public int compare(String name1, String name2) {
+        long number1 = replicaNumber(name1);
+        long number2 = replicaNumber(name2);
+        return number1 < number2 ? -1 : (number1 == number2 ? 0 : 1);
+      }
+    });
+    List<String> urls = new ArrayList<String>();
+    for (String name : names) {
+      urls.add(properties.getProperty(name).trim());
+    }
+    _urls = Collections.unmodifiableList(urls);
+    _policy = properties.getProperty(POLICY_PROPERTY, ROUND_ROBIN_POLICY).trim();
+
+    String readYourWritesMillis = properties.getProperty(READ_YOUR_WRITES_MILLIS_PROPERTY, "1000").trim();
+    try {
+      _readYourWritesMillis = Long.parseLong(readYourWritesMillis);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("The value of " + READ_YOUR_WRITES_MILLIS_PROPERTY + " must be a number, but was " + readYourWritesMillis);
+    }
+    if (_readYourWritesMillis < 0) {
+      throw new IllegalArgumentException("The value of " + READ_YOUR_WRITES_MILLIS_PROPERTY + " must be at least 0, but was " + readYourWritesMillis);
+    }
+  }
+
+  private static long replicaNumber(String name) {
+    String suffix = name.substring(URL_PROPERTY_PREFIX.length());
+    try {
+      return Long.parseLong(suffix);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Replica URLs must be numbered, as in " + URL_PROPERTY_PREFIX + "1, but found " + name);
+    }
+  }
+
+  /**
+   * Returns the connection URLs of the replicas, which is empty if all reads should go to the primary.
+   */
+  public List<String> getUrls() {
+    return _urls;
+  }
+
+  /**
+   * Returns "round-robin", "least-outstanding" or the name of an IReplicaSelectionPolicy class.  The default is
+   * "round-robin".
+   */
+  public String getPolicy() {
+    return _policy;
+  }
+
+  /**
+   * Returns how long a thread keeps reading from the primary after it writes, so that it sees its own writes even
+   * while the replicas are catching up.  The default is one second.
+   */
+  public long getReadYourWritesMillis() {
+    return _readYourWritesMillis;
+  }
+}
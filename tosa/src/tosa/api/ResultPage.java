@@ -0,0 +1,35 @@
+package tosa.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of keyset-paginated results, along with the token for fetching the page after it.
+ *
+ * ${License}
+ */
+public class ResultPage<T> {
+
+  private final List<T> _results;
+  private final PageToken _nextPageToken;
+
+  public ResultPage(List<T> results, PageToken nextPageToken) {
+    _results = Collections.unmodifiableList(results);
+    _nextPageToken = nextPageToken;
+  }
+
+  public List<T> getResults() {
+    return _results;
+  }
+
+  /**
+   * @return the token to pass in to get the next page, or null if this is the last page
+   */
+  public PageToken getNextPageToken() {
+    return _nextPageToken;
+  }
+
+  public boolean hasNextPage() {
+    return _nextPageToken != null;
+  }
+}
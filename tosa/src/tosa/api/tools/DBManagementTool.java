@@ -9,6 +9,8 @@ import gw.util.GosuExceptionUtil;
 import tosa.DBConnection;
 import tosa.api.DBLocator;
 import tosa.api.IDatabase;
+import tosa.dbmd.DatabaseImpl;
+import tosa.impl.QueryMetricsRegistry;
 import tosa.loader.DBTypeLoader;
 
 import java.sql.Connection;
@@ -92,6 +94,22 @@ public class DBManagementTool {
     createDatabase(db);
   }
 
+  public static String dumpQueryMetrics() {
+    return dumpQueryMetrics(DBLocator.getDatabase());
+  }
+
+  public static String dumpQueryMetrics(String packageName) {
+    return dumpQueryMetrics(DBLocator.getDatabase(packageName));
+  }
+
+  private static String dumpQueryMetrics(IDatabase db) {
+    QueryMetricsRegistry registry = db instanceof DatabaseImpl ? ((DatabaseImpl) db).getQueryMetrics() : null;
+    if (registry == null) {
+      return "Query metrics are not enabled for " + db.getNamespace();
+    }
+    return registry.dump();
+  }
+
   private static DBSpecificManagementTool getDBSpecificTool(String connectionURL) {
     String[] urlParts = connectionURL.split(":");
     String dbType = urlParts[1];
@@ -0,0 +1,106 @@
+package tosa.db.execution;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs queries in the background for the async methods of IDBExecutionKernel and the finders.  At most
+ * maxConcurrency queries run at once, which should be less than the size of the connection pool, so that a wide
+ * fan-out of async queries waits here rather than exhausting the pool and starving synchronous callers.  The
+ * kernel takes the limit from the pool.asyncMaxConcurrency setting, which defaults to half the pool.
+ *
+ * By default the queries run on a fixed pool of maxConcurrency daemon threads with a bounded queue; once the queue
+ * is full, the submitting thread runs the query itself, which slows down whoever is producing the work.  If the
+ * db.async.virtualThreads system property is true and the JVM supports virtual threads, every query gets its own
+ * virtual thread instead, and only the concurrency limit applies.  Any other ExecutorService can also be supplied.
+ *
+ * ${License}
+ */
+public class AsyncQueryExecutor {
+
+  public static final String VIRTUAL_THREADS_PROPERTY = "db.async.virtualThreads";
+
+  private static final int QUEUED_TASKS_PER_THREAD = 32;
+
+  private final ExecutorService _executor;
+  private final Semaphore _permits;
+
+  public AsyncQueryExecutor(int maxConcurrency) {
+    this(createExecutor(maxConcurrency), maxConcurrency);
+  }
+
+  /**
+   * @param executor the executor to run the queries on
+   * @param maxConcurrency the most queries that may run at once, however many threads the executor has
+   */
+  public AsyncQueryExecutor(ExecutorService executor, int maxConcurrency) {
+    if (maxConcurrency < 1) {
+      throw new IllegalArgumentException("The maximum concurrency must be at least 1, but was " + maxConcurrency);
+    }
+    _executor = executor;
+    _permits = new Semaphore(maxConcurrency);
+  }
+
+  public <T> Future<T> submit(final Callable<T> work) {
+    return _executor.submit(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        _permits.acquire();
+        try {
+          return work.call();
+        } finally {
+          _permits.release();
+        }
+      }
+    });
+  }
+
+  /**
+   * Stops accepting new queries; queries that have already been submitted still run.
+   */
+  public void shutdown() {
+    _executor.shutdown();
+  }
+
+  private static ExecutorService createExecutor(int maxConcurrency) {
+    if (Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY)) {
+      ExecutorService virtualThreadExecutor = createVirtualThreadExecutor();
+      if (virtualThreadExecutor != null) {
+        return virtualThreadExecutor;
+      }
+    }
+
+    final AtomicInteger threadNumber = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(maxConcurrency * QUEUED_TASKS_PER_THREAD),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Tosa async query " + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        },
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private static ExecutorService createVirtualThreadExecutor() {
+    // Looked up reflectively, since virtual threads only exist on newer JVMs than this code is built for
+    try {
+      Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+}
@@ -1,9 +1,17 @@
 package tosa.db.execution;
 
+import tosa.DBConnection;
+import tosa.StatementCachingConnection;
+import tosa.api.BatchResult;
+import tosa.api.ConnectionPoolConfig;
+import tosa.api.IDBConnection;
 import tosa.api.IDBExecutionKernel;
 import tosa.api.IDatabase;
 import tosa.api.IPreparedStatementParameter;
 import tosa.api.IQueryResultProcessor;
+import tosa.api.IQueryResultVisitor;
+import tosa.api.ITransactionContext;
+import tosa.api.QueryExecution;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -12,6 +20,9 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Created by IntelliJ IDEA.
@@ -22,35 +33,182 @@ import java.util.List;
  */
 public class DBExecutionKernelImpl implements IDBExecutionKernel {
 
+  public static final String BATCH_SIZE_PROPERTY = "db.batch.size";
+  public static final int DEFAULT_BATCH_SIZE = 500;
+
   private IDatabase _database;
+  private volatile int _batchSize;
+  private volatile AsyncQueryExecutor _asyncExecutor;
 
   public DBExecutionKernelImpl(IDatabase database) {
     _database = database;
+    _batchSize = Integer.getInteger(BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * Sets the maximum number of rows sent to the database in a single executeBatch() call by the batch methods.
+   * Larger inputs are split into chunks of this size, all executed on the same connection and statement.
+   *
+   * @param batchSize the chunk size, which must be positive
+   */
+  public void setBatchSize(int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("The batch size must be at least 1, but was " + batchSize);
+    }
+    _batchSize = batchSize;
+  }
+
+  public int getBatchSize() {
+    return _batchSize;
+  }
+
+  /**
+   * Replaces the executor that the async methods run on.  The previous executor is shut down.
+   *
+   * @param asyncExecutor the new executor
+   */
+  public synchronized void setAsyncExecutor(AsyncQueryExecutor asyncExecutor) {
+    AsyncQueryExecutor previous = _asyncExecutor;
+    _asyncExecutor = asyncExecutor;
+    if (previous != null) {
+      previous.shutdown();
+    }
+  }
+
+  /**
+   * Returns the executor that the async methods run on, creating one the first time it's needed that allows as many
+   * concurrent queries as the connection pool has connections.
+   */
+  public AsyncQueryExecutor getAsyncExecutor() {
+    AsyncQueryExecutor asyncExecutor = _asyncExecutor;
+    if (asyncExecutor == null) {
+      synchronized (this) {
+        if (_asyncExecutor == null) {
+          IDBConnection connection = _database.getConnection();
+          int maxConcurrency = connection instanceof DBConnection ?
+              ((DBConnection) connection).getConnectionPoolConfig().getAsyncMaxConcurrency() :
+              new ConnectionPoolConfig().getAsyncMaxConcurrency();
+          _asyncExecutor = new AsyncQueryExecutor(maxConcurrency);
+        }
+        asyncExecutor = _asyncExecutor;
+      }
+    }
+    return asyncExecutor;
   }
 
   @Override
   public Object executeInsert(String sql, IPreparedStatementParameter... arguments) {
     InsertExecuteCallback callback = new InsertExecuteCallback();
-    execute(sql, arguments, callback);
+    execute(sql, arguments, callback, false);
     return callback.getGeneratedKey();
   }
 
   @Override
   public <T> List<T> executeSelect(String sql, IQueryResultProcessor<T> resultProcessor, IPreparedStatementParameter... arguments) {
     SelectExecuteCallback<T> callback = new SelectExecuteCallback<T>(resultProcessor);
-    execute(sql, arguments, callback);
+    execute(sql, arguments, callback, true);
     return callback.getResults();
   }
 
+  @Override
+  public <T> Future<List<T>> executeSelectAsync(final String sql, final IQueryResultProcessor<T> resultProcessor, final IPreparedStatementParameter... arguments) {
+    return submit(new Callable<List<T>>() {
+      @Override
+      public List<T> call() {
+        return executeSelect(sql, resultProcessor, arguments);
+      }
+    });
+  }
+
+  @Override
+  public Future<Object> executeInsertAsync(final String sql, final IPreparedStatementParameter... arguments) {
+    return submit(new Callable<Object>() {
+      @Override
+      public Object call() {
+        return executeInsert(sql, arguments);
+      }
+    });
+  }
+
+  @Override
+  public Future<Void> executeUpdateAsync(final String sql, final IPreparedStatementParameter... arguments) {
+    return submit(new Callable<Void>() {
+      @Override
+      public Void call() {
+        executeUpdate(sql, arguments);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public <T> Future<T> submit(final Callable<T> work) {
+    IDBConnection connection = _database.getConnection();
+    final ITransactionContext transaction = connection != null ? connection.getCurrentTransaction() : null;
+    final DBConnection dbConnection = connection instanceof DBConnection ? (DBConnection) connection : null;
+    if (transaction == null && dbConnection == null) {
+      return getAsyncExecutor().submit(work);
+    }
+    if (transaction != null && dbConnection != null && dbConnection.isHoldingTransactionConnection()) {
+      // Another thread couldn't use the transaction until this one lets go of its connection, which it won't do if
+      // it's waiting for the result, so the work has to run here
+      FutureTask<T> task = new FutureTask<T>(work);
+      task.run();
+      return task;
+    }
+    final long lastWrite = dbConnection != null ? dbConnection.getLastWrite() : 0;
+    final Thread caller = Thread.currentThread();
+    return getAsyncExecutor().submit(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        // Carry the caller's last write over to the worker, so that the work reads the caller's own writes too
+        long workerLastWrite = dbConnection != null ? dbConnection.setLastWrite(lastWrite) : 0;
+        try {
+          // Bind the worker to the caller's transaction, so that the work sees the same snapshot and is part of it
+          return transaction != null ? transaction.run(work) : work.call();
+        } finally {
+          // When the work ran on the caller's own thread, any write it made has to be remembered
+          if (dbConnection != null && Thread.currentThread() != caller) {
+            dbConnection.setLastWrite(workerLastWrite);
+          }
+        }
+      }
+    });
+  }
+
+  @Override
+  public <T> void executeSelect(String sql, IQueryResultProcessor<T> resultProcessor, IQueryResultVisitor<? super T> visitor, int fetchSize, IPreparedStatementParameter... arguments) {
+    // The fetch size is only a hint for most drivers, but some will buffer the whole result unless it's a magic value
+    if (DBConnection.streamsOnlyWithMinimumFetchSize(_database.getConnection().getConnectionURL())) {
+      fetchSize = Integer.MIN_VALUE;
+    }
+    execute(sql, arguments, new StreamingSelectExecuteCallback<T>(resultProcessor, visitor, fetchSize), true);
+  }
+
   @Override
   public void executeUpdate(String sql, IPreparedStatementParameter... arguments) {
     UpdateExecuteCallback callback = new UpdateExecuteCallback();
-    execute(sql, arguments, callback);
+    execute(sql, arguments, callback, false);
   }
 
   @Override
   public void executeDelete(String sql, IPreparedStatementParameter... arguments) {
-    execute(sql, arguments, new DeleteExecuteCallback());
+    execute(sql, arguments, new DeleteExecuteCallback(), false);
+  }
+
+  @Override
+  public BatchResult executeInsertBatch(String sql, List<IPreparedStatementParameter[]> argumentSets) {
+    return executeBatch(sql, argumentSets, true);
+  }
+
+  @Override
+  public int[] executeUpdateBatch(String sql, List<IPreparedStatementParameter[]> argumentSets) {
+    return executeBatch(sql, argumentSets, false).getUpdateCounts();
+  }
+
+  @Override
+  public int[] executeDeleteBatch(String sql, List<IPreparedStatementParameter[]> argumentSets) {
+    return executeBatch(sql, argumentSets, false).getUpdateCounts();
   }
 
   private static class InsertExecuteCallback implements ExecuteCallback {
@@ -58,15 +216,19 @@ public class DBExecutionKernelImpl implements IDBExecutionKernel {
     private Object _generatedKey;
 
     @Override
-    public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
-      return connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+    public boolean returnsGeneratedKeys() {
+      return true;
+    }
+
+    @Override
+    public void prepareForExecute(PreparedStatement statement) throws SQLException {
     }
 
     @Override
     public void processStatementPostExecute(PreparedStatement statement) throws SQLException {
       ResultSet result = statement.getGeneratedKeys();
       try {
-        if (result.first()) {
+        if (result.next()) {
           _generatedKey = result.getObject(1);
         }
       } finally {
@@ -82,8 +244,12 @@ public class DBExecutionKernelImpl implements IDBExecutionKernel {
   private static class UpdateExecuteCallback implements ExecuteCallback {
 
     @Override
-    public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
-      return connection.prepareStatement(sql);
+    public boolean returnsGeneratedKeys() {
+      return false;
+    }
+
+    @Override
+    public void prepareForExecute(PreparedStatement statement) throws SQLException {
     }
 
     @Override
@@ -100,8 +266,12 @@ public class DBExecutionKernelImpl implements IDBExecutionKernel {
     }
 
     @Override
-    public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
-      return connection.prepareStatement(sql);
+    public boolean returnsGeneratedKeys() {
+      return false;
+    }
+
+    @Override
+    public void prepareForExecute(PreparedStatement statement) throws SQLException {
     }
 
     @Override
@@ -110,12 +280,8 @@ public class DBExecutionKernelImpl implements IDBExecutionKernel {
       _results = new ArrayList<T>();
       ResultSet result = statement.getResultSet();
       try {
-        if (result.first()) {
-          while (!result.isAfterLast()) {
-            _results.add(_processor.processResult(result));
-            result.next();
-          }
-          result.next();
+        while (result.next()) {
+          _results.add(_processor.processResult(result));
         }
       } finally {
         result.close();
@@ -127,10 +293,52 @@ public class DBExecutionKernelImpl implements IDBExecutionKernel {
     }
   }
 
+  private static class StreamingSelectExecuteCallback<T> implements ExecuteCallback {
+    private IQueryResultProcessor<T> _processor;
+    private IQueryResultVisitor<? super T> _visitor;
+    private int _fetchSize;
+
+    private StreamingSelectExecuteCallback(IQueryResultProcessor<T> processor, IQueryResultVisitor<? super T> visitor, int fetchSize) {
+      _processor = processor;
+      _visitor = visitor;
+      _fetchSize = fetchSize;
+    }
+
+    @Override
+    public boolean returnsGeneratedKeys() {
+      return false;
+    }
+
+    @Override
+    public void prepareForExecute(PreparedStatement statement) throws SQLException {
+      statement.setFetchSize(_fetchSize);
+    }
+
+    @Override
+    public void processStatementPostExecute(PreparedStatement statement) throws SQLException {
+      ResultSet result = statement.getResultSet();
+      try {
+        while (result.next()) {
+          if (!_visitor.visit(_processor.processResult(result))) {
+            break;
+          }
+        }
+      } finally {
+        result.close();
+        // Put the fetch size back so that a cached statement doesn't carry it over into a non-streaming query
+        statement.setFetchSize(0);
+      }
+    }
+  }
+
   private static class DeleteExecuteCallback implements ExecuteCallback {
     @Override
-    public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
-      return connection.prepareStatement(sql);
+    public boolean returnsGeneratedKeys() {
+      return false;
+    }
+
+    @Override
+    public void prepareForExecute(PreparedStatement statement) throws SQLException {
     }
 
     @Override
@@ -140,35 +348,137 @@ public class DBExecutionKernelImpl implements IDBExecutionKernel {
   }
 
   private interface ExecuteCallback {
-    PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException;
+    boolean returnsGeneratedKeys();
+    void prepareForExecute(PreparedStatement statement) throws SQLException;
     void processStatementPostExecute(PreparedStatement statement) throws SQLException;
   }
 
-  private void execute(String sql, IPreparedStatementParameter[] arguments, ExecuteCallback callback) {
-    try {
-      Connection connection = _database.getConnection().connect();
-      try {
-        PreparedStatement statement = callback.prepareStatement(connection, sql);
+  private void execute(String sql, final IPreparedStatementParameter[] arguments, final ExecuteCallback callback, boolean readOnly) {
+    boolean streaming = callback instanceof StreamingSelectExecuteCallback;
+    withStatement(sql, callback.returnsGeneratedKeys(), readOnly, streaming, new StatementAction() {
+      @Override
+      public void run(PreparedStatement statement) throws SQLException {
         for (int i = 0; i < arguments.length; i++) {
           arguments[i].setParameter(statement, i + 1);
         }
+        callback.prepareForExecute(statement);
+        statement.execute();
+        callback.processStatementPostExecute(statement);
+      }
+    });
+  }
+
+  private BatchResult executeBatch(String sql, final List<IPreparedStatementParameter[]> argumentSets, final boolean returnGeneratedKeys) {
+    final int[] updateCounts = new int[argumentSets.size()];
+    final List<Object> generatedKeys = new ArrayList<Object>();
+    if (argumentSets.isEmpty()) {
+      return new BatchResult(updateCounts, generatedKeys);
+    }
+
+    withStatement(sql, returnGeneratedKeys, false, false, new StatementAction() {
+      @Override
+      public void run(PreparedStatement statement) throws SQLException {
+        int chunkStart = 0;
+        while (chunkStart < argumentSets.size()) {
+          int chunkEnd = Math.min(chunkStart + _batchSize, argumentSets.size());
+          for (int row = chunkStart; row < chunkEnd; row++) {
+            IPreparedStatementParameter[] arguments = argumentSets.get(row);
+            for (int i = 0; i < arguments.length; i++) {
+              arguments[i].setParameter(statement, i + 1);
+            }
+            statement.addBatch();
+          }
+          int[] chunkCounts = statement.executeBatch();
+          System.arraycopy(chunkCounts, 0, updateCounts, chunkStart, Math.min(chunkCounts.length, chunkEnd - chunkStart));
+          if (returnGeneratedKeys) {
+            ResultSet keys = statement.getGeneratedKeys();
+            try {
+              while (keys.next()) {
+                generatedKeys.add(keys.getObject(1));
+              }
+            } finally {
+              keys.close();
+            }
+          }
+          chunkStart = chunkEnd;
+        }
+      }
+    });
+    return new BatchResult(updateCounts, generatedKeys);
+  }
+
+  private interface StatementAction {
+    void run(PreparedStatement statement) throws SQLException;
+  }
+
+  private void withStatement(String sql, boolean returnGeneratedKeys, boolean readOnly, boolean streaming, StatementAction action) {
+    // The thread-local execution is only looked up when there's instrumentation that could want it
+    QueryExecution execution = _database.getQueryInstrumentation() != null ? QueryExecution.current() : null;
+    try {
+      long connectStart = execution != null ? System.nanoTime() : 0;
+      // Reads can be served by a replica, while writes always go to the primary
+      IDBConnection dbConnection = _database.getConnection();
+      Connection connection = readOnly ? dbConnection.connectForRead() : dbConnection.connect();
+      if (execution != null) {
+        execution.addConnectionWaitNanos(System.nanoTime() - connectStart);
+      }
+      // Statements run by the visitor of a streaming select mustn't be sent down the same pinned connection
+      boolean streamingOnPinnedConnection = streaming && dbConnection instanceof DBConnection && ((DBConnection) dbConnection).startStreaming(connection);
+      try {
+        PreparedStatementCache statementCache = getStatementCache(connection);
+        PreparedStatement statement = prepareStatement(connection, statementCache, sql, returnGeneratedKeys);
+        boolean reusable = false;
         try {
-          statement.execute();
-          callback.processStatementPostExecute(statement);
+          action.run(statement);
+          reusable = true;
+          // Writes made in a transaction aren't visible to anyone else until it commits, which records them itself
+          if (!readOnly && dbConnection instanceof DBConnection && !dbConnection.isInTransaction()) {
+            ((DBConnection) dbConnection).recordWrite();
+          }
+          if (execution != null) {
+            execution.markSucceeded();
+          }
         } catch (SQLException e) {
           // TODO - AHK - Handle the error better
           throw new RuntimeException(e);
         } finally {
-          statement.close();
+          // Statements that failed are never handed back to the cache, since they might be in some odd state
+          if (statementCache != null && reusable) {
+            statementCache.checkIn(sql, returnGeneratedKeys, statement);
+          } else {
+            statement.close();
+          }
         }
       } catch (SQLException e) {
         // TODO - AHK - Handle the error better
           throw new RuntimeException(e);
       } finally {
+        if (streamingOnPinnedConnection) {
+          ((DBConnection) dbConnection).finishStreaming(connection);
+        }
         connection.close();
       }
     } catch (SQLException e) {
       throw new RuntimeException(e);
     }
   }
+
+  private PreparedStatement prepareStatement(Connection connection, PreparedStatementCache statementCache, String sql, boolean returnGeneratedKeys) throws SQLException {
+    if (statementCache != null) {
+      return statementCache.checkOut(sql, returnGeneratedKeys);
+    } else if (returnGeneratedKeys) {
+      return connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+    } else {
+      return connection.prepareStatement(sql);
+    }
+  }
+
+  private PreparedStatementCache getStatementCache(Connection connection) throws SQLException {
+    // The pool hands out wrappers around the physical connection, so we have to dig down to find the cache, if any
+    if (connection.isWrapperFor(StatementCachingConnection.class)) {
+      return connection.unwrap(StatementCachingConnection.class).getStatementCache();
+    } else {
+      return null;
+    }
+  }
 }
@@ -0,0 +1,154 @@
+package tosa.db.execution;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded, LRU-ordered cache of PreparedStatements for a single physical connection.  Statements are keyed
+ * by their SQL text and by whether or not they were prepared with Statement.RETURN_GENERATED_KEYS.
+ *
+ * Statements are checked out of the cache while they're in use and checked back in afterwards, so that two
+ * simultaneous uses of the same SQL on the same connection (i.e. a nested query issued while processing
+ * results) never end up sharing a single statement.  The cache is expected to live exactly as long as the
+ * pooled connection it belongs to, and closeAll() should be called when that connection is really closed.
+ *
+ * ${License}
+ */
+public class PreparedStatementCache {
+
+  private final Connection _connection;
+  private final PreparedStatementCacheStats _stats;
+  private final LinkedHashMap<StatementKey, PreparedStatement> _statements;
+
+  public PreparedStatementCache(Connection connection, final int maxSize, PreparedStatementCacheStats stats) {
+    _connection = connection;
+    _stats = stats;
+    _statements = new LinkedHashMap<StatementKey, PreparedStatement>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<StatementKey, PreparedStatement> eldest) {
+        if (size() > maxSize) {
+          _stats.recordEviction();
+          closeQuietly(eldest.getValue());
+          return true;
+        } else {
+          return false;
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns a PreparedStatement for the given SQL, either by removing a previously-prepared statement from the cache
+   * or by preparing a new one against the underlying connection.  The statement must be handed back via checkIn()
+   * once it's no longer in use, or closed if it should not be reused.
+   *
+   * @param sql the SQL text of the statement
+   * @param returnGeneratedKeys true if the statement should be prepared with Statement.RETURN_GENERATED_KEYS
+   * @return a PreparedStatement for the given SQL
+   * @throws SQLException any SQLException thrown while preparing a new statement
+   */
+  public PreparedStatement checkOut(String sql, boolean returnGeneratedKeys) throws SQLException {
+    StatementKey key = new StatementKey(sql, returnGeneratedKeys);
+    PreparedStatement statement;
+    synchronized (this) {
+      statement = _statements.remove(key);
+    }
+    if (statement != null) {
+      _stats.recordHit();
+      return statement;
+    }
+
+    _stats.recordMiss();
+    if (returnGeneratedKeys) {
+      return _connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+    } else {
+      return _connection.prepareStatement(sql);
+    }
+  }
+
+  /**
+   * Returns a statement obtained from checkOut() to the cache.  If another statement for the same key was checked
+   * in while this one was in use, the incoming statement is simply closed.
+   *
+   * @param sql the SQL text the statement was checked out with
+   * @param returnGeneratedKeys the generated keys flag the statement was checked out with
+   * @param statement the statement to return
+   */
+  public void checkIn(String sql, boolean returnGeneratedKeys, PreparedStatement statement) {
+    try {
+      statement.clearParameters();
+    } catch (SQLException e) {
+      closeQuietly(statement);
+      return;
+    }
+
+    StatementKey key = new StatementKey(sql, returnGeneratedKeys);
+    boolean duplicate;
+    synchronized (this) {
+      duplicate = _statements.containsKey(key);
+      if (!duplicate) {
+        _statements.put(key, statement);
+      }
+    }
+    if (duplicate) {
+      closeQuietly(statement);
+    }
+  }
+
+  public synchronized int size() {
+    return _statements.size();
+  }
+
+  /**
+   * Closes every statement currently held by the cache.  This should be called before the owning physical
+   * connection is closed.
+   */
+  public void closeAll() {
+    List<PreparedStatement> statements;
+    synchronized (this) {
+      statements = new ArrayList<PreparedStatement>(_statements.values());
+      _statements.clear();
+    }
+    for (PreparedStatement statement : statements) {
+      closeQuietly(statement);
+    }
+  }
+
+  private static void closeQuietly(PreparedStatement statement) {
+    try {
+      statement.close();
+    } catch (SQLException e) {
+      // Ignore:  the statement is being discarded, and there's nothing useful to do about a failure here
+    }
+  }
+
+  private static class StatementKey {
+    private final String _sql;
+    private final boolean _returnGeneratedKeys;
+
+    private StatementKey(String sql, boolean returnGeneratedKeys) {
+      _sql = sql;
+      _returnGeneratedKeys = returnGeneratedKeys;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof StatementKey)) {
+        return false;
+      }
+      StatementKey other = (StatementKey) obj;
+      return _returnGeneratedKeys == other._returnGeneratedKeys && _sql.equals(other._sql);
+    }
+
+    @Override
+    public int hashCode() {
+      return _sql.hashCode() * 31 + (_returnGeneratedKeys ? 1 : 0);
+    }
+  }
+}
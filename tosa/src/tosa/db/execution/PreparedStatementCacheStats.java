@@ -0,0 +1,50 @@
+package tosa.db.execution;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit, miss and eviction counters shared by all of the PreparedStatementCaches belonging to a single database.
+ *
+ * ${License}
+ */
+public class PreparedStatementCacheStats {
+
+  private final AtomicLong _hits = new AtomicLong();
+  private final AtomicLong _misses = new AtomicLong();
+  private final AtomicLong _evictions = new AtomicLong();
+
+  void recordHit() {
+    _hits.incrementAndGet();
+  }
+
+  void recordMiss() {
+    _misses.incrementAndGet();
+  }
+
+  void recordEviction() {
+    _evictions.incrementAndGet();
+  }
+
+  public long getHits() {
+    return _hits.get();
+  }
+
+  public long getMisses() {
+    return _misses.get();
+  }
+
+  public long getEvictions() {
+    return _evictions.get();
+  }
+
+  public void reset() {
+    _hits.set(0);
+    _misses.set(0);
+    _evictions.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return "hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions();
+  }
+}
@@ -3,23 +3,24 @@ package tosa.db.execution;
 import gw.lang.reflect.IPropertyInfo;
 import gw.lang.reflect.features.PropertyReference;
 import gw.lang.reflect.java.IJavaType;
-import gw.util.GosuStringUtil;
-import org.slf4j.profiler.Profiler;
 import tosa.CachedDBObject;
+import tosa.impl.ColumnIndexMapping;
+import tosa.impl.EntityCache;
+import tosa.impl.IdentityMap;
+import tosa.impl.QueryExecutorImpl;
+import tosa.impl.query.TemplateQueryPlan;
 import tosa.api.*;
 import tosa.loader.DBPropertyInfo;
 import tosa.loader.DBTypeInfo;
 import tosa.loader.IDBType;
-import tosa.loader.Util;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.sql.Clob;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Created by IntelliJ IDEA.
@@ -36,18 +37,40 @@ public class QueryExecutor {
     IDBColumn idColumn = table.getColumn(DBTypeInfo.ID_COLUMN);
     IDatabase db = table.getDatabase();
 
+    IdentityMap identityMap = IdentityMap.getCurrent(db);
+    IDBObject existing = identityMap == null ? null : identityMap.get(table, id);
+    if (existing != null) {
+      return existing;
+    }
+    long cacheGeneration = EntityCache.getGeneration(table);
+    IDBObject cached = EntityCache.find(type, id);
+    if (cached != null) {
+      return identityMap != null ? identityMap.intern(cached) : cached;
+    }
+
     // TODO - AHK - Use some DB-aware utility to decide when to quote things, etc.
     // TODO - AHK - Make the column name a constant
     String query = "select * from \"" + table.getName() + "\" where \"id\" = ?";
-    Profiler profiler = Util.newProfiler(feature);
-    profiler.start(query + " (" + id + ")");
-    List<IDBObject> results = db.getDBExecutionKernel().executeSelect(query,
-        new CachedDBQueryResultProcessor(type),
-        idColumn.wrapParameterValue(id));
+    IPreparedStatementParameter[] parameters = {idColumn.wrapParameterValue(id)};
+    QueryExecution execution = QueryExecution.start(db, feature, query, parameters);
+    List<IDBObject> results;
+    boolean primaryReads = EntityCache.beginPrimaryReads(table);
+    try {
+      CachedDBQueryResultProcessor processor = new CachedDBQueryResultProcessor(type, query, identityMap);
+      results = db.getDBExecutionKernel().executeSelect(query, processor, parameters);
+      if (execution != null) {
+        execution.setRowCount(results.size());
+        execution.setRowsHydrated(processor.getHydratedCount());
+      }
+    } finally {
+      EntityCache.endPrimaryReads(table, primaryReads);
+      QueryExecution.finish(execution);
+    }
 
     if (results.size() == 0) {
       return null;
     } else if (results.size() == 1) {
+      EntityCache.store(results.get(0), cacheGeneration);
       return results.get(0);
     } else {
       throw new IllegalStateException("More than one row in table " + table.getName() + " had id " + id);
@@ -56,50 +79,45 @@ public class QueryExecutor {
 
   public List<IDBObject> findFromTemplate(String feature, IDBType type, CachedDBObject template, PropertyReference sortColumn, boolean ascending, int limit, int offset) throws SQLException {
     IDBTable table = type.getTable();
-
-    StringBuilder query = new StringBuilder("select * from \"");
-    query.append(table.getName()).append("\" where ");
-    List<IPreparedStatementParameter> queryParameters = new ArrayList<IPreparedStatementParameter>();
-    addWhereClause(query, template, table, queryParameters);
-    if (sortColumn != null) {
-      query.append(" order by \"").append(sortColumn.getPropertyInfo().getName()).append("\" ").append(ascending ? "ASC" : "DESC").append(", \"id\" ASC");
-    } else {
-      query.append(" order by \"id\" ASC");
-    }
-    if (limit != -1) {
-      query.append(" limit ").append(limit).append(" offset ").append(offset);
-    }
-
-    return findFromSql(feature, type, query.toString(), queryParameters);
+    IDBColumn sortDBColumn = sortColumn == null ? null : table.getColumn(sortColumn.getPropertyInfo().getName());
+    TemplateQueryPlan plan = TemplateQueryPlan.forSelect(table, template, sortDBColumn, ascending, limit != -1);
+    IPreparedStatementParameter[] parameters = limit != -1 ? plan.bind(template, limit, offset) : plan.bind(template);
+    return findFromSql(feature, type, plan.getSql(), Arrays.asList(parameters));
   }
 
   public List<IDBObject> findFromSql(String feature, IDBType type, String query, List<IPreparedStatementParameter> queryParameters) throws SQLException {
-    Profiler profiler = Util.newProfiler(feature);
-    profiler.start(query + " (" + queryParameters + ")");
+    IDatabase db = type.getTable().getDatabase();
+    IPreparedStatementParameter[] parameters = queryParameters.toArray(new IPreparedStatementParameter[queryParameters.size()]);
+    QueryExecution execution = QueryExecution.start(db, feature, query, parameters);
     try {
-      return type.getTable().getDatabase().getDBExecutionKernel().executeSelect(query,
-          new CachedDBQueryResultProcessor(type),
-          queryParameters.toArray(new IPreparedStatementParameter[queryParameters.size()]));
+      CachedDBQueryResultProcessor processor = new CachedDBQueryResultProcessor(type, query, IdentityMap.getCurrent(db));
+      List<IDBObject> results = db.getDBExecutionKernel().executeSelect(query, processor, parameters);
+      if (execution != null) {
+        execution.setRowCount(results.size());
+        execution.setRowsHydrated(processor.getHydratedCount());
+      }
+      return results;
     } finally {
-      profiler.stop();
+      QueryExecution.finish(execution);
     }
   }
 
   public int countFromTemplate(String feature, IDBType type, CachedDBObject template) throws SQLException {
-    IDBTable table = type.getTable();
-    StringBuilder query = new StringBuilder("select count(*) as count from \"").append(table.getName()).append("\" where ");
-    List<IPreparedStatementParameter> queryParameters = new ArrayList<IPreparedStatementParameter>();
-    addWhereClause(query, template, table, queryParameters);
-    return countFromSql(feature, type, query.toString(), queryParameters);
+    TemplateQueryPlan plan = TemplateQueryPlan.forCount(type.getTable(), template);
+    return countFromSql(feature, type, plan.getSql(), Arrays.asList(plan.bind(template)));
   }
 
   public int countFromSql(String feature, IDBType type, String query, List<IPreparedStatementParameter> queryParameters) throws SQLException {
-    Profiler profiler = Util.newProfiler(feature);
-    profiler.start(query + " (" + queryParameters + ")");
+    IDatabase db = type.getTable().getDatabase();
+    IPreparedStatementParameter[] parameters = queryParameters.toArray(new IPreparedStatementParameter[queryParameters.size()]);
+    QueryExecution execution = QueryExecution.start(db, feature, query, parameters);
     try {
-      List<Integer> results = type.getTable().getDatabase().getDBExecutionKernel().executeSelect(query,
+      List<Integer> results = db.getDBExecutionKernel().executeSelect(query,
           new CountQueryResultProcessor(),
-          queryParameters.toArray(new IPreparedStatementParameter[queryParameters.size()]));
+          parameters);
+      if (execution != null) {
+        execution.setRowCount(results.size());
+      }
       if (results.size() == 0) {
         return 0;
       } else if (results.size() == 1) {
@@ -108,26 +126,7 @@ public class QueryExecutor {
         throw new IllegalStateException("Expected count query " + query + " to return 0 or 1 result, but got " + results.size());
       }
     } finally {
-      profiler.stop();
-    }
-  }
-
-  private void addWhereClause(StringBuilder query, CachedDBObject template, IDBTable table, List<IPreparedStatementParameter> parameters) {
-    List<String> whereClause = new ArrayList<String>();
-    if (template != null) {
-      for (Map.Entry<String, Object> column : template.getColumns().entrySet()) {
-        if (column.getValue() != null) {
-          whereClause.add("\"" + column.getKey() + "\" = ?");
-          parameters.add(table.getColumn(column.getKey()).wrapParameterValue(column.getValue()));
-        }
-      }
-      if (!whereClause.isEmpty()) {
-        query.append(GosuStringUtil.join(whereClause, " and "));
-      } else {
-        query.append("true");
-      }
-    } else {
-      query.append("true");
+      QueryExecution.finish(execution);
     }
   }
 
@@ -139,26 +138,25 @@ public class QueryExecutor {
   }
 
   // TODO - AHK - I don't really like having this be public
-  public static class CachedDBQueryResultProcessor implements IQueryResultProcessor<IDBObject> {
-    private IDBType _type;
-
+  public static class CachedDBQueryResultProcessor extends QueryExecutorImpl.CachedDBQueryResultProcessor {
     public CachedDBQueryResultProcessor(IDBType type) {
-      _type = type;
+      super(type);
     }
 
-    @Override
-    public CachedDBObject processResult(ResultSet result) throws SQLException {
-      return buildObject(_type, result);
+    public CachedDBQueryResultProcessor(IDBType type, String sql) {
+      super(type, sql);
+    }
+
+    public CachedDBQueryResultProcessor(IDBType type, String sql, IdentityMap identityMap) {
+      super(type, sql, identityMap);
     }
   }
 
   public static CachedDBObject buildObject(IDBType type, ResultSet resultSet) throws SQLException {
-    CachedDBObject obj = new CachedDBObject(type, false);
-    IDBTable table = type.getTable();
-    for (IDBColumn column : table.getColumns()) {
-      Object resultObject = column.getColumnType().readFromResultSet(resultSet, table.getName() + "." + column.getName());
-      obj.setColumnValue(column.getName(), resultObject);
-    }
-    return obj;
+    return QueryExecutorImpl.buildObject(type, resultSet);
+  }
+
+  public static CachedDBObject buildObject(IDBType type, ResultSet resultSet, ColumnIndexMapping mapping) throws SQLException {
+    return QueryExecutorImpl.buildObject(type, resultSet, mapping);
   }
 }
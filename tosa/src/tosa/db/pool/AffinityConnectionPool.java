@@ -0,0 +1,357 @@
+package tosa.db.pool;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import tosa.ConnectionWrapper;
+import tosa.api.ConnectionPoolConfig;
+import tosa.api.IConnectionPool;
+import tosa.impl.LatencyHistogram;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An IConnectionPool that avoids taking any lock when borrowing or returning a connection.  Each thread first tries
+ * to reclaim the connection it used last, which only takes a compare-and-set on that connection; otherwise it pops
+ * a connection off a lock-free stack of idle connections, and only if that's empty does it open a new one.  The
+ * number of borrowed connections is bounded by a Semaphore, so threads only block once the pool is exhausted.
+ *
+ * A connection whose thread has moved on may still be reclaimed through the thread-local, while it also sits on the
+ * idle stack; every connection has a state that's claimed with a compare-and-set, so whoever loses the race simply
+ * skips it.
+ *
+ * The pool opens minIdle connections up front, and tops itself back up to minIdle after every eviction run.
+ *
+ * ${License}
+ */
+public class AffinityConnectionPool implements IConnectionPool {
+
+  private static final int IDLE = 0;
+  private static final int IN_USE = 1;
+  private static final int DESTROYED = 2;
+
+  private final ConnectionFactory _connectionFactory;
+  private final ConnectionPoolConfig _config;
+  private final Semaphore _permits;
+  private final AtomicReference<Node> _idleStack = new AtomicReference<Node>();
+  private final Set<PooledConnection> _allConnections = Collections.newSetFromMap(new ConcurrentHashMap<PooledConnection, Boolean>());
+  private final ThreadLocal<PooledConnection> _lastUsed = new ThreadLocal<PooledConnection>();
+  private final AtomicInteger _activeCount = new AtomicInteger();
+  private final AtomicInteger _waiterCount = new AtomicInteger();
+  private final LatencyHistogram _borrowLatency = new LatencyHistogram();
+  private final Timer _evictionTimer;
+  private volatile boolean _closed;
+
+  public AffinityConnectionPool(ConnectionFactory connectionFactory, ConnectionPoolConfig config) {
+    _connectionFactory = connectionFactory;
+    _config = config;
+    _permits = new Semaphore(config.getMaxActive());
+    if (config.getEvictionIntervalMillis() > 0) {
+      _evictionTimer = new Timer("Tosa connection pool evictor", true);
+      _evictionTimer.schedule(new TimerTask() {
+        @Override
+        public void run() {
+          evictIdleConnections();
+        }
+      }, config.getEvictionIntervalMillis(), config.getEvictionIntervalMillis());
+    } else {
+      _evictionTimer = null;
+    }
+    ensureMinIdle();
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    long start = System.nanoTime();
+    try {
+      acquirePermit();
+      boolean borrowed = false;
+      try {
+        PooledConnection connection = claimIdleConnection();
+        if (connection == null) {
+          connection = openConnection();
+        }
+        _activeCount.incrementAndGet();
+        _lastUsed.set(connection);
+        borrowed = true;
+        return new PooledConnectionHandle(connection);
+      } finally {
+        if (!borrowed) {
+          _permits.release();
+        }
+      }
+    } finally {
+      _borrowLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public int getActiveCount() {
+    return _activeCount.get();
+  }
+
+  @Override
+  public int getIdleCount() {
+    int idle = 0;
+    for (PooledConnection connection : _allConnections) {
+      if (connection._state.get() == IDLE) {
+        idle++;
+      }
+    }
+    return idle;
+  }
+
+  @Override
+  public int getWaiterCount() {
+    return _waiterCount.get();
+  }
+
+  @Override
+  public LatencyHistogram getBorrowLatency() {
+    return _borrowLatency;
+  }
+
+  @Override
+  public void close() {
+    _closed = true;
+    if (_evictionTimer != null) {
+      _evictionTimer.cancel();
+    }
+    for (PooledConnection connection : _allConnections) {
+      if (connection._state.compareAndSet(IDLE, DESTROYED)) {
+        destroy(connection);
+      }
+    }
+    _idleStack.set(null);
+  }
+
+  private void acquirePermit() throws SQLException {
+    if (_closed) {
+      throw new SQLException("The connection pool has been closed");
+    }
+    if (_permits.tryAcquire()) {
+      return;
+    }
+
+    long maxWaitMillis = _config.getMaxWaitMillis();
+    _waiterCount.incrementAndGet();
+    try {
+      if (maxWaitMillis < 0) {
+        _permits.acquire();
+      } else if (!_permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+        throw new SQLException("Timed out after " + maxWaitMillis + "ms waiting for one of the " + _config.getMaxActive() + " pooled connections");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a pooled connection", e);
+    } finally {
+      _waiterCount.decrementAndGet();
+    }
+  }
+
+  private PooledConnection claimIdleConnection() {
+    // The connection this thread used last is the most likely to be idle, and claiming it doesn't touch the stack
+    PooledConnection lastUsed = _lastUsed.get();
+    if (lastUsed != null && lastUsed.claim()) {
+      if (isUsable(lastUsed)) {
+        return lastUsed;
+      }
+      destroy(lastUsed);
+    }
+
+    while (true) {
+      PooledConnection connection = popIdle();
+      if (connection == null) {
+        return null;
+      }
+      if (connection.claim()) {
+        if (isUsable(connection)) {
+          return connection;
+        }
+        destroy(connection);
+      }
+    }
+  }
+
+  private boolean isUsable(PooledConnection connection) {
+    if (isExpired(connection, System.currentTimeMillis())) {
+      return false;
+    }
+    String validationQuery = _config.getValidationQuery();
+    if (validationQuery != null) {
+      try {
+        Statement statement = connection._physical.createStatement();
+        try {
+          statement.execute(validationQuery);
+        } finally {
+          statement.close();
+        }
+      } catch (SQLException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isExpired(PooledConnection connection, long now) {
+    long idleTimeoutMillis = _config.getIdleTimeoutMillis();
+    return idleTimeoutMillis > 0 && now - connection._idleSince > idleTimeoutMillis;
+  }
+
+  private PooledConnection openConnection() throws SQLException {
+    PooledConnection connection = new PooledConnection(_connectionFactory.createConnection());
+    _allConnections.add(connection);
+    return connection;
+  }
+
+  private void release(PooledConnection connection) {
+    _activeCount.decrementAndGet();
+    try {
+      boolean reusable = !_closed;
+      if (reusable) {
+        try {
+          // Don't hand a connection with an open transaction to the next borrower
+          if (!connection._physical.getAutoCommit()) {
+            connection._physical.rollback();
+            connection._physical.setAutoCommit(true);
+          }
+        } catch (SQLException e) {
+          reusable = false;
+        }
+      }
+
+      if (reusable) {
+        connection._idleSince = System.currentTimeMillis();
+        connection._state.set(IDLE);
+        pushIdle(connection);
+      } else {
+        destroy(connection);
+      }
+    } finally {
+      _permits.release();
+    }
+  }
+
+  private void destroy(PooledConnection connection) {
+    connection._state.set(DESTROYED);
+    _allConnections.remove(connection);
+    try {
+      connection._physical.close();
+    } catch (SQLException e) {
+      // Ignore:  the connection is being thrown away anyway
+    }
+  }
+
+  private void evictIdleConnections() {
+    long now = System.currentTimeMillis();
+    int idle = getIdleCount();
+    for (PooledConnection connection : _allConnections) {
+      if (idle <= _config.getMinIdle()) {
+        break;
+      }
+      if (isExpired(connection, now) && connection._state.compareAndSet(IDLE, DESTROYED)) {
+        // Any node still on the idle stack for it is skipped when it's popped, since it can no longer be claimed
+        destroy(connection);
+        idle--;
+      }
+    }
+    ensureMinIdle();
+  }
+
+  private void ensureMinIdle() {
+    try {
+      while (!_closed && getIdleCount() < _config.getMinIdle() && _allConnections.size() < _config.getMaxActive()) {
+        PooledConnection connection = openConnection();
+        connection._idleSince = System.currentTimeMillis();
+        connection._state.set(IDLE);
+        pushIdle(connection);
+      }
+    } catch (SQLException e) {
+      // Ignore:  the database may just be unavailable right now, and borrowers will open connections as they need them
+    }
+  }
+
+  private PooledConnection popIdle() {
+    Node head;
+    do {
+      head = _idleStack.get();
+      if (head == null) {
+        return null;
+      }
+    } while (!_idleStack.compareAndSet(head, head._next));
+    head._connection._onIdleStack.set(false);
+    return head._connection;
+  }
+
+  private void pushIdle(PooledConnection connection) {
+    // A connection that's reclaimed by its thread without being popped is still on the stack, so it isn't pushed
+    // again; that keeps the stack no larger than the pool
+    if (connection._onIdleStack.compareAndSet(false, true)) {
+      // Nodes are never reused, so a compare-and-set on the head can't be fooled by a node that was popped and
+      // pushed back in the meantime
+      Node node = new Node(connection);
+      do {
+        node._next = _idleStack.get();
+      } while (!_idleStack.compareAndSet(node._next, node));
+    }
+  }
+
+  private static class PooledConnection {
+    private final Connection _physical;
+    private final AtomicInteger _state = new AtomicInteger(IN_USE);
+    private final AtomicBoolean _onIdleStack = new AtomicBoolean();
+    private volatile long _idleSince;
+
+    private PooledConnection(Connection physical) {
+      _physical = physical;
+    }
+
+    private boolean claim() {
+      return _state.compareAndSet(IDLE, IN_USE);
+    }
+  }
+
+  private static class Node {
+    private final PooledConnection _connection;
+    private Node _next;
+
+    private Node(PooledConnection connection) {
+      _connection = connection;
+    }
+  }
+
+  /**
+   * The connection handed out to borrowers:  closing it returns the physical connection to the pool, once.
+   */
+  private class PooledConnectionHandle extends ConnectionWrapper {
+    private final PooledConnection _connection;
+    private final AtomicBoolean _returned = new AtomicBoolean();
+
+    private PooledConnectionHandle(PooledConnection connection) {
+      super(connection._physical);
+      _connection = connection;
+    }
+
+    @Override
+    public void close() {
+      if (_returned.compareAndSet(false, true)) {
+        release(_connection);
+      }
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+      return _returned.get() || super.isClosed();
+    }
+  }
+}
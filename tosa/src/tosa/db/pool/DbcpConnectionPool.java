@@ -0,0 +1,111 @@
+package tosa.db.pool;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.PoolableConnectionFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import tosa.api.ConnectionPoolConfig;
+import tosa.api.IConnectionPool;
+import tosa.impl.LatencyHistogram;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The default IConnectionPool, backed by a commons-dbcp GenericObjectPool.  Every borrow goes through the
+ * GenericObjectPool's lock, so under heavy concurrency the AffinityConnectionPool may do better.
+ *
+ * DBCP doesn't report how many threads are blocked waiting for a connection, so the waiter count here is the
+ * number of threads anywhere inside a borrow.
+ *
+ * ${License}
+ */
+public class DbcpConnectionPool implements IConnectionPool {
+
+  private final GenericObjectPool _pool;
+  private final AtomicInteger _waiters = new AtomicInteger();
+  private final LatencyHistogram _borrowLatency = new LatencyHistogram();
+
+  public DbcpConnectionPool(ConnectionFactory connectionFactory, ConnectionPoolConfig config) {
+    _pool = new GenericObjectPool(null);
+    _pool.setMaxActive(config.getMaxActive());
+    _pool.setMinIdle(config.getMinIdle());
+    // DBCP blocks forever for any maxWait of 0 or less, so a maxWait of 0 has to be turned into failing straight away
+    if (config.getMaxWaitMillis() == 0) {
+      _pool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_FAIL);
+    } else {
+      _pool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+      _pool.setMaxWait(config.getMaxWaitMillis());
+    }
+    _pool.setTestOnBorrow(config.getValidationQuery() != null);
+    if (config.getIdleTimeoutMillis() > 0) {
+      _pool.setMinEvictableIdleTimeMillis(config.getIdleTimeoutMillis());
+    }
+    if (config.getEvictionIntervalMillis() > 0) {
+      _pool.setTimeBetweenEvictionRunsMillis(config.getEvictionIntervalMillis());
+    }
+    // The PoolableConnectionFactory installs itself as the pool's factory
+    new PoolableConnectionFactory(connectionFactory, _pool, null, config.getValidationQuery(), false, true);
+    // The pool's evictor keeps it topped up to minIdle, but only from its first run, so fill it up front too
+    for (int i = 0; i < config.getMinIdle() && i < config.getMaxActive(); i++) {
+      try {
+        _pool.addObject();
+      } catch (Exception e) {
+        // Ignore:  the database may just be unavailable right now, and borrowers will open connections as they need them
+        break;
+      }
+    }
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    long start = System.nanoTime();
+    _waiters.incrementAndGet();
+    try {
+      return (Connection) _pool.borrowObject();
+    } catch (SQLException e) {
+      throw e;
+    } catch (NoSuchElementException e) {
+      throw new SQLException("Timed out waiting for one of the " + _pool.getMaxActive() + " pooled connections", e);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new SQLException("Couldn't borrow a pooled connection", e);
+    } finally {
+      _waiters.decrementAndGet();
+      _borrowLatency.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public int getActiveCount() {
+    return _pool.getNumActive();
+  }
+
+  @Override
+  public int getIdleCount() {
+    return _pool.getNumIdle();
+  }
+
+  @Override
+  public int getWaiterCount() {
+    return _waiters.get();
+  }
+
+  @Override
+  public LatencyHistogram getBorrowLatency() {
+    return _borrowLatency;
+  }
+
+  @Override
+  public void close() throws SQLException {
+    try {
+      _pool.close();
+    } catch (SQLException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new SQLException("Couldn't close the connection pool", e);
+    }
+  }
+}
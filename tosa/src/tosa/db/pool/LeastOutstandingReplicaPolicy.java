@@ -0,0 +1,34 @@
+package tosa.db.pool;
+
+import tosa.api.IConnectionPool;
+import tosa.api.IReplicaSelectionPolicy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends each read to the replica with the fewest connections currently borrowed, which steers traffic away from a
+ * replica that's slow to answer.  Ties are broken by rotating the starting point, so that an idle set of replicas
+ * still shares the load.
+ *
+ * ${License}
+ */
+public class LeastOutstandingReplicaPolicy implements IReplicaSelectionPolicy {
+
+  private final AtomicInteger _start = new AtomicInteger();
+
+  @Override
+  public int selectReplica(IConnectionPool[] replicas) {
+    int start = (_start.getAndIncrement() & Integer.MAX_VALUE) % replicas.length;
+    int best = start;
+    int bestActive = replicas[start].getActiveCount();
+    for (int i = 1; i < replicas.length && bestActive > 0; i++) {
+      int candidate = (start + i) % replicas.length;
+      int active = replicas[candidate].getActiveCount();
+      if (active < bestActive) {
+        best = candidate;
+        bestActive = active;
+      }
+    }
+    return best;
+  }
+}
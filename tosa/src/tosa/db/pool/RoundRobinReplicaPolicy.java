@@ -0,0 +1,22 @@
+package tosa.db.pool;
+
+import tosa.api.IConnectionPool;
+import tosa.api.IReplicaSelectionPolicy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends reads to each replica in turn.
+ *
+ * ${License}
+ */
+public class RoundRobinReplicaPolicy implements IReplicaSelectionPolicy {
+
+  private final AtomicInteger _next = new AtomicInteger();
+
+  @Override
+  public int selectReplica(IConnectionPool[] replicas) {
+    // Mask off the sign bit so that the counter wrapping around doesn't produce a negative index
+    return (_next.getAndIncrement() & Integer.MAX_VALUE) % replicas.length;
+  }
+}
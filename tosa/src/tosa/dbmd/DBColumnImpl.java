@@ -21,12 +21,14 @@ import java.sql.SQLException;
 public class DBColumnImpl implements IDBColumn {
   private final DBTableImpl _table;
   private final ColumnData _columnData;
+  private final String _quotedName;
   private final boolean _isFK;
   private final String _fkTarget;
 
   public DBColumnImpl(DBTableImpl table, ColumnData columnData) {
     _table = table;
     _columnData = columnData;
+    _quotedName = "\"" + columnData.getName() + "\"";
 
     // If would be nice if we could refactor this isn't a separate method, but final variable assignment
     // rules won't allow that, and I'd rather make the variable
@@ -54,6 +56,11 @@ public class DBColumnImpl implements IDBColumn {
     return _columnData.getName();
   }
 
+  @Override
+  public String getQuotedName() {
+    return _quotedName;
+  }
+
   @Override
   public boolean isFK() {
     return _isFK;
@@ -4,13 +4,18 @@ import tosa.api.IDBArray;
 import tosa.api.IDBColumn;
 import tosa.api.IDBTable;
 import tosa.api.IDatabase;
+import tosa.impl.ColumnIndexMapping;
+import tosa.impl.query.TemplateQueryPlan;
 import tosa.loader.data.ColumnData;
 import tosa.loader.data.TableData;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by IntelliJ IDEA.
@@ -20,20 +25,31 @@ import java.util.List;
  * To change this template use File | Settings | File Templates.
  */
 public class DBTableImpl implements IDBTable {
+  private static final int MAX_CACHED_COLUMN_INDEX_MAPPINGS = 256;
+  private static final int MAX_CACHED_TEMPLATE_QUERY_PLANS = 256;
+
   // TODO - AHK - Make stuff final
   private final DatabaseImpl _database;
   private final TableData _tableData;
+  private final String _quotedName;
   private final boolean _hasId;
   private final List<DBColumnImpl> _columns;
+  private final Map<String, Integer> _columnOrdinals;
   private final List<IDBArray> _arrays;
   // Tables that have FKs to this table
   private final List<IDBColumn> _incomingFKs;
+  // Result set column mappings for queries against this table, keyed by SQL
+  private final ConcurrentHashMap<String, ColumnIndexMapping> _columnIndexMappings;
+  private final ConcurrentHashMap<TemplateQueryPlan.Key, TemplateQueryPlan> _templateQueryPlans;
 
   public DBTableImpl(DatabaseImpl database, TableData tableData) {
     _database = database;
     _tableData = tableData;
+    _quotedName = "\"" + tableData.getName() + "\"";
     _arrays = new ArrayList<IDBArray>();
     _incomingFKs = new ArrayList<IDBColumn>();
+    _columnIndexMappings = new ConcurrentHashMap<String, ColumnIndexMapping>();
+    _templateQueryPlans = new ConcurrentHashMap<TemplateQueryPlan.Key, TemplateQueryPlan>();
 
     // It might be best to do this in a separate method, but that gets annoying with Java rules
     // around when final variables can be initialized
@@ -47,6 +63,10 @@ public class DBTableImpl implements IDBTable {
       columns.add(columnTypeData);
     }
     _columns = Collections.unmodifiableList(columns);
+    _columnOrdinals = new HashMap<String, Integer>();
+    for (int i = 0; i < columns.size(); i++) {
+      _columnOrdinals.put(columns.get(i).getName(), i);
+    }
     _hasId = hasId;
 
     // TODO - AHK - Is there any good way to make the list of joins/fks immutable?
@@ -57,6 +77,11 @@ public class DBTableImpl implements IDBTable {
     return _tableData.getName();
   }
 
+  @Override
+  public String getQuotedName() {
+    return _quotedName;
+  }
+
   @Override
   public IDatabase getDatabase() {
     return _database;
@@ -64,13 +89,14 @@ public class DBTableImpl implements IDBTable {
 
   @Override
   public IDBColumn getColumn(String name) {
-    // TODO - AHK - Use a hash table if it matters
-    for (IDBColumn column : _columns) {
-      if (column.getName().equals(name)) {
-        return column;
-      }
-    }
-    return null;
+    Integer ordinal = _columnOrdinals.get(name);
+    return ordinal == null ? null : _columns.get(ordinal);
+  }
+
+  @Override
+  public int getColumnOrdinal(String name) {
+    Integer ordinal = _columnOrdinals.get(name);
+    return ordinal == null ? -1 : ordinal;
   }
 
   public List<DBColumnImpl> getColumns() {
@@ -110,4 +136,28 @@ public class DBTableImpl implements IDBTable {
   public List<? extends IDBColumn> getIncomingFKs() {
     return _incomingFKs;
   }
+
+  public ColumnIndexMapping getCachedColumnIndexMapping(String sql) {
+    return _columnIndexMappings.get(sql);
+  }
+
+  public void cacheColumnIndexMapping(String sql, ColumnIndexMapping mapping) {
+    // Ad-hoc SQL with inlined values could otherwise grow this without bound, so just start over once it gets big
+    if (_columnIndexMappings.size() >= MAX_CACHED_COLUMN_INDEX_MAPPINGS) {
+      _columnIndexMappings.clear();
+    }
+    _columnIndexMappings.put(sql, mapping);
+  }
+
+  public TemplateQueryPlan getCachedTemplateQueryPlan(TemplateQueryPlan.Key key) {
+    return _templateQueryPlans.get(key);
+  }
+
+  public void cacheTemplateQueryPlan(TemplateQueryPlan.Key key, TemplateQueryPlan plan) {
+    // A wide table can have a great many combinations of template columns, so this is bounded the same way
+    if (_templateQueryPlans.size() >= MAX_CACHED_TEMPLATE_QUERY_PLANS) {
+      _templateQueryPlans.clear();
+    }
+    _templateQueryPlans.put(key, plan);
+  }
 }
@@ -5,6 +5,9 @@ import tosa.DBConnection;
 import tosa.api.*;
 import tosa.db.execution.DBExecutionKernelImpl;
 import tosa.db.execution.DBUpgraderImpl;
+import tosa.impl.EntityCache;
+import tosa.impl.QueryMetricsRegistry;
+import tosa.impl.UnitOfWorkImpl;
 import tosa.impl.md.DBFkArrayImpl;
 import tosa.impl.md.DBJoinArrayImpl;
 import tosa.loader.DBTypeLoader;
@@ -12,6 +15,7 @@ import tosa.loader.data.DBData;
 import tosa.loader.data.TableData;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by IntelliJ IDEA.
@@ -27,6 +31,12 @@ public class DatabaseImpl implements IDatabase {
   private final Map<String, DBTableImpl> _tables;
   private final DBConnection _connection;
   private final DBExecutionKernelImpl _executionKernel;
+  private final ThreadLocal<UnitOfWorkImpl> _unitOfWork;
+  private final ConcurrentHashMap<IDBTable, EntityCache> _entityCaches;
+  // What's been installed with setQueryInstrumentation(), the metrics if they're enabled, and what queries report to
+  private IQueryInstrumentation _installedInstrumentation;
+  private volatile QueryMetricsRegistry _queryMetrics;
+  private volatile IQueryInstrumentation _queryInstrumentation;
 
   public DatabaseImpl(String namespace, DBData dbData, DBTypeLoader typeLoader) {
     _namespace = namespace;
@@ -37,11 +47,13 @@ public class DatabaseImpl implements IDatabase {
 
     _tables = Collections.unmodifiableMap(tables);
     if (dbData.getConnectionString() != null) {
-      _connection = new DBConnection(dbData.getConnectionString(), typeLoader);
+      _connection = new DBConnection(dbData.getConnectionString(), dbData.getConnectionProperties(), typeLoader);
     } else {
       _connection = null;
     }
     _executionKernel = new DBExecutionKernelImpl(this);
+    _unitOfWork = new ThreadLocal<UnitOfWorkImpl>();
+    _entityCaches = new ConcurrentHashMap<IDBTable, EntityCache>();
   }
 
   @Override
@@ -79,6 +91,163 @@ public class DatabaseImpl implements IDatabase {
     return new DBUpgraderImpl(this);
   }
 
+  @Override
+  public UnitOfWorkImpl startUnitOfWork() {
+    if (_unitOfWork.get() != null) {
+      throw new IllegalStateException("An existing thread-local unit of work has already been started");
+    }
+    UnitOfWorkImpl unitOfWork = new UnitOfWorkImpl(this, _connection != null ? _connection.openRequestScope() : null);
+    _unitOfWork.set(unitOfWork);
+    return unitOfWork;
+  }
+
+  @Override
+  public UnitOfWorkImpl getCurrentUnitOfWork() {
+    return _unitOfWork.get();
+  }
+
+  public void endUnitOfWork(UnitOfWorkImpl unitOfWork) {
+    if (_unitOfWork.get() != unitOfWork) {
+      throw new IllegalStateException("The unit of work being closed is not the current thread-local unit of work");
+    }
+    _unitOfWork.remove();
+  }
+
+  /**
+   * Installs the given instrumentation.  If query metrics are enabled they carry on being kept alongside it.
+   */
+  @Override
+  public synchronized void setQueryInstrumentation(IQueryInstrumentation instrumentation) {
+    // Putting back what getQueryInstrumentation() returned mustn't wrap the metrics in themselves
+    if (instrumentation instanceof FanOutInstrumentation) {
+      instrumentation = ((FanOutInstrumentation) instrumentation)._installed;
+    } else if (instrumentation == _queryMetrics) {
+      instrumentation = null;
+    }
+    _installedInstrumentation = instrumentation;
+    updateQueryInstrumentation();
+  }
+
+  /**
+   * Returns the instrumentation that queries are reported to, which includes the query metrics if they're enabled.
+   */
+  @Override
+  public IQueryInstrumentation getQueryInstrumentation() {
+    return _queryInstrumentation;
+  }
+
+  /**
+   * Starts keeping per-statement metrics for this database, on top of any query instrumentation that's installed,
+   * and exposes them through JMX.  Any metrics that were already being kept are discarded.
+   *
+   * @return the new registry
+   */
+  public synchronized QueryMetricsRegistry enableQueryMetrics() {
+    disableQueryMetrics();
+    QueryMetricsRegistry registry = new QueryMetricsRegistry(_namespace);
+    registry.registerMBean();
+    _queryMetrics = registry;
+    updateQueryInstrumentation();
+    return registry;
+  }
+
+  /**
+   * Stops keeping per-statement metrics, leaving any other query instrumentation installed.
+   */
+  public synchronized void disableQueryMetrics() {
+    QueryMetricsRegistry registry = _queryMetrics;
+    if (registry != null) {
+      _queryMetrics = null;
+      updateQueryInstrumentation();
+      registry.unregisterMBean();
+    }
+  }
+
+  /**
+   * Returns the per-statement metrics for this database, or null if they aren't enabled.
+   */
+  public QueryMetricsRegistry getQueryMetrics() {
+    return _queryMetrics;
+  }
+
+  private void updateQueryInstrumentation() {
+    if (_queryMetrics == null) {
+      _queryInstrumentation = _installedInstrumentation;
+    } else if (_installedInstrumentation == null) {
+      _queryInstrumentation = _queryMetrics;
+    } else {
+      _queryInstrumentation = new FanOutInstrumentation(_queryMetrics, _installedInstrumentation);
+    }
+  }
+
+  private static class FanOutInstrumentation implements IQueryInstrumentation {
+    private final QueryMetricsRegistry _metrics;
+    private final IQueryInstrumentation _installed;
+
+    private FanOutInstrumentation(QueryMetricsRegistry metrics, IQueryInstrumentation installed) {
+      _metrics = metrics;
+      _installed = installed;
+    }
+
+    @Override
+    public void queryExecuted(QueryExecution execution) {
+      _metrics.queryExecuted(execution);
+      _installed.queryExecuted(execution);
+    }
+  }
+
+  /**
+   * Turns on the second-level entity cache for the given table, replacing any existing cache for it.
+   *
+   * @param tableName the name of the table
+   * @param maxEntries the maximum number of rows to cache
+   * @param timeToLiveMillis how long a cached row stays valid after it's been loaded, or 0 for no expiry
+   * @return the new cache
+   */
+  public EntityCache enableEntityCache(String tableName, int maxEntries, long timeToLiveMillis) {
+    IDBTable table = getTable(tableName);
+    if (table == null) {
+      throw new IllegalArgumentException("There is no table named " + tableName + " in the " + _namespace + " database");
+    }
+    EntityCache cache = new EntityCache(table, maxEntries, timeToLiveMillis);
+    _entityCaches.put(table, cache);
+    return cache;
+  }
+
+  public void disableEntityCache(String tableName) {
+    IDBTable table = getTable(tableName);
+    if (table != null) {
+      _entityCaches.remove(table);
+    }
+  }
+
+  /**
+   * Returns the second-level entity cache for the given table, or null if caching isn't enabled for it.
+   */
+  public EntityCache getEntityCache(IDBTable table) {
+    return _entityCaches.isEmpty() ? null : _entityCaches.get(table);
+  }
+
+  /**
+   * Removes the given row from its table's second-level cache, if there is one.  If a transaction is open on the
+   * current thread, the row is removed again once it commits, since another thread may have re-cached the old
+   * committed values in the meantime.
+   */
+  public void invalidateCachedEntity(final IDBTable table, final Object id) {
+    final EntityCache cache = getEntityCache(table);
+    if (cache != null) {
+      cache.invalidate(id);
+      if (_connection != null && _connection.isInTransaction()) {
+        _connection.runAfterCommit(new Runnable() {
+          @Override
+          public void run() {
+            cache.invalidate(id);
+          }
+        });
+      }
+    }
+  }
+
   public IFile getDdlFile() {
     return _dbData.getDdlFile();
   }
@@ -0,0 +1,71 @@
+package tosa.impl;
+
+import tosa.api.EntityCollection;
+import tosa.api.IDBArray;
+import tosa.api.IDBObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the same array (a reverse fk or a join array) for a whole list of owners at once, so that iterating over the
+ * array of each owner in turn doesn't issue one query per owner.  The owners are loaded with "... IN (...)" queries
+ * of at most FkPrefetcher.IN_CHUNK_SIZE owners each, and the rows are then split up between the owners' collections,
+ * which also makes their size() free.  Collections that are already loaded are left alone.
+ *
+ * ${License}
+ */
+public class ArrayPrefetcher {
+
+  /**
+   * Loads the given array on all of the given owners.
+   *
+   * @param owners the owners, which must all be of the same type
+   * @param arrayName the array's property name
+   */
+  public static void prefetch(List<? extends IDBObject> owners, String arrayName) {
+    if (owners.isEmpty()) {
+      return;
+    }
+
+    IDBArray array = owners.get(0).getDBTable().getArray(arrayName);
+    if (array == null) {
+      throw new IllegalArgumentException(arrayName + " is not an array on the " + owners.get(0).getDBTable().getName() + " table");
+    }
+
+    // The same row might appear more than once in the list as different objects, so each id can have several collections
+    Map<Long, List<EntityCollectionImplBase>> collections = new LinkedHashMap<Long, List<EntityCollectionImplBase>>();
+    for (IDBObject owner : owners) {
+      if (owner.isNew()) {
+        continue;
+      }
+      EntityCollection collection = owner.getArray(array);
+      if (collection instanceof EntityCollectionImplBase && !((EntityCollectionImplBase) collection).isLoaded()) {
+        List<EntityCollectionImplBase> ownerCollections = collections.get(owner.getId());
+        if (ownerCollections == null) {
+          ownerCollections = new ArrayList<EntityCollectionImplBase>();
+          collections.put(owner.getId(), ownerCollections);
+        }
+        ownerCollections.add((EntityCollectionImplBase) collection);
+      }
+    }
+    if (collections.isEmpty()) {
+      return;
+    }
+
+    EntityCollectionImplBase loader = collections.values().iterator().next().get(0);
+    List<Long> ownerIds = new ArrayList<Long>(collections.keySet());
+    for (int start = 0; start < ownerIds.size(); start += FkPrefetcher.IN_CHUNK_SIZE) {
+      List<Long> chunk = ownerIds.subList(start, Math.min(start + FkPrefetcher.IN_CHUNK_SIZE, ownerIds.size()));
+      Map<Long, List> results = loader.loadResults(chunk);
+      for (Long ownerId : chunk) {
+        List ownerResults = results.get(ownerId);
+        for (EntityCollectionImplBase collection : collections.get(ownerId)) {
+          collection.setLoadedResults(ownerResults == null ? new ArrayList() : new ArrayList(ownerResults));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package tosa.impl;
+
+import tosa.CachedDBObject;
+import tosa.api.IDBColumn;
+import tosa.api.IDBTable;
+import tosa.dbmd.DBTableImpl;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Collection;
+
+/**
+ * Maps each column of a table to its position in the result set of a particular query, so that entities can be
+ * hydrated by ordinal rather than by looking up every column by its "table.column" label on every row.  A mapping
+ * depends only on the shape of the result set, so it's resolved from the ResultSetMetaData once and then cached
+ * per (table, SQL) pair on the DBTableImpl.
+ *
+ * Columns that can't be matched up unambiguously from the metadata (for example when the same column name appears
+ * for several tables and the driver doesn't report table names) are still read by label, exactly as before.
+ *
+ * ${License}
+ */
+public class ColumnIndexMapping {
+
+  private static final int NOT_FOUND = -1;
+
+  private final IDBTable _table;
+  private final IDBColumn[] _columns;
+  private final int[] _indexes;
+
+  private ColumnIndexMapping(IDBTable table, ResultSetMetaData metaData) throws SQLException {
+    _table = table;
+    Collection<? extends IDBColumn> columns = table.getColumns();
+    _columns = columns.toArray(new IDBColumn[columns.size()]);
+    _indexes = new int[_columns.length];
+    for (int i = 0; i < _columns.length; i++) {
+      _indexes[i] = findIndex(table.getName(), _columns[i].getName(), metaData);
+    }
+  }
+
+  /**
+   * Returns the mapping for the given table's columns in the given result set, which was produced by the given SQL.
+   *
+   * @param table the table whose columns should be mapped
+   * @param sql the SQL statement the result set came from, or null if the mapping shouldn't be cached
+   * @param resultSet the result set
+   * @return the mapping
+   */
+  public static ColumnIndexMapping forResultSet(IDBTable table, String sql, ResultSet resultSet) throws SQLException {
+    if (sql == null || !(table instanceof DBTableImpl)) {
+      return new ColumnIndexMapping(table, resultSet.getMetaData());
+    }
+
+    DBTableImpl tableImpl = (DBTableImpl) table;
+    ColumnIndexMapping mapping = tableImpl.getCachedColumnIndexMapping(sql);
+    if (mapping == null) {
+      mapping = new ColumnIndexMapping(table, resultSet.getMetaData());
+      tableImpl.cacheColumnIndexMapping(sql, mapping);
+    }
+    return mapping;
+  }
+
+  /**
+   * Copies this table's columns from the current row of the result set into the given object.
+   */
+  public void readInto(CachedDBObject obj, ResultSet resultSet) throws SQLException {
+    for (int i = 0; i < _columns.length; i++) {
+      // The columns are in ordinal order, so i is also the column's ordinal
+      obj.setColumnValue(i, readValue(resultSet, i));
+    }
+  }
+
+  /**
+   * Reads the value of the column with the given ordinal from the current row of the result set.
+   */
+  public Object readValue(ResultSet resultSet, int ordinal) throws SQLException {
+    IDBColumn column = _columns[ordinal];
+    if (_indexes[ordinal] != NOT_FOUND) {
+      return column.getColumnType().readFromResultSet(resultSet, _indexes[ordinal]);
+    } else {
+      return column.getColumnType().readFromResultSet(resultSet, _table.getName() + "." + column.getName());
+    }
+  }
+
+  private static int findIndex(String tableName, String columnName, ResultSetMetaData metaData) throws SQLException {
+    int unqualifiedMatch = NOT_FOUND;
+    int unqualifiedMatchCount = 0;
+    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+      if (columnName.equalsIgnoreCase(metaData.getColumnName(i))) {
+        String resultTableName = metaData.getTableName(i);
+        if (tableName.equalsIgnoreCase(resultTableName)) {
+          return i;
+        } else if (resultTableName == null || resultTableName.length() == 0) {
+          unqualifiedMatch = i;
+          unqualifiedMatchCount++;
+        }
+      }
+    }
+    // If the driver doesn't report table names, a column name is only good enough if it's unique
+    return unqualifiedMatchCount == 1 ? unqualifiedMatch : NOT_FOUND;
+  }
+}
@@ -0,0 +1,259 @@
+package tosa.impl;
+
+import tosa.CachedDBObject;
+import tosa.DBConnection;
+import tosa.api.IDBConnection;
+import tosa.api.IDBObject;
+import tosa.api.IDBTable;
+import tosa.dbmd.DatabaseImpl;
+import tosa.loader.IDBType;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An opt-in, size-bounded second-level cache of the rows of a single table, shared by all threads.  It's meant for
+ * reference data that's read far more often than it's written:  loads by id (fromID() and fk navigation) consult the
+ * cache before going to the database, and rows loaded by id outside of a transaction are added to it.
+ *
+ * The cache holds copies of the column values rather than entities, and every lookup returns a new entity, so
+ * callers can modify what they get back without affecting the cache or each other.  Entries are evicted in least
+ * recently used order once the cache is full, and optionally expire a fixed time after they were loaded.  Updates
+ * and deletes made through Tosa invalidate the affected rows; changes made to the database by other means are only
+ * picked up once the entries expire.
+ *
+ * A row read from the database just before another thread changes it mustn't be stored after that thread's
+ * invalidation, or the stale row would stay cached.  Every invalidation therefore bumps the cache's generation;
+ * loaders read the generation with getGeneration() before querying, and store() drops the row if the generation
+ * has moved on since.
+ *
+ * Rows loaded to fill the cache are read from the primary even when there are read replicas, between
+ * beginPrimaryReads() and endPrimaryReads(); otherwise a lagging replica could put a row into the cache that's
+ * older than a change that has already invalidated it.
+ *
+ * Caches are enabled per table through DatabaseImpl.enableEntityCache().
+ *
+ * ${License}
+ */
+public class EntityCache {
+
+  private final IDBTable _table;
+  private final int _maxEntries;
+  private final long _timeToLiveNanos;
+  private final EntityCacheStats _stats;
+  private final LinkedHashMap<Object, Entry> _entries;
+  private long _generation;
+
+  /**
+   * @param table the table whose rows are cached
+   * @param maxEntries the maximum number of rows to cache
+   * @param timeToLiveMillis how long an entry stays valid after it's been loaded, or 0 for entries that never expire
+   */
+  public EntityCache(IDBTable table, final int maxEntries, long timeToLiveMillis) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("The maximum number of entries must be at least 1, but was " + maxEntries);
+    }
+    if (timeToLiveMillis < 0) {
+      throw new IllegalArgumentException("The time to live cannot be negative, but was " + timeToLiveMillis);
+    }
+    _table = table;
+    _maxEntries = maxEntries;
+    _timeToLiveNanos = timeToLiveMillis * 1000000L;
+    _stats = new EntityCacheStats();
+    _entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+        if (size() > _maxEntries) {
+          _stats.recordEviction();
+          return true;
+        } else {
+          return false;
+        }
+      }
+    };
+  }
+
+  // --------------- Static helpers for the code paths that load and write entities
+
+  /**
+   * Returns the cache for the given table, or null if caching isn't enabled for it.
+   */
+  public static EntityCache getCache(IDBTable table) {
+    if (table.getDatabase() instanceof DatabaseImpl) {
+      return ((DatabaseImpl) table.getDatabase()).getEntityCache(table);
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Returns a copy of the cached row with the given id from the type's table, or null if the table isn't cached or
+   * the row isn't in the cache.
+   */
+  public static IDBObject find(IDBType type, Object id) {
+    EntityCache cache = getCache(type.getTable());
+    return cache == null ? null : cache.get(type, id);
+  }
+
+  /**
+   * Returns the current generation of the given table's cache, which has to be read before the rows to be passed to
+   * store() are loaded from the database, or 0 if the table isn't cached.
+   */
+  public static long getGeneration(IDBTable table) {
+    EntityCache cache = getCache(table);
+    return cache == null ? 0 : cache.getGeneration();
+  }
+
+  /**
+   * Adds the given entity, which must have just been loaded from the database, to its table's cache, if the table is
+   * cached and nothing in it has been invalidated since the given generation was read.  Entities loaded inside a
+   * transaction are never cached, since they might reflect uncommitted changes.
+   */
+  public static void store(IDBObject entity, long generation) {
+    EntityCache cache = getCache(entity.getDBTable());
+    if (cache != null && entity instanceof CachedDBObject && !entity.getDBTable().getDatabase().getConnection().isInTransaction()) {
+      cache.put((CachedDBObject) entity, generation);
+    }
+  }
+
+  /**
+   * Sends the current thread's reads to the primary until endPrimaryReads() is called, if the given table is cached.
+   *
+   * @return whether reads were redirected, which has to be passed on to endPrimaryReads()
+   */
+  public static boolean beginPrimaryReads(IDBTable table) {
+    IDBConnection connection = table.getDatabase().getConnection();
+    if (getCache(table) != null && connection instanceof DBConnection) {
+      ((DBConnection) connection).beginPrimaryReads();
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  public static void endPrimaryReads(IDBTable table, boolean redirected) {
+    if (redirected) {
+      ((DBConnection) table.getDatabase().getConnection()).endPrimaryReads();
+    }
+  }
+
+  /**
+   * Removes the given entity's row from its table's cache, if the table is cached.
+   */
+  public static void invalidate(IDBObject entity) {
+    if (entity.getDBTable().getDatabase() instanceof DatabaseImpl && entity.getId() != null) {
+      ((DatabaseImpl) entity.getDBTable().getDatabase()).invalidateCachedEntity(entity.getDBTable(), entity.getId());
+    }
+  }
+
+  // --------------- Instance methods
+
+  /**
+   * Returns a new entity holding a copy of the cached row with the given id, or null if there's no valid entry.
+   */
+  public IDBObject get(IDBType type, Object id) {
+    Object[] values;
+    synchronized (this) {
+      Entry entry = _entries.get(toKey(id));
+      if (entry != null && isExpired(entry)) {
+        _entries.remove(toKey(id));
+        _stats.recordExpiration();
+        entry = null;
+      }
+      if (entry == null) {
+        _stats.recordMiss();
+        return null;
+      }
+      values = entry._values;
+    }
+
+    _stats.recordHit();
+    CachedDBObject result = new CachedDBObject(type, false);
+    for (int i = 0; i < values.length; i++) {
+      result.setColumnValue(i, copyValue(values[i]));
+    }
+    result.markClean();
+    return result;
+  }
+
+  public synchronized long getGeneration() {
+    return _generation;
+  }
+
+  /**
+   * Caches the given entity's row, unless the cache has been invalidated since the given generation, in which case
+   * the row may have changed after it was read.
+   */
+  public void put(CachedDBObject entity, long generation) {
+    if (entity.getId() == null) {
+      return;
+    }
+    Object[] values = new Object[_table.getColumns().size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = copyValue(entity.getColumnValue(i));
+    }
+    Entry entry = new Entry(values, System.nanoTime());
+    synchronized (this) {
+      if (generation == _generation) {
+        _entries.put(toKey(entity.getId()), entry);
+      }
+    }
+  }
+
+  public synchronized void invalidate(Object id) {
+    _generation++;
+    if (_entries.remove(toKey(id)) != null) {
+      _stats.recordInvalidation();
+    }
+  }
+
+  public synchronized void clear() {
+    _generation++;
+    _entries.clear();
+  }
+
+  public synchronized int size() {
+    return _entries.size();
+  }
+
+  public int getMaxEntries() {
+    return _maxEntries;
+  }
+
+  public EntityCacheStats getStats() {
+    return _stats;
+  }
+
+  private boolean isExpired(Entry entry) {
+    return _timeToLiveNanos > 0 && System.nanoTime() - entry._loadedAt > _timeToLiveNanos;
+  }
+
+  private static Object copyValue(Object value) {
+    // Most column values are immutable, but dates and binary data would otherwise be shared with the caller
+    if (value instanceof Date) {
+      return ((Date) value).clone();
+    } else if (value instanceof byte[]) {
+      return ((byte[]) value).clone();
+    } else {
+      return value;
+    }
+  }
+
+  private static Object toKey(Object id) {
+    if (id instanceof Number && !(id instanceof Long)) {
+      return ((Number) id).longValue();
+    }
+    return id;
+  }
+
+  private static class Entry {
+    private final Object[] _values;
+    private final long _loadedAt;
+
+    private Entry(Object[] values, long loadedAt) {
+      _values = values;
+      _loadedAt = loadedAt;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package tosa.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit, miss, eviction and expiration counters for the second-level cache of a single table.
+ *
+ * ${License}
+ */
+public class EntityCacheStats {
+
+  private final AtomicLong _hits = new AtomicLong();
+  private final AtomicLong _misses = new AtomicLong();
+  private final AtomicLong _evictions = new AtomicLong();
+  private final AtomicLong _expirations = new AtomicLong();
+  private final AtomicLong _invalidations = new AtomicLong();
+
+  void recordHit() {
+    _hits.incrementAndGet();
+  }
+
+  void recordMiss() {
+    _misses.incrementAndGet();
+  }
+
+  void recordEviction() {
+    _evictions.incrementAndGet();
+  }
+
+  void recordExpiration() {
+    _expirations.incrementAndGet();
+  }
+
+  void recordInvalidation() {
+    _invalidations.incrementAndGet();
+  }
+
+  public long getHits() {
+    return _hits.get();
+  }
+
+  public long getMisses() {
+    return _misses.get();
+  }
+
+  public long getEvictions() {
+    return _evictions.get();
+  }
+
+  public long getExpirations() {
+    return _expirations.get();
+  }
+
+  public long getInvalidations() {
+    return _invalidations.get();
+  }
+
+  /**
+   * Returns the fraction of lookups that were hits, or 0 if there haven't been any lookups.
+   *
+   * @return the hit rate, between 0 and 1
+   */
+  public double getHitRate() {
+    long hits = getHits();
+    long lookups = hits + getMisses();
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  public void reset() {
+    _hits.set(0);
+    _misses.set(0);
+    _evictions.set(0);
+    _expirations.set(0);
+    _invalidations.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return "hits=" + getHits() + ", misses=" + getMisses() + ", hitRate=" + getHitRate() + ", evictions=" + getEvictions() +
+        ", expirations=" + getExpirations() + ", invalidations=" + getInvalidations();
+  }
+}
@@ -9,9 +9,14 @@ import tosa.loader.DBTypeInfo;
 import tosa.loader.IDBType;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by IntelliJ IDEA.
@@ -26,6 +31,13 @@ public abstract class EntityCollectionImplBase<T extends IDBObject> implements E
   protected IDBType _fkType;
   protected QueryExecutor _queryExecutor;
   protected List<T> _cachedResults;
+  // Maps the id of each element in _cachedResults to its position.  It's built when it's first needed and then kept
+  // up to date by the methods below, which is why subclasses shouldn't modify _cachedResults directly
+  private LongIntHashMap _idIndex;
+  // The positions of elements that had no id yet when they were indexed, such as ones added within a unit of work;
+  // they're indexed by the first lookup after they've been given one
+  private int[] _unindexed = new int[0];
+  private int _unindexedCount;
 
   protected EntityCollectionImplBase(IDBObject owner, IDBType fkType, QueryExecutor queryExecutor) {
     _owner = owner;
@@ -83,6 +95,67 @@ public abstract class EntityCollectionImplBase<T extends IDBObject> implements E
     removeImpl(element);
   }
 
+  @Override
+  public boolean contains(T element) {
+    if (_cachedResults != null) {
+      return indexOf(element) != -1;
+    } else {
+      return containsImpl(element);
+    }
+  }
+
+  @Override
+  public boolean containsId(long id) {
+    if (_cachedResults != null) {
+      return indexOfId(id) != -1;
+    } else {
+      return issueContainsQuery(id);
+    }
+  }
+
+  @Override
+  public void addAll(Collection<? extends T> elements) {
+    for (T element : elements) {
+      if (!_fkType.isAssignableFrom(element.getIntrinsicType())) {
+        throw new IllegalArgumentException("An element of type " + element.getIntrinsicType() + " cannot be added to a collection of type " + _fkType);
+      }
+    }
+
+    if (_owner.isNew()) {
+      throw new IllegalStateException("The elements cannot be added to the list, as the owner is not yet committed.  You must commit the owner prior to added anything to the list.");
+    }
+
+    if (UnitOfWorkImpl.getCurrent(_owner.getDBTable().getDatabase()) != null) {
+      // A unit of work already defers and batches the writes, so there's nothing to be gained over adding one at a time
+      for (T element : elements) {
+        addImpl(element);
+      }
+    } else if (!elements.isEmpty()) {
+      addAllImpl(new ArrayList<T>(elements));
+    }
+  }
+
+  @Override
+  public void removeAll(Collection<? extends T> elements) {
+    for (T element : elements) {
+      if (!_fkType.isAssignableFrom(element.getIntrinsicType())) {
+        throw new IllegalArgumentException("An element of type " + element.getIntrinsicType() + " cannot be removed from a collection of type " + _fkType);
+      }
+    }
+
+    if (_owner.isNew()) {
+      throw new IllegalStateException("Elements cannot be removed from an entity that has not yet been persisted");
+    }
+
+    if (UnitOfWorkImpl.getCurrent(_owner.getDBTable().getDatabase()) != null) {
+      for (T element : elements) {
+        removeImpl(element);
+      }
+    } else if (!elements.isEmpty()) {
+      removeAllImpl(new ArrayList<T>(elements));
+    }
+  }
+
   @Override
   public void load() {
     loadResultsIfNecessary();
@@ -91,6 +164,21 @@ public abstract class EntityCollectionImplBase<T extends IDBObject> implements E
   @Override
   public void unload() {
     _cachedResults = null;
+    _idIndex = null;
+  }
+
+  @Override
+  public EntityCollection<T> windowed(int pageSize, int maxResidentPages) {
+    return new WindowedEntityCollection<T>(this, pageSize, maxResidentPages);
+  }
+
+  public boolean isLoaded() {
+    return _cachedResults != null;
+  }
+
+  void setLoadedResults(List<T> results) {
+    _cachedResults = results;
+    _idIndex = null;
   }
 
   // --------------- Abstract Protected Methods
@@ -99,15 +187,174 @@ public abstract class EntityCollectionImplBase<T extends IDBObject> implements E
 
   protected abstract List<T> loadResults();
 
+  /**
+   * Loads the contents of this array for each of the given owners with a single query, for ArrayPrefetcher.
+   *
+   * @param ownerIds the ids of the owners
+   * @return the contents of the array keyed by owner id; owners whose array is empty may not have an entry
+   */
+  protected abstract Map<Long, List<T>> loadResults(List<Long> ownerIds);
+
+  /**
+   * Loads up to pageSize elements of the array, in id order, for WindowedEntityCollection.
+   *
+   * @param afterId the id of the last element of the previous page, or null to load the first page
+   * @param pageSize the maximum number of elements to load
+   * @return the elements
+   */
+  protected abstract List<T> loadPage(Long afterId, int pageSize);
+
   protected abstract void addImpl(T element);
 
   protected abstract void removeImpl(T element);
 
+  protected abstract void addAllImpl(List<T> elements);
+
+  protected abstract void removeAllImpl(List<T> elements);
+
+  /**
+   * Determines whether the element is in the collection when the results haven't been loaded.
+   */
+  protected abstract boolean containsImpl(T element);
+
+  /**
+   * Determines whether the element with the given id is in the collection when the results haven't been loaded.
+   */
+  protected abstract boolean issueContainsQuery(long id);
+
+  // -------------- Protected Helper Methods
+
+  /**
+   * Returns the position of the given element in the cached results, which must have been loaded, or -1 if it's not
+   * there.  The cached results might contain a different pointer than the one the caller has, so elements are
+   * matched up by id; elements without an id can only match by pointer.
+   */
+  protected int indexOf(T element) {
+    if (element.getId() != null) {
+      return indexOfId(element.getId());
+    }
+    for (int i = 0; i < _cachedResults.size(); i++) {
+      if (_cachedResults.get(i) == element) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the position of the element with the given id in the cached results, which must have been loaded, or -1
+   * if it's not there.
+   */
+  protected int indexOfId(long id) {
+    return getIdIndex().get(id);
+  }
+
+  protected void addToCachedResults(T element) {
+    _cachedResults.add(element);
+    if (_idIndex != null) {
+      indexElement(_cachedResults.size() - 1);
+    }
+  }
+
+  protected void replaceInCachedResults(int position, T element) {
+    _cachedResults.set(position, element);
+    if (_idIndex != null && element.getId() != null) {
+      _idIndex.put(element.getId(), position);
+    }
+  }
+
+  protected void removeFromCachedResults(int position) {
+    T removed = _cachedResults.remove(position);
+    if (_idIndex != null) {
+      if (removed.getId() != null) {
+        _idIndex.remove(removed.getId());
+      }
+      int kept = 0;
+      for (int i = 0; i < _unindexedCount; i++) {
+        int unindexed = _unindexed[i];
+        if (unindexed != position) {
+          _unindexed[kept++] = unindexed > position ? unindexed - 1 : unindexed;
+        }
+      }
+      _unindexedCount = kept;
+      // Everything after the removed element has moved up by one
+      for (int i = position; i < _cachedResults.size(); i++) {
+        Long id = _cachedResults.get(i).getId();
+        if (id != null) {
+          _idIndex.put(id, i);
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes the elements with the given ids from the cached results, if they've been loaded.
+   */
+  protected void removeFromCachedResults(Set<Long> ids) {
+    if (_cachedResults != null) {
+      for (Iterator<T> it = _cachedResults.iterator(); it.hasNext();) {
+        if (ids.contains(it.next().getId())) {
+          it.remove();
+        }
+      }
+      _idIndex = null;
+    }
+  }
+
+  /**
+   * Splits the given ids up into lists of at most FkPrefetcher.IN_CHUNK_SIZE ids, for use in IN clauses, each padded
+   * with FkPrefetcher.padInList().
+   */
+  protected static List<List<Long>> chunk(List<Long> ids) {
+    List<List<Long>> chunks = new ArrayList<List<Long>>();
+    for (int start = 0; start < ids.size(); start += FkPrefetcher.IN_CHUNK_SIZE) {
+      chunks.add(FkPrefetcher.padInList(ids.subList(start, Math.min(start + FkPrefetcher.IN_CHUNK_SIZE, ids.size()))));
+    }
+    return chunks;
+  }
+
   // -------------- Private Methods
 
   private void loadResultsIfNecessary() {
     if (_cachedResults == null) {
       _cachedResults = loadResults();
+      _idIndex = null;
+    }
+  }
+
+  private LongIntHashMap getIdIndex() {
+    if (_idIndex == null) {
+      _idIndex = new LongIntHashMap(_cachedResults.size());
+      _unindexedCount = 0;
+      for (int i = 0; i < _cachedResults.size(); i++) {
+        indexElement(i);
+      }
+    } else if (_unindexedCount > 0) {
+      // Elements without an id might have been given one since, e.g. by a flush, so only those are looked at again
+      int kept = 0;
+      for (int i = 0; i < _unindexedCount; i++) {
+        int position = _unindexed[i];
+        Long id = _cachedResults.get(position).getId();
+        if (id == null) {
+          _unindexed[kept++] = position;
+        } else {
+          _idIndex.put(id, position);
+        }
+      }
+      _unindexedCount = kept;
+    }
+    return _idIndex;
+  }
+
+  private void indexElement(int position) {
+    Long id = _cachedResults.get(position).getId();
+    if (id == null) {
+      if (_unindexedCount == _unindexed.length) {
+        _unindexed = Arrays.copyOf(_unindexed, Math.max(4, _unindexedCount * 2));
+      }
+      _unindexed[_unindexedCount++] = position;
+    } else {
+      _idIndex.put(id, position);
     }
   }
 
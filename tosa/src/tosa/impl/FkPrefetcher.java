@@ -0,0 +1,164 @@
+package tosa.impl;
+
+import gw.lang.reflect.TypeSystem;
+import tosa.CachedDBObject;
+import tosa.api.IDBColumn;
+import tosa.api.IDBObject;
+import tosa.api.IDBTable;
+import tosa.api.IPreparedStatementParameter;
+import tosa.loader.DBTypeInfo;
+import tosa.loader.IDBType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads the objects referenced by one fk column of a whole list of entities at once, so that navigating that fk
+ * on each entity in turn doesn't issue one query per entity.  The distinct ids are loaded with
+ * "SELECT * ... WHERE id IN (...)" queries of at most IN_CHUNK_SIZE ids each (padded with padInList()), after
+ * consulting the transaction's
+ * identity map and the table's entity cache, and the results are handed to each entity so that getFkValue() can
+ * return them without going back to the database.
+ *
+ * ${License}
+ */
+public class FkPrefetcher {
+
+  /**
+   * The maximum number of ids in a single IN clause; some databases cap the size of IN lists (Oracle at 1000)
+   * or the number of parameters in a statement.
+   */
+  public static final int IN_CHUNK_SIZE = 500;
+
+  /**
+   * The lengths that IN lists are padded up to.  Every distinct list length is a distinct SQL statement, so without
+   * padding, IN queries would churn the per-connection prepared statement caches and the tables' column mapping
+   * caches.
+   */
+  private static final int[] IN_LIST_SIZES = {1, 8, 32, 128, IN_CHUNK_SIZE};
+
+  private static final SqlTemplate SELECT_BY_IDS_SQL = SimpleSqlBuilder.compile("SELECT * FROM ${table} WHERE ${idColumn} IN (${placeholders})");
+
+  /**
+   * Loads the objects referenced by the given fk of all of the given entities.
+   *
+   * @param entities the entities, which must all be of the same type
+   * @param fkName the name of the fk, either as a property name ("Customer") or a column name ("Customer_id")
+   */
+  public static void prefetch(List<? extends IDBObject> entities, String fkName) {
+    if (entities.isEmpty()) {
+      return;
+    }
+
+    IDBColumn fkColumn = findFkColumn(entities.get(0).getDBTable(), fkName);
+    Set<Long> ids = new LinkedHashSet<Long>();
+    for (IDBObject entity : entities) {
+      Long id = (Long) entity.getColumnValue(fkColumn.getName());
+      if (id != null) {
+        ids.add(id);
+      }
+    }
+    if (ids.isEmpty()) {
+      return;
+    }
+
+    Map<Long, IDBObject> targets = load(fkColumn.getFKTarget(), ids);
+    for (IDBObject entity : entities) {
+      Long id = (Long) entity.getColumnValue(fkColumn.getName());
+      IDBObject target = id == null ? null : targets.get(id);
+      // Rows that are missing are left alone, so that getFkValue() still reports them
+      if (target != null && entity instanceof CachedDBObject) {
+        ((CachedDBObject) entity).setPrefetchedFkValue(fkColumn.getName(), target);
+      }
+    }
+  }
+
+  private static Map<Long, IDBObject> load(IDBTable table, Set<Long> ids) {
+    // TODO - AHK - Need some better way to convert between the two
+    IDBType type = (IDBType) TypeSystem.getByFullName(table.getDatabase().getNamespace() + "." + table.getName());
+    IdentityMap identityMap = IdentityMap.getCurrent(table.getDatabase());
+    Map<Long, IDBObject> results = new HashMap<Long, IDBObject>();
+
+    long cacheGeneration = EntityCache.getGeneration(table);
+    List<Long> idsToQuery = new ArrayList<Long>();
+    for (Long id : ids) {
+      IDBObject existing = identityMap == null ? null : identityMap.get(table, id);
+      if (existing == null) {
+        existing = EntityCache.find(type, id);
+        if (existing != null && identityMap != null) {
+          existing = identityMap.intern(existing);
+        }
+      }
+      if (existing != null) {
+        results.put(id, existing);
+      } else {
+        idsToQuery.add(id);
+      }
+    }
+
+    IDBColumn idColumn = table.getColumn(DBTypeInfo.ID_COLUMN);
+    boolean primaryReads = EntityCache.beginPrimaryReads(table);
+    try {
+      for (int start = 0; start < idsToQuery.size(); start += IN_CHUNK_SIZE) {
+        List<Long> chunk = padInList(idsToQuery.subList(start, Math.min(start + IN_CHUNK_SIZE, idsToQuery.size())));
+        IPreparedStatementParameter[] params = new IPreparedStatementParameter[chunk.size()];
+        for (int i = 0; i < chunk.size(); i++) {
+          params[i] = idColumn.wrapParameterValue(chunk.get(i));
+        }
+        String sql = SELECT_BY_IDS_SQL.render(table, idColumn, Collections.nCopies(chunk.size(), "?"));
+        for (IDBObject result : type.getQueryExecutor().selectEntity("FkPrefetcher.prefetch()", type, sql, params)) {
+          EntityCache.store(result, cacheGeneration);
+          results.put(result.getId(), result);
+        }
+      }
+    } finally {
+      EntityCache.endPrimaryReads(table, primaryReads);
+    }
+
+    return results;
+  }
+
+  /**
+   * Pads the given list of at most IN_CHUNK_SIZE ids up to the next of a few fixed lengths by repeating the last id,
+   * which doesn't change what an IN clause matches.
+   *
+   * @param ids the ids
+   * @return the padded ids, which is the given list itself if it's empty or already one of the fixed lengths
+   */
+  public static List<Long> padInList(List<Long> ids) {
+    if (ids.isEmpty()) {
+      return ids;
+    }
+    for (int size : IN_LIST_SIZES) {
+      if (size >= ids.size()) {
+        if (size == ids.size()) {
+          return ids;
+        }
+        List<Long> padded = new ArrayList<Long>(size);
+        padded.addAll(ids);
+        Long last = ids.get(ids.size() - 1);
+        while (padded.size() < size) {
+          padded.add(last);
+        }
+        return padded;
+      }
+    }
+    return ids;
+  }
+
+  private static IDBColumn findFkColumn(IDBTable table, String fkName) {
+    for (IDBColumn column : table.getColumns()) {
+      if (column.isFK() && (column.getName().equals(fkName) ||
+          column.getName().equals(fkName + "_id") ||
+          column.getName().equals(fkName + "_" + column.getFKTarget().getName() + "_id"))) {
+        return column;
+      }
+    }
+    throw new IllegalArgumentException(fkName + " is not a foreign key on the " + table.getName() + " table");
+  }
+}
@@ -0,0 +1,107 @@
+package tosa.impl;
+
+import tosa.DBConnection;
+import tosa.api.IDBObject;
+import tosa.api.IDBTable;
+import tosa.api.IDatabase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the entities loaded during a transaction, keyed by table and id, so that each row is
+ * only loaded and materialized once per transaction and every reference to it within the transaction sees the
+ * same object.  An identity map is created by DBConnection.startTransaction() and discarded by endTransaction();
+ * outside of a transaction there is no identity map, and every load produces a new object.
+ *
+ * A transaction can be shared by several threads through its ITransactionContext, but each of those threads gets
+ * an identity map of its own, since the entities in a map aren't thread-safe, so identity maps are only ever
+ * accessed from one thread and aren't synchronized.
+ *
+ * ${License}
+ */
+public class IdentityMap {
+
+  private final Map<IDBTable, Map<Object, IDBObject>> _entities = new HashMap<IDBTable, Map<Object, IDBObject>>();
+
+  /**
+   * Returns the identity map for the transaction the current thread is bound to for the given database, or null if
+   * there isn't one.
+   *
+   * @param database the database
+   * @return the current identity map, or null
+   */
+  public static IdentityMap getCurrent(IDatabase database) {
+    if (database.getConnection() instanceof DBConnection) {
+      return ((DBConnection) database.getConnection()).getTransactionIdentityMap();
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the entity with the given id that has already been loaded in this transaction, if any.
+   *
+   * @param table the entity's table
+   * @param id the entity's id
+   * @return the entity, or null if it hasn't been loaded
+   */
+  public IDBObject get(IDBTable table, Object id) {
+    Map<Object, IDBObject> entities = _entities.get(table);
+    return entities == null ? null : entities.get(toKey(id));
+  }
+
+  /**
+   * Returns the entity already registered for the same row as the given one, or registers the given entity and
+   * returns it if there isn't one yet.  Entities without an id are returned as-is.  When a row is loaded again,
+   * the object loaded first wins, so any unsaved changes made to it are preserved.
+   *
+   * @param entity a newly-loaded or newly-inserted entity
+   * @return the canonical entity for the row
+   */
+  public IDBObject intern(IDBObject entity) {
+    Object id = toKey(entity.getId());
+    if (id == null) {
+      return entity;
+    }
+    Map<Object, IDBObject> entities = _entities.get(entity.getDBTable());
+    if (entities == null) {
+      entities = new HashMap<Object, IDBObject>();
+      _entities.put(entity.getDBTable(), entities);
+    }
+    IDBObject existing = entities.get(id);
+    if (existing != null) {
+      return existing;
+    }
+    entities.put(id, entity);
+    return entity;
+  }
+
+  /**
+   * Removes the given entity's row from the map, for example because it's been deleted.
+   *
+   * @param entity the entity to remove
+   */
+  public void remove(IDBObject entity) {
+    Map<Object, IDBObject> entities = _entities.get(entity.getDBTable());
+    if (entities != null && entity.getId() != null) {
+      entities.remove(toKey(entity.getId()));
+    }
+  }
+
+  private static Object toKey(Object id) {
+    // Ids are normally Longs, but callers such as fromID() may pass in other numeric types
+    if (id instanceof Number && !(id instanceof Long)) {
+      return ((Number) id).longValue();
+    }
+    return id;
+  }
+
+  public int size() {
+    int size = 0;
+    for (Map<Object, IDBObject> entities : _entities.values()) {
+      size += entities.size();
+    }
+    return size;
+  }
+}
@@ -4,10 +4,18 @@ import gw.util.GosuExceptionUtil;
 import tosa.api.*;
 import tosa.loader.IDBType;
 
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by IntelliJ IDEA.
@@ -18,6 +26,18 @@ import java.util.List;
  */
 public class JoinArrayEntityCollectionImpl<T extends IDBObject> extends EntityCollectionImplBase<T> {
 
+  // The join row statements are shared with UnitOfWorkImpl, so that its batches use the same SQL text
+  static final SqlTemplate INSERT_JOIN_SQL = SimpleSqlBuilder.compile("INSERT INTO ${joinTable} (${srcFk}, ${targetFk}) VALUES (?, ?)");
+  static final SqlTemplate DELETE_JOIN_SQL = SimpleSqlBuilder.compile("DELETE FROM ${joinTable} WHERE ${srcFk} = ? AND ${targetFk} = ?");
+  private static final SqlTemplate DELETE_JOINS_SQL = SimpleSqlBuilder.compile("DELETE FROM ${joinTable} WHERE ${srcFk} = ? AND ${targetFk} IN (${ids})");
+  private static final SqlTemplate MEMBER_IDS_SQL = SimpleSqlBuilder.compile("SELECT ${targetFk} FROM ${joinTable} WHERE ${srcFk} = ? AND ${targetFk} IN (${ids})");
+  private static final SqlTemplate CONTAINS_SQL = SimpleSqlBuilder.compile("SELECT count(*) as count FROM ${joinTable} WHERE ${srcFk} = ? AND ${targetFk} = ?");
+  private static final SqlTemplate SELECT_SQL = SimpleSqlBuilder.compile("SELECT * FROM ${targetTable} INNER JOIN ${joinTable} as j ON j.${targetFk} = ${targetTable}.${id} WHERE j.${srcFk} = ?");
+  private static final SqlTemplate SELECT_PAGE_SQL = SimpleSqlBuilder.compile("SELECT * FROM ${targetTable} INNER JOIN ${joinTable} as j ON j.${targetFk} = ${targetTable}.${id} WHERE j.${srcFk} = ?${afterId} ORDER BY ${targetTable}.${id} LIMIT ?");
+  private static final SqlTemplate AFTER_ID_SQL = SimpleSqlBuilder.compile(" AND ${targetTable}.${id} > ?");
+  private static final SqlTemplate SELECT_FOR_OWNERS_SQL = SimpleSqlBuilder.compile("SELECT *, j.${srcFk} AS tosa_owner_id FROM ${targetTable} INNER JOIN ${joinTable} as j ON j.${targetFk} = ${targetTable}.${id} WHERE j.${srcFk} IN (${ownerIds})");
+  private static final SqlTemplate COUNT_SQL = SimpleSqlBuilder.compile("SELECT count(*) as count FROM ${joinTable} WHERE ${srcFk} = ?");
+
   private IDBColumn _srcColumn;
   private IDBColumn _targetColumn;
 
@@ -29,35 +49,35 @@ public class JoinArrayEntityCollectionImpl<T extends IDBObject> extends EntityCo
 
   @Override
   protected void removeImpl(T element) {
-    if (!isAlreadyInArray(element)) {
+    if (!contains(element)) {
       throw new IllegalArgumentException("The element " + element.getDBTable().getName() + "(" + element.getId() +
               ") cannot be removed from the join array on " + _owner.getDBTable().getName() + "(" + _owner.getId() + ") as it's not currently in the array");
     }
 
-    String sql = SimpleSqlBuilder.substitute("DELETE FROM ${joinTable} WHERE ${srcFk} =? AND ${targetFk} = ?",
-          "joinTable", _srcColumn.getTable(),
-          "srcFk", _srcColumn,
-          "targetFk", _targetColumn);
+    UnitOfWorkImpl unitOfWork = UnitOfWorkImpl.getCurrent(_owner.getDBTable().getDatabase());
+    if (unitOfWork != null) {
+      unitOfWork.registerJoinDelete(_srcColumn, _targetColumn, _owner, element);
+    } else {
+      String sql = DELETE_JOIN_SQL.render(_srcColumn.getTable(), _srcColumn, _targetColumn);
 
-    IPreparedStatementParameter srcParam = _srcColumn.wrapParameterValue(_owner.getId());
-    IPreparedStatementParameter targetParam = _targetColumn.wrapParameterValue(element.getId());
-    _queryExecutor.delete("JoinArrayEntityCollectionImpl.removeImpl()", sql, srcParam, targetParam);
+      IPreparedStatementParameter srcParam = _srcColumn.wrapParameterValue(_owner.getId());
+      IPreparedStatementParameter targetParam = _targetColumn.wrapParameterValue(element.getId());
+      _queryExecutor.delete("JoinArrayEntityCollectionImpl.removeImpl()", sql, srcParam, targetParam);
+    }
 
     // If the results have already been loaded, we need to remove the element.  We can't do just .equals() or a pointer compare,
     // since the version in there might be different, so instead we want to compare ids
     if (_cachedResults != null) {
-      for (int i = 0; i < _cachedResults.size(); i++) {
-        if (_cachedResults.get(i).getId().equals(element.getId())) {
-          _cachedResults.remove(i);
-          break;
-        }
+      int position = indexOf(element);
+      if (position != -1) {
+        removeFromCachedResults(position);
       }
     }
   }
 
   @Override
   protected void addImpl(T element) {
-    if (!isAlreadyInArray(element)) {
+    if (!contains(element)) {
 
       // If the element hasn't yet been persisted, we have to persist it so that it has an id we can insert into the join table
       if (element.isNew()) {
@@ -68,16 +88,19 @@ public class JoinArrayEntityCollectionImpl<T extends IDBObject> extends EntityCo
         }
       }
 
-      String sql = SimpleSqlBuilder.substitute("INSERT INTO ${joinTable} (${srcFk}, ${targetFk}) VALUES (?, ?)",
-          "joinTable", _srcColumn.getTable(),
-          "srcFk", _srcColumn,
-          "targetFk", _targetColumn);
-      IPreparedStatementParameter srcParam = _srcColumn.wrapParameterValue(_owner.getId());
-      IPreparedStatementParameter targetParam = _targetColumn.wrapParameterValue(element.getId());
-      _queryExecutor.insert("JoinArrayEntityCollectionImpl.addImpl()", sql, srcParam, targetParam);
+      // Within a unit of work, the element may still not have an id, so the join row is written once it's flushed
+      UnitOfWorkImpl unitOfWork = UnitOfWorkImpl.getCurrent(_owner.getDBTable().getDatabase());
+      if (unitOfWork != null) {
+        unitOfWork.registerJoinInsert(_srcColumn, _targetColumn, _owner, element);
+      } else {
+        String sql = INSERT_JOIN_SQL.render(_srcColumn.getTable(), _srcColumn, _targetColumn);
+        IPreparedStatementParameter srcParam = _srcColumn.wrapParameterValue(_owner.getId());
+        IPreparedStatementParameter targetParam = _targetColumn.wrapParameterValue(element.getId());
+        _queryExecutor.insert("JoinArrayEntityCollectionImpl.addImpl()", sql, srcParam, targetParam);
+      }
 
       if (_cachedResults != null) {
-        _cachedResults.add(element);
+        addToCachedResults(element);
       }
     } else {
       // If the element is already in the array, and the results have been cached, we really want to update the pointers
@@ -85,11 +108,10 @@ public class JoinArrayEntityCollectionImpl<T extends IDBObject> extends EntityCo
       // same pointer semantics if the results have been loaded, regardless of whether or not the element is already
       // in the array:  in all cases, the element is now in the array
       if (_cachedResults != null) {
-        for (int i = 0; i < _cachedResults.size(); i++) {
-          if (_cachedResults.get(i).getId().equals(element.getId())) {
-            _cachedResults.set(i, element);
-            break; // There should only ever be one match, so stop iterating
-          }
+        // There should only ever be one match
+        int position = indexOf(element);
+        if (position != -1) {
+          replaceInCachedResults(position, element);
         }
       }
     }
@@ -98,45 +120,194 @@ public class JoinArrayEntityCollectionImpl<T extends IDBObject> extends EntityCo
     // TODO - AHK
   }
 
-  private boolean isAlreadyInArray(T element) {
+  @Override
+  protected void addAllImpl(List<T> elements) {
+    // New elements have to be persisted first so that they have ids to put in the join table
+    for (T element : elements) {
+      if (element.isNew()) {
+        try {
+          element.update();
+        } catch (SQLException e) {
+          GosuExceptionUtil.forceThrow(e);
+        }
+      }
+    }
+
+    Set<Long> memberIds = findMemberIds(elements);
+    Map<Long, T> toAdd = new LinkedHashMap<Long, T>();
+    for (T element : elements) {
+      if (!memberIds.contains(element.getId())) {
+        toAdd.put(element.getId(), element);
+      } else if (_cachedResults != null) {
+        // As with add(), the element that was passed in replaces the version that's in the cached results
+        replaceInCachedResults(indexOfId(element.getId()), element);
+      }
+    }
+    if (toAdd.isEmpty()) {
+      return;
+    }
+
+    String sql = INSERT_JOIN_SQL.render(_srcColumn.getTable(), _srcColumn, _targetColumn);
+    List<IPreparedStatementParameter[]> parameterSets = new ArrayList<IPreparedStatementParameter[]>();
+    for (Long id : toAdd.keySet()) {
+      parameterSets.add(new IPreparedStatementParameter[]{_srcColumn.wrapParameterValue(_owner.getId()), _targetColumn.wrapParameterValue(id)});
+    }
+    _queryExecutor.insertBatch("JoinArrayEntityCollectionImpl.addAll()", sql, parameterSets);
+
+    if (_cachedResults != null) {
+      for (T element : toAdd.values()) {
+        addToCachedResults(element);
+      }
+    }
+  }
+
+  @Override
+  protected void removeAllImpl(List<T> elements) {
+    Set<Long> memberIds = findMemberIds(elements);
+    Set<Long> idsToRemove = new LinkedHashSet<Long>();
+    for (T element : elements) {
+      if (!memberIds.contains(element.getId())) {
+        throw new IllegalArgumentException("The element " + element.getDBTable().getName() + "(" + element.getId() +
+                ") cannot be removed from the join array on " + _owner.getDBTable().getName() + "(" + _owner.getId() + ") as it's not currently in the array");
+      }
+      idsToRemove.add(element.getId());
+    }
+
+    for (List<Long> ids : chunk(new ArrayList<Long>(idsToRemove))) {
+      String sql = DELETE_JOINS_SQL.render(_srcColumn.getTable(), _srcColumn, _targetColumn, Collections.nCopies(ids.size(), "?"));
+      _queryExecutor.delete("JoinArrayEntityCollectionImpl.removeAll()", sql, wrapOwnerAndTargetIds(ids));
+    }
+
+    removeFromCachedResults(idsToRemove);
+  }
+
+  /**
+   * Returns the ids of those of the given elements that are in the array, using the cached results if they've been
+   * loaded and otherwise one query per FkPrefetcher.IN_CHUNK_SIZE elements.
+   */
+  private Set<Long> findMemberIds(List<T> elements) {
+    Set<Long> memberIds = new HashSet<Long>();
     if (_cachedResults != null) {
-      for (T result : _cachedResults) {
-        if (result.getId().equals(element.getId())) {
-          return true;
+      for (T element : elements) {
+        if (element.getId() != null && indexOfId(element.getId()) != -1) {
+          memberIds.add(element.getId());
         }
       }
+      return memberIds;
+    }
+
+    List<Long> ids = new ArrayList<Long>();
+    for (T element : elements) {
+      if (element.getId() != null) {
+        ids.add(element.getId());
+      }
+    }
+    for (List<Long> chunk : chunk(ids)) {
+      String sql = MEMBER_IDS_SQL.render(_targetColumn, _srcColumn.getTable(), _srcColumn, Collections.nCopies(chunk.size(), "?"));
+      memberIds.addAll(_queryExecutor.select("JoinArrayEntityCollectionImpl.findMemberIds()", sql, new IQueryResultProcessor<Long>() {
+        @Override
+        public Long processResult(ResultSet result) throws SQLException {
+          return result.getLong(1);
+        }
+      }, wrapOwnerAndTargetIds(chunk)));
+    }
+    return memberIds;
+  }
+
+  private IPreparedStatementParameter[] wrapOwnerAndTargetIds(List<Long> targetIds) {
+    IPreparedStatementParameter[] params = new IPreparedStatementParameter[targetIds.size() + 1];
+    params[0] = _srcColumn.wrapParameterValue(_owner.getId());
+    for (int i = 0; i < targetIds.size(); i++) {
+      params[i + 1] = _targetColumn.wrapParameterValue(targetIds.get(i));
+    }
+    return params;
+  }
+
+  @Override
+  protected boolean containsImpl(T element) {
+    UnitOfWorkImpl unitOfWork = UnitOfWorkImpl.getCurrent(_owner.getDBTable().getDatabase());
+    if (unitOfWork != null) {
+      Boolean pendingMembership = unitOfWork.getPendingJoinMembership(_srcColumn, _targetColumn, _owner, element);
+      if (pendingMembership != null) {
+        return pendingMembership;
+      }
+    }
 
+    if (element.isNew() || _owner.isNew()) {
+      // Neither can be in the join table until they've been inserted
       return false;
     } else {
-      String sql = SimpleSqlBuilder.substitute("SELECT count(*) as count FROM ${joinTable} WHERE ${srcFk} = ? AND ${targetFk} = ?",
-          "joinTable", _srcColumn.getTable(),
-          "srcFk", _srcColumn,
-          "targetFk", _targetColumn);
-      IPreparedStatementParameter srcFkParam = _srcColumn.wrapParameterValue(_owner.getId());
-      IPreparedStatementParameter targetFkParam = _srcColumn.wrapParameterValue(element.getId());
-      int numResults = _queryExecutor.count("JoinArrayEntityCollectionImpl.isAlreadyInArray()", sql, srcFkParam, targetFkParam);
-      // TODO - AHK - Report an error if there's more than one result?
-      return numResults > 0;
+      return issueContainsQuery(element.getId());
     }
   }
 
+  @Override
+  protected boolean issueContainsQuery(long id) {
+    String sql = CONTAINS_SQL.render(_srcColumn.getTable(), _srcColumn, _targetColumn);
+    IPreparedStatementParameter srcFkParam = _srcColumn.wrapParameterValue(_owner.getId());
+    IPreparedStatementParameter targetFkParam = _targetColumn.wrapParameterValue(id);
+    int numResults = _queryExecutor.count("JoinArrayEntityCollectionImpl.contains()", sql, srcFkParam, targetFkParam);
+    // TODO - AHK - Report an error if there's more than one result?
+    return numResults > 0;
+  }
+
   @Override
   protected List<T> loadResults() {
-    String sql = SimpleSqlBuilder.substitute("SELECT * FROM ${targetTable} INNER JOIN ${joinTable} as j ON j.${targetFk} = ${targetTable}.${id} WHERE j.${srcFk} = ?",
-        "targetTable", _fkType.getTable(),
-        "joinTable", _srcColumn.getTable(),
-        "id", _fkType.getTable().getColumn("id"),
-        "targetFk", _targetColumn,
-        "srcFk", _srcColumn);
+    String sql = SELECT_SQL.render(_fkType.getTable(), _srcColumn.getTable(), _targetColumn, _fkType.getTable().getColumn("id"), _srcColumn);
     IPreparedStatementParameter param = _srcColumn.wrapParameterValue(_owner.getId());
     return  (List<T>) _queryExecutor.selectEntity("JoinArrayEntityCollectionImpl.loadResultsIfNecessary()", _fkType, sql, param);
   }
 
+  @Override
+  protected List<T> loadPage(Long afterId, int pageSize) {
+    IDBColumn idColumn = _fkType.getTable().getColumn("id");
+    String sql = SELECT_PAGE_SQL.render(_fkType.getTable(), _srcColumn.getTable(), _targetColumn, idColumn, _srcColumn,
+        afterId == null ? "" : AFTER_ID_SQL.render(_fkType.getTable(), idColumn));
+    List<IPreparedStatementParameter> params = new ArrayList<IPreparedStatementParameter>();
+    params.add(_srcColumn.wrapParameterValue(_owner.getId()));
+    if (afterId != null) {
+      params.add(idColumn.wrapParameterValue(afterId));
+    }
+    params.add(idColumn.wrapParameterValue(pageSize));
+    return (List<T>) _queryExecutor.selectEntity("JoinArrayEntityCollectionImpl.loadPage()", _fkType, sql,
+        params.toArray(new IPreparedStatementParameter[params.size()]));
+  }
+
+  @Override
+  protected Map<Long, List<T>> loadResults(List<Long> ownerIds) {
+    ownerIds = FkPrefetcher.padInList(ownerIds);
+    String sql = SELECT_FOR_OWNERS_SQL.render(_srcColumn, _fkType.getTable(), _srcColumn.getTable(), _targetColumn, _fkType.getTable().getColumn("id"),
+        Collections.nCopies(ownerIds.size(), "?"));
+    IPreparedStatementParameter[] params = new IPreparedStatementParameter[ownerIds.size()];
+    for (int i = 0; i < params.length; i++) {
+      params[i] = _srcColumn.wrapParameterValue(ownerIds.get(i));
+    }
+
+    // The target rows don't say which owner they were joined to, so the owner's id is read alongside each one
+    final QueryExecutorImpl.CachedDBQueryResultProcessor entityProcessor =
+        new QueryExecutorImpl.CachedDBQueryResultProcessor(_fkType, sql, IdentityMap.getCurrent(_owner.getDBTable().getDatabase()));
+    List<Object[]> rows = _queryExecutor.select("JoinArrayEntityCollectionImpl.loadResults()", sql, new IQueryResultProcessor<Object[]>() {
+      @Override
+      public Object[] processResult(ResultSet result) throws SQLException {
+        return new Object[]{result.getLong("tosa_owner_id"), entityProcessor.processResult(result)};
+      }
+    }, params);
+
+    Map<Long, List<T>> results = new HashMap<Long, List<T>>();
+    for (Object[] row : rows) {
+      List<T> ownerResults = results.get((Long) row[0]);
+      if (ownerResults == null) {
+        ownerResults = new ArrayList<T>();
+        results.put((Long) row[0], ownerResults);
+      }
+      ownerResults.add((T) row[1]);
+    }
+    return results;
+  }
+
   @Override
   protected int issueCountQuery() {
-    String sql = SimpleSqlBuilder.substitute("SELECT count(*) as count FROM ${joinTable} WHERE ${srcFk} = ?",
-          "joinTable", _srcColumn.getTable(),
-          "srcFk", _srcColumn);
+    String sql = COUNT_SQL.render(_srcColumn.getTable(), _srcColumn);
     IPreparedStatementParameter param = _srcColumn.wrapParameterValue(_owner.getId());
     return _queryExecutor.count("JoinArrayEntityCollectionImpl.size()", sql, param);
   }
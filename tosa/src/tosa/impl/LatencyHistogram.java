@@ -0,0 +1,171 @@
+package tosa.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds, along the lines of HdrHistogram.  Values below 64 get a bucket
+ * each; above that, every power of two is split into 32 linear buckets, so a value is never reported more than about
+ * 3% away from what was recorded, across the whole range of a long.  Recording is a handful of atomic increments
+ * with no allocation.  Like StripedCounter, the buckets start out as a single array and only once two threads
+ * collide on a bucket does each stripe of threads get an array of its own, so histograms that are never contended
+ * don't pay for the copies.
+ *
+ * Reads aren't synchronized with concurrent writes, so the count, total and percentiles can be very slightly out of
+ * step with each other while queries are running.
+ *
+ * ${License}
+ */
+public class LatencyHistogram {
+
+  private static final int LINEAR_BUCKETS = 64;
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = LINEAR_BUCKETS + (62 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray _buckets = new AtomicLongArray(BUCKET_COUNT);
+  private volatile AtomicReferenceArray<AtomicLongArray> _stripes;
+  private final StripedCounter _count = new StripedCounter();
+  private final StripedCounter _totalNanos = new StripedCounter();
+  private final AtomicLong _maxNanos = new AtomicLong();
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      // System.nanoTime() is monotonic on the platforms we care about, but don't let a bad clock corrupt things
+      nanos = 0;
+    }
+    incrementBucket(bucketFor(nanos));
+    _count.increment();
+    _totalNanos.add(nanos);
+    long max = _maxNanos.get();
+    while (nanos > max && !_maxNanos.compareAndSet(max, nanos)) {
+      max = _maxNanos.get();
+    }
+  }
+
+  public long getCount() {
+    return _count.sum();
+  }
+
+  public long getTotalNanos() {
+    return _totalNanos.sum();
+  }
+
+  public long getMaxNanos() {
+    return _maxNanos.get();
+  }
+
+  public double getMeanNanos() {
+    long count = getCount();
+    return count == 0 ? 0 : (double) getTotalNanos() / count;
+  }
+
+  /**
+   * Returns the value at the given percentile, as the highest value that falls in the same bucket; that's never
+   * more than the largest value actually recorded.
+   *
+   * @param percentile a percentile between 0 and 100, such as 99.9
+   * @return the value at that percentile, or 0 if nothing has been recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("The percentile must be between 0 and 100, but was " + percentile);
+    }
+    long total = 0;
+    long[] counts = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = _buckets.get(i);
+    }
+    AtomicReferenceArray<AtomicLongArray> stripes = _stripes;
+    if (stripes != null) {
+      for (int s = 0; s < stripes.length(); s++) {
+        AtomicLongArray stripe = stripes.get(s);
+        if (stripe != null) {
+          for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += stripe.get(i);
+          }
+        }
+      }
+    }
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.min(highestValueInBucket(i), getMaxNanos());
+      }
+    }
+    return getMaxNanos();
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      _buckets.set(i, 0);
+    }
+    AtomicReferenceArray<AtomicLongArray> stripes = _stripes;
+    if (stripes != null) {
+      for (int s = 0; s < stripes.length(); s++) {
+        AtomicLongArray stripe = stripes.get(s);
+        if (stripe != null) {
+          for (int i = 0; i < BUCKET_COUNT; i++) {
+            stripe.set(i, 0);
+          }
+        }
+      }
+    }
+    _count.reset();
+    _totalNanos.reset();
+    _maxNanos.set(0);
+  }
+
+  private void incrementBucket(int bucket) {
+    AtomicReferenceArray<AtomicLongArray> stripes = _stripes;
+    if (stripes == null) {
+      long count = _buckets.get(bucket);
+      if (_buckets.compareAndSet(bucket, count, count + 1)) {
+        return;
+      }
+      stripes = createStripes();
+    }
+    int index = StripedCounter.currentStripe();
+    AtomicLongArray stripe = stripes.get(index);
+    if (stripe == null) {
+      stripes.compareAndSet(index, null, new AtomicLongArray(BUCKET_COUNT));
+      stripe = stripes.get(index);
+    }
+    stripe.incrementAndGet(bucket);
+  }
+
+  private synchronized AtomicReferenceArray<AtomicLongArray> createStripes() {
+    if (_stripes == null) {
+      _stripes = new AtomicReferenceArray<AtomicLongArray>(StripedCounter.STRIPES);
+    }
+    return _stripes;
+  }
+
+  static int bucketFor(long value) {
+    if (value < LINEAR_BUCKETS) {
+      return (int) value;
+    }
+    // Shift so that the top SUB_BUCKET_BITS + 1 bits remain, i.e. the value lands in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+    int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+    return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+  }
+
+  static long highestValueInBucket(int bucket) {
+    if (bucket < LINEAR_BUCKETS) {
+      return bucket;
+    }
+    int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+    long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+    // For the very last bucket this wraps around to exactly Long.MAX_VALUE
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,138 @@
+package tosa.impl;
+
+import java.util.Arrays;
+
+/**
+ * A minimal hash map from long keys to int values, using open addressing with linear probing so that neither the
+ * keys nor the values are boxed.  It's used to index loaded entity collections by id, where a HashMap<Long, Integer>
+ * would allocate two objects per element.
+ *
+ * Missing keys are reported as -1, so -1 can't be stored as a value.
+ *
+ * ${License}
+ */
+class LongIntHashMap {
+
+  static final int NO_VALUE = -1;
+
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] _keys;
+  private int[] _values;
+  private boolean[] _used;
+  private int _size;
+
+  LongIntHashMap() {
+    this(MIN_CAPACITY);
+  }
+
+  LongIntHashMap(int expectedSize) {
+    allocate(capacityFor(expectedSize));
+  }
+
+  int get(long key) {
+    int slot = slot(key);
+    while (_used[slot]) {
+      if (_keys[slot] == key) {
+        return _values[slot];
+      }
+      slot = (slot + 1) & (_keys.length - 1);
+    }
+    return NO_VALUE;
+  }
+
+  void put(long key, int value) {
+    if (value == NO_VALUE) {
+      throw new IllegalArgumentException("The value " + NO_VALUE + " cannot be stored");
+    }
+    int slot = slot(key);
+    while (_used[slot]) {
+      if (_keys[slot] == key) {
+        _values[slot] = value;
+        return;
+      }
+      slot = (slot + 1) & (_keys.length - 1);
+    }
+    _used[slot] = true;
+    _keys[slot] = key;
+    _values[slot] = value;
+    _size++;
+    // Keep the load factor at or below one half, so that probe sequences stay short
+    if (_size * 2 > _keys.length) {
+      rehash(_keys.length * 2);
+    }
+  }
+
+  int remove(long key) {
+    int slot = slot(key);
+    while (_used[slot]) {
+      if (_keys[slot] == key) {
+        int value = _values[slot];
+        closeGap(slot);
+        _size--;
+        return value;
+      }
+      slot = (slot + 1) & (_keys.length - 1);
+    }
+    return NO_VALUE;
+  }
+
+  int size() {
+    return _size;
+  }
+
+  void clear() {
+    Arrays.fill(_used, false);
+    _size = 0;
+  }
+
+  private void closeGap(int gap) {
+    // Shift back any following entries in the same probe run that could have used the freed slot, rather than
+    // leaving a tombstone behind
+    int mask = _keys.length - 1;
+    int slot = (gap + 1) & mask;
+    while (_used[slot]) {
+      int home = slot(_keys[slot]);
+      boolean canMove = gap <= slot ? (home <= gap || home > slot) : (home <= gap && home > slot);
+      if (canMove) {
+        _keys[gap] = _keys[slot];
+        _values[gap] = _values[slot];
+        gap = slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    _used[gap] = false;
+  }
+
+  private void rehash(int capacity) {
+    long[] keys = _keys;
+    int[] values = _values;
+    boolean[] used = _used;
+    allocate(capacity);
+    _size = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (used[i]) {
+        put(keys[i], values[i]);
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    _keys = new long[capacity];
+    _values = new int[capacity];
+    _used = new boolean[capacity];
+  }
+
+  private int slot(long key) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32)) & (_keys.length - 1);
+  }
+
+  private static int capacityFor(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+}
@@ -1,8 +1,10 @@
 package tosa.impl;
 
+import tosa.api.BatchResult;
 import tosa.api.IDBObject;
 import tosa.api.IDBTable;
 import tosa.api.IPreparedStatementParameter;
+import tosa.api.IQueryResultProcessor;
 import tosa.loader.IDBType;
 
 import java.util.List;
@@ -21,9 +23,17 @@ public interface QueryExecutor {
 
   List<IDBObject> selectEntity(String profilerTag, IDBType targetType, String sqlStatement, IPreparedStatementParameter... parameters);
 
+  <T> List<T> select(String profilerTag, String sqlStatement, IQueryResultProcessor<T> resultProcessor, IPreparedStatementParameter... parameters);
+
   void update(String profilerTag, String sqlStatement, IPreparedStatementParameter... parameters);
 
   Object insert(String profilerTag, String sqlStatement, IPreparedStatementParameter... parameters);
 
   void delete(String profilerTag, String sqlStatement, IPreparedStatementParameter... parameters);
+
+  BatchResult insertBatch(String profilerTag, String sqlStatement, List<IPreparedStatementParameter[]> parameterSets);
+
+  int[] updateBatch(String profilerTag, String sqlStatement, List<IPreparedStatementParameter[]> parameterSets);
+
+  int[] deleteBatch(String profilerTag, String sqlStatement, List<IPreparedStatementParameter[]> parameterSets);
 }
@@ -1,14 +1,12 @@
 package tosa.impl;
 
-import org.slf4j.profiler.Profiler;
 import tosa.CachedDBObject;
 import tosa.api.*;
+import tosa.loader.DBTypeInfo;
 import tosa.loader.IDBType;
-import tosa.loader.Util;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -32,13 +30,15 @@ public class QueryExecutorImpl implements QueryExecutor {
   // TODO - AHK - Should this be a long instead?
   public int count(String profilerTag, String sqlStatement, IPreparedStatementParameter... parameters) {
     // TODO - AHK - Verify that it starts with "SELECT count(*) as count"
-    Profiler profiler = Util.newProfiler(profilerTag);
-    profiler.start(sqlStatement + " (" + Arrays.asList(parameters) + ")");
+    QueryExecution execution = QueryExecution.start(_db, profilerTag, sqlStatement, parameters);
     try {
       List<Integer> results = _db.getDBExecutionKernel().executeSelect(
           sqlStatement,
           new CountQueryResultProcessor(),
           parameters);
+      if (execution != null) {
+        execution.setRowCount(results.size());
+      }
       if (results.size() == 0) {
         return 0;
       } else if (results.size() == 1) {
@@ -47,7 +47,7 @@ public class QueryExecutorImpl implements QueryExecutor {
         throw new IllegalStateException("Expected count query " + sqlStatement + " to return 0 or 1 result, but got " + results.size());
       }
     } finally {
-      profiler.stop();
+      QueryExecution.finish(execution);
     }
   }
 
@@ -62,53 +62,97 @@ public class QueryExecutorImpl implements QueryExecutor {
   public List<IDBObject> selectEntity(String profilerTag, IDBType type, String sqlStatement, IPreparedStatementParameter... parameters) {
     // TODO - AHK - Ensure that it starts with SELECT * ?
     // TODO - AHK - Verify that the db type is from the database we have?
-    Profiler profiler = Util.newProfiler(profilerTag);
-    profiler.start(sqlStatement + " (" + Arrays.asList(parameters) + ")");
+    QueryExecution execution = QueryExecution.start(_db, profilerTag, sqlStatement, parameters);
     try {
-      return _db.getDBExecutionKernel().executeSelect(sqlStatement,
-          new CachedDBQueryResultProcessor(type),
-          parameters);
+      CachedDBQueryResultProcessor processor = new CachedDBQueryResultProcessor(type, sqlStatement, IdentityMap.getCurrent(_db));
+      List<IDBObject> results = _db.getDBExecutionKernel().executeSelect(sqlStatement, processor, parameters);
+      if (execution != null) {
+        execution.setRowCount(results.size());
+        execution.setRowsHydrated(processor.getHydratedCount());
+      }
+      return results;
     } finally {
-      profiler.stop();
+      QueryExecution.finish(execution);
+    }
+  }
+
+  @Override
+  public <T> List<T> select(String profilerTag, String sqlStatement, IQueryResultProcessor<T> resultProcessor, IPreparedStatementParameter... parameters) {
+    QueryExecution execution = QueryExecution.start(_db, profilerTag, sqlStatement, parameters);
+    try {
+      List<T> results = _db.getDBExecutionKernel().executeSelect(sqlStatement, resultProcessor, parameters);
+      if (execution != null) {
+        execution.setRowCount(results.size());
+      }
+      return results;
+    } finally {
+      QueryExecution.finish(execution);
     }
   }
 
   @Override
   public void update(String profilerTag, String sqlStatement, IPreparedStatementParameter... parameters) {
     // TODO - AHK - Verify it starts with UPDATE ?
-    Profiler profiler = Util.newProfiler(profilerTag);
-    profiler.start(sqlStatement + " (" + Arrays.asList(parameters) + ")");
+    QueryExecution execution = QueryExecution.start(_db, profilerTag, sqlStatement, parameters);
     try {
       _db.getDBExecutionKernel().executeUpdate(sqlStatement,
           parameters);
     } finally {
-      profiler.stop();
+      QueryExecution.finish(execution);
     }
   }
 
   @Override
   public Object insert(String profilerTag, String sqlStatement, IPreparedStatementParameter... parameters) {
     // TODO - AHK - Verify it starts with INSERT ?
-    Profiler profiler = Util.newProfiler(profilerTag);
-    profiler.start(sqlStatement + " (" + Arrays.asList(parameters) + ")");
+    QueryExecution execution = QueryExecution.start(_db, profilerTag, sqlStatement, parameters);
     try {
       return _db.getDBExecutionKernel().executeInsert(sqlStatement,
           parameters);
     } finally {
-      profiler.stop();
+      QueryExecution.finish(execution);
     }
   }
 
   @Override
   public void delete(String profilerTag, String sqlStatement, IPreparedStatementParameter... parameters) {
     // TODO - AHK - Verify it starts with DELETE ?
-    Profiler profiler = Util.newProfiler(profilerTag);
-    profiler.start(sqlStatement + " (" + Arrays.asList(parameters) + ")");
+    QueryExecution execution = QueryExecution.start(_db, profilerTag, sqlStatement, parameters);
     try {
       _db.getDBExecutionKernel().executeDelete(sqlStatement,
           parameters);
     } finally {
-      profiler.stop();
+      QueryExecution.finish(execution);
+    }
+  }
+
+  @Override
+  public BatchResult insertBatch(String profilerTag, String sqlStatement, List<IPreparedStatementParameter[]> parameterSets) {
+    QueryExecution execution = QueryExecution.startBatch(_db, profilerTag, sqlStatement, parameterSets.size());
+    try {
+      return _db.getDBExecutionKernel().executeInsertBatch(sqlStatement, parameterSets);
+    } finally {
+      QueryExecution.finish(execution);
+    }
+  }
+
+  @Override
+  public int[] updateBatch(String profilerTag, String sqlStatement, List<IPreparedStatementParameter[]> parameterSets) {
+    QueryExecution execution = QueryExecution.startBatch(_db, profilerTag, sqlStatement, parameterSets.size());
+    try {
+      return _db.getDBExecutionKernel().executeUpdateBatch(sqlStatement, parameterSets);
+    } finally {
+      QueryExecution.finish(execution);
+    }
+  }
+
+  @Override
+  public int[] deleteBatch(String profilerTag, String sqlStatement, List<IPreparedStatementParameter[]> parameterSets) {
+    QueryExecution execution = QueryExecution.startBatch(_db, profilerTag, sqlStatement, parameterSets.size());
+    try {
+      return _db.getDBExecutionKernel().executeDeleteBatch(sqlStatement, parameterSets);
+    } finally {
+      QueryExecution.finish(execution);
     }
   }
 
@@ -116,24 +160,64 @@ public class QueryExecutorImpl implements QueryExecutor {
   // TODO - AHK The general query execution API here just needs a weeeee bit of help
   public static class CachedDBQueryResultProcessor implements IQueryResultProcessor<IDBObject> {
     private IDBType _type;
+    private String _sql;
+    private IdentityMap _identityMap;
+    private ColumnIndexMapping _mapping;
+    private int _idOrdinal;
+    private int _hydratedCount;
 
     public CachedDBQueryResultProcessor(IDBType type) {
+      this(type, null, null);
+    }
+
+    public CachedDBQueryResultProcessor(IDBType type, String sql) {
+      this(type, sql, null);
+    }
+
+    public CachedDBQueryResultProcessor(IDBType type, String sql, IdentityMap identityMap) {
       _type = type;
+      _sql = sql;
+      _identityMap = identityMap;
+      _idOrdinal = type.getTable().getColumnOrdinal(DBTypeInfo.ID_COLUMN);
     }
 
     @Override
-    public CachedDBObject processResult(ResultSet result) throws SQLException {
-      return buildObject(_type, result);
+    public IDBObject processResult(ResultSet result) throws SQLException {
+      // Every row of the result set has the same shape, so the mapping only needs to be resolved for the first one
+      if (_mapping == null) {
+        _mapping = ColumnIndexMapping.forResultSet(_type.getTable(), _sql, result);
+      }
+      if (_identityMap == null || _idOrdinal == -1) {
+        _hydratedCount++;
+        return buildObject(_type, result, _mapping);
+      }
+
+      // Rows that have already been loaded in this transaction don't need to be hydrated again
+      IDBObject existing = _identityMap.get(_type.getTable(), _mapping.readValue(result, _idOrdinal));
+      if (existing != null) {
+        return existing;
+      }
+      _hydratedCount++;
+      return _identityMap.intern(buildObject(_type, result, _mapping));
+    }
+
+    /**
+     * Returns the number of rows that have been turned into new entities, rather than resolved to entities that were
+     * already loaded.
+     */
+    public int getHydratedCount() {
+      return _hydratedCount;
     }
   }
 
   public static CachedDBObject buildObject(IDBType type, ResultSet resultSet) throws SQLException {
+    return buildObject(type, resultSet, ColumnIndexMapping.forResultSet(type.getTable(), null, resultSet));
+  }
+
+  public static CachedDBObject buildObject(IDBType type, ResultSet resultSet, ColumnIndexMapping mapping) throws SQLException {
     CachedDBObject obj = new CachedDBObject(type, false);
-    IDBTable table = type.getTable();
-    for (IDBColumn column : table.getColumns()) {
-      Object resultObject = column.getColumnType().readFromResultSet(resultSet, table.getName() + "." + column.getName());
-      obj.setColumnValue(column.getName(), resultObject);
-    }
+    mapping.readInto(obj, resultSet);
+    obj.markClean();
     return obj;
   }
 }
@@ -0,0 +1,102 @@
+package tosa.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tosa.api.IQueryInstrumentation;
+import tosa.api.QueryExecution;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The standard IQueryInstrumentation, which records the latency of every query into a LatencyHistogram for its
+ * profiler tag.  On top of that, one in every sampleInterval queries is logged in full, with its SQL and parameters,
+ * to the "tosa.queries" logger at debug level; the log message is only built for the queries that are sampled.
+ *
+ * To use it, create one and install it with IDatabase.setQueryInstrumentation().
+ *
+ * ${License}
+ */
+public class QueryLatencyRecorder implements IQueryInstrumentation {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger("tosa.queries");
+
+  private final ConcurrentHashMap<String, LatencyHistogram> _histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+  private final AtomicLong _queryCount = new AtomicLong();
+  private volatile int _sampleInterval;
+
+  /**
+   * Creates a recorder that records latencies but doesn't log any samples.
+   */
+  public QueryLatencyRecorder() {
+    this(0);
+  }
+
+  /**
+   * @param sampleInterval log one in every sampleInterval queries, or none at all if this is 0
+   */
+  public QueryLatencyRecorder(int sampleInterval) {
+    setSampleInterval(sampleInterval);
+  }
+
+  public int getSampleInterval() {
+    return _sampleInterval;
+  }
+
+  public void setSampleInterval(int sampleInterval) {
+    if (sampleInterval < 0) {
+      throw new IllegalArgumentException("The sample interval must be 0 or more, but was " + sampleInterval);
+    }
+    _sampleInterval = sampleInterval;
+  }
+
+  @Override
+  public void queryExecuted(QueryExecution execution) {
+    getOrCreateHistogram(execution.getProfilerTag()).record(execution.getElapsedNanos());
+    if (isSampled()) {
+      LOGGER.debug(execution.getProfilerTag() + " took " + formatMillis(execution.getElapsedNanos()) + ": " + execution.describe());
+    }
+  }
+
+  /**
+   * Returns the histogram for the given profiler tag, or null if no queries have been recorded with it.
+   */
+  public LatencyHistogram getHistogram(String profilerTag) {
+    return _histograms.get(profilerTag);
+  }
+
+  /**
+   * Returns a snapshot of all the histograms recorded so far, sorted by profiler tag.
+   */
+  public Map<String, LatencyHistogram> getHistograms() {
+    return Collections.unmodifiableMap(new TreeMap<String, LatencyHistogram>(_histograms));
+  }
+
+  public void reset() {
+    _histograms.clear();
+  }
+
+  private LatencyHistogram getOrCreateHistogram(String profilerTag) {
+    LatencyHistogram histogram = _histograms.get(profilerTag);
+    if (histogram == null) {
+      LatencyHistogram newHistogram = new LatencyHistogram();
+      histogram = _histograms.putIfAbsent(profilerTag, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+      }
+    }
+    return histogram;
+  }
+
+  private boolean isSampled() {
+    int sampleInterval = _sampleInterval;
+    return sampleInterval != 0 && LOGGER.isDebugEnabled() && _queryCount.incrementAndGet() % sampleInterval == 0;
+  }
+
+  private static String formatMillis(long nanos) {
+    return (nanos / 1000) / 1000.0 + "ms";
+  }
+}
@@ -0,0 +1,231 @@
+package tosa.impl;
+
+import tosa.api.IQueryInstrumentation;
+import tosa.api.QueryExecution;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * An IQueryInstrumentation that keeps StatementMetrics for every distinct statement shape under every profiler tag:
+ * call and error counts, rows returned and hydrated, latency percentiles and the time spent waiting for a
+ * connection.  The shape of a statement is its SQL with literals replaced by ?, lists of parameters collapsed and
+ * whitespace normalized, so that an IN clause with three ids and one with thirty count as the same statement.
+ *
+ * A registry is normally created with DatabaseImpl.enableQueryMetrics(), which installs it on the database and
+ * registers it with the platform MBeanServer as tosa:type=QueryMetrics,namespace=(the database namespace).  The
+ * dump() operation, also available through DBManagementTool.dumpQueryMetrics(), prints the whole table.
+ *
+ * ${License}
+ */
+public class QueryMetricsRegistry implements IQueryInstrumentation, QueryMetricsRegistryMBean {
+
+  // Statements beyond this many shapes, which usually means SQL with values built into it, are lumped together
+  static final int MAX_STATEMENT_SHAPES = 1000;
+  static final String OTHER_SHAPE = "(other statements)";
+  private static final int MAX_CACHED_SHAPES = 1024;
+
+  private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+  private static final Pattern NUMERIC_LITERAL = Pattern.compile("(?<![\\w\"])-?\\d+(?:\\.\\d+)?(?![\\w\"])");
+  private static final Pattern PARAMETER_LIST = Pattern.compile("\\?(?:\\s*,\\s*\\?)+");
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+  private final String _namespace;
+  private final ConcurrentHashMap<String, ConcurrentHashMap<String, StatementMetrics>> _metrics = new ConcurrentHashMap<String, ConcurrentHashMap<String, StatementMetrics>>();
+  private final AtomicInteger _shapeCount = new AtomicInteger();
+  // Normalizing takes several regular expressions, so remember the shape of each SQL string we've seen
+  private final ConcurrentHashMap<String, String> _shapes = new ConcurrentHashMap<String, String>();
+
+  public QueryMetricsRegistry(String namespace) {
+    _namespace = namespace;
+  }
+
+  @Override
+  public void queryExecuted(QueryExecution execution) {
+    getOrCreateMetrics(execution.getProfilerTag(), getShape(execution.getSql())).record(execution);
+  }
+
+  /**
+   * Returns the metrics for the given profiler tag and statement shape, or null if no such statement has been run.
+   */
+  public StatementMetrics getStatementMetrics(String profilerTag, String shape) {
+    ConcurrentHashMap<String, StatementMetrics> metricsForTag = _metrics.get(profilerTag);
+    return metricsForTag == null ? null : metricsForTag.get(shape);
+  }
+
+  /**
+   * Returns a snapshot of the metrics for every statement shape, slowest in total first.
+   */
+  public List<StatementMetrics> getStatementMetrics() {
+    List<StatementMetrics> result = new ArrayList<StatementMetrics>();
+    for (ConcurrentHashMap<String, StatementMetrics> metricsForTag : _metrics.values()) {
+      result.addAll(metricsForTag.values());
+    }
+    Collections.sort(result, new Comparator<StatementMetrics>() {
+      @Override
+      public int compare(StatementMetrics o1, StatementMetrics o2) {
+        long total1 = o1.getLatency().getTotalNanos();
+        long total2 = o2.getLatency().getTotalNanos();
+        return total1 > total2 ? -1 : (total1 == total2 ? 0 : 1);
+      }
+    });
+    return result;
+  }
+
+  @Override
+  public String getNamespace() {
+    return _namespace;
+  }
+
+  @Override
+  public int getStatementShapeCount() {
+    return _shapeCount.get();
+  }
+
+  @Override
+  public long getTotalCalls() {
+    long total = 0;
+    for (StatementMetrics metrics : getStatementMetrics()) {
+      total += metrics.getCallCount();
+    }
+    return total;
+  }
+
+  @Override
+  public long getTotalErrors() {
+    long total = 0;
+    for (StatementMetrics metrics : getStatementMetrics()) {
+      total += metrics.getErrorCount();
+    }
+    return total;
+  }
+
+  @Override
+  public String dump() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Query metrics for ").append(_namespace).append("\n");
+    sb.append(String.format("%10s %8s %10s %10s %10s %10s %10s %12s  %s%n",
+        "calls", "errors", "rows", "hydrated", "p50 ms", "p99 ms", "max ms", "conn wait ms", "tag / statement"));
+    for (StatementMetrics metrics : getStatementMetrics()) {
+      LatencyHistogram latency = metrics.getLatency();
+      sb.append(String.format("%10d %8d %10d %10d %10.3f %10.3f %10.3f %12.3f  %s%n",
+          metrics.getCallCount(),
+          metrics.getErrorCount(),
+          metrics.getRowsReturned(),
+          metrics.getRowsHydrated(),
+          toMillis(latency.getValueAtPercentile(50)),
+          toMillis(latency.getValueAtPercentile(99)),
+          toMillis(latency.getMaxNanos()),
+          toMillis(metrics.getConnectionWaitNanos()),
+          metrics.getProfilerTag()));
+      sb.append(String.format("%90s  %s%n", "", metrics.getShape()));
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void reset() {
+    _metrics.clear();
+    _shapeCount.set(0);
+  }
+
+  /**
+   * Registers this registry with the platform MBeanServer, replacing anything already registered for its namespace.
+   */
+  public void registerMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = getObjectName();
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+    } catch (JMException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void unregisterMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = getObjectName();
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public ObjectName getObjectName() {
+    try {
+      return new ObjectName("tosa:type=QueryMetrics,namespace=" + ObjectName.quote(_namespace));
+    } catch (JMException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the shape of the given SQL:  string and numeric literals are replaced by ?, runs of comma-separated
+   * parameters are collapsed to "?, ..." and whitespace is collapsed to single spaces.
+   */
+  static String normalize(String sql) {
+    String shape = STRING_LITERAL.matcher(sql).replaceAll("?");
+    shape = NUMERIC_LITERAL.matcher(shape).replaceAll("?");
+    shape = PARAMETER_LIST.matcher(shape).replaceAll("?, ...");
+    return WHITESPACE.matcher(shape).replaceAll(" ").trim();
+  }
+
+  private String getShape(String sql) {
+    String shape = _shapes.get(sql);
+    if (shape == null) {
+      shape = normalize(sql);
+      if (_shapes.size() >= MAX_CACHED_SHAPES) {
+        _shapes.clear();
+      }
+      _shapes.put(sql, shape);
+    }
+    return shape;
+  }
+
+  private StatementMetrics getOrCreateMetrics(String profilerTag, String shape) {
+    ConcurrentHashMap<String, StatementMetrics> metricsForTag = _metrics.get(profilerTag);
+    if (metricsForTag == null) {
+      ConcurrentHashMap<String, StatementMetrics> newMetricsForTag = new ConcurrentHashMap<String, StatementMetrics>();
+      metricsForTag = _metrics.putIfAbsent(profilerTag, newMetricsForTag);
+      if (metricsForTag == null) {
+        metricsForTag = newMetricsForTag;
+      }
+    }
+    StatementMetrics metrics = metricsForTag.get(shape);
+    if (metrics == null) {
+      if (_shapeCount.get() >= MAX_STATEMENT_SHAPES) {
+        shape = OTHER_SHAPE;
+        metrics = metricsForTag.get(shape);
+        if (metrics != null) {
+          return metrics;
+        }
+      }
+      StatementMetrics newMetrics = new StatementMetrics(profilerTag, shape);
+      metrics = metricsForTag.putIfAbsent(shape, newMetrics);
+      if (metrics == null) {
+        metrics = newMetrics;
+        _shapeCount.incrementAndGet();
+      }
+    }
+    return metrics;
+  }
+
+  private static double toMillis(long nanos) {
+    return nanos / 1000000.0;
+  }
+}
@@ -0,0 +1,24 @@
+package tosa.impl;
+
+/**
+ * The JMX management interface of a QueryMetricsRegistry.
+ *
+ * ${License}
+ */
+public interface QueryMetricsRegistryMBean {
+
+  String getNamespace();
+
+  int getStatementShapeCount();
+
+  long getTotalCalls();
+
+  long getTotalErrors();
+
+  /**
+   * Returns a table of the metrics for every statement shape, slowest in total first.
+   */
+  String dump();
+
+  void reset();
+}
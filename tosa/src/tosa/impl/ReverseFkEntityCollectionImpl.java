@@ -1,6 +1,7 @@
 package tosa.impl;
 
 import gw.util.GosuExceptionUtil;
+import tosa.CachedDBObject;
 import tosa.api.EntityCollection;
 import tosa.api.IDBColumn;
 import tosa.api.IDBObject;
@@ -10,8 +11,15 @@ import tosa.loader.IDBType;
 import tosa.loader.data.DBColumnTypeImpl;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by IntelliJ IDEA.
@@ -23,6 +31,17 @@ import java.util.List;
 // TODO - AHK - This name pretty much sucks
 public class ReverseFkEntityCollectionImpl<T extends IDBObject> extends EntityCollectionImplBase<T> {
 
+  private static final SqlTemplate COUNT_SQL = SimpleSqlBuilder.compile("SELECT count(*) as count FROM ${fkTable} WHERE ${fkColumn} = ?");
+  private static final SqlTemplate CONTAINS_SQL = SimpleSqlBuilder.compile("SELECT count(*) as count FROM ${fkTable} WHERE ${fkColumn} = ? AND ${idColumn} = ?");
+  private static final SqlTemplate SELECT_SQL = SimpleSqlBuilder.compile("SELECT * FROM ${fkTable} WHERE ${fkColumn} = ? ORDER BY ${idColumn}");
+  private static final SqlTemplate SELECT_PAGE_SQL = SimpleSqlBuilder.compile("SELECT * FROM ${fkTable} WHERE ${fkColumn} = ?${afterId} ORDER BY ${idColumn} LIMIT ?");
+  private static final SqlTemplate AFTER_ID_SQL = SimpleSqlBuilder.compile(" AND ${idColumn} > ?");
+  private static final SqlTemplate SELECT_FOR_OWNERS_SQL = SimpleSqlBuilder.compile("SELECT * FROM ${fkTable} WHERE ${fkColumn} IN (${ownerIds}) ORDER BY ${idColumn}");
+  private static final SqlTemplate SET_FK_SQL = SimpleSqlBuilder.compile("UPDATE ${fkTable} SET ${fkColumn} = ? WHERE ${idColumn} = ?");
+  private static final SqlTemplate SET_FKS_SQL = SimpleSqlBuilder.compile("UPDATE ${fkTable} SET ${fkColumn} = ? WHERE ${idColumn} IN (${ids})");
+  private static final SqlTemplate CLEAR_FK_SQL = SimpleSqlBuilder.compile("UPDATE ${fkTable} SET ${fkColumn} = NULL WHERE ${idColumn} = ?");
+  private static final SqlTemplate CLEAR_FKS_SQL = SimpleSqlBuilder.compile("UPDATE ${fkTable} SET ${fkColumn} = NULL WHERE ${idColumn} IN (${ids})");
+
   private IDBColumn _fkColumn;
 
   public ReverseFkEntityCollectionImpl(IDBObject owner, IDBType fkType, IDBColumn fkColumn, QueryExecutor queryExecutor) {
@@ -33,32 +52,81 @@ public class ReverseFkEntityCollectionImpl<T extends IDBObject> extends EntityCo
 
   @Override
   protected int issueCountQuery() {
-    String text = SimpleSqlBuilder.substitute("SELECT count(*) as count FROM ${fkTable} WHERE ${fkColumn} = ?",
-        "fkTable", _fkType.getTable(),
-        "fkColumn", _fkColumn);
+    String text = COUNT_SQL.render(_fkType.getTable(), _fkColumn);
     IPreparedStatementParameter param = _fkColumn.wrapParameterValue(_owner.getColumnValue(DBTypeInfo.ID_COLUMN));
     return _queryExecutor.count("ReverseFkEntityCollectionImpl.size()", text, param);
   }
 
+  @Override
+  protected boolean containsImpl(T element) {
+    // The element's fk column says which array it's in, including any change that hasn't been written yet
+    return _owner.getId().equals(element.getColumnValue(_fkColumn.getName()));
+  }
+
+  @Override
+  protected boolean issueContainsQuery(long id) {
+    IDBColumn idColumn = _fkColumn.getTable().getColumn(DBTypeInfo.ID_COLUMN);
+    String text = CONTAINS_SQL.render(_fkType.getTable(), _fkColumn, idColumn);
+    IPreparedStatementParameter fkParam = _fkColumn.wrapParameterValue(_owner.getColumnValue(DBTypeInfo.ID_COLUMN));
+    IPreparedStatementParameter idParam = idColumn.wrapParameterValue(id);
+    return _queryExecutor.count("ReverseFkEntityCollectionImpl.containsId()", text, fkParam, idParam) > 0;
+  }
+
   @Override
   protected List<T> loadResults() {
     IDBColumn idColumn = _fkColumn.getTable().getColumn(DBTypeInfo.ID_COLUMN);
-    String sql = SimpleSqlBuilder.substitute("SELECT * FROM ${fkTable} WHERE ${fkColumn} = ? ORDER BY ${idColumn}",
-        "fkTable", _fkColumn.getTable(),
-        "fkColumn", _fkColumn,
-        "idColumn", idColumn);
+    String sql = SELECT_SQL.render(_fkColumn.getTable(), _fkColumn, idColumn);
     IPreparedStatementParameter param = _fkColumn.wrapParameterValue(_owner.getColumnValue(DBTypeInfo.ID_COLUMN));
     return (List<T>) _queryExecutor.selectEntity("ReverseFkEntityCollectionImpl.loadResultsIfNecessary()", _fkType, sql, param);
   }
 
+  @Override
+  protected List<T> loadPage(Long afterId, int pageSize) {
+    IDBColumn idColumn = _fkColumn.getTable().getColumn(DBTypeInfo.ID_COLUMN);
+    String sql = SELECT_PAGE_SQL.render(_fkColumn.getTable(), _fkColumn, afterId == null ? "" : AFTER_ID_SQL.render(idColumn), idColumn);
+    List<IPreparedStatementParameter> params = new ArrayList<IPreparedStatementParameter>();
+    params.add(_fkColumn.wrapParameterValue(_owner.getColumnValue(DBTypeInfo.ID_COLUMN)));
+    if (afterId != null) {
+      params.add(idColumn.wrapParameterValue(afterId));
+    }
+    params.add(idColumn.wrapParameterValue(pageSize));
+    return (List<T>) _queryExecutor.selectEntity("ReverseFkEntityCollectionImpl.loadPage()", _fkType, sql,
+        params.toArray(new IPreparedStatementParameter[params.size()]));
+  }
+
+  @Override
+  protected Map<Long, List<T>> loadResults(List<Long> ownerIds) {
+    ownerIds = FkPrefetcher.padInList(ownerIds);
+    IDBColumn idColumn = _fkColumn.getTable().getColumn(DBTypeInfo.ID_COLUMN);
+    String sql = SELECT_FOR_OWNERS_SQL.render(_fkColumn.getTable(), _fkColumn, Collections.nCopies(ownerIds.size(), "?"), idColumn);
+    IPreparedStatementParameter[] params = new IPreparedStatementParameter[ownerIds.size()];
+    for (int i = 0; i < params.length; i++) {
+      params[i] = _fkColumn.wrapParameterValue(ownerIds.get(i));
+    }
+
+    // The rows are ordered by id, so each owner's rows stay in the same order that loadResults() would give them
+    Map<Long, List<T>> results = new HashMap<Long, List<T>>();
+    for (IDBObject element : _queryExecutor.selectEntity("ReverseFkEntityCollectionImpl.loadResults()", _fkType, sql, params)) {
+      Long ownerId = (Long) element.getColumnValue(_fkColumn.getName());
+      List<T> ownerResults = results.get(ownerId);
+      if (ownerResults == null) {
+        ownerResults = new ArrayList<T>();
+        results.put(ownerId, ownerResults);
+      }
+      ownerResults.add((T) element);
+    }
+    return results;
+  }
+
   @Override
   protected void addImpl(T element) {
     Object existingId = element.getColumnValue(_fkColumn.getName());
     if (existingId == null) {
       // We always set the back-pointer and the column
       element.setFkValue(_fkColumn.getName(), _owner);
-      if (element.isNew()) {
-        // For newly-created elements, we insert them immediately
+      if (element.isNew() || UnitOfWorkImpl.getCurrent(_owner.getDBTable().getDatabase()) != null) {
+        // For newly-created elements, we insert them immediately, and within a unit of work update() just records
+        // the change so that the new fk value is written when the unit of work is flushed
         try {
           element.update();
         } catch (SQLException e) {
@@ -67,17 +135,16 @@ public class ReverseFkEntityCollectionImpl<T extends IDBObject> extends EntityCo
       } else {
         // For entities already in the database, we issue the update statement in the database directly
         IDBColumn idColumn = _fkColumn.getTable().getColumn(DBTypeInfo.ID_COLUMN);
-        String updateSql = SimpleSqlBuilder.substitute("UPDATE ${fkTable} SET ${fkColumn} = ? WHERE ${idColumn} = ?",
-            "fkTable", _fkColumn.getTable(),
-            "fkColumn", _fkColumn,
-            "idColumn", idColumn);
+        String updateSql = SET_FK_SQL.render(_fkColumn.getTable(), _fkColumn, idColumn);
         IPreparedStatementParameter fkParam = idColumn.wrapParameterValue(_owner.getColumnValue(DBTypeInfo.ID_COLUMN));
         IPreparedStatementParameter idParam = idColumn.wrapParameterValue(element.getColumnValue(DBTypeInfo.ID_COLUMN));
         _queryExecutor.update("ReverseFkEntityCollectionImpl.add()", updateSql, fkParam, idParam);
+        markFkClean(element);
+        EntityCache.invalidate(element);
       }
       if (_cachedResults != null) {
         // TODO - AHK - Unclear if the list should be re-sorted, or if it should be added in insertion order
-        _cachedResults.add(element);
+        addToCachedResults(element);
       }
     } else if (existingId.equals(_owner.getColumnValue(DBTypeInfo.ID_COLUMN))) {
       // That's fine, it's a no-op, but we still want to set the fk value so you get the right pointer back when you reference the fk
@@ -87,6 +154,91 @@ public class ReverseFkEntityCollectionImpl<T extends IDBObject> extends EntityCo
     }
   }
 
+  @Override
+  protected void addAllImpl(List<T> elements) {
+    Object ownerId = _owner.getColumnValue(DBTypeInfo.ID_COLUMN);
+    // Validate everything up front, so that nothing is changed if any of the elements belongs to another owner
+    for (T element : elements) {
+      Object existingId = element.getColumnValue(_fkColumn.getName());
+      if (existingId != null && !existingId.equals(ownerId)) {
+        throw new IllegalArgumentException("The element with id " + element.getColumnValue(DBTypeInfo.ID_COLUMN) + " is already attached to another owner, with id " + existingId);
+      }
+    }
+
+    List<T> added = new ArrayList<T>();
+    List<Long> idsToUpdate = new ArrayList<Long>();
+    for (T element : elements) {
+      boolean alreadyAttached = element.getColumnValue(_fkColumn.getName()) != null;
+      element.setFkValue(_fkColumn.getName(), _owner);
+      if (alreadyAttached) {
+        continue;
+      }
+      if (element.isNew()) {
+        try {
+          element.update();
+        } catch (SQLException e) {
+          GosuExceptionUtil.forceThrow(e);
+        }
+      } else {
+        idsToUpdate.add(element.getId());
+      }
+      added.add(element);
+    }
+
+    IDBColumn idColumn = _fkColumn.getTable().getColumn(DBTypeInfo.ID_COLUMN);
+    for (List<Long> ids : chunk(idsToUpdate)) {
+      String updateSql = SET_FKS_SQL.render(_fkColumn.getTable(), _fkColumn, idColumn, Collections.nCopies(ids.size(), "?"));
+      IPreparedStatementParameter[] params = new IPreparedStatementParameter[ids.size() + 1];
+      params[0] = _fkColumn.wrapParameterValue(ownerId);
+      for (int i = 0; i < ids.size(); i++) {
+        params[i + 1] = idColumn.wrapParameterValue(ids.get(i));
+      }
+      _queryExecutor.update("ReverseFkEntityCollectionImpl.addAll()", updateSql, params);
+      markFkClean(added, ids);
+    }
+    for (T element : added) {
+      EntityCache.invalidate(element);
+    }
+
+    if (_cachedResults != null) {
+      for (T element : added) {
+        addToCachedResults(element);
+      }
+    }
+  }
+
+  @Override
+  protected void removeAllImpl(List<T> elements) {
+    for (T element : elements) {
+      Object fkId = element.getColumnValue(_fkColumn.getName());
+      if (!_owner.getId().equals(fkId)) {
+        throw new IllegalArgumentException("The element with id " + element.getId() + " is not a member of the array on element " + _owner.getId());
+      }
+    }
+
+    Set<Long> removedIds = new LinkedHashSet<Long>();
+    for (T element : elements) {
+      element.setFkValue(_fkColumn.getName(), null);
+      removedIds.add(element.getId());
+    }
+
+    IDBColumn idColumn = _fkColumn.getTable().getColumn(DBTypeInfo.ID_COLUMN);
+    for (List<Long> ids : chunk(new ArrayList<Long>(removedIds))) {
+      String updateSql = CLEAR_FKS_SQL.render(_fkColumn.getTable(), _fkColumn, idColumn, Collections.nCopies(ids.size(), "?"));
+      IPreparedStatementParameter[] params = new IPreparedStatementParameter[ids.size()];
+      for (int i = 0; i < ids.size(); i++) {
+        params[i] = idColumn.wrapParameterValue(ids.get(i));
+      }
+      _queryExecutor.update("ReverseFkEntityCollectionImpl.removeAll()", updateSql, params);
+      markFkClean(elements, ids);
+    }
+    for (T element : elements) {
+      EntityCache.invalidate(element);
+    }
+
+    removeFromCachedResults(removedIds);
+  }
+
   @Override
   protected void removeImpl(T element) {
     Object fkId = element.getColumnValue(_fkColumn.getName());
@@ -95,22 +247,43 @@ public class ReverseFkEntityCollectionImpl<T extends IDBObject> extends EntityCo
     }
 
     element.setFkValue(_fkColumn.getName(), null);
-    IDBColumn idColumn = _fkColumn.getTable().getColumn(DBTypeInfo.ID_COLUMN);
-    String updateSql = SimpleSqlBuilder.substitute("UPDATE ${fkTable} SET ${fkColumn} = NULL WHERE ${idColumn} = ?",
-        "fkTable", _fkColumn.getTable(),
-        "fkColumn", _fkColumn,
-        "idColumn", idColumn);
-    IPreparedStatementParameter idParam = idColumn.wrapParameterValue(element.getColumnValue(DBTypeInfo.ID_COLUMN));
-    _queryExecutor.update("ReverseFkEntityCollectionImpl.remove()", updateSql, idParam);
+    if (UnitOfWorkImpl.getCurrent(_owner.getDBTable().getDatabase()) != null) {
+      try {
+        element.update();
+      } catch (SQLException e) {
+        GosuExceptionUtil.forceThrow(e);
+      }
+    } else {
+      IDBColumn idColumn = _fkColumn.getTable().getColumn(DBTypeInfo.ID_COLUMN);
+      String updateSql = CLEAR_FK_SQL.render(_fkColumn.getTable(), _fkColumn, idColumn);
+      IPreparedStatementParameter idParam = idColumn.wrapParameterValue(element.getColumnValue(DBTypeInfo.ID_COLUMN));
+      _queryExecutor.update("ReverseFkEntityCollectionImpl.remove()", updateSql, idParam);
+      markFkClean(element);
+      EntityCache.invalidate(element);
+    }
 
     if (_cachedResults != null) {
       // The _cachedResults might contain a different pointer, so we have to match up by id
-      for (int i = 0; i < _cachedResults.size(); i++) {
-        if (element.getId().equals(_cachedResults.get(i).getId())) {
-          _cachedResults.remove(i);
-          break;
-        }
+      int position = indexOfId(element.getId());
+      if (position != -1) {
+        removeFromCachedResults(position);
       }
     }
   }
+
+  private void markFkClean(List<T> elements, List<Long> writtenIds) {
+    Set<Long> written = new HashSet<Long>(writtenIds);
+    for (T element : elements) {
+      if (written.contains(element.getId())) {
+        markFkClean(element);
+      }
+    }
+  }
+
+  private void markFkClean(T element) {
+    // The fk was written by a statement of our own, so a later update() mustn't send it again
+    if (element instanceof CachedDBObject) {
+      ((CachedDBObject) element).markColumnClean(_fkColumn);
+    }
+  }
 }
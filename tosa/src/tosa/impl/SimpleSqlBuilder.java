@@ -4,7 +4,6 @@ import tosa.api.IDBColumn;
 import tosa.api.IDBTable;
 import tosa.loader.IDBType;
 
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -57,6 +56,15 @@ public class SimpleSqlBuilder {
     return substituteString(sql, substitutionMap);
   }
 
+  /**
+   * Parses the given template once, so that it can be rendered repeatedly without being rescanned.  Each distinct
+   * ${name} token in the template becomes a positional argument to SqlTemplate.render(), numbered in the order in
+   * which the tokens first appear.
+   */
+  public static SqlTemplate compile(String sql) {
+    return new SqlTemplate(sql);
+  }
+
   private static String substituteString(String source, Map<String, Object> values) {
     StringBuilder result = new StringBuilder();
     boolean parsingToken = false;
@@ -69,8 +77,7 @@ public class SimpleSqlBuilder {
           if (!values.containsKey(tokenName)) {
             throw new IllegalArgumentException("No substitution value was found for the token " + tokenName + ".  Source was " + source + " and values are " + values);
           }
-          Object newValue = values.get(tokenName);
-          result.append(maybeQuote(newValue));
+          appendValue(result, values.get(tokenName));
           parsingToken = false;
         }
         i++;
@@ -89,25 +96,23 @@ public class SimpleSqlBuilder {
     return result.toString();
   }
 
-  private static String maybeQuote(Object value) {
+  static void appendValue(StringBuilder result, Object value) {
     if (value instanceof Iterable) {
-      StringBuilder values = new StringBuilder();
       boolean first = true;
-      for (Object v : ((Collection) value)) {
+      for (Object v : ((Iterable) value)) {
         if (first) {
           first = false;
         } else {
-          values.append(", ");
+          result.append(", ");
         }
-        values.append(maybeQuote(v));
+        appendValue(result, v);
       }
-      return values.toString();
     } else if (value instanceof IDBColumn) {
-      return "\"" + ((IDBColumn) value).getName() + "\"";
+      result.append(((IDBColumn) value).getQuotedName());
     } else if (value instanceof IDBTable) {
-      return "\"" + ((IDBTable) value).getName() + "\"";
+      result.append(((IDBTable) value).getQuotedName());
     } else {
-      return value.toString();
+      result.append(value.toString());
     }
   }
 }
@@ -0,0 +1,92 @@
+package tosa.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A SQL template in the ${name} syntax used by SimpleSqlBuilder, parsed once into alternating literal and
+ * placeholder segments.  Rendering it only has to append the segments and the quoted values, so the statements
+ * that are built on every insert, update, delete and collection query can be kept in constants rather than being
+ * rescanned on every call.
+ *
+ * Templates are created with SimpleSqlBuilder.compile().
+ *
+ * ${License}
+ */
+public class SqlTemplate {
+
+  // Rough allowance for each rendered value, used to pre-size the builder
+  private static final int ESTIMATED_VALUE_LENGTH = 16;
+
+  private final String _source;
+  // _literals[i] comes before the placeholder whose argument index is _placeholders[i]; the last literal has no
+  // placeholder after it
+  private final String[] _literals;
+  private final int[] _placeholders;
+  private final String[] _names;
+  private final int _literalLength;
+
+  SqlTemplate(String source) {
+    List<String> literals = new ArrayList<String>();
+    List<Integer> placeholders = new ArrayList<Integer>();
+    List<String> names = new ArrayList<String>();
+    int literalStart = 0;
+    int i = source.indexOf("${");
+    while (i != -1) {
+      int tokenEnd = source.indexOf('}', i + 2);
+      if (tokenEnd == -1) {
+        throw new IllegalArgumentException("Unterminated token at position " + i + " of " + source);
+      }
+      String tokenName = source.substring(i + 2, tokenEnd);
+      int index = names.indexOf(tokenName);
+      if (index == -1) {
+        index = names.size();
+        names.add(tokenName);
+      }
+      literals.add(source.substring(literalStart, i));
+      placeholders.add(index);
+      literalStart = tokenEnd + 1;
+      i = source.indexOf("${", literalStart);
+    }
+    literals.add(source.substring(literalStart));
+
+    _source = source;
+    _literals = literals.toArray(new String[literals.size()]);
+    _placeholders = new int[placeholders.size()];
+    for (int j = 0; j < _placeholders.length; j++) {
+      _placeholders[j] = placeholders.get(j);
+    }
+    _names = names.toArray(new String[names.size()]);
+    int literalLength = 0;
+    for (String literal : _literals) {
+      literalLength += literal.length();
+    }
+    _literalLength = literalLength;
+  }
+
+  /**
+   * Renders the template with the given values, one for each distinct token in the order in which the tokens first
+   * appear.  Values are quoted and joined in exactly the same way as by SimpleSqlBuilder.substitute().
+   */
+  public String render(Object... values) {
+    if (values.length != _names.length) {
+      throw new IllegalArgumentException("Expected " + _names.length + " values for the tokens of " + _source + " but got " + values.length);
+    }
+    StringBuilder result = new StringBuilder(_literalLength + _placeholders.length * ESTIMATED_VALUE_LENGTH);
+    for (int i = 0; i < _placeholders.length; i++) {
+      result.append(_literals[i]);
+      Object value = values[_placeholders[i]];
+      if (value == null) {
+        throw new IllegalArgumentException("No substitution value was found for the token " + _names[_placeholders[i]] + ".  Source was " + _source);
+      }
+      SimpleSqlBuilder.appendValue(result, value);
+    }
+    result.append(_literals[_literals.length - 1]);
+    return result.toString();
+  }
+
+  @Override
+  public String toString() {
+    return _source;
+  }
+}
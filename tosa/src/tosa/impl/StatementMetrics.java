@@ -0,0 +1,78 @@
+package tosa.impl;
+
+import tosa.api.QueryExecution;
+
+/**
+ * The metrics a QueryMetricsRegistry keeps for one statement shape under one profiler tag.  All of the counters
+ * stripe themselves once queries of the same shape running on different threads start to contend on them.
+ *
+ * ${License}
+ */
+public class StatementMetrics {
+
+  private final String _profilerTag;
+  private final String _shape;
+  private final StripedCounter _calls = new StripedCounter();
+  private final StripedCounter _errors = new StripedCounter();
+  private final StripedCounter _rowsReturned = new StripedCounter();
+  private final StripedCounter _rowsHydrated = new StripedCounter();
+  private final StripedCounter _connectionWaitNanos = new StripedCounter();
+  private final LatencyHistogram _latency = new LatencyHistogram();
+
+  StatementMetrics(String profilerTag, String shape) {
+    _profilerTag = profilerTag;
+    _shape = shape;
+  }
+
+  void record(QueryExecution execution) {
+    _calls.increment();
+    if (!execution.isSucceeded()) {
+      _errors.increment();
+    }
+    if (execution.getRowCount() > 0) {
+      _rowsReturned.add(execution.getRowCount());
+    }
+    if (execution.getRowsHydrated() > 0) {
+      _rowsHydrated.add(execution.getRowsHydrated());
+    }
+    if (execution.getConnectionWaitNanos() > 0) {
+      _connectionWaitNanos.add(execution.getConnectionWaitNanos());
+    }
+    _latency.record(execution.getElapsedNanos());
+  }
+
+  public String getProfilerTag() {
+    return _profilerTag;
+  }
+
+  /**
+   * Returns the normalized SQL of the statements counted here.
+   */
+  public String getShape() {
+    return _shape;
+  }
+
+  public long getCallCount() {
+    return _calls.sum();
+  }
+
+  public long getErrorCount() {
+    return _errors.sum();
+  }
+
+  public long getRowsReturned() {
+    return _rowsReturned.sum();
+  }
+
+  public long getRowsHydrated() {
+    return _rowsHydrated.sum();
+  }
+
+  public long getConnectionWaitNanos() {
+    return _connectionWaitNanos.sum();
+  }
+
+  public LatencyHistogram getLatency() {
+    return _latency;
+  }
+}
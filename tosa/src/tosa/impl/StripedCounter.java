@@ -0,0 +1,80 @@
+package tosa.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that starts out as a single AtomicLong and only spreads over several cells, each on its own cache line,
+ * once two threads actually collide on it.  Most counters are never contended, so they cost no more than an
+ * AtomicLong; the ones that are get striped so that threads adding to them at the same time mostly touch different
+ * memory.  Threads are assigned to cells by id.  Reading the total has to add up all of the cells, so this suits
+ * counters that are written far more often than they're read.
+ *
+ * ${License}
+ */
+public class StripedCounter {
+
+  // Longs per cell, so that each cell sits on its own 64-byte cache line
+  private static final int PADDING = 8;
+  private static final int MAX_STRIPES = 16;
+
+  static final int STRIPES;
+  static {
+    int stripes = 1;
+    while (stripes < Runtime.getRuntime().availableProcessors() && stripes < MAX_STRIPES) {
+      stripes <<= 1;
+    }
+    STRIPES = stripes;
+  }
+
+  private final AtomicLong _base = new AtomicLong();
+  private volatile AtomicLongArray _cells;
+
+  public void increment() {
+    add(1);
+  }
+
+  public void add(long delta) {
+    AtomicLongArray cells = _cells;
+    if (cells == null) {
+      long base = _base.get();
+      if (_base.compareAndSet(base, base + delta)) {
+        return;
+      }
+      cells = createCells();
+    }
+    cells.addAndGet(currentStripe() * PADDING, delta);
+  }
+
+  public long sum() {
+    long sum = _base.get();
+    AtomicLongArray cells = _cells;
+    if (cells != null) {
+      for (int i = 0; i < cells.length(); i += PADDING) {
+        sum += cells.get(i);
+      }
+    }
+    return sum;
+  }
+
+  public void reset() {
+    _base.set(0);
+    AtomicLongArray cells = _cells;
+    if (cells != null) {
+      for (int i = 0; i < cells.length(); i += PADDING) {
+        cells.set(i, 0);
+      }
+    }
+  }
+
+  static int currentStripe() {
+    return (int) Thread.currentThread().getId() & (STRIPES - 1);
+  }
+
+  private synchronized AtomicLongArray createCells() {
+    if (_cells == null) {
+      _cells = new AtomicLongArray(STRIPES * PADDING);
+    }
+    return _cells;
+  }
+}
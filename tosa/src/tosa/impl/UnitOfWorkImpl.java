@@ -0,0 +1,519 @@
+package tosa.impl;
+
+import tosa.CachedDBObject;
+import tosa.DBConnection;
+import tosa.api.BatchResult;
+import tosa.api.IDBColumn;
+import tosa.api.IDBConnection;
+import tosa.api.IDBObject;
+import tosa.api.IDBTable;
+import tosa.api.IDatabase;
+import tosa.api.IPreparedStatementParameter;
+import tosa.api.IRequestScope;
+import tosa.api.IUnitOfWork;
+import tosa.dbmd.DatabaseImpl;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The default IUnitOfWork implementation.  Entities are tracked by identity rather than by equals(), since the
+ * equality of a CachedDBObject depends on its (mutable) column values.
+ *
+ * ${License}
+ */
+public class UnitOfWorkImpl implements IUnitOfWork {
+
+  private static final String PROFILER_TAG = "UnitOfWorkImpl.flush()";
+
+  private final DatabaseImpl _database;
+  private final QueryExecutor _queryExecutor;
+  private final List<CachedDBObject> _new;
+  private final List<CachedDBObject> _dirty;
+  private final List<CachedDBObject> _deleted;
+  private final List<JoinChange> _joinChanges;
+  private final IRequestScope _requestScope;
+  private boolean _closed;
+
+  public UnitOfWorkImpl(DatabaseImpl database) {
+    this(database, null);
+  }
+
+  /**
+   * @param requestScope the request scope that pins a connection for the life of this unit of work, which is closed
+   * along with it, or null
+   */
+  public UnitOfWorkImpl(DatabaseImpl database, IRequestScope requestScope) {
+    _database = database;
+    _requestScope = requestScope;
+    _queryExecutor = new QueryExecutorImpl(database);
+    _new = new ArrayList<CachedDBObject>();
+    _dirty = new ArrayList<CachedDBObject>();
+    _deleted = new ArrayList<CachedDBObject>();
+    _joinChanges = new ArrayList<JoinChange>();
+  }
+
+  /**
+   * Returns the unit of work open on the current thread for the given database, or null if there isn't one.
+   *
+   * @param database the database
+   * @return the current unit of work, or null
+   */
+  public static UnitOfWorkImpl getCurrent(IDatabase database) {
+    if (database instanceof DatabaseImpl) {
+      return ((DatabaseImpl) database).getCurrentUnitOfWork();
+    } else {
+      return null;
+    }
+  }
+
+  // --------------- Recording changes
+
+  public void registerSave(CachedDBObject entity) {
+    checkOpen();
+    if (entity.isNew()) {
+      if (!containsIdentical(_new, entity)) {
+        _new.add(entity);
+      }
+    } else if (!containsIdentical(_dirty, entity) && !containsIdentical(_deleted, entity)) {
+      _dirty.add(entity);
+    }
+  }
+
+  public void registerDelete(CachedDBObject entity) {
+    checkOpen();
+    if (removeIdentical(_new, entity)) {
+      // It was never written, so there's nothing to delete, but any join rows pointing at it can't be written either
+      for (int i = _joinChanges.size() - 1; i >= 0; i--) {
+        if (_joinChanges.get(i)._element == entity || _joinChanges.get(i)._owner == entity) {
+          _joinChanges.remove(i);
+        }
+      }
+    } else if (!entity.isNew()) {
+      removeIdentical(_dirty, entity);
+      if (!containsIdentical(_deleted, entity)) {
+        _deleted.add(entity);
+      }
+    }
+  }
+
+  public void registerJoinInsert(IDBColumn srcColumn, IDBColumn targetColumn, IDBObject owner, IDBObject element) {
+    registerJoinChange(new JoinChange(srcColumn, targetColumn, owner, element, true));
+  }
+
+  public void registerJoinDelete(IDBColumn srcColumn, IDBColumn targetColumn, IDBObject owner, IDBObject element) {
+    registerJoinChange(new JoinChange(srcColumn, targetColumn, owner, element, false));
+  }
+
+  /**
+   * Returns whether the given element will be in the given join array once this unit of work is flushed, if that's
+   * been changed by a recorded join insert or delete.
+   *
+   * @return TRUE or FALSE if there's a recorded change for the element, or null if there isn't one
+   */
+  public Boolean getPendingJoinMembership(IDBColumn srcColumn, IDBColumn targetColumn, IDBObject owner, IDBObject element) {
+    JoinChange probe = new JoinChange(srcColumn, targetColumn, owner, element, true);
+    for (int i = _joinChanges.size() - 1; i >= 0; i--) {
+      JoinChange change = _joinChanges.get(i);
+      if (change.matches(probe)) {
+        return change._insert;
+      }
+    }
+    return null;
+  }
+
+  private void registerJoinChange(JoinChange newChange) {
+    checkOpen();
+    // An insert followed by a delete of the same join row (or vice versa) simply cancels out
+    for (int i = _joinChanges.size() - 1; i >= 0; i--) {
+      JoinChange change = _joinChanges.get(i);
+      if (change.matches(newChange)) {
+        if (change._insert != newChange._insert) {
+          _joinChanges.remove(i);
+        }
+        return;
+      }
+    }
+    _joinChanges.add(newChange);
+  }
+
+  // --------------- IUnitOfWork methods
+
+  @Override
+  public boolean hasPendingChanges() {
+    return !_new.isEmpty() || !_dirty.isEmpty() || !_deleted.isEmpty() || !_joinChanges.isEmpty();
+  }
+
+  @Override
+  public void flush() {
+    checkOpen();
+    if (!hasPendingChanges()) {
+      return;
+    }
+
+    IDBConnection connection = _database.getConnection();
+    boolean ownTransaction = !connection.isInTransaction();
+    List<CachedDBObject> inserted = new ArrayList<CachedDBObject>();
+    List<ResolvedFk> resolvedFks = new ArrayList<ResolvedFk>();
+    Savepoint savepoint = null;
+    boolean success = false;
+    try {
+      if (ownTransaction) {
+        connection.startTransaction();
+      } else {
+        // The caller's transaction carries on after a failed flush, so only this flush's statements are undone
+        savepoint = setSavepoint(connection);
+      }
+      try {
+        insertNewEntities(inserted, resolvedFks);
+        for (CachedDBObject entity : _dirty) {
+          recordResolvedFks(entity, resolvedFks);
+        }
+        writeJoinChanges(true);
+        updateDirtyEntities();
+        writeJoinChanges(false);
+        deleteEntities();
+        if (ownTransaction) {
+          connection.commitTransaction();
+        }
+        success = true;
+      } finally {
+        if (ownTransaction) {
+          connection.endTransaction();
+        } else {
+          endSavepoint(connection, savepoint, success);
+        }
+      }
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    } finally {
+      if (!success) {
+        // Whatever was written has been rolled back, with either the transaction or the savepoint, so put the
+        // in-memory objects back the way they were so that a later flush works
+        for (CachedDBObject entity : inserted) {
+          entity.revertToNew();
+        }
+        for (ResolvedFk resolvedFk : resolvedFks) {
+          resolvedFk._entity.setColumnValue(resolvedFk._columnName, null);
+        }
+      }
+    }
+
+    for (CachedDBObject entity : _dirty) {
+      entity.markClean();
+    }
+    _new.clear();
+    _dirty.clear();
+    _deleted.clear();
+    _joinChanges.clear();
+  }
+
+  @Override
+  public void close() {
+    if (!_closed) {
+      _closed = true;
+      try {
+        _database.endUnitOfWork(this);
+      } finally {
+        if (_requestScope != null) {
+          _requestScope.close();
+        }
+      }
+    }
+  }
+
+  // --------------- Flushing
+
+  private static Savepoint setSavepoint(IDBConnection connection) throws SQLException {
+    Connection conn = connection.connect();
+    try {
+      return conn.setSavepoint();
+    } finally {
+      conn.close();
+    }
+  }
+
+  private static void endSavepoint(IDBConnection connection, Savepoint savepoint, boolean success) throws SQLException {
+    Connection conn = connection.connect();
+    try {
+      if (success) {
+        conn.releaseSavepoint(savepoint);
+      } else {
+        conn.rollback(savepoint);
+      }
+    } finally {
+      conn.close();
+    }
+  }
+
+  private void insertNewEntities(List<CachedDBObject> inserted, List<ResolvedFk> resolvedFks) {
+    boolean batchInsertsReportKeys = DBConnection.reportsGeneratedKeysForBatches(_database.getConnection().getConnectionURL());
+    List<CachedDBObject> remaining = new ArrayList<CachedDBObject>(_new);
+    while (!remaining.isEmpty()) {
+      // Each pass inserts everything whose fk targets already have ids, so parents always precede their children
+      List<CachedDBObject> ready = new ArrayList<CachedDBObject>();
+      for (CachedDBObject entity : remaining) {
+        if (!dependsOnAnyOf(entity, remaining)) {
+          ready.add(entity);
+        }
+      }
+      if (ready.isEmpty()) {
+        throw new IllegalStateException("The unsaved entities in this unit of work have circular fk references, so they cannot be inserted");
+      }
+
+      Map<String, List<CachedDBObject>> groups = new LinkedHashMap<String, List<CachedDBObject>>();
+      Map<String, List<IPreparedStatementParameter[]>> parameters = new HashMap<String, List<IPreparedStatementParameter[]>>();
+      for (CachedDBObject entity : ready) {
+        recordResolvedFks(entity, resolvedFks);
+        WriteStatement insert = entity.buildInsertStatement();
+        addToGroup(groups, parameters, insert, entity);
+      }
+
+      for (Map.Entry<String, List<CachedDBObject>> group : groups.entrySet()) {
+        List<CachedDBObject> entities = group.getValue();
+        List<IPreparedStatementParameter[]> parameterSets = parameters.get(group.getKey());
+        IDBTable table = entities.get(0).getDBTable();
+        if (entities.size() > 1 && (batchInsertsReportKeys || !table.hasId())) {
+          BatchResult result = _queryExecutor.insertBatch(PROFILER_TAG, group.getKey(), parameterSets);
+          if (table.hasId()) {
+            if (!result.hasGeneratedKeyPerRow()) {
+              throw new IllegalStateException("Expected " + entities.size() + " generated keys from the batch insert " + group.getKey() + " but got " + result.getGeneratedKeys().size());
+            }
+            for (int i = 0; i < entities.size(); i++) {
+              entities.get(i).assignGeneratedId(result.getGeneratedKeys().get(i));
+              inserted.add(entities.get(i));
+            }
+          }
+        } else {
+          // Without a key for every row, the only way to get the ids back is to insert the rows one at a time
+          for (int i = 0; i < entities.size(); i++) {
+            Object id = _queryExecutor.insert(PROFILER_TAG, group.getKey(), parameterSets.get(i));
+            if (id != null) {
+              entities.get(i).assignGeneratedId(id);
+              inserted.add(entities.get(i));
+            }
+          }
+        }
+      }
+
+      for (CachedDBObject entity : ready) {
+        removeIdentical(remaining, entity);
+      }
+    }
+  }
+
+  private void updateDirtyEntities() {
+    Map<String, List<CachedDBObject>> groups = new LinkedHashMap<String, List<CachedDBObject>>();
+    Map<String, List<IPreparedStatementParameter[]>> parameters = new HashMap<String, List<IPreparedStatementParameter[]>>();
+    for (CachedDBObject entity : _dirty) {
+      WriteStatement update = entity.buildUpdateStatement();
+      if (update != null) {
+        addToGroup(groups, parameters, update, entity);
+      }
+    }
+    executeGroups(groups.keySet(), parameters, false);
+
+    for (CachedDBObject entity : _dirty) {
+      EntityCache.invalidate(entity);
+    }
+  }
+
+  private void deleteEntities() {
+    // Rows are deleted in the reverse of fk dependency order, so that nothing is deleted while still referenced
+    final Map<IDBTable, Integer> tableOrder = computeTableOrder();
+    List<CachedDBObject> deleted = new ArrayList<CachedDBObject>(_deleted);
+    Collections.sort(deleted, new Comparator<CachedDBObject>() {
+      @Override
+      public int compare(CachedDBObject o1, CachedDBObject o2) {
+        return tableOrder.get(o2.getDBTable()) - tableOrder.get(o1.getDBTable());
+      }
+    });
+
+    Map<String, List<CachedDBObject>> groups = new LinkedHashMap<String, List<CachedDBObject>>();
+    Map<String, List<IPreparedStatementParameter[]>> parameters = new HashMap<String, List<IPreparedStatementParameter[]>>();
+    for (CachedDBObject entity : deleted) {
+      addToGroup(groups, parameters, entity.buildDeleteStatement(), entity);
+    }
+    executeGroups(groups.keySet(), parameters, true);
+
+    IdentityMap identityMap = IdentityMap.getCurrent(_database);
+    for (CachedDBObject entity : deleted) {
+      EntityCache.invalidate(entity);
+      if (identityMap != null) {
+        identityMap.remove(entity);
+      }
+    }
+  }
+
+  private void writeJoinChanges(boolean inserts) {
+    Map<String, List<IPreparedStatementParameter[]>> parameters = new LinkedHashMap<String, List<IPreparedStatementParameter[]>>();
+    for (JoinChange change : _joinChanges) {
+      if (change._insert == inserts) {
+        String sql;
+        if (inserts) {
+          sql = JoinArrayEntityCollectionImpl.INSERT_JOIN_SQL.render(change._srcColumn.getTable(), change._srcColumn, change._targetColumn);
+        } else {
+          sql = JoinArrayEntityCollectionImpl.DELETE_JOIN_SQL.render(change._srcColumn.getTable(), change._srcColumn, change._targetColumn);
+        }
+        List<IPreparedStatementParameter[]> parameterSets = parameters.get(sql);
+        if (parameterSets == null) {
+          parameterSets = new ArrayList<IPreparedStatementParameter[]>();
+          parameters.put(sql, parameterSets);
+        }
+        parameterSets.add(new IPreparedStatementParameter[]{
+            change._srcColumn.wrapParameterValue(change._owner.getId()),
+            change._targetColumn.wrapParameterValue(change._element.getId())});
+      }
+    }
+
+    for (Map.Entry<String, List<IPreparedStatementParameter[]>> entry : parameters.entrySet()) {
+      if (inserts) {
+        _queryExecutor.insertBatch(PROFILER_TAG, entry.getKey(), entry.getValue());
+      } else {
+        _queryExecutor.deleteBatch(PROFILER_TAG, entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  private void executeGroups(Iterable<String> sqlStatements, Map<String, List<IPreparedStatementParameter[]>> parameters, boolean deletes) {
+    for (String sql : sqlStatements) {
+      List<IPreparedStatementParameter[]> parameterSets = parameters.get(sql);
+      if (parameterSets.size() == 1) {
+        if (deletes) {
+          _queryExecutor.delete(PROFILER_TAG, sql, parameterSets.get(0));
+        } else {
+          _queryExecutor.update(PROFILER_TAG, sql, parameterSets.get(0));
+        }
+      } else if (deletes) {
+        _queryExecutor.deleteBatch(PROFILER_TAG, sql, parameterSets);
+      } else {
+        _queryExecutor.updateBatch(PROFILER_TAG, sql, parameterSets);
+      }
+    }
+  }
+
+  private static void addToGroup(Map<String, List<CachedDBObject>> groups, Map<String, List<IPreparedStatementParameter[]>> parameters,
+                                 WriteStatement statement, CachedDBObject entity) {
+    List<CachedDBObject> group = groups.get(statement.getSql());
+    if (group == null) {
+      group = new ArrayList<CachedDBObject>();
+      groups.put(statement.getSql(), group);
+      parameters.put(statement.getSql(), new ArrayList<IPreparedStatementParameter[]>());
+    }
+    group.add(entity);
+    parameters.get(statement.getSql()).add(statement.getParameters());
+  }
+
+  private static void recordResolvedFks(CachedDBObject entity, List<ResolvedFk> resolvedFks) {
+    for (String columnName : entity.resolveFkIds()) {
+      resolvedFks.add(new ResolvedFk(entity, columnName));
+    }
+  }
+
+  private static boolean dependsOnAnyOf(CachedDBObject entity, List<CachedDBObject> others) {
+    for (IDBObject fkObject : entity.getUnsavedFkReferences()) {
+      if (fkObject != entity && containsIdentical(others, fkObject)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Numbers the tables of the database so that every table comes after the tables its fk columns point to.
+   * Self-references are ignored.
+   */
+  private Map<IDBTable, Integer> computeTableOrder() {
+    Map<IDBTable, Integer> order = new HashMap<IDBTable, Integer>();
+    for (IDBTable table : _database.getAllTables()) {
+      visitTable(table, order, new ArrayList<IDBTable>());
+    }
+    return order;
+  }
+
+  private void visitTable(IDBTable table, Map<IDBTable, Integer> order, List<IDBTable> inProgress) {
+    if (order.containsKey(table) || inProgress.contains(table)) {
+      return;
+    }
+    inProgress.add(table);
+    for (IDBColumn column : table.getColumns()) {
+      if (column.isFK() && column.getFKTarget() != null && column.getFKTarget() != table) {
+        visitTable(column.getFKTarget(), order, inProgress);
+      }
+    }
+    inProgress.remove(table);
+    order.put(table, order.size());
+  }
+
+  private void checkOpen() {
+    if (_closed) {
+      throw new IllegalStateException("This unit of work has already been closed");
+    }
+  }
+
+  private static boolean containsIdentical(List<? extends IDBObject> list, IDBObject entity) {
+    for (IDBObject candidate : list) {
+      if (candidate == entity) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean removeIdentical(List<? extends IDBObject> list, IDBObject entity) {
+    for (int i = 0; i < list.size(); i++) {
+      if (list.get(i) == entity) {
+        list.remove(i);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static class ResolvedFk {
+    private final CachedDBObject _entity;
+    private final String _columnName;
+
+    private ResolvedFk(CachedDBObject entity, String columnName) {
+      _entity = entity;
+      _columnName = columnName;
+    }
+  }
+
+  private static class JoinChange {
+    private final IDBColumn _srcColumn;
+    private final IDBColumn _targetColumn;
+    private final IDBObject _owner;
+    private final IDBObject _element;
+    private final boolean _insert;
+
+    private JoinChange(IDBColumn srcColumn, IDBColumn targetColumn, IDBObject owner, IDBObject element, boolean insert) {
+      _srcColumn = srcColumn;
+      _targetColumn = targetColumn;
+      _owner = owner;
+      _element = element;
+      _insert = insert;
+    }
+
+    private boolean matches(JoinChange other) {
+      return _srcColumn.equals(other._srcColumn) && _targetColumn.equals(other._targetColumn)
+          && sameEntity(_owner, other._owner) && sameEntity(_element, other._element);
+    }
+
+    private static boolean sameEntity(IDBObject first, IDBObject second) {
+      if (first == second) {
+        return true;
+      }
+      // Different pointers to the same row count as the same entity, but unsaved objects are only equal to themselves
+      return first.getId() != null && first.getId().equals(second.getId());
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package tosa.impl;
+
+import tosa.api.EntityCollection;
+import tosa.api.IDBObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A view of an array that never loads the whole array into memory, for arrays that are too large for that.  Elements
+ * are fetched in pages of a fixed size, in id order, using "id > (last id of the previous page)" predicates rather
+ * than offsets, and only the most recently used pages are kept in memory.  The size is read with a single count
+ * query and then cached.
+ *
+ * Because pages are found by id, getting an element on a page that hasn't been reached before means walking through
+ * the pages in between; iterating, or accessing the elements more or less in order, is the intended usage.  Changes
+ * made through this collection discard the cached pages and size.
+ *
+ * Windowed collections are created with EntityCollection.windowed().
+ *
+ * ${License}
+ */
+public class WindowedEntityCollection<T extends IDBObject> implements EntityCollection<T> {
+
+  private final EntityCollectionImplBase<T> _collection;
+  private final int _pageSize;
+  private final int _maxResidentPages;
+  private final LinkedHashMap<Integer, List<T>> _pages;
+  // The id after which each page starts, or null for the first page; this only grows as far as pages have been read
+  private final List<Long> _pageStarts = new ArrayList<Long>();
+  private int _size = -1;
+
+  WindowedEntityCollection(EntityCollectionImplBase<T> collection, int pageSize, final int maxResidentPages) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("The page size must be at least 1, but was " + pageSize);
+    }
+    if (maxResidentPages < 1) {
+      throw new IllegalArgumentException("The maximum number of resident pages must be at least 1, but was " + maxResidentPages);
+    }
+    _collection = collection;
+    _pageSize = pageSize;
+    _maxResidentPages = maxResidentPages;
+    _pages = new LinkedHashMap<Integer, List<T>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, List<T>> eldest) {
+        return size() > _maxResidentPages;
+      }
+    };
+    _pageStarts.add(null);
+  }
+
+  @Override
+  public int size() {
+    if (_size == -1) {
+      _size = _collection.size();
+    }
+    return _size;
+  }
+
+  @Override
+  public T get(int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("Index " + index + " is invalid for a WindowedEntityCollection of size " + size());
+    }
+    List<T> page = getPage(index / _pageSize);
+    int offset = index % _pageSize;
+    if (offset >= page.size()) {
+      // The array must have shrunk since it was counted
+      throw new IndexOutOfBoundsException("Index " + index + " is past the end of the array");
+    }
+    return page.get(offset);
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return new PageIterator();
+  }
+
+  @Override
+  public void add(T element) {
+    _collection.add(element);
+    reset();
+  }
+
+  @Override
+  public void remove(T element) {
+    _collection.remove(element);
+    reset();
+  }
+
+  @Override
+  public void addAll(Collection<? extends T> elements) {
+    _collection.addAll(elements);
+    reset();
+  }
+
+  @Override
+  public void removeAll(Collection<? extends T> elements) {
+    _collection.removeAll(elements);
+    reset();
+  }
+
+  @Override
+  public boolean contains(T element) {
+    return _collection.contains(element);
+  }
+
+  @Override
+  public boolean containsId(long id) {
+    return _collection.containsId(id);
+  }
+
+  /**
+   * Loads the first page.
+   */
+  @Override
+  public void load() {
+    getPage(0);
+  }
+
+  @Override
+  public void unload() {
+    reset();
+  }
+
+  @Override
+  public EntityCollection<T> windowed(int pageSize, int maxResidentPages) {
+    return _collection.windowed(pageSize, maxResidentPages);
+  }
+
+  int getResidentPageCount() {
+    return _pages.size();
+  }
+
+  private void reset() {
+    _pages.clear();
+    _pageStarts.clear();
+    _pageStarts.add(null);
+    _size = -1;
+  }
+
+  private List<T> getPage(int pageNumber) {
+    // Start from the requested page if we know where it starts, or else from the furthest page we know about
+    int current = Math.min(pageNumber, _pageStarts.size() - 1);
+    while (true) {
+      List<T> page = _pages.get(current);
+      if (page == null) {
+        page = _collection.loadPage(_pageStarts.get(current), _pageSize);
+        _pages.put(current, page);
+      }
+      if (current + 1 == _pageStarts.size() && page.size() == _pageSize) {
+        _pageStarts.add(page.get(page.size() - 1).getId());
+      }
+      if (current == pageNumber) {
+        return page;
+      }
+      if (current + 1 == _pageStarts.size()) {
+        // The array ends before the requested page
+        return Collections.emptyList();
+      }
+      current++;
+    }
+  }
+
+  private class PageIterator implements Iterator<T> {
+    private int _pageNumber;
+    private int _offset;
+
+    @Override
+    public boolean hasNext() {
+      List<T> page = getPage(_pageNumber);
+      if (_offset < page.size()) {
+        return true;
+      }
+      if (page.size() < _pageSize) {
+        return false;
+      }
+      _pageNumber++;
+      _offset = 0;
+      return hasNext();
+    }
+
+    @Override
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return getPage(_pageNumber).get(_offset++);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package tosa.impl;
+
+import tosa.api.IPreparedStatementParameter;
+
+/**
+ * A single INSERT, UPDATE or DELETE statement along with the parameters to bind to it.  Two WriteStatements with
+ * the same SQL text have the same shape, and so can be sent to the database together as one JDBC batch.
+ *
+ * ${License}
+ */
+public class WriteStatement {
+
+  private final String _sql;
+  private final IPreparedStatementParameter[] _parameters;
+
+  public WriteStatement(String sql, IPreparedStatementParameter... parameters) {
+    _sql = sql;
+    _parameters = parameters;
+  }
+
+  public String getSql() {
+    return _sql;
+  }
+
+  public IPreparedStatementParameter[] getParameters() {
+    return _parameters;
+  }
+}
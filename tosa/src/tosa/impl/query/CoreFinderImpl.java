@@ -2,16 +2,16 @@ package tosa.impl.query;
 
 import com.sun.org.apache.xpath.internal.operations.NotEquals;
 import gw.lang.reflect.features.PropertyReference;
-import gw.util.GosuStringUtil;
-import org.slf4j.profiler.Profiler;
 import tosa.CachedDBObject;
 import tosa.api.*;
+import tosa.impl.EntityCache;
+import tosa.impl.IdentityMap;
 import tosa.impl.QueryExecutor;
 import tosa.impl.QueryExecutorImpl;
 import tosa.impl.SimpleSqlBuilder;
+import tosa.impl.SqlTemplate;
 import tosa.loader.DBTypeInfo;
 import tosa.loader.IDBType;
-import tosa.loader.Util;
 import tosa.loader.parser.tree.WhereClause;
 
 import java.sql.ResultSet;
@@ -19,6 +19,8 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /**
  * Created by IntelliJ IDEA.
@@ -29,6 +31,8 @@ import java.util.Map;
  */
 public class CoreFinderImpl {
 
+  private static final SqlTemplate SELECT_BY_ID_SQL = SimpleSqlBuilder.compile("SELECT * FROM ${table} WHERE ${idColumn} = ?");
+
   private QueryExecutor _queryExecutor;
   private IDBType _type;
 
@@ -39,16 +43,31 @@ public class CoreFinderImpl {
 
   public IDBObject fromId(long id) throws SQLException {
     IDBTable table = _type.getTable();
+    IdentityMap identityMap = IdentityMap.getCurrent(table.getDatabase());
+    IDBObject existing = identityMap == null ? null : identityMap.get(table, id);
+    if (existing != null) {
+      return existing;
+    }
+    long cacheGeneration = EntityCache.getGeneration(table);
+    IDBObject cached = EntityCache.find(_type, id);
+    if (cached != null) {
+      return identityMap != null ? identityMap.intern(cached) : cached;
+    }
+
     IDBColumn idColumn = table.getColumn(DBTypeInfo.ID_COLUMN);
-    String query = SimpleSqlBuilder.substitute(
-        "SELECT * FROM ${table} WHERE ${idColumn} = ?",
-        "table", _type.getTable(),
-        "idColumn", idColumn);
-    List<IDBObject> results = _queryExecutor.selectEntity(_type.getName() + ".fromId()", _type, query, idColumn.wrapParameterValue(id));
+    String query = SELECT_BY_ID_SQL.render(_type.getTable(), idColumn);
+    List<IDBObject> results;
+    boolean primaryReads = EntityCache.beginPrimaryReads(table);
+    try {
+      results = _queryExecutor.selectEntity(_type.getName() + ".fromId()", _type, query, idColumn.wrapParameterValue(id));
+    } finally {
+      EntityCache.endPrimaryReads(table, primaryReads);
+    }
 
     if (results.size() == 0) {
       return null;
     } else if (results.size() == 1) {
+      EntityCache.store(results.get(0), cacheGeneration);
       return results.get(0);
     } else {
       throw new IllegalStateException("More than one row in table " + table.getName() + " had id " + id);
@@ -63,13 +82,8 @@ public class CoreFinderImpl {
   // TODO - AHK - Make this return a long
   public int count(IDBObject template) {
     // TODO - AHK - Validate that the template object is of the correct type
-    String queryStart = SimpleSqlBuilder.substitute(
-        "SELECT count(*) as count FROM ${table} WHERE ",
-        "table", _type.getTable());
-    Pair<String, List<IPreparedStatementParameter>> whereClauseAndParameters = buildWhereClauseForTemplate(template);
-    String query = queryStart + whereClauseAndParameters.getFirst();
-    IPreparedStatementParameter[] parameters = whereClauseAndParameters.getSecond().toArray(new IPreparedStatementParameter[whereClauseAndParameters.getSecond().size()]);
-    return _queryExecutor.count(_type.getName() + ".count()", query, parameters);
+    TemplateQueryPlan plan = TemplateQueryPlan.forCount(_type.getTable(), template);
+    return _queryExecutor.count(_type.getName() + ".count()", plan.getSql(), plan.bind(template));
   }
 
   public List<IDBObject> findWithSql(String sql) {
@@ -77,102 +91,122 @@ public class CoreFinderImpl {
   }
 
   public List<IDBObject> find(IDBObject template) {
-    Pair<String, List<IPreparedStatementParameter>> whereClauseAndParameters = buildWhereClauseForTemplate(template);
-    String query = SimpleSqlBuilder.substitute(
-        "SELECT * FROM ${table} WHERE ${whereClause} ORDER BY ${idColumn} ASC",
-        "table", _type.getTable(),
-        "whereClause", whereClauseAndParameters.getFirst(),
-        "idColumn", _type.getTable().getColumn(DBTypeInfo.ID_COLUMN));
-    IPreparedStatementParameter[] parameters = whereClauseAndParameters.getSecond().toArray(new IPreparedStatementParameter[whereClauseAndParameters.getSecond().size()]);
-    return _queryExecutor.selectEntity(_type.getName() + ".find()", _type, query, parameters);
+    TemplateQueryPlan plan = TemplateQueryPlan.forSelect(_type.getTable(), template, null, true, false);
+    return _queryExecutor.selectEntity(_type.getName() + ".find()", _type, plan.getSql(), plan.bind(template));
   }
 
   public List<IDBObject> findSorted(IDBObject template, PropertyReference sortColumn, boolean ascending) {
     // TODO - AHK - Make sure that sortColumn is non-null
-    Pair<String, List<IPreparedStatementParameter>> whereClauseAndParameters = buildWhereClauseForTemplate(template);
-    String query = SimpleSqlBuilder.substitute(
-        "SELECT * FROM ${table} WHERE ${whereClause} ORDER BY ${sortColumn} ${sortDirection}, ${idColumn} ASC",
-        "table", _type.getTable(),
-        "whereClause", whereClauseAndParameters.getFirst(),
-        "sortColumn", _type.getTable().getColumn(sortColumn.getPropertyInfo().getName()),
-        "sortDirection", ascending ? "ASC" : "DESC",
-        "idColumn", _type.getTable().getColumn(DBTypeInfo.ID_COLUMN));
-    IPreparedStatementParameter[] parameters = whereClauseAndParameters.getSecond().toArray(new IPreparedStatementParameter[whereClauseAndParameters.getSecond().size()]);
-    return _queryExecutor.selectEntity(_type.getName() + ".findSorted()", _type, query, parameters);
+    TemplateQueryPlan plan = TemplateQueryPlan.forSelect(_type.getTable(), template,
+        _type.getTable().getColumn(sortColumn.getPropertyInfo().getName()), ascending, false);
+    return _queryExecutor.selectEntity(_type.getName() + ".findSorted()", _type, plan.getSql(), plan.bind(template));
   }
 
   public List<IDBObject> findPaged(IDBObject template, int pageSize, int offset) {
-    // TODO - AHK - Is the parameter value wrapping there acceptable?
-    Pair<String, List<IPreparedStatementParameter>> whereClauseAndParameters = buildWhereClauseForTemplate(template);
-    IDBColumn idColumn = _type.getTable().getColumn(DBTypeInfo.ID_COLUMN);
-    String query = SimpleSqlBuilder.substitute(
-        "SELECT * FROM ${table} WHERE ${whereClause} ORDER BY ${idColumn} ASC LIMIT ? OFFSET ?",
-        "table", _type.getTable(),
-        "whereClause", whereClauseAndParameters.getFirst(),
-        "idColumn", idColumn);
-    List<IPreparedStatementParameter> parameterList = new ArrayList<IPreparedStatementParameter>(whereClauseAndParameters.getSecond());
-    parameterList.add(idColumn.wrapParameterValue(pageSize));
-    parameterList.add(idColumn.wrapParameterValue(offset));
-    IPreparedStatementParameter[] parameters = parameterList.toArray(new IPreparedStatementParameter[parameterList.size()]);
-    return _queryExecutor.selectEntity(_type.getName() + ".findPaged()", _type, query, parameters);
+    TemplateQueryPlan plan = TemplateQueryPlan.forSelect(_type.getTable(), template, null, true, true);
+    return _queryExecutor.selectEntity(_type.getName() + ".findPaged()", _type, plan.getSql(), plan.bind(template, pageSize, offset));
   }
 
   public List<IDBObject> findSortedPaged(IDBObject template, PropertyReference sortColumn, boolean ascending,  int pageSize, int offset) {
-    // TODO - AHK - Is the parameter value wrapping there acceptable?
-    Pair<String, List<IPreparedStatementParameter>> whereClauseAndParameters = buildWhereClauseForTemplate(template);
-    IDBColumn idColumn = _type.getTable().getColumn(DBTypeInfo.ID_COLUMN);
-    String query = SimpleSqlBuilder.substitute(
-        "SELECT * FROM ${table} WHERE ${whereClause} ORDER BY ${sortColumn} ${sortDirection}, ${idColumn} ASC LIMIT ? OFFSET ?",
-        "table", _type.getTable(),
-        "whereClause", whereClauseAndParameters.getFirst(),
-        "sortColumn", _type.getTable().getColumn(sortColumn.getPropertyInfo().getName()),
-        "sortDirection", ascending ? "ASC" : "DESC",
-        "idColumn", idColumn);
-    List<IPreparedStatementParameter> parameterList = new ArrayList<IPreparedStatementParameter>(whereClauseAndParameters.getSecond());
-    parameterList.add(idColumn.wrapParameterValue(pageSize));
-    parameterList.add(idColumn.wrapParameterValue(offset));
-    IPreparedStatementParameter[] parameters = parameterList.toArray(new IPreparedStatementParameter[parameterList.size()]);
-    return _queryExecutor.selectEntity(_type.getName() + ".findSortedPaged()", _type, query, parameters);
-  }
-
-  private Pair<String, List<IPreparedStatementParameter>> buildWhereClauseForTemplate(IDBObject template) {
-    List<String> whereClause = new ArrayList<String>();
-    List<IPreparedStatementParameter> parameters = new ArrayList<IPreparedStatementParameter>();
-    if (template != null) {
-      for (IDBColumn column : _type.getTable().getColumns()) {
-        // TODO - AHK - Use a variety that takes an IDBColumn as an argument here
-        Object value = template.getColumnValue(column.getName());
-        if (value != null) {
-          whereClause.add(SimpleSqlBuilder.substitute("${column} = ?", "column", column));
-          parameters.add(column.wrapParameterValue(value));
-        }
+    TemplateQueryPlan plan = TemplateQueryPlan.forSelect(_type.getTable(), template,
+        _type.getTable().getColumn(sortColumn.getPropertyInfo().getName()), ascending, true);
+    return _queryExecutor.selectEntity(_type.getName() + ".findSortedPaged()", _type, plan.getSql(), plan.bind(template, pageSize, offset));
+  }
+
+  /**
+   * Runs fromId() in the background, using IDBExecutionKernel.submit().
+   */
+  public Future<IDBObject> fromIdAsync(final long id) {
+    return getKernel().submit(new Callable<IDBObject>() {
+      @Override
+      public IDBObject call() throws SQLException {
+        return fromId(id);
       }
+    });
+  }
 
-      if (!whereClause.isEmpty()) {
-        return new Pair<String, List<IPreparedStatementParameter>>(GosuStringUtil.join(whereClause, " AND "), parameters);
-      } else {
-        return new Pair<String, List<IPreparedStatementParameter>>("true", parameters);
+  /**
+   * Runs count() in the background, using IDBExecutionKernel.submit().  The template is read before this method
+   * returns, so it can be reused straight away.
+   */
+  public Future<Integer> countAsync(IDBObject template) {
+    TemplateQueryPlan plan = TemplateQueryPlan.forCount(_type.getTable(), template);
+    final String sql = plan.getSql();
+    final IPreparedStatementParameter[] parameters = plan.bind(template);
+    return getKernel().submit(new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return _queryExecutor.count(_type.getName() + ".count()", sql, parameters);
       }
-    } else {
-      return new Pair<String, List<IPreparedStatementParameter>>("true", parameters);
-    }
+    });
   }
 
-  private static class Pair<A, B> {
-    private A _first;
-    private B _second;
+  /**
+   * Runs find() in the background, using IDBExecutionKernel.submit().  The template is read before this method
+   * returns, so it can be reused straight away.
+   */
+  public Future<List<IDBObject>> findAsync(IDBObject template) {
+    TemplateQueryPlan plan = TemplateQueryPlan.forSelect(_type.getTable(), template, null, true, false);
+    final String sql = plan.getSql();
+    final IPreparedStatementParameter[] parameters = plan.bind(template);
+    return getKernel().submit(new Callable<List<IDBObject>>() {
+      @Override
+      public List<IDBObject> call() {
+        return _queryExecutor.selectEntity(_type.getName() + ".find()", _type, sql, parameters);
+      }
+    });
+  }
 
-    private Pair(A first, B second) {
-      _first = first;
-      _second = second;
-    }
+  private IDBExecutionKernel getKernel() {
+    return _type.getTable().getDatabase().getDBExecutionKernel();
+  }
+
+  /**
+   * Returns the page of results matching the template that comes after the given token, in id order.  Unlike
+   * findPaged(), this seeks directly to the start of the page, so deep pages cost no more than the first one.
+   *
+   * @param after the token from the previous page, or null for the first page
+   */
+  public ResultPage<IDBObject> findPagedAfter(IDBObject template, int pageSize, PageToken after) {
+    return findKeysetPage(_type.getName() + ".findPagedAfter()", template, null, true, pageSize, after);
+  }
 
-    public A getFirst() {
-      return _first;
+  /**
+   * Returns the page of results matching the template that comes after the given token, ordered by the sort column
+   * and then by id.  Unlike findSortedPaged(), this seeks directly to the start of the page, so deep pages cost no
+   * more than the first one.
+   *
+   * @param after the token from the previous page, or null for the first page
+   */
+  public ResultPage<IDBObject> findSortedPagedAfter(IDBObject template, PropertyReference sortColumn, boolean ascending, int pageSize, PageToken after) {
+    return findKeysetPage(_type.getName() + ".findSortedPagedAfter()", template,
+        _type.getTable().getColumn(sortColumn.getPropertyInfo().getName()), ascending, pageSize, after);
+  }
+
+  private ResultPage<IDBObject> findKeysetPage(String profilerTag, IDBObject template, IDBColumn sortColumn, boolean ascending, int pageSize, PageToken after) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("The page size must be at least 1, but was " + pageSize);
     }
+    String sortColumnName = sortColumn == null ? null : sortColumn.getName();
+    if (after != null) {
+      boolean sameSortColumn = sortColumnName == null ? after.getSortColumnName() == null : sortColumnName.equals(after.getSortColumnName());
+      if (!sameSortColumn || ascending != after.isAscending()) {
+        throw new IllegalArgumentException("The page token " + after + " was not produced by a query with the same sort order");
+      }
+    }
+
+    // One extra row is fetched to find out whether there's another page after this one
+    TemplateQueryPlan plan = TemplateQueryPlan.forKeysetPage(_type.getTable(), template, sortColumn, ascending, after);
+    String query = plan.getSql();
+    IPreparedStatementParameter[] parameters = plan.bind(template, after, pageSize + 1);
+    List<IDBObject> results = _queryExecutor.selectEntity(profilerTag, _type, query, parameters);
 
-    public B getSecond() {
-      return _second;
+    if (results.size() <= pageSize) {
+      return new ResultPage<IDBObject>(results, null);
     }
+    results = new ArrayList<IDBObject>(results.subList(0, pageSize));
+    IDBObject last = results.get(pageSize - 1);
+    Object lastSortValue = sortColumn == null ? null : last.getColumnValue(sortColumnName);
+    return new ResultPage<IDBObject>(results, new PageToken(sortColumnName, ascending, lastSortValue, last.getId()));
   }
 }
@@ -0,0 +1,349 @@
+package tosa.impl.query;
+
+import gw.util.GosuStringUtil;
+import tosa.CachedDBObject;
+import tosa.api.IDBColumn;
+import tosa.api.IDBObject;
+import tosa.api.IDBTable;
+import tosa.api.IPreparedStatementParameter;
+import tosa.api.PageToken;
+import tosa.dbmd.DBTableImpl;
+import tosa.impl.SimpleSqlBuilder;
+import tosa.impl.SqlTemplate;
+import tosa.loader.DBTypeInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The compiled form of a query-by-template:  the SQL text, plus the ordinals of the template columns whose values
+ * get bound to its parameters.  The SQL only depends on which of the template's columns are non-null, and on the
+ * sort column, direction and paging of the query, so a plan is built once per shape and then cached on the
+ * DBTableImpl; running the query again only needs the values to be bound.
+ *
+ * Paged plans take the page size and offset as parameters rather than inlining them, so that every page of a query
+ * shares the same plan.  Keyset plans, for the findPagedAfter() family, likewise take the values from the page token
+ * and the row limit as parameters; their SQL only depends on whether there's a token and whether its last sort value
+ * is null, so there are at most three of them per template shape and sort order.
+ *
+ * ${License}
+ */
+public class TemplateQueryPlan {
+
+  // The seek shapes of a query:  not a keyset query at all, the first page of one, a later page, or a later page
+  // whose token has a null sort value
+  private static final int NOT_KEYSET = 0;
+  private static final int KEYSET_FIRST_PAGE = 1;
+  private static final int KEYSET_AFTER_VALUE = 2;
+  private static final int KEYSET_AFTER_NULL = 3;
+
+  private static final SqlTemplate SELECT_SORTED_SQL = SimpleSqlBuilder.compile(
+      "SELECT * FROM ${table} WHERE ${whereClause} ORDER BY ${sortColumn} ${sortDirection}, ${idColumn} ASC${paging}");
+
+  private final IDBTable _table;
+  private final String _sql;
+  private final IDBColumn[] _boundColumns;
+  private final int[] _boundOrdinals;
+  private final IDBColumn _idColumn;
+  private final IDBColumn _sortColumn;
+  private final boolean _paged;
+  private final int _seek;
+
+  private TemplateQueryPlan(IDBTable table, Key key) {
+    IDBColumn idColumn = table.getColumn(DBTypeInfo.ID_COLUMN);
+    List<IDBColumn> boundColumns = new ArrayList<IDBColumn>();
+    List<Integer> boundOrdinals = new ArrayList<Integer>();
+    List<String> conditions = new ArrayList<String>();
+    int ordinal = 0;
+    for (IDBColumn column : table.getColumns()) {
+      if (isSet(key._columnMask, ordinal)) {
+        boundColumns.add(column);
+        boundOrdinals.add(ordinal);
+        conditions.add(SimpleSqlBuilder.substitute("${column} = ?", "column", column));
+      }
+      ordinal++;
+    }
+    String whereClause = conditions.isEmpty() ? "true" : GosuStringUtil.join(conditions, " AND ");
+
+    IDBColumn sortColumn = key._sortColumnName == null ? null : table.getColumn(key._sortColumnName);
+    String sql;
+    if (key._seek != NOT_KEYSET) {
+      sql = SimpleSqlBuilder.substitute(
+          "SELECT * FROM ${table} WHERE ${whereClause} AND ${seekClause} ORDER BY ${orderBy} LIMIT ?",
+          "table", table,
+          "whereClause", whereClause,
+          "seekClause", seekClause(key._seek, sortColumn, key._ascending, idColumn),
+          "orderBy", sortColumn == null ?
+              SimpleSqlBuilder.substitute("${idColumn} ASC", "idColumn", idColumn) :
+              SimpleSqlBuilder.substitute("${sortColumn} ${sortDirection}, ${idColumn} ASC",
+                  "sortColumn", sortColumn, "sortDirection", key._ascending ? "ASC" : "DESC", "idColumn", idColumn));
+    } else if (key._count) {
+      sql = SimpleSqlBuilder.substitute(
+          "SELECT count(*) as count FROM ${table} WHERE ${whereClause}",
+          "table", table,
+          "whereClause", whereClause);
+    } else if (key._sortColumnName == null) {
+      sql = SimpleSqlBuilder.substitute(
+          "SELECT * FROM ${table} WHERE ${whereClause} ORDER BY ${idColumn} ASC${paging}",
+          "table", table,
+          "whereClause", whereClause,
+          "idColumn", idColumn,
+          "paging", key._paged ? " LIMIT ? OFFSET ?" : "");
+    } else {
+      sql = SELECT_SORTED_SQL.render(table, whereClause, sortColumn, key._ascending ? "ASC" : "DESC", idColumn,
+          key._paged ? " LIMIT ? OFFSET ?" : "");
+    }
+
+    _table = table;
+    _sql = sql;
+    _boundColumns = boundColumns.toArray(new IDBColumn[boundColumns.size()]);
+    _boundOrdinals = new int[boundOrdinals.size()];
+    for (int i = 0; i < _boundOrdinals.length; i++) {
+      _boundOrdinals[i] = boundOrdinals.get(i);
+    }
+    _idColumn = idColumn;
+    _sortColumn = sortColumn;
+    _paged = key._paged;
+    _seek = key._seek;
+  }
+
+  private static String seekClause(int seek, IDBColumn sortColumn, boolean ascending, IDBColumn idColumn) {
+    if (seek == KEYSET_FIRST_PAGE) {
+      return "true";
+    } else if (sortColumn == null) {
+      return SimpleSqlBuilder.substitute("${idColumn} > ?", "idColumn", idColumn);
+    } else if (seek == KEYSET_AFTER_NULL) {
+      // Rows are ordered by (sortColumn, id), so the next row either has a later sort value or the same one and a
+      // higher id.  This is spelled out rather than using a row value comparison, since the id is always ascending
+      // even when the sort column isn't, and nulls need to be handled explicitly:  they sort first when ascending
+      // and last when descending, on both H2 and MySQL
+      return SimpleSqlBuilder.substitute(ascending ?
+          "((${sortColumn} IS NULL AND ${idColumn} > ?) OR ${sortColumn} IS NOT NULL)" :
+          "(${sortColumn} IS NULL AND ${idColumn} > ?)",
+          "sortColumn", sortColumn,
+          "idColumn", idColumn);
+    } else {
+      return SimpleSqlBuilder.substitute("(${sortColumn} ${comparison} ? OR (${sortColumn} = ? AND ${idColumn} > ?)${nulls})",
+          "sortColumn", sortColumn,
+          "comparison", ascending ? ">" : "<",
+          "idColumn", idColumn,
+          "nulls", ascending ? "" : SimpleSqlBuilder.substitute(" OR ${sortColumn} IS NULL", "sortColumn", sortColumn));
+    }
+  }
+
+  /**
+   * Returns the plan for selecting the rows of the table that match the given template.
+   *
+   * @param table the table being queried
+   * @param template the template object, or null to match every row
+   * @param sortColumn the column to sort on before the id, or null to sort by id alone
+   * @param ascending whether the sort column is sorted in ascending order
+   * @param paged whether the query takes a page size and offset
+   * @return the plan
+   */
+  public static TemplateQueryPlan forSelect(IDBTable table, IDBObject template, IDBColumn sortColumn, boolean ascending, boolean paged) {
+    String sortColumnName = sortColumn == null ? null : sortColumn.getName();
+    return forKey(table, new Key(false, columnMask(table, template), sortColumnName, sortColumnName != null && ascending, paged, NOT_KEYSET));
+  }
+
+  /**
+   * Returns the plan for selecting the page of rows of the table that match the given template and come after the
+   * given page token.
+   *
+   * @param table the table being queried
+   * @param template the template object, or null to match every row
+   * @param sortColumn the column to sort on before the id, or null to sort by id alone
+   * @param ascending whether the sort column is sorted in ascending order
+   * @param after the token from the previous page, or null for the first page
+   * @return the plan
+   */
+  public static TemplateQueryPlan forKeysetPage(IDBTable table, IDBObject template, IDBColumn sortColumn, boolean ascending, PageToken after) {
+    String sortColumnName = sortColumn == null ? null : sortColumn.getName();
+    int seek;
+    if (after == null) {
+      seek = KEYSET_FIRST_PAGE;
+    } else if (sortColumn != null && after.getLastSortValue() == null) {
+      seek = KEYSET_AFTER_NULL;
+    } else {
+      seek = KEYSET_AFTER_VALUE;
+    }
+    return forKey(table, new Key(false, columnMask(table, template), sortColumnName, sortColumnName != null && ascending, false, seek));
+  }
+
+  /**
+   * Returns the plan for counting the rows of the table that match the given template.
+   *
+   * @param table the table being queried
+   * @param template the template object, or null to count every row
+   * @return the plan
+   */
+  public static TemplateQueryPlan forCount(IDBTable table, IDBObject template) {
+    return forKey(table, new Key(true, columnMask(table, template), null, false, false, NOT_KEYSET));
+  }
+
+  private static TemplateQueryPlan forKey(IDBTable table, Key key) {
+    if (!(table instanceof DBTableImpl)) {
+      return new TemplateQueryPlan(table, key);
+    }
+
+    DBTableImpl tableImpl = (DBTableImpl) table;
+    TemplateQueryPlan plan = tableImpl.getCachedTemplateQueryPlan(key);
+    if (plan == null) {
+      plan = new TemplateQueryPlan(table, key);
+      tableImpl.cacheTemplateQueryPlan(key, plan);
+    }
+    return plan;
+  }
+
+  public String getSql() {
+    return _sql;
+  }
+
+  /**
+   * Returns the parameters for running this plan against the given template, which must have the same non-null
+   * columns as the template the plan was built for.
+   */
+  public IPreparedStatementParameter[] bind(IDBObject template) {
+    if (_paged || _seek != NOT_KEYSET) {
+      throw new IllegalStateException("A paged plan needs a page size and offset to be bound");
+    }
+    IPreparedStatementParameter[] parameters = new IPreparedStatementParameter[_boundColumns.length];
+    bindTemplateValues(template, parameters);
+    return parameters;
+  }
+
+  /**
+   * Returns the parameters for running this paged plan against the given template, which must have the same non-null
+   * columns as the template the plan was built for.
+   */
+  public IPreparedStatementParameter[] bind(IDBObject template, int pageSize, int offset) {
+    if (!_paged) {
+      throw new IllegalStateException("A plan that isn't paged can't have a page size and offset bound");
+    }
+    IPreparedStatementParameter[] parameters = new IPreparedStatementParameter[_boundColumns.length + 2];
+    bindTemplateValues(template, parameters);
+    // TODO - AHK - Is the parameter value wrapping there acceptable?
+    parameters[_boundColumns.length] = _idColumn.wrapParameterValue(pageSize);
+    parameters[_boundColumns.length + 1] = _idColumn.wrapParameterValue(offset);
+    return parameters;
+  }
+
+  /**
+   * Returns the parameters for running this keyset plan against the given template and page token, which must have
+   * the same shape as the ones the plan was built for.
+   */
+  public IPreparedStatementParameter[] bind(IDBObject template, PageToken after, int limit) {
+    if (_seek == NOT_KEYSET) {
+      throw new IllegalStateException("A plan that isn't a keyset plan can't have a page token bound");
+    }
+    int seekParameterCount = _seek == KEYSET_FIRST_PAGE ? 0 : (_sortColumn != null && _seek == KEYSET_AFTER_VALUE ? 3 : 1);
+    IPreparedStatementParameter[] parameters = new IPreparedStatementParameter[_boundColumns.length + seekParameterCount + 1];
+    bindTemplateValues(template, parameters);
+    int index = _boundColumns.length;
+    if (seekParameterCount == 3) {
+      parameters[index++] = _sortColumn.wrapParameterValue(after.getLastSortValue());
+      parameters[index++] = _sortColumn.wrapParameterValue(after.getLastSortValue());
+    }
+    if (seekParameterCount > 0) {
+      parameters[index++] = _idColumn.wrapParameterValue(after.getLastId());
+    }
+    parameters[index] = _idColumn.wrapParameterValue(limit);
+    return parameters;
+  }
+
+  private void bindTemplateValues(IDBObject template, IPreparedStatementParameter[] parameters) {
+    if (isOrdinalCompatible(template, _table)) {
+      CachedDBObject cachedTemplate = (CachedDBObject) template;
+      for (int i = 0; i < _boundColumns.length; i++) {
+        parameters[i] = _boundColumns[i].wrapParameterValue(cachedTemplate.getColumnValue(_boundOrdinals[i]));
+      }
+    } else {
+      for (int i = 0; i < _boundColumns.length; i++) {
+        parameters[i] = _boundColumns[i].wrapParameterValue(template.getColumnValue(_boundColumns[i].getName()));
+      }
+    }
+  }
+
+  private static long[] columnMask(IDBTable table, IDBObject template) {
+    Collection<? extends IDBColumn> columns = table.getColumns();
+    long[] mask = new long[(columns.size() + 63) >> 6];
+    if (template == null) {
+      return mask;
+    }
+
+    int ordinal = 0;
+    if (isOrdinalCompatible(template, table)) {
+      CachedDBObject cachedTemplate = (CachedDBObject) template;
+      for (; ordinal < columns.size(); ordinal++) {
+        if (cachedTemplate.getColumnValue(ordinal) != null) {
+          mask[ordinal >> 6] |= 1L << ordinal;
+        }
+      }
+    } else {
+      for (IDBColumn column : columns) {
+        if (template.getColumnValue(column.getName()) != null) {
+          mask[ordinal >> 6] |= 1L << ordinal;
+        }
+        ordinal++;
+      }
+    }
+    return mask;
+  }
+
+  private static boolean isOrdinalCompatible(IDBObject template, IDBTable table) {
+    // Column ordinals can only be used when the template belongs to the very table being queried
+    return template instanceof CachedDBObject && template.getDBTable() == table;
+  }
+
+  private static boolean isSet(long[] mask, int ordinal) {
+    return (mask[ordinal >> 6] & (1L << ordinal)) != 0;
+  }
+
+  /**
+   * Identifies the shape of a query-by-template within a table.
+   */
+  public static final class Key {
+    private final boolean _count;
+    private final long[] _columnMask;
+    private final String _sortColumnName;
+    private final boolean _ascending;
+    private final boolean _paged;
+    private final int _seek;
+
+    private Key(boolean count, long[] columnMask, String sortColumnName, boolean ascending, boolean paged, int seek) {
+      _count = count;
+      _columnMask = columnMask;
+      _sortColumnName = sortColumnName;
+      _ascending = ascending;
+      _paged = paged;
+      _seek = seek;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return _count == other._count &&
+          _ascending == other._ascending &&
+          _paged == other._paged &&
+          _seek == other._seek &&
+          Arrays.equals(_columnMask, other._columnMask) &&
+          (_sortColumnName == null ? other._sortColumnName == null : _sortColumnName.equals(other._sortColumnName));
+    }
+
+    @Override
+    public int hashCode() {
+      int result = Arrays.hashCode(_columnMask);
+      result = 31 * result + (_sortColumnName == null ? 0 : _sortColumnName.hashCode());
+      result = 31 * result + (_count ? 1 : 0);
+      result = 31 * result + (_ascending ? 2 : 0);
+      result = 31 * result + (_paged ? 4 : 0);
+      result = 31 * result + _seek;
+      return result;
+    }
+  }
+}
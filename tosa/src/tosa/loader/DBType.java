@@ -5,6 +5,8 @@ import gw.util.concurrent.LockingLazyVar;
 import tosa.api.IDBObject;
 import tosa.api.IDBTable;
 import tosa.dbmd.DBTableImpl;
+import tosa.impl.QueryExecutor;
+import tosa.impl.QueryExecutorImpl;
 
 import java.util.Collections;
 import java.util.List;
@@ -20,6 +22,8 @@ public class DBType extends TypeBase implements IDBType {
 
   private DBTypeLoader _typeLoader;
   private LockingLazyVar<DBTypeInfo> _typeInfo;
+  private LockingLazyVar<IDBType> _typeReference;
+  private LockingLazyVar<QueryExecutor> _queryExecutor;
   private IDBTable _table;
 
   public DBType(DBTypeLoader dbTypeLoader, IDBTable table) {
@@ -31,10 +35,28 @@ public class DBType extends TypeBase implements IDBType {
         return new DBTypeInfo(getTypeReference());
       }
     };
+    _typeReference = new LockingLazyVar<IDBType>() {
+      @Override
+      protected IDBType init() {
+        return (IDBType) TypeSystem.getOrCreateTypeReference(DBType.this);
+      }
+    };
+    _queryExecutor = new LockingLazyVar<QueryExecutor>() {
+      @Override
+      protected QueryExecutor init() {
+        return new QueryExecutorImpl(_table.getDatabase());
+      }
+    };
   }
 
+  @Override
   public IDBType getTypeReference() {
-    return (IDBType) TypeSystem.getOrCreateTypeReference(DBType.this);
+    return _typeReference.get();
+  }
+
+  @Override
+  public QueryExecutor getQueryExecutor() {
+    return _queryExecutor.get();
   }
 
   public IDBTable getTable() {
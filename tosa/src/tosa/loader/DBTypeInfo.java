@@ -9,9 +9,15 @@ import gw.util.concurrent.LockingLazyVar;
 import tosa.CachedDBObject;
 import tosa.api.IDBArray;
 import tosa.api.IDBColumn;
+import tosa.api.IDBObject;
 import tosa.api.IPreparedStatementParameter;
+import tosa.api.PageToken;
+import tosa.api.ResultPage;
 import tosa.db.execution.QueryExecutor;
 import tosa.dbmd.DBColumnImpl;
+import tosa.impl.ArrayPrefetcher;
+import tosa.impl.FkPrefetcher;
+import tosa.impl.query.CoreFinderImpl;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -20,6 +26,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
  * Created by IntelliJ IDEA.
@@ -50,14 +57,22 @@ public class DBTypeInfo extends BaseTypeInfo implements ITypeInfo {
   private IMethodInfo _findSortedMethod;
   private IMethodInfo _findPagedMethod;
   private IMethodInfo _findSortedPagedMethod;
+  private IMethodInfo _findPagedAfterMethod;
+  private IMethodInfo _findSortedPagedAfterMethod;
   private IMethodInfo _findWithSqlMethod;
+  private IMethodInfo _getAsyncMethod;
+  private IMethodInfo _countAsyncMethod;
+  private IMethodInfo _findAsyncMethod;
+  private IMethodInfo _prefetchMethod;
   private IPropertyInfo _newProperty;
   private IConstructorInfo _ctor;
   private QueryExecutor _queryExecutor; // TODO - AHK - I'm not sure if we really want to hold onto this here
+  private CoreFinderImpl _finder;
 
   public DBTypeInfo(IDBType dbType) {
     super(dbType);
     _queryExecutor = new QueryExecutor();
+    _finder = new CoreFinderImpl(dbType);
 
     _getMethod = new MethodInfoBuilder().withName("fromID").withStatic()
         .withParameters(new ParameterInfoBuilder().withName(ID_COLUMN).withType(JavaTypes.pLONG()))
@@ -77,7 +92,7 @@ public class DBTypeInfo extends BaseTypeInfo implements ITypeInfo {
         .withCallHandler(new IMethodCallHandler() {
           @Override
           public Object handleCall(Object ctx, Object... args) {
-            return ((CachedDBObject) ctx).getColumns().get(ID_COLUMN);
+            return ((CachedDBObject) ctx).getColumnValue(ID_COLUMN);
           }
         }).build(this);
     _updateMethod = new MethodInfoBuilder().withName("update")
@@ -242,6 +257,80 @@ public class DBTypeInfo extends BaseTypeInfo implements ITypeInfo {
             }
           }
         }).build(this);
+    _findPagedAfterMethod = new MethodInfoBuilder().withName("findPagedAfter").withStatic()
+        .withParameters(new ParameterInfoBuilder().withName("template").withType(dbType),
+            new ParameterInfoBuilder().withName("pageSize").withType(JavaTypes.pINT()),
+            new ParameterInfoBuilder().withName("after").withType(TypeSystem.get(PageToken.class)))
+        .withReturnType(TypeSystem.get(ResultPage.class).getParameterizedType(dbType))
+        .withCallHandler(new IMethodCallHandler() {
+          @Override
+          public Object handleCall(Object ctx, Object... args) {
+            return _finder.findPagedAfter(
+                (CachedDBObject) args[0],
+                (Integer) args[1],
+                (PageToken) args[2]);
+          }
+        }).build(this);
+    _findSortedPagedAfterMethod = new MethodInfoBuilder().withName("findSortedPagedAfter").withStatic()
+        .withParameters(new ParameterInfoBuilder().withName("template").withType(dbType),
+            new ParameterInfoBuilder().withName("sortProperty").withType(TypeSystem.get(PropertyReference.class).getParameterizedType(dbType, JavaTypes.OBJECT())),
+            new ParameterInfoBuilder().withName("ascending").withType(JavaTypes.pBOOLEAN()),
+            new ParameterInfoBuilder().withName("pageSize").withType(JavaTypes.pINT()),
+            new ParameterInfoBuilder().withName("after").withType(TypeSystem.get(PageToken.class)))
+        .withReturnType(TypeSystem.get(ResultPage.class).getParameterizedType(dbType))
+        .withCallHandler(new IMethodCallHandler() {
+          @Override
+          public Object handleCall(Object ctx, Object... args) {
+            return _finder.findSortedPagedAfter(
+                (CachedDBObject) args[0],
+                (PropertyReference) args[1],
+                (Boolean) args[2],
+                (Integer) args[3],
+                (PageToken) args[4]);
+          }
+        }).build(this);
+    _getAsyncMethod = new MethodInfoBuilder().withName("fromIDAsync").withStatic()
+        .withParameters(new ParameterInfoBuilder().withName(ID_COLUMN).withType(JavaTypes.pLONG()))
+        .withReturnType(TypeSystem.get(Future.class).getGenericType().getParameterizedType(dbType))
+        .withCallHandler(new IMethodCallHandler() {
+          @Override
+          public Object handleCall(Object ctx, Object... args) {
+            return _finder.fromIdAsync((Long) args[0]);
+          }
+        }).build(this);
+    _countAsyncMethod = new MethodInfoBuilder().withName("countAsync").withStatic()
+        .withParameters(new ParameterInfoBuilder().withName("template").withType(dbType))
+        .withReturnType(TypeSystem.get(Future.class).getGenericType().getParameterizedType(JavaTypes.INTEGER()))
+        .withCallHandler(new IMethodCallHandler() {
+          @Override
+          public Object handleCall(Object ctx, Object... args) {
+            return _finder.countAsync((CachedDBObject) args[0]);
+          }
+        }).build(this);
+    _findAsyncMethod = new MethodInfoBuilder().withName("findAsync").withStatic()
+        .withParameters(new ParameterInfoBuilder().withName("template").withType(dbType))
+        .withReturnType(TypeSystem.get(Future.class).getGenericType().getParameterizedType(JavaTypes.LIST().getGenericType().getParameterizedType(dbType)))
+        .withCallHandler(new IMethodCallHandler() {
+          @Override
+          public Object handleCall(Object ctx, Object... args) {
+            return _finder.findAsync((CachedDBObject) args[0]);
+          }
+        }).build(this);
+    _prefetchMethod = new MethodInfoBuilder().withName("prefetch").withStatic()
+        .withParameters(new ParameterInfoBuilder().withName("entities").withType(JavaTypes.LIST().getGenericType().getParameterizedType(dbType)),
+            new ParameterInfoBuilder().withName("propertyName").withType(JavaTypes.STRING()))
+        .withCallHandler(new IMethodCallHandler() {
+          @Override
+          public Object handleCall(Object ctx, Object... args) {
+            // The property can either be an array or an fk
+            if (getOwnersType().getTable().getArray((String) args[1]) != null) {
+              ArrayPrefetcher.prefetch((List<IDBObject>) args[0], (String) args[1]);
+            } else {
+              FkPrefetcher.prefetch((List<IDBObject>) args[0], (String) args[1]);
+            }
+            return null;
+          }
+        }).build(this);
 
     _newProperty = new PropertyInfoBuilder().withName("_New").withType(JavaTypes.pBOOLEAN())
         .withWritable(false).withAccessor(new IPropertyAccessor() {
@@ -271,7 +360,8 @@ public class DBTypeInfo extends BaseTypeInfo implements ITypeInfo {
 
     _methods = new ArrayList<IMethodInfo>(Arrays.asList(_getMethod, _idMethod, _updateMethod, _deleteMethod, _countWithSqlMethod,
         _countMethod, _findWithSqlMethod, _findMethod, _findSortedMethod, _findPagedMethod,
-        _findSortedPagedMethod));
+        _findSortedPagedMethod, _findPagedAfterMethod, _findSortedPagedAfterMethod, _getAsyncMethod, _countAsyncMethod,
+        _findAsyncMethod, _prefetchMethod));
 
     CommonServices.getEntityAccess().addEnhancementMethods(dbType, _methods);
     CommonServices.getEntityAccess().addEnhancementProperties(dbType, _properties, true);
@@ -346,6 +436,24 @@ public class DBTypeInfo extends BaseTypeInfo implements ITypeInfo {
     if ("findSortedPaged".equals(methodName) && params != null && params.length == 5 && params[0].equals(getOwnersType()) && TypeSystem.get(PropertyReference.class).isAssignableFrom(params[1]) && params[2].equals(JavaTypes.pBOOLEAN()) && params[3].equals(JavaTypes.pINT()) && params[4].equals(JavaTypes.pINT())) {
       return _findSortedPagedMethod;
     }
+    if ("findPagedAfter".equals(methodName) && params != null && params.length == 3 && params[0].equals(getOwnersType()) && params[1].equals(JavaTypes.pINT()) && params[2].equals(TypeSystem.get(PageToken.class))) {
+      return _findPagedAfterMethod;
+    }
+    if ("findSortedPagedAfter".equals(methodName) && params != null && params.length == 5 && params[0].equals(getOwnersType()) && TypeSystem.get(PropertyReference.class).isAssignableFrom(params[1]) && params[2].equals(JavaTypes.pBOOLEAN()) && params[3].equals(JavaTypes.pINT()) && params[4].equals(TypeSystem.get(PageToken.class))) {
+      return _findSortedPagedAfterMethod;
+    }
+    if ("fromIDAsync".equals(methodName) && params != null && params.length == 1 && params[0].equals(JavaTypes.pLONG())) {
+      return _getAsyncMethod;
+    }
+    if ("countAsync".equals(methodName) && params != null && params.length == 1 && params[0].equals(getOwnersType())) {
+      return _countAsyncMethod;
+    }
+    if ("findAsync".equals(methodName) && params != null && params.length == 1 && params[0].equals(getOwnersType())) {
+      return _findAsyncMethod;
+    }
+    if ("prefetch".equals(methodName) && params != null && params.length == 2 && JavaTypes.LIST().isAssignableFrom(params[0]) && params[1].equals(JavaTypes.STRING())) {
+      return _prefetchMethod;
+    }
     if ("count".equals(methodName) && params != null && params.length == 1 && params[0].equals(getOwnersType())) {
       return _countMethod;
     }
@@ -2,6 +2,7 @@ package tosa.loader;
 
 import gw.lang.reflect.IEnhanceableType;
 import tosa.api.IDBTable;
+import tosa.impl.QueryExecutor;
 
 /**
  * Created by IntelliJ IDEA.
@@ -12,4 +13,15 @@ import tosa.api.IDBTable;
  */
 public interface IDBType extends IEnhanceableType {
   public IDBTable getTable();
+
+  /**
+   * Returns the type reference for this type.  The reference is created once and then shared, so that
+   * objects of this type don't each have to look it up through the TypeSystem.
+   */
+  public IDBType getTypeReference();
+
+  /**
+   * Returns the QueryExecutor shared by all objects of this type.
+   */
+  public QueryExecutor getQueryExecutor();
 }
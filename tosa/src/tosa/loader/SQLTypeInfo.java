@@ -6,6 +6,7 @@ import gw.lang.reflect.java.IJavaType;
 import gw.lang.reflect.java.JavaTypes;
 import gw.util.GosuExceptionUtil;
 import tosa.db.execution.QueryExecutor;
+import tosa.impl.ColumnIndexMapping;
 import tosa.loader.parser.SQLParseException;
 import tosa.loader.parser.tree.*;
 
@@ -68,7 +69,7 @@ public class SQLTypeInfo extends BaseTypeInfo {
     try {
       HashMap<String, Object> values = makeArgMap(args);
 
-      c = _sqlType.getData().getDatabase().getConnection().connect();
+      c = _sqlType.getData().getDatabase().getConnection().connectForRead();
       String sql = _sqlType.getData().getSQL(values);
       PreparedStatement stmt = c.prepareStatement(sql);
 
@@ -93,9 +94,13 @@ public class SQLTypeInfo extends BaseTypeInfo {
       }
 
       ResultSet resultSet = stmt.executeQuery();
+      ColumnIndexMapping mapping = null;
+      if (returnType instanceof IDBType) {
+        mapping = ColumnIndexMapping.forResultSet(((IDBType) returnType).getTable(), sql, resultSet);
+      }
       List lst = new LinkedList();
       while (resultSet.next()) {
-        lst.add(constructResultElement(resultSet, returnType));
+        lst.add(constructResultElement(resultSet, returnType, mapping));
       }
       return lst;
     } catch (SQLException e) {
@@ -149,7 +154,7 @@ public class SQLTypeInfo extends BaseTypeInfo {
     return JavaTypes.MAP().getGenericType().getParameterizedType(JavaTypes.STRING(), JavaTypes.OBJECT());
   }
 
-  private Object constructResultElement(ResultSet resultSet, IType returnType) {
+  private Object constructResultElement(ResultSet resultSet, IType returnType, ColumnIndexMapping mapping) {
     try {
       if (getMapType().equals(returnType)) {
         int count = resultSet.getMetaData().getColumnCount();
@@ -168,7 +173,7 @@ public class SQLTypeInfo extends BaseTypeInfo {
         }
         return ((StructType) returnType).newInstance(vals);
       } else if (returnType instanceof IDBType) {
-        return QueryExecutor.buildObject((IDBType) returnType, resultSet);
+        return QueryExecutor.buildObject((IDBType) returnType, resultSet, mapping);
       } else {
         throw new IllegalStateException("Do not know how to construct objects of type " + returnType.getName());
       }
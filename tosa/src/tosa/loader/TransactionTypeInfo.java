@@ -31,7 +31,8 @@ public class TransactionTypeInfo extends BaseTypeInfo {
   private IMethodInfo _commitMethod;
   private IPropertyInfo _lockProperty;
   private IDBConnection _connInfo;
-  private ThreadLocal<Lock> _lock = new ThreadLocal<Lock>();
+  // The lock holds no state of its own, since the transaction it opens is bound to the thread by the IDBConnection
+  private Lock _lock = new Lock();
 
   public TransactionTypeInfo(TransactionType type) {
     super(type);
@@ -58,10 +59,7 @@ public class TransactionTypeInfo extends BaseTypeInfo {
 
           @Override
           public Object getValue(Object ctx) {
-            if (_lock.get() == null) {
-              _lock.set(new Lock());
-            }
-            return _lock.get();
+            return _lock;
           }
         }).build(this);
   }
@@ -85,6 +85,11 @@ public class DBColumnTypeImpl implements IDBColumnType {
     return _persistenceHandler.readFromResultSet(resultSet, name);
   }
 
+  @Override
+  public Object readFromResultSet(ResultSet resultSet, int index) throws SQLException {
+    return _persistenceHandler.readFromResultSet(resultSet, index);
+  }
+
   @Override
   public void setParameter(PreparedStatement statement, int index, Object value) throws SQLException {
     _persistenceHandler.setParameter(statement, index, value);
@@ -5,6 +5,7 @@ import gw.fs.IFile;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Properties;
 
 /**
  * Created by IntelliJ IDEA.
@@ -17,11 +18,17 @@ public class DBData {
   // TODO - AHK - Additional metadata about the database, such as the type
   private final List<TableData> _tables;
   private final String _connectionString;
+  private final Properties _connectionProperties;
   private final IFile _ddlFile;
 
   public DBData(List<TableData> tables, String connectionString, IFile ddlFile) {
+    this(tables, connectionString, new Properties(), ddlFile);
+  }
+
+  public DBData(List<TableData> tables, String connectionString, Properties connectionProperties, IFile ddlFile) {
     _tables = Collections.unmodifiableList(new ArrayList<TableData>(tables));
     _connectionString = connectionString;
+    _connectionProperties = connectionProperties;
     _ddlFile = ddlFile;
   }
 
@@ -29,6 +36,13 @@ public class DBData {
     return _connectionString;
   }
 
+  /**
+   * Returns the settings that follow the connection string in the .dbc file, such as the connection pool settings.
+   */
+  public Properties getConnectionProperties() {
+    return _connectionProperties;
+  }
+
   public List<TableData> getTables() {
     return _tables;
   }
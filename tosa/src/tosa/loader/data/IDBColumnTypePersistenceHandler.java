@@ -15,5 +15,7 @@ public interface IDBColumnTypePersistenceHandler {
 
   Object readFromResultSet(ResultSet resultSet, String name) throws SQLException;
 
+  Object readFromResultSet(ResultSet resultSet, int index) throws SQLException;
+
   void setParameter(PreparedStatement statement, int index, Object value) throws SQLException;
 }
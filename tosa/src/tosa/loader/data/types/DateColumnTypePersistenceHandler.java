@@ -18,7 +18,15 @@ public class DateColumnTypePersistenceHandler implements IDBColumnTypePersistenc
 
   @Override
   public Object readFromResultSet(ResultSet resultSet, String name) throws SQLException {
-    java.sql.Date dbDate = resultSet.getDate(name);
+    return toUtilDate(resultSet.getDate(name));
+  }
+
+  @Override
+  public Object readFromResultSet(ResultSet resultSet, int index) throws SQLException {
+    return toUtilDate(resultSet.getDate(index));
+  }
+
+  private static Object toUtilDate(java.sql.Date dbDate) {
     if (dbDate != null) {
       return new java.util.Date(dbDate.getTime());
     } else {
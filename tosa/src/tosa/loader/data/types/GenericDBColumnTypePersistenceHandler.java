@@ -26,7 +26,15 @@ public class GenericDBColumnTypePersistenceHandler implements IDBColumnTypePersi
 
   @Override
   public Object readFromResultSet(ResultSet result, String name) throws SQLException {
-    Object resultObject = result.getObject(name);
+    return convertResultObject(result.getObject(name));
+  }
+
+  @Override
+  public Object readFromResultSet(ResultSet result, int index) throws SQLException {
+    return convertResultObject(result.getObject(index));
+  }
+
+  private static Object convertResultObject(Object resultObject) throws SQLException {
     if (resultObject instanceof BufferedReader) {
       return readAll((BufferedReader) resultObject);
     } else if (resultObject instanceof Clob) {
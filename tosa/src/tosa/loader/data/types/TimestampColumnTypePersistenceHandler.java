@@ -15,7 +15,15 @@ public class TimestampColumnTypePersistenceHandler implements IDBColumnTypePersi
 
   @Override
   public Object readFromResultSet(ResultSet resultSet, String name) throws SQLException {
-    Timestamp dbDate = resultSet.getTimestamp(name);
+    return toUtilDate(resultSet.getTimestamp(name));
+  }
+
+  @Override
+  public Object readFromResultSet(ResultSet resultSet, int index) throws SQLException {
+    return toUtilDate(resultSet.getTimestamp(index));
+  }
+
+  private static Object toUtilDate(Timestamp dbDate) {
     if (dbDate != null) {
       return new java.util.Date(dbDate.getTime());
     } else {
@@ -11,9 +11,11 @@ import tosa.loader.parser.mysql.NewMySQL51Parser;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 /**
  * A DBData source that determines the structure of the tables by parsing the DDL statements used to create the tables.
@@ -30,16 +32,33 @@ public class DDLDBDataSource implements IDBDataSource {
       String path = module.pathRelativeToRoot(ddlFile.getSecond());
       IFile connectionFile = module.getFileRepository().findFirstFile(path.substring(0, path.length() - ".ddl".length()) + ".dbc");
       String connectionString = null;
+      Properties connectionProperties = new Properties();
       if (connectionFile != null && connectionFile.exists()) {
-        connectionString = readFile(connectionFile);
+        connectionString = parseConnectionFile(readFile(connectionFile), connectionProperties);
       }
       List<TableData> tables = new NewMySQL51Parser().parseDDLFile(readFile(ddlFile.getSecond()));
       String fileName = ddlFile.getFirst();
-      results.put(fileName.substring(0, fileName.length() - ".ddl".length()).replace("/", "."),  new DBData(tables, connectionString, ddlFile.getSecond()));
+      results.put(fileName.substring(0, fileName.length() - ".ddl".length()).replace("/", "."),  new DBData(tables, connectionString, connectionProperties, ddlFile.getSecond()));
     }
     return results;
   }
 
+  /**
+   * A .dbc file holds the connection URL on its first line, optionally followed by settings such as
+   * pool.maxActive=20 in java.util.Properties format.
+   */
+  static String parseConnectionFile(String contents, Properties properties) {
+    String[] lines = contents.split("\\r?\\n", 2);
+    if (lines.length > 1) {
+      try {
+        properties.load(new StringReader(lines[1]));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return lines[0].trim();
+  }
+
   private String readFile(IFile file) {
     try {
       return readFileWithoutHandlingExceptions(file);